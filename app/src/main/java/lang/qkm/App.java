@@ -9,21 +9,93 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import lang.qkm.sem.ExprChecker;
 import lang.qkm.eval.*;
+import lang.qkm.match.MatchCompiler;
 
 public class App {
 
+    private static Evaluator selectBackend(String[] args, Profile profile) {
+        for (final String arg : args) {
+            switch (arg) {
+            case "--frames":
+                return new FrameWalker();
+            case "--cek":
+                return new CEKMachine();
+            case "--nodes":
+                return new NodeEvaluator();
+            case "--jvm":
+                return new BytecodeEvaluator();
+            }
+        }
+
+        return new ASTWalker(profile);
+    }
+
+    private static MatchRewriter.Scheme selectScheme(String[] args) {
+        for (final String arg : args) {
+            switch (arg) {
+            case "--decision-trees":
+                return MatchRewriter.Scheme.DECISION_TREE;
+            case "--backtracking":
+                return MatchRewriter.Scheme.BACKTRACKING;
+            }
+        }
+
+        return MatchRewriter.Scheme.AUTO;
+    }
+
+    private static void command(String line, Profile profile, RewriteGroup passes) {
+        switch (line.trim()) {
+        case ":passes":
+            System.out.print(passes);
+            return;
+        case ":passes reset":
+            passes.reset();
+            return;
+        }
+
+        if (profile == null) {
+            System.out.println("!! Profiling is not enabled, restart with --profile");
+            return;
+        }
+
+        switch (line.trim()) {
+        case ":profile":
+            System.out.println(profile);
+            break;
+        case ":profile reset":
+            profile.reset();
+            break;
+        case ":profile jfr":
+            profile.commit();
+            break;
+        default:
+            System.out.println("!! Unknown command " + line);
+            break;
+        }
+    }
+
     public static void main(String[] args) {
-        Evaluator eval = new ASTWalker();
+        // only the default backend is instrumented, the others still get
+        // their toplevel forms timed.
+        final Profile profile = Arrays.asList(args).contains("--profile") ? new Profile() : null;
+        Evaluator eval = selectBackend(args, profile);
+        if (profile != null)
+            eval = new Profiler(eval, profile);
         eval = new ExprPrinter(eval);
-        eval = new RewriteGroup(eval, List.of(
-                new ANFConverter(),
-                new MatchRewriter(),
+        final MatchRewriter.Scheme scheme = selectScheme(args);
+        final RewriteGroup passes = new RewriteGroup(eval, List.of(
                 new ANFConverter(),
-                new LetrecFixer(),
+                new MatchRewriter(MatchCompiler.PBA, e -> scheme),
                 new ANFConverter(),
-                new PartialEvaluator(),
-                new ANFConverter()));
-        eval = new ExprPrinter(eval);
+                new RewriteGroup.Repeat(4, List.of(
+                        new LetrecFixer(),
+                        new ANFConverter(),
+                        new PartialEvaluator(),
+                        new ANFConverter(),
+                        new CommonSubexprEliminator())),
+                new ArityRaiser(),
+                new ClosureConverter()));
+        eval = new ExprPrinter(passes);
         final ExprChecker state = new ExprChecker(eval);
 
         try (final BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
@@ -35,6 +107,11 @@ public class App {
 
                 prompt = "\\> ";
                 line = br.readLine();
+                if (line != null && line.startsWith(":") && buffer.isEmpty()) {
+                    command(line, profile, passes);
+                    prompt = ">> ";
+                    continue;
+                }
                 if (line != null && !line.isEmpty()) {
                     buffer.append(line).append('\n');
                     continue;
@@ -25,15 +25,15 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
 
         @Override
         public Expr apply(Expr e) {
-            if (!(this.value instanceof EMatch))
+            if (!(this.value instanceof EMatch) && !(this.value instanceof EJoin))
                 return new ELet(this.name, this.value, e);
 
             // let v = match s with m -> e in Q v =>
-            // let k = \v. Q v in match s with m -> k e
+            // join k v = Q v in match s with m -> jump k e
 
             final EVar cont = new EVar(ANFConverter.this.newName());
-            return new ELet(cont, new ELam(this.name, e),
-                            this.value.accept(new FixupCont(cont)));
+            return new EJoin(cont, List.of(this.name), e,
+                             this.value.accept(new FixupCont(cont)));
         }
     }
 
@@ -53,15 +53,19 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
 
     private final class FixupCont implements Expr.Visitor<Expr> {
 
-        public final Expr joinPoint;
+        public final EVar joinPoint;
 
-        public FixupCont(Expr joinPoint) {
+        public FixupCont(EVar joinPoint) {
             this.joinPoint = joinPoint;
         }
 
+        private Expr jump(Expr e) {
+            return new EJump(this.joinPoint, List.of(e));
+        }
+
         @Override
         public Expr visitEBool(EBool e) {
-            return new EApp(this.joinPoint, e);
+            return this.jump(e);
         }
 
         @Override
@@ -69,17 +73,17 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
             // we were already in monadic intermediate form, so
             // k (#k e...) => let t = (#k e...) in k t
             final EVar t = new EVar(ANFConverter.this.newName());
-            return new ELet(t, e, new EApp(this.joinPoint, t));
+            return new ELet(t, e, this.jump(t));
         }
 
         @Override
         public Expr visitEInt(EInt e) {
-            return new EApp(this.joinPoint, e);
+            return this.jump(e);
         }
 
         @Override
         public Expr visitEString(EString e) {
-            return new EApp(this.joinPoint, e);
+            return this.jump(e);
         }
 
         @Override
@@ -87,7 +91,7 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
             // we were already in monadic intermediate form, so
             // k '(e...) => let t = '(e...) in k t
             final EVar t = new EVar(ANFConverter.this.newName());
-            return new ELet(t, e, new EApp(this.joinPoint, t));
+            return new ELet(t, e, this.jump(t));
         }
 
         @Override
@@ -101,12 +105,12 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
 
         @Override
         public Expr visitEVar(EVar e) {
-            return new EApp(this.joinPoint, e);
+            return this.jump(e);
         }
 
         @Override
         public Expr visitELam(ELam e) {
-            return new EApp(this.joinPoint, e);
+            return this.jump(e);
         }
 
         @Override
@@ -114,7 +118,7 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
             // we were already in monadic intermediate form, so
             // k (f a) => let t = f a in k t
             final EVar t = new EVar(ANFConverter.this.newName());
-            return new ELet(t, e, new EApp(this.joinPoint, t));
+            return new ELet(t, e, this.jump(t));
         }
 
         @Override
@@ -136,6 +140,27 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
             // k (!! q) => !! q
             return e;
         }
+
+        @Override
+        public Expr visitEPrim(EPrim e) {
+            // we were already in monadic intermediate form, so
+            // k (op a b) => let t = op a b in k t
+            final EVar t = new EVar(ANFConverter.this.newName());
+            return new ELet(t, e, this.jump(t));
+        }
+
+        @Override
+        public Expr visitEJoin(EJoin e) {
+            // k (join j x = b in e) => join j x = k b in k e
+            return new EJoin(e.name, e.params, e.body.accept(this), e.rest.accept(this));
+        }
+
+        @Override
+        public Expr visitEJump(EJump e) {
+            // the join point was fixed up already, see visitEJoin.
+            // k (jump j x) => jump j x
+            return e;
+        }
     }
 
     private BigInteger id = BigInteger.ZERO;
@@ -154,6 +179,17 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
         return "`v" + (this.id = this.id.add(BigInteger.ONE));
     }
 
+    @Override
+    public Set<Invariant> preserves() {
+        // only the captures of patterns are renamed.
+        return EnumSet.of(Invariant.FLAT_MATCHES);
+    }
+
+    @Override
+    public Set<Invariant> establishes() {
+        return EnumSet.of(Invariant.ANF);
+    }
+
     private Expr rewriteAtom(Expr e) {
         e = e.accept(this);
         if (!e.isAtom()) {
@@ -174,7 +210,7 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
         for (final Expr arg : e.args)
             args.add(this.rewriteAtom(arg));
 
-        return new ECtor(e.id, args);
+        return new ECtor(e.id, args, e.tag);
     }
 
     @Override
@@ -224,25 +260,33 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
 
     @Override
     public Expr visitELam(ELam e) {
-        final String oldMapping = this.mapping.get(e.arg.name);
-        final String newMapping = this.newName();
+        final List<EVar> params = new ArrayList<>(e.params.size());
+        final String[] oldMappings = new String[e.params.size()];
+        for (int i = 0; i < oldMappings.length; ++i) {
+            final String newMapping = this.newName();
+            oldMappings[i] = this.mapping.put(e.params.get(i).name, newMapping);
+            params.add(new EVar(newMapping));
+        }
 
-        this.mapping.put(e.arg.name, newMapping);
         final Deque<BindingInfo> outer = this.seq;
         this.seq = new ArrayDeque<>();
         final Expr body = this.rewrite(e.body);
 
         this.seq = outer;
-        this.mapping.put(e.arg.name, oldMapping);
-        return new ELam(new EVar(newMapping), body);
+        for (int i = oldMappings.length; i-- > 0; )
+            this.mapping.put(e.params.get(i).name, oldMappings[i]);
+        return new ELam(params, body);
     }
 
     @Override
     public Expr visitEApp(EApp e) {
         final Expr f = this.rewriteAtom(e.f);
-        final Expr arg = this.rewriteAtom(e.arg);
 
-        return new EApp(f, arg);
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args)
+            args.add(this.rewriteAtom(arg));
+
+        return new EApp(f, args);
     }
 
     @Override
@@ -289,6 +333,52 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
         return new EErr(value);
     }
 
+    @Override
+    public Expr visitEPrim(EPrim e) {
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args)
+            args.add(this.rewriteAtom(arg));
+
+        return new EPrim(e.op, e.type, args);
+    }
+
+    @Override
+    public Expr visitEJoin(EJoin e) {
+        // like a match, the body and the rest get their own bindings since
+        // the jumps must stay in tail position.
+        final Deque<BindingInfo> outer = this.seq;
+        final Map<String, String> old = this.mapping;
+        this.mapping = new HashMap<>(old);
+        final List<EVar> params = new ArrayList<>(e.params.size());
+        for (final EVar param : e.params) {
+            final String newMapping = this.newName();
+            this.mapping.put(param.name, newMapping);
+            params.add(new EVar(newMapping));
+        }
+
+        this.seq = new ArrayDeque<>();
+        final Expr body = this.rewrite(e.body);
+
+        this.mapping = new HashMap<>(old);
+        final String name = this.newName();
+        this.mapping.put(e.name.name, name);
+        this.seq = new ArrayDeque<>();
+        final Expr rest = this.rewrite(e.rest);
+
+        this.mapping = old;
+        this.seq = outer;
+        return new EJoin(new EVar(name), params, body, rest);
+    }
+
+    @Override
+    public Expr visitEJump(EJump e) {
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args)
+            args.add(this.rewriteAtom(arg));
+
+        return new EJump((EVar) this.visitEVar(e.target), args);
+    }
+
     @Override
     public Match visitMatchAll(MatchAll m) {
         if (m.capture == null)
@@ -320,7 +410,7 @@ public final class ANFConverter implements ExprRewriter, Match.Visitor<Match> {
         if (!modified)
             return m;
 
-        return new MatchCtor(m.ctor, args);
+        return new MatchCtor(m.ctor, args, m.tag);
     }
 
     @Override
@@ -1,41 +1,84 @@
 package lang.qkm.eval;
 
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.*;
 import lang.qkm.expr.*;
 import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
 
 public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation> {
 
+    // only calls in tail position are suspended and bounce through the
+    // trampoline. everything else (let, match, letrec, join points and calls
+    // whose result is still needed) runs directly on the current walker,
+    // their nesting is bounded by the size of the code or already uses the
+    // stack anyway.
+
     public static abstract class Computation {
 
         public abstract Value force();
 
-        private Computation() { /* restricted subclassing */ }
+        /* package */ Computation() { /* restricted subclassing */ }
+    }
+
+    public interface Binder {
+
+        public void bind(MatchAll m, Value v);
+    }
+
+    public static final class Env {
+
+        // locals are kept in a persistent list so that extending it never
+        // needs to copy or mutate whatever might be sharing it. the globals
+        // are looked up separately.
+
+        public final EVar name;
+        public final Value value;
+        public final Env next;
+
+        public Env(EVar name, Value value, Env next) {
+            this.name = name;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private static final class Captures implements Binder {
+
+        public Env env;
+
+        @Override
+        public void bind(MatchAll m, Value v) {
+            this.env = new Env(new EVar(m.capture), v, this.env);
+        }
     }
 
     public static final class Suspended extends Computation {
 
-        public final Map<EVar, Value> env;
+        public final Map<EVar, Value> globals;
+        public final Env env;
         public final Expr expr;
+        public final Profile profile;
+
+        public Suspended(Map<EVar, Value> globals, Env env, Expr expr) {
+            this(globals, env, expr, null);
+        }
 
-        public Suspended(final Map<EVar, Value> env, Expr expr) {
+        public Suspended(Map<EVar, Value> globals, Env env, Expr expr, Profile profile) {
+            this.globals = globals;
             this.env = env;
             this.expr = expr;
+            this.profile = profile;
         }
 
         @Override
         public Value force() {
-            Suspended thunk = this;
-            for (;;) {
-                final ASTWalker exec = new ASTWalker();
-                exec.env = thunk.env;
-                final Computation k = thunk.expr.accept(exec);
-                if (k instanceof Value)
-                    return (Value) k;
-
-                thunk = (Suspended) k;
-            }
+            if (this.profile != null)
+                this.profile.bounce();
+            return new ASTWalker(this.profile).run(this.globals, this.env, this.expr);
         }
     }
 
@@ -50,24 +93,42 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
             return this;
         }
 
-        public abstract boolean unpack(Match m, Map<EVar, Value> env);
+        // the key used to pick the cases of a match, which agrees with
+        // Match.getCtor of the patterns that could possibly match it.
+        public Object getCtor() {
+            return null;
+        }
+
+        public abstract boolean unpack(Match m, Binder env);
     }
 
     public static final class VBool extends Value {
 
+        public static final VBool TRUE = new VBool(true);
+        public static final VBool FALSE = new VBool(false);
+
         public final boolean value;
 
         public VBool(boolean value) {
             this.value = value;
         }
 
+        public static VBool of(boolean value) {
+            return value ? TRUE : FALSE;
+        }
+
+        @Override
+        public Object getCtor() {
+            return this.value;
+        }
+
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public boolean unpack(Match m, Binder env) {
             // match must be either a complete match or a decons pattern
             if (m instanceof MatchAll) {
                 final MatchAll k = (MatchAll) m;
                 if (k.capture != null)
-                    env.put(new EVar(k.capture), this);
+                    env.bind(k, this);
                 return true;
             }
 
@@ -92,12 +153,17 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public Object getCtor() {
+            return this.value;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
             // match must be either a complete match or a decons pattern
             if (m instanceof MatchAll) {
                 final MatchAll k = (MatchAll) m;
                 if (k.capture != null)
-                    env.put(new EVar(k.capture), this);
+                    env.bind(k, this);
                 return true;
             }
 
@@ -113,33 +179,103 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
     }
 
+    public static final class VWord extends Value {
+
+        // iN with N <= 64, the value is always sign extended.
+
+        // small values are shared per width, like Long.valueOf. the rows are
+        // filled lazily and only published through the atomic array once
+        // they are complete, so no thread can see a row without its values.
+        private static final int LOW = -128;
+        private static final int HIGH = 1023;
+        private static final AtomicReferenceArray<VWord[]> SMALL = new AtomicReferenceArray<>(65);
+
+        public final TyInt type;
+        public final long value;
+
+        public VWord(TyInt type, long value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        public static VWord of(TyInt type, long value) {
+            if (value < LOW || value > HIGH)
+                return new VWord(type, value);
+
+            VWord[] row = SMALL.get(type.bits);
+            if (row == null) {
+                row = new VWord[HIGH - LOW + 1];
+                for (int i = 0; i < row.length; ++i)
+                    row[i] = new VWord(type, type.signed((long) (i + LOW)));
+                if (!SMALL.compareAndSet(type.bits, null, row))
+                    row = SMALL.get(type.bits);
+            }
+            return row[(int) value - LOW];
+        }
+
+        @Override
+        public Object getCtor() {
+            return this.value;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            // match must be either a complete match or a decons pattern
+            if (m instanceof MatchAll) {
+                final MatchAll k = (MatchAll) m;
+                if (k.capture != null)
+                    env.bind(k, this);
+                return true;
+            }
+
+            if (m instanceof MatchInt)
+                return this.value == ((MatchInt) m).word;
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(this.value);
+        }
+    }
+
     public static final class VInt extends Value {
 
-        public final EInt value;
+        // iN with N > 64
+
+        public final TyInt type;
+        public final BigInteger value;
 
-        public VInt(EInt value) {
+        public VInt(TyInt type, BigInteger value) {
+            this.type = type;
             this.value = value;
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public Object getCtor() {
+            return this.value;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
             // match must be either a complete match or a decons pattern
             if (m instanceof MatchAll) {
                 final MatchAll k = (MatchAll) m;
                 if (k.capture != null)
-                    env.put(new EVar(k.capture), this);
+                    env.bind(k, this);
                 return true;
             }
 
             if (m instanceof MatchInt)
-                return this.value.value.equals(((MatchInt) m).value);
+                return this.value.equals(((MatchInt) m).value);
 
             return false;
         }
 
         @Override
         public String toString() {
-            return this.value.value.toString();
+            return this.value.toString();
         }
     }
 
@@ -152,12 +288,12 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public boolean unpack(Match m, Binder env) {
             // match must be either a complete match or a decons pattern
             if (m instanceof MatchAll) {
                 final MatchAll k = (MatchAll) m;
                 if (k.capture != null)
-                    env.put(new EVar(k.capture), this);
+                    env.bind(k, this);
                 return true;
             }
 
@@ -186,38 +322,90 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
     }
 
-    public static final class VCtor extends Value {
+    public static abstract class VCtor extends Value {
+
+        // constructors store their arguments in fields when there are only
+        // a few of them, which saves the list and its backing array that
+        // every constructed value would otherwise need. nullary ones are
+        // shared, see of.
+
+        // the same name can have a different tag in another type, so they
+        // are shared per name and tag. the array is indexed by tag + 1 (the
+        // untagged ones are -1) and replaced instead of updated.
+        private static final Map<String, VCtor[]> NULLARY = new ConcurrentHashMap<>();
 
         public final String id;
-        public final List<Value> args;
+        public final int tag;
 
-        public VCtor(String id, List<Value> args) {
+        /* package */ VCtor(String id, int tag) {
             this.id = id;
-            this.args = args;
+            this.tag = tag;
+        }
+
+        public static VCtor of(String id, int tag) {
+            final VCtor[] shared = NULLARY.get(id);
+            if (shared != null && tag + 1 < shared.length && shared[tag + 1] != null)
+                return shared[tag + 1];
+
+            return NULLARY.compute(id, (n, old) -> {
+                if (old != null && tag + 1 < old.length && old[tag + 1] != null)
+                    return old;
+
+                final VCtor[] acc = old == null
+                        ? new VCtor[tag + 2]
+                        : Arrays.copyOf(old, Math.max(old.length, tag + 2));
+                acc[tag + 1] = new VCtor0(n, tag);
+                return acc;
+            })[tag + 1];
+        }
+
+        public static VCtor of(String id, int tag, Value... args) {
+            switch (args.length) {
+            case 0:
+                return of(id, tag);
+            case 1:
+                return new VCtor1(id, tag, args[0]);
+            case 2:
+                return new VCtor2(id, tag, args[0], args[1]);
+            case 3:
+                return new VCtor3(id, tag, args[0], args[1], args[2]);
+            default:
+                return new VCtorN(id, tag, args);
+            }
+        }
+
+        public abstract int arity();
+
+        public abstract Value get(int index);
+
+        @Override
+        public Object getCtor() {
+            return this.id;
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public boolean unpack(Match m, Binder env) {
             // match must be either a complete match or a decons pattern
             if (m instanceof MatchAll) {
                 final MatchAll k = (MatchAll) m;
                 if (k.capture != null)
-                    env.put(new EVar(k.capture), this);
+                    env.bind(k, this);
                 return true;
             }
 
             if (m instanceof MatchCtor) {
                 final MatchCtor n = (MatchCtor) m;
-                if (!n.ctor.equals(this.id))
+                if (this.tag >= 0 && n.tag >= 0 ? this.tag != n.tag : !n.ctor.equals(this.id))
                     return false;
 
-                final Iterator<Value> it1 = this.args.iterator();
-                final Iterator<Match> it2 = n.args.iterator();
-                while (it1.hasNext() && it2.hasNext())
-                    if (!it1.next().unpack(it2.next(), env))
-                        return false;
+                final int arity = this.arity();
+                if (arity != n.args.size())
+                    return false;
 
-                return it1.hasNext() == it2.hasNext();
+                for (int i = 0; i < arity; ++i)
+                    if (!this.get(i).unpack(n.args.get(i), env))
+                        return false;
+                return true;
             }
 
             return false;
@@ -225,34 +413,165 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
 
         @Override
         public String toString() {
-            if (this.args.isEmpty())
+            final int arity = this.arity();
+            if (arity == 0)
                 return this.id;
 
-            return this.args.stream()
-                    .map(k -> k instanceof VCtor ? "(" + k + ")" : k.toString())
-                    .collect(Collectors.joining(" ", this.id + " ", ""));
+            final StringBuilder sb = new StringBuilder(this.id);
+            for (int i = 0; i < arity; ++i) {
+                final Value k = this.get(i).unwrap();
+                sb.append(' ');
+                if (k instanceof VCtor)
+                    sb.append('(').append(k).append(')');
+                else
+                    sb.append(k);
+            }
+            return sb.toString();
+        }
+    }
+
+    public static final class VCtor0 extends VCtor {
+
+        public VCtor0(String id, int tag) {
+            super(id, tag);
+        }
+
+        @Override
+        public int arity() {
+            return 0;
+        }
+
+        @Override
+        public Value get(int index) {
+            throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    public static final class VCtor1 extends VCtor {
+
+        public final Value a0;
+
+        public VCtor1(String id, int tag, Value a0) {
+            super(id, tag);
+            this.a0 = a0;
+        }
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Value get(int index) {
+            if (index != 0)
+                throw new IndexOutOfBoundsException(index);
+            return this.a0;
+        }
+    }
+
+    public static final class VCtor2 extends VCtor {
+
+        public final Value a0;
+        public final Value a1;
+
+        public VCtor2(String id, int tag, Value a0, Value a1) {
+            super(id, tag);
+            this.a0 = a0;
+            this.a1 = a1;
+        }
+
+        @Override
+        public int arity() {
+            return 2;
+        }
+
+        @Override
+        public Value get(int index) {
+            switch (index) {
+            case 0:
+                return this.a0;
+            case 1:
+                return this.a1;
+            default:
+                throw new IndexOutOfBoundsException(index);
+            }
+        }
+    }
+
+    public static final class VCtor3 extends VCtor {
+
+        public final Value a0;
+        public final Value a1;
+        public final Value a2;
+
+        public VCtor3(String id, int tag, Value a0, Value a1, Value a2) {
+            super(id, tag);
+            this.a0 = a0;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        @Override
+        public int arity() {
+            return 3;
+        }
+
+        @Override
+        public Value get(int index) {
+            switch (index) {
+            case 0:
+                return this.a0;
+            case 1:
+                return this.a1;
+            case 2:
+                return this.a2;
+            default:
+                throw new IndexOutOfBoundsException(index);
+            }
+        }
+    }
+
+    public static final class VCtorN extends VCtor {
+
+        public final Value[] args;
+
+        public VCtorN(String id, int tag, Value[] args) {
+            super(id, tag);
+            this.args = args;
+        }
+
+        @Override
+        public int arity() {
+            return this.args.length;
+        }
+
+        @Override
+        public Value get(int index) {
+            return this.args[index];
         }
     }
 
     public static final class VLam extends Value {
 
-        public final Map<EVar, Value> env;
+        public final Map<EVar, Value> globals;
+        public final Env env;
         public final ELam f;
 
-        public VLam(Map<EVar, Value> env, ELam f) {
+        public VLam(Map<EVar, Value> globals, Env env, ELam f) {
+            this.globals = globals;
             this.env = env;
             this.f = f;
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public boolean unpack(Match m, Binder env) {
             // only complete matches can match against lambdas
             if (!(m instanceof MatchAll))
                 return false;
 
             final MatchAll k = (MatchAll) m;
             if (k.capture != null)
-                env.put(new EVar(k.capture), this);
+                env.bind(k, this);
             return true;
         }
 
@@ -262,6 +581,67 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
     }
 
+    public static final class VPartial extends Value {
+
+        // a function applied to fewer arguments than it has parameters. the
+        // function is whatever the evaluator uses for closures, the
+        // arguments are passed along once the rest of them show up.
+
+        public final Value f;
+        public final Value[] args;
+
+        public VPartial(Value f, Value[] args) {
+            this.f = f;
+            this.args = args;
+        }
+
+        public Value[] extend(Value[] more) {
+            final Value[] args = Arrays.copyOf(this.args, this.args.length + more.length);
+            System.arraycopy(more, 0, args, this.args.length, more.length);
+            return args;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            // only complete matches can match against lambdas
+            if (!(m instanceof MatchAll))
+                return false;
+
+            final MatchAll k = (MatchAll) m;
+            if (k.capture != null)
+                env.bind(k, this);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "<fun>";
+        }
+    }
+
+    public static final class VJoin extends Value {
+
+        // the join point bound to a name. it keeps no environment: jumps
+        // only happen in the rest of the join point, whose environment
+        // extends the one the join point was defined in.
+
+        public final EJoin join;
+
+        public VJoin(EJoin join) {
+            this.join = join;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            throw new IllegalStateException("Unpacking join point");
+        }
+
+        @Override
+        public String toString() {
+            return "<join>";
+        }
+    }
+
     public static final class VBox extends Value {
 
         public Value boxed;
@@ -275,7 +655,7 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
 
         @Override
-        public boolean unpack(Match m, Map<EVar, Value> env) {
+        public boolean unpack(Match m, Binder env) {
             if (this.boxed == null)
                 throw new IllegalStateException("Unpacking unbounded value");
 
@@ -288,48 +668,152 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         }
     }
 
-    private Map<EVar, Value> env = new HashMap<>();
+    static Value prim(EPrim e, Value a, Value b) {
+        // shared by all the evaluators, words neither allocate for the
+        // comparisons nor for small results.
+        a = a.unwrap();
+        b = b.unwrap();
+        if (e.type.isWord()) {
+            final long x = ((VWord) a).value;
+            final long y = ((VWord) b).value;
+            if (e.op.isComparison())
+                return VBool.of(e.op.test(x, y));
+            return VWord.of(e.type, e.op.apply(e.type, x, y));
+        }
+
+        final BigInteger x = ((VInt) a).value;
+        final BigInteger y = ((VInt) b).value;
+        if (e.op.isComparison())
+            return VBool.of(e.op.test(x, y));
+        return new VInt(e.type, e.op.apply(e.type, x, y));
+    }
+
+    static int[] select(EMatch e, Value v) {
+        // indices of the cases that could match v, see CaseTable.
+        final Value u = v.unwrap();
+        return e.getTable().select(u instanceof VCtor ? ((VCtor) u).tag : -1, u.getCtor());
+    }
+
+    // the globals are never mutated once published since closures keep a
+    // reference to them. defines therefore replace the whole table.
+    private Map<EVar, Value> globals = new HashMap<>();
+    private Env env;
+
+    // whether the expression being visited is in tail position, meaning its
+    // result is the result of the current call.
+    private boolean tail;
+
+    // null unless the evaluator is instrumented.
+    private final Profile profile;
+
+    public ASTWalker() {
+        this(null);
+    }
+
+    public ASTWalker(Profile profile) {
+        this.profile = profile;
+    }
+
+    private Value run(Map<EVar, Value> globals, Env env, Expr e) {
+        // runs e as the body of a call, the tail calls of which bounce here.
+        final Map<EVar, Value> oldGlobals = this.globals;
+        final Env oldEnv = this.env;
+        final boolean oldTail = this.tail;
+        try {
+            for (;;) {
+                this.globals = globals;
+                this.env = env;
+                this.tail = true;
+                final Computation k = e.accept(this);
+                if (k instanceof Value)
+                    return (Value) k;
+
+                if (this.profile != null)
+                    this.profile.bounce();
+
+                final Suspended thunk = (Suspended) k;
+                globals = thunk.globals;
+                env = thunk.env;
+                e = thunk.expr;
+            }
+        } finally {
+            this.globals = oldGlobals;
+            this.env = oldEnv;
+            this.tail = oldTail;
+        }
+    }
+
+    private Value value(Expr e) {
+        // evaluates e outside of tail position, the locals it binds are only
+        // visible to itself.
+        final Env oldEnv = this.env;
+        final boolean oldTail = this.tail;
+        this.tail = false;
+        try {
+            return e.accept(this).force();
+        } finally {
+            this.env = oldEnv;
+            this.tail = oldTail;
+        }
+    }
+
+    private void alloc(Profile.Alloc kind) {
+        if (this.profile != null)
+            this.profile.alloc(kind);
+    }
 
     @Override
     public void define(Map<EVar, Expr> defs) {
         // defines are always recursive, but what makes things bit more tricky
         // is the fact that we allow recursive data constructors...
 
-        for (final EVar b : defs.keySet())
-            this.env.put(b, new VBox());
+        final Map<EVar, Value> globals = new HashMap<>(this.globals);
+        for (final Map.Entry<EVar, Expr> pair : defs.entrySet()) {
+            this.alloc(Profile.Alloc.BOX);
+            if (this.profile != null)
+                this.profile.label(pair.getKey(), pair.getValue());
+            globals.put(pair.getKey(), new VBox());
+        }
+        this.globals = globals;
 
         for (final Map.Entry<EVar, Expr> pair : defs.entrySet()) {
-            final VBox box = (VBox) this.env.get(pair.getKey());
+            final VBox box = (VBox) globals.get(pair.getKey());
             if (box.boxed != null)
                 throw new IllegalStateException("Invalid binding initialization");
 
-            box.boxed = pair.getValue().accept(this).force();
+            box.boxed = this.value(pair.getValue());
         }
     }
 
     @Override
     public void eval(Expr e) {
-        System.out.println(e.accept(this).force());
+        System.out.println(this.value(e));
     }
 
     @Override
     public Value visitEBool(EBool e) {
-        return new VBool(e.value);
+        return VBool.of(e.value);
     }
 
     @Override
     public Value visitECtor(ECtor e) {
         if (e.args.isEmpty())
-            return new VCtor(e.id, List.of());
+            return VCtor.of(e.id, e.tag);
 
-        return new VCtor(e.id, e.args.stream()
-                .map(k -> k.accept(this).force())
-                .collect(Collectors.toList()));
+        final Value[] args = new Value[e.args.size()];
+        int i = 0;
+        for (final Expr arg : e.args)
+            args[i++] = this.value(arg);
+
+        this.alloc(Profile.Alloc.CTOR);
+        return VCtor.of(e.id, e.tag, args);
     }
 
     @Override
     public Value visitEInt(EInt e) {
-        return new VInt(e);
+        if (e.value == null)
+            return VWord.of(e.type, e.word);
+        return new VInt(e.type, e.value);
     }
 
     @Override
@@ -342,20 +826,28 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
         if (e.elements.isEmpty())
             return new VTup(List.of());
 
+        this.alloc(Profile.Alloc.TUP);
         return new VTup(e.elements.stream()
-                .map(k -> k.accept(this).force())
+                .map(this::value)
                 .collect(Collectors.toList()));
     }
 
     @Override
-    public Suspended visitEMatch(EMatch e) {
-        final Value value = e.scrutinee.accept(this).force();
-
-        for (final Map.Entry<Match, Expr> pair : e.cases) {
-            final Match m = pair.getKey();
-            final Map<EVar, Value> cap = new HashMap<>(this.env);
-            if (value.unpack(m, cap))
-                return new Suspended(cap, pair.getValue());
+    public Computation visitEMatch(EMatch e) {
+        final Value value = this.value(e.scrutinee);
+
+        final Captures cap = new Captures();
+        for (final int i : select(e, value)) {
+            final Map.Entry<Match, Expr> pair = e.cases.get(i);
+            cap.env = this.env;
+            if (this.profile != null)
+                this.profile.tried();
+            if (value.unpack(pair.getKey(), cap)) {
+                if (this.profile != null)
+                    this.profile.taken();
+                this.env = cap.env;
+                return pair.getValue().accept(this);
+            }
         }
 
         throw new RuntimeException("Match failure!");
@@ -363,7 +855,11 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
 
     @Override
     public Value visitEVar(EVar e) {
-        final Value v = this.env.get(e);
+        for (Env k = this.env; k != null; k = k.next)
+            if (k.name.equals(e))
+                return k.value;
+
+        final Value v = this.globals.get(e);
         if (v == null)
             throw new RuntimeException("Undeclared variable " + e);
 
@@ -372,39 +868,132 @@ public class ASTWalker implements Evaluator, Expr.Visitor<ASTWalker.Computation>
 
     @Override
     public Value visitELam(ELam e) {
-        return new VLam(new HashMap<>(this.env), e);
+        this.alloc(Profile.Alloc.LAM);
+        if (e.captures == null)
+            return new VLam(this.globals, this.env, e);
+
+        Env env = null;
+        for (final EVar v : e.captures)
+            env = new Env(v, this.visitEVar(v), env);
+        return new VLam(this.globals, env, e);
     }
 
     @Override
-    public Suspended visitEApp(EApp e) {
-        final VLam f = (VLam) e.f.accept(this).force().unwrap();
-        final Value arg = e.arg.accept(this).force();
+    public Computation visitEApp(EApp e) {
+        final Value[] args = new Value[e.args.size()];
+        final Value f = this.value(e.f).unwrap();
+        int i = 0;
+        for (final Expr arg : e.args)
+            args[i++] = this.value(arg);
+
+        return this.apply(f, args);
+    }
+
+    private Computation apply(Value f, Value[] args) {
+        if (f instanceof VPartial) {
+            final VPartial p = (VPartial) f;
+            args = p.extend(args);
+            f = p.f;
+        }
 
-        f.env.put(f.f.arg, arg);
-        return new Suspended(f.env, f.f.body);
+        final VLam k = (VLam) f;
+        final int arity = k.f.arity();
+        if (args.length < arity) {
+            this.alloc(Profile.Alloc.PAP);
+            return new VPartial(k, args);
+        }
+
+        if (this.profile != null)
+            this.profile.call(k.f);
+
+        // the captured environment is shared by all calls of the closure, so
+        // extend it instead of writing the arguments into it.
+        Env env = k.env;
+        for (int i = 0; i < arity; ++i)
+            env = new Env(k.f.params.get(i), args[i], env);
+
+        if (args.length == arity)
+            return this.tail
+                    ? new Suspended(k.globals, env, k.f.body, this.profile)
+                    : this.run(k.globals, env, k.f.body);
+
+        // the result takes the remaining arguments.
+        final Value r = this.run(k.globals, env, k.f.body);
+        return this.apply(r.unwrap(), Arrays.copyOfRange(args, arity, args.length));
     }
 
     @Override
-    public Suspended visitELet(ELet e) {
-        final Map<EVar, Value> next = new HashMap<>(this.env);
-        next.put(e.bind, e.value.accept(this).force());
-        return new Suspended(next, e.body);
+    public Computation visitELet(ELet e) {
+        if (this.profile != null)
+            this.profile.label(e.bind, e.value);
+
+        final Value value = this.value(e.value);
+        this.env = new Env(e.bind, value, this.env);
+        return e.body.accept(this);
     }
 
     @Override
-    public Suspended visitELetrec(ELetrec e) {
-        final Map<EVar, Value> old = this.env;
-        this.env = new HashMap<>(old);
-        try {
-            this.define(e.binds);
-            return new Suspended(this.env, e.body);
-        } finally {
-            this.env = old;
+    public Computation visitELetrec(ELetrec e) {
+        final List<VBox> boxes = new ArrayList<>(e.binds.size());
+        for (final Map.Entry<EVar, Expr> pair : e.binds.entrySet()) {
+            final EVar b = pair.getKey();
+            this.alloc(Profile.Alloc.BOX);
+            if (this.profile != null)
+                this.profile.label(b, pair.getValue());
+
+            final VBox box = new VBox();
+            boxes.add(box);
+            this.env = new Env(b, box, this.env);
         }
+
+        final Iterator<VBox> it = boxes.iterator();
+        for (final Expr init : e.binds.values()) {
+            final VBox box = it.next();
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.value(init);
+        }
+
+        return e.body.accept(this);
     }
 
     @Override
     public Value visitEErr(EErr e) {
-        throw new RuntimeException(e.value.accept(this).force() + "");
+        throw new RuntimeException(this.value(e.value) + "");
+    }
+
+    @Override
+    public Value visitEPrim(EPrim e) {
+        return prim(e, this.value(e.args.get(0)), this.value(e.args.get(1)));
+    }
+
+    @Override
+    public Computation visitEJoin(EJoin e) {
+        this.env = new Env(e.name, new VJoin(e), this.env);
+        return e.rest.accept(this);
+    }
+
+    @Override
+    public Computation visitEJump(EJump e) {
+        final Value[] args = new Value[e.args.size()];
+        int i = 0;
+        for (final Expr arg : e.args)
+            args[i++] = this.value(arg);
+
+        // the body runs in the environment the join point was defined in,
+        // which is what follows its own entry.
+        Env k = this.env;
+        while (k != null && !k.name.equals(e.target))
+            k = k.next;
+        if (k == null)
+            throw new RuntimeException("Undeclared join point " + e.target);
+
+        final EJoin join = ((VJoin) k.value).join;
+        Env env = k.next;
+        for (i = 0; i < args.length; ++i)
+            env = new Env(join.params.get(i), args[i], env);
+        this.env = env;
+        return join.body.accept(this);
     }
 }
@@ -0,0 +1,163 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+
+public final class ArityRaiser implements ExprRewriter {
+
+    // \x. \y. e => \x y. e
+    // let t = f x in t y => f x y
+    //
+    // the first one makes lambdas take all of their curried parameters at
+    // once, which is only possible if nothing happens between receiving
+    // them. the second one then lets the callers pass them at once too: a
+    // call with as many arguments as the callee has parameters goes straight
+    // into its body instead of building a closure per argument. too few
+    // arguments make a partial application and too many apply the result to
+    // the rest, so merging calls is always fine. it is only done when the
+    // callee is not known to take fewer arguments than the first call has,
+    // otherwise the call was already saturated and nothing is gained.
+    //
+    // this relies on ANF giving every binder a unique name, just like
+    // CommonSubexprEliminator.
+
+    private final Map<EVar, Integer> arities = new HashMap<>();
+
+    @Override
+    public Expr rewrite(Expr e) {
+        try {
+            return e.accept(this);
+        } finally {
+            this.arities.clear();
+        }
+    }
+
+    @Override
+    public Set<Invariant> requires() {
+        return EnumSet.of(Invariant.ANF);
+    }
+
+    @Override
+    public Set<Invariant> preserves() {
+        return EnumSet.of(Invariant.ANF, Invariant.FLAT_MATCHES);
+    }
+
+    private static int arity(Expr e) {
+        // the arity of the lambda after merging, 0 if it is not one.
+        if (!(e instanceof ELam))
+            return 0;
+
+        ELam lam = (ELam) e;
+        final Set<EVar> params = new HashSet<>(lam.params);
+        while (lam.captures == null && lam.body instanceof ELam) {
+            final ELam inner = (ELam) lam.body;
+            if (inner.captures != null || !Collections.disjoint(params, inner.params))
+                break;
+
+            params.addAll(inner.params);
+            lam = inner;
+        }
+        return params.size();
+    }
+
+    private boolean merges(EApp call) {
+        if (!(call.f instanceof EVar))
+            return true;
+
+        final Integer arity = this.arities.get((EVar) call.f);
+        return arity == null || call.args.size() < arity;
+    }
+
+    private static EApp merge(EApp call, EApp rest) {
+        final List<Expr> args = new ArrayList<>(call.args.size() + rest.args.size());
+        args.addAll(call.args);
+        args.addAll(rest.args);
+        return new EApp(call.f, args);
+    }
+
+    private static boolean appliedOnce(EVar v, Expr e) {
+        if (!(e instanceof EApp))
+            return false;
+
+        final EApp app = (EApp) e;
+        return v.equals(app.f) && !FreeVars.union(app.args).contains(v);
+    }
+
+    @Override
+    public Expr visitELam(ELam e) {
+        final Integer[] old = new Integer[e.params.size()];
+        for (int i = 0; i < old.length; ++i)
+            old[i] = this.arities.remove(e.params.get(i));
+
+        try {
+            if (e.captures == null && e.body instanceof ELam) {
+                final ELam inner = (ELam) e.body;
+                if (inner.captures == null && Collections.disjoint(e.params, inner.params)) {
+                    final List<EVar> params = new ArrayList<>(e.arity() + inner.arity());
+                    params.addAll(e.params);
+                    params.addAll(inner.params);
+                    return new ELam(params, inner.body).accept(this);
+                }
+            }
+
+            final Expr body = e.body.accept(this);
+            return e.body == body ? e : new ELam(e.params, body, e.captures, e.frameSize);
+        } finally {
+            for (int i = old.length; i-- > 0; )
+                if (old[i] != null)
+                    this.arities.put(e.params.get(i), old[i]);
+        }
+    }
+
+    @Override
+    public Expr visitELet(ELet e) {
+        final Expr value = e.value.accept(this);
+
+        if (value instanceof EApp && this.merges((EApp) value)) {
+            final EApp call = (EApp) value;
+            if (appliedOnce(e.bind, e.body))
+                return merge(call, (EApp) e.body).accept(this);
+
+            if (e.body instanceof ELet) {
+                final ELet next = (ELet) e.body;
+                if (appliedOnce(e.bind, next.value) && !next.body.getFreeVars().contains(e.bind))
+                    return new ELet(next.bind, merge(call, (EApp) next.value), next.body).accept(this);
+            }
+        }
+
+        final int arity = arity(value);
+        final Integer old = arity == 0 ? null : this.arities.put(e.bind, arity);
+        try {
+            final Expr body = e.body.accept(this);
+            return e.value == value && e.body == body ? e : new ELet(e.bind, value, body);
+        } finally {
+            if (arity != 0) {
+                if (old == null)
+                    this.arities.remove(e.bind);
+                else
+                    this.arities.put(e.bind, old);
+            }
+        }
+    }
+
+    @Override
+    public Expr visitELetrec(ELetrec e) {
+        // the arities are needed in the bindings already, so they are
+        // computed before the lambdas are merged.
+        final Map<EVar, Integer> old = new HashMap<>(this.arities);
+        for (final Map.Entry<EVar, Expr> bind : e.binds.entrySet()) {
+            final int arity = arity(bind.getValue());
+            if (arity == 0)
+                this.arities.remove(bind.getKey());
+            else
+                this.arities.put(bind.getKey(), arity);
+        }
+
+        try {
+            return ExprRewriter.super.visitELetrec(e);
+        } finally {
+            this.arities.clear();
+            this.arities.putAll(old);
+        }
+    }
+}
@@ -0,0 +1,1276 @@
+package lang.qkm.eval;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.stream.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.util.SList;
+import lang.qkm.eval.ASTWalker.*;
+import static lang.qkm.eval.ClassBuilder.*;
+
+public final class BytecodeEvaluator implements Evaluator {
+
+    // compiles each toplevel expression into a class so that HotSpot can JIT
+    // the QKM code directly:
+    //
+    // *  every lambda becomes a static method taking the captured values and
+    //    the arguments. the closure objects are instances of the generated
+    //    class itself, and apply dispatches on the lambda id.
+    // *  calls that pass a closure exactly as many arguments as it takes go
+    //    straight to its method, everything else goes through enter, which
+    //    builds partial applications or applies the result to the rest.
+    // *  calls in tail position return a TailCall that the caller forces,
+    //    except for saturated self tail calls, which jump back to the start.
+    // *  join points are placed after the code that jumps to them, and a
+    //    jump is a plain goto within the method.
+    // *  constants (literal values and the boxes of the globals) are handed
+    //    to the class through a static array after it is loaded.
+    // *  the values are shared with the other evaluators.
+    //
+    // every class gets a loader of its own, so it (and the constants it
+    // holds on to) can be unloaded once nothing refers to it anymore. the
+    // generated code is therefore outside of this package at runtime, and
+    // everything it uses must be public.
+
+    public static abstract class Closure extends Value {
+
+        public final int id;
+        public final int arity;
+        public final Value[] env;
+
+        protected Closure(int id, int arity, Value[] env) {
+            this.id = id;
+            this.arity = arity;
+            this.env = env;
+        }
+
+        // only ever called with as many arguments as the lambda takes, the
+        // first one for the lambdas taking a single argument.
+        public abstract Computation apply(Value arg);
+
+        public abstract Computation apply(Value[] args);
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            // only complete matches can match against lambdas
+            if (!(m instanceof MatchAll))
+                return false;
+
+            final MatchAll k = (MatchAll) m;
+            if (k.capture != null)
+                env.bind(k, this);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "<fun>";
+        }
+    }
+
+    public static final class TailCall extends Computation {
+
+        // either a closure taking the single argument, or any function with
+        // the arguments in an array.
+
+        public final Value f;
+        public final Value arg;
+        public final Value[] args;
+
+        public TailCall(Closure f, Value arg) {
+            this.f = f;
+            this.arg = arg;
+            this.args = null;
+        }
+
+        public TailCall(Value f, Value[] args) {
+            this.f = f;
+            this.arg = null;
+            this.args = args;
+        }
+
+        @Override
+        public Value force() {
+            Computation k = this;
+            while (k instanceof TailCall) {
+                final TailCall t = (TailCall) k;
+                k = t.args == null ? ((Closure) t.f).apply(t.arg) : enter(t.f, t.args);
+            }
+            return (Value) k;
+        }
+    }
+
+    private static Computation enter(Value f, Value[] args) {
+        if (f instanceof VPartial) {
+            final VPartial p = (VPartial) f;
+            args = p.extend(args);
+            f = p.f;
+        }
+
+        final Closure k = (Closure) f;
+        if (args.length == k.arity)
+            return k.apply(args);
+        if (args.length < k.arity)
+            return new VPartial(k, args);
+
+        // the result takes the remaining arguments.
+        final Value r = k.apply(Arrays.copyOf(args, k.arity)).force();
+        return enter(r.unwrap(), Arrays.copyOfRange(args, k.arity, args.length));
+    }
+
+    // helpers called by the generated code
+
+    public static Value call(Value f, Value arg) {
+        final Value k = f.unwrap();
+        if (k instanceof Closure && ((Closure) k).arity == 1)
+            return ((Closure) k).apply(arg).force();
+        return enter(k, new Value[] { arg }).force();
+    }
+
+    public static Value call(Value f, Value[] args) {
+        return enter(f.unwrap(), args).force();
+    }
+
+    public static Computation tailCall(Value f, Value arg) {
+        final Value k = f.unwrap();
+        if (k instanceof Closure && ((Closure) k).arity == 1)
+            return new TailCall((Closure) k, arg);
+        return new TailCall(k, new Value[] { arg });
+    }
+
+    public static Computation tailCall(Value f, Value[] args) {
+        return new TailCall(f.unwrap(), args);
+    }
+
+    public static Value ctor(String id, int tag, Value[] args) {
+        return VCtor.of(id, tag, args);
+    }
+
+    public static Value tup(Value[] elements) {
+        return new VTup(Arrays.asList(elements));
+    }
+
+    public static Value prim(EPrim e, Value a, Value b) {
+        return ASTWalker.prim(e, a, b);
+    }
+
+    public static Value error(Value v) {
+        throw new RuntimeException(v + "");
+    }
+
+    public static Value matchFailure() {
+        throw new RuntimeException("Match failure!");
+    }
+
+    private static final String RT = "lang/qkm/eval/BytecodeEvaluator";
+    private static final String CLOSURE = RT + "$Closure";
+    private static final String WALKER = "lang/qkm/eval/ASTWalker";
+    private static final String VALUE = WALKER + "$Value";
+    private static final String COMPUTATION = WALKER + "$Computation";
+    private static final String WORD = WALKER + "$VWord";
+    private static final String BOOL = WALKER + "$VBool";
+    private static final String TYINT = "lang/qkm/type/TyInt";
+    private static final String OP = "lang/qkm/expr/EPrim$Op";
+    private static final String V = "L" + VALUE + ";";
+    private static final String C = "L" + COMPUTATION + ";";
+
+
+    private static boolean isFlat(List<Match> args) {
+        for (final Match arg : args)
+            if (!(arg instanceof MatchAll))
+                return false;
+        return true;
+    }
+
+    private static Object switchKey(Match m) {
+        // the key of a pattern that can be dispatched on without looking
+        // any further than the head, null if there is no such key.
+        if (m instanceof MatchCtor && isFlat(((MatchCtor) m).args))
+            return ((MatchCtor) m).ctor;
+        if (m instanceof MatchString)
+            return ((MatchString) m).value;
+        if (m instanceof MatchInt && ((MatchInt) m).value == null)
+            return ((MatchInt) m).word;
+        return null;
+    }
+
+    private static int branch(EPrim.Op op) {
+        switch (op) {
+        case EQ:
+            return IFEQ;
+        case NE:
+            return IFNE;
+        case LT:
+            return IFLT;
+        case LE:
+            return IFLE;
+        case GT:
+            return IFGT;
+        case GE:
+            return IFGE;
+        default:
+            throw new IllegalArgumentException("Illegal comparison " + op.name);
+        }
+    }
+
+    private static int arith(EPrim.Op op) {
+        // the ones that map onto a single instruction, 0 otherwise.
+        switch (op) {
+        case ADD:
+            return LADD;
+        case SUB:
+            return LSUB;
+        case MUL:
+            return LMUL;
+        case AND:
+            return LAND;
+        case OR:
+            return LOR;
+        case XOR:
+            return LXOR;
+        default:
+            return 0;
+        }
+    }
+
+    private static int switchHash(Object key) {
+        // longs are truncated and compared in full once the switch lands.
+        return key instanceof Long ? (int) (long) (Long) key : key.hashCode();
+    }
+
+    private static final class Lambda {
+
+        public final int id;
+        public final ELam f;
+        public final List<String> captures;
+
+        public Lambda(int id, ELam f, List<String> captures) {
+            this.id = id;
+            this.f = f;
+            this.captures = captures;
+        }
+    }
+
+    private static final class Join {
+
+        // the parameters are locals of their own, a jump stores the
+        // arguments into them and goes to the label.
+
+        public final ClassBuilder.Label label;
+        public final int[] params;
+        public boolean used;
+
+        public Join(ClassBuilder.Label label, int[] params) {
+            this.label = label;
+            this.params = params;
+        }
+    }
+
+    private static final class CaptureSlots implements Match.Visitor<Match> {
+
+        // numbers the captures of patterns that are too complicated to
+        // inline so that they can be read off of a frame.
+
+        public final Map<String, Integer> slots = new LinkedHashMap<>();
+
+        @Override
+        public Match visitMatchAll(MatchAll m) {
+            if (m.capture == null)
+                return m;
+
+            // or patterns need captures on both sides to share the same slot
+            Integer slot = this.slots.get(m.capture);
+            if (slot == null) {
+                slot = this.slots.size();
+                this.slots.put(m.capture, slot);
+            }
+            return new MatchAll(m.capture, slot);
+        }
+
+        @Override
+        public Match visitMatchBool(MatchBool m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchCtor(MatchCtor m) {
+            return new MatchCtor(m.ctor, m.args.stream()
+                    .map(k -> k.accept(this))
+                    .collect(Collectors.toList()), m.tag);
+        }
+
+        @Override
+        public Match visitMatchInt(MatchInt m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchString(MatchString m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchTup(MatchTup m) {
+            return new MatchTup(m.elements.stream()
+                    .map(k -> k.accept(this))
+                    .collect(Collectors.toList()));
+        }
+
+        @Override
+        public Match visitMatchOr(MatchOr m) {
+            final SList.Builder<Match> result = new SList.Builder<>();
+            for (final Match submatch : m.submatches)
+                result.addLast(submatch.accept(this));
+
+            return new MatchOr(result.build());
+        }
+    }
+
+    private static final class UnitLoader extends ClassLoader {
+
+        public UnitLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] code) {
+            return this.defineClass(name.replace('/', '.'), code, 0, code.length);
+        }
+    }
+
+    private final class Unit {
+
+        public final String name = "lang/qkm/eval/Unit$" + BytecodeEvaluator.this.counter++;
+        public final ClassBuilder cb = new ClassBuilder(this.name, CLOSURE);
+        public final List<Object> constants = new ArrayList<>();
+        public final Deque<Lambda> pending = new ArrayDeque<>();
+        public int lambdas;
+
+        public Class<?> compile(Expr e) {
+            this.cb.field(ACC_PUBLIC | ACC_STATIC, "K", "[Ljava/lang/Object;");
+
+            final ClassBuilder.Code init = this.cb.method(ACC_PUBLIC, "<init>", "(II[" + V + ")V");
+            init.aload(0);
+            init.iload(1);
+            init.iload(2);
+            init.aload(3);
+            init.invoke(INVOKESPECIAL, CLOSURE, "<init>", "(II[" + V + ")V");
+            init.op(RETURN);
+
+            new Emitter(this, this.cb.method(ACC_PUBLIC | ACC_STATIC, "run", "()" + C), -1, 0, Map.of())
+                    .tail(e);
+
+            final Map<Integer, ELam> compiled = new HashMap<>();
+            while (!this.pending.isEmpty()) {
+                final Lambda lam = this.pending.pop();
+                final Map<String, Integer> env = new HashMap<>();
+                for (final String name : lam.captures)
+                    env.put(name, env.size());
+
+                final Emitter emitter = new Emitter(this,
+                        this.cb.method(ACC_PUBLIC | ACC_STATIC, "lam" + lam.id, lambdaDesc(lam.f.arity())),
+                        lam.id, lam.f.arity(), env);
+                for (int i = 0; i < lam.f.arity(); ++i)
+                    emitter.locals.put(lam.f.params.get(i).name, i + 1);
+                emitter.tail(lam.f.body);
+                compiled.put(lam.id, lam.f);
+            }
+
+            // dispatch to the lambda based on its id.
+            this.dispatch(compiled, false);
+            this.dispatch(compiled, true);
+
+            try {
+                final Class<?> cls = new UnitLoader(BytecodeEvaluator.class.getClassLoader())
+                        .define(this.name, this.cb.toByteArray());
+                cls.getField("K").set(null, this.constants.toArray());
+                return cls;
+            } catch (ReflectiveOperationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private void dispatch(Map<Integer, ELam> lambdas, boolean array) {
+            final ClassBuilder.Code apply = this.cb.method(ACC_PUBLIC, "apply",
+                    "(" + (array ? "[" + V : V) + ")" + C);
+            if (lambdas.isEmpty()) {
+                apply.op(ACONST_NULL);
+                apply.op(ARETURN);
+                return;
+            }
+
+            final ClassBuilder.Label[] targets = new ClassBuilder.Label[lambdas.size()];
+            for (int i = 0; i < targets.length; ++i)
+                targets[i] = apply.label();
+
+            apply.aload(0);
+            apply.field(GETFIELD, CLOSURE, "id", "I");
+            apply.tableswitch(0, targets[0], targets);
+            for (int i = 0; i < targets.length; ++i) {
+                final int arity = lambdas.get(i).arity();
+                apply.mark(targets[i]);
+                if (!array && arity != 1) {
+                    // never called, see Closure.
+                    apply.op(ACONST_NULL);
+                    apply.op(ARETURN);
+                    continue;
+                }
+
+                apply.aload(0);
+                apply.field(GETFIELD, CLOSURE, "env", "[" + V);
+                if (!array)
+                    apply.aload(1);
+                else
+                    for (int j = 0; j < arity; ++j) {
+                        apply.aload(1);
+                        apply.iconst(j);
+                        apply.op(AALOAD);
+                    }
+                apply.invoke(INVOKESTATIC, this.name, "lam" + i, lambdaDesc(arity));
+                apply.op(ARETURN);
+            }
+        }
+    }
+
+    private static String lambdaDesc(int arity) {
+        final StringBuilder sb = new StringBuilder("([" + V);
+        for (int i = 0; i < arity; ++i)
+            sb.append(V);
+        return sb.append(")" + C).toString();
+    }
+
+    private final class Emitter implements Expr.Visitor<Void> {
+
+        public final Unit unit;
+        public final ClassBuilder.Code code;
+        public final int self;
+        public final int arity;
+        public final ClassBuilder.Label top;
+        public final Map<String, Integer> env;
+        public Map<String, Integer> locals = new HashMap<>();
+
+        private final Map<String, Join> joins = new HashMap<>();
+        private boolean tail;
+
+        public Emitter(Unit unit, ClassBuilder.Code code, int self, int arity, Map<String, Integer> env) {
+            this.unit = unit;
+            this.code = code;
+            this.self = self;
+            this.arity = arity;
+            this.env = env;
+
+            // self tail calls replace the arguments and jump here.
+            this.top = code.label();
+            code.mark(this.top);
+        }
+
+        public void tail(Expr e) {
+            final boolean old = this.tail;
+            this.tail = true;
+            e.accept(this);
+            this.tail = old;
+        }
+
+        public void value(Expr e) {
+            final boolean old = this.tail;
+            this.tail = false;
+            e.accept(this);
+            this.tail = old;
+        }
+
+        private void result() {
+            if (this.tail)
+                this.code.op(ARETURN);
+        }
+
+        private void constant(Object value, String type) {
+            final int index = this.unit.constants.size();
+            this.unit.constants.add(value);
+
+            this.code.field(GETSTATIC, this.unit.name, "K", "[Ljava/lang/Object;");
+            this.code.iconst(index);
+            this.code.op(AALOAD);
+            this.code.type(CHECKCAST, type);
+        }
+
+        private boolean isLocal(String name) {
+            return this.locals.containsKey(name) || this.env.containsKey(name);
+        }
+
+        private void load(String name) {
+            final Integer local = this.locals.get(name);
+            if (local != null) {
+                this.code.aload(local);
+                return;
+            }
+
+            final Integer captured = this.env.get(name);
+            if (captured != null) {
+                this.code.aload(0);
+                this.code.iconst(captured);
+                this.code.op(AALOAD);
+                return;
+            }
+
+            final VBox global = BytecodeEvaluator.this.globals.get(new EVar(name));
+            if (global == null)
+                throw new RuntimeException("Undeclared variable " + name);
+
+            this.constant(global, VALUE);
+        }
+
+        private void arguments(List<? extends Expr> args) {
+            // unary calls pass the argument directly, the rest use an array.
+            if (args.size() == 1)
+                this.value(args.get(0));
+            else
+                this.array(args);
+        }
+
+        private void array(List<? extends Expr> elements) {
+            this.code.iconst(elements.size());
+            this.code.type(ANEWARRAY, VALUE);
+
+            int i = 0;
+            for (final Expr element : elements) {
+                this.code.op(DUP);
+                this.code.iconst(i++);
+                this.value(element);
+                this.code.op(AASTORE);
+            }
+        }
+
+        @Override
+        public Void visitEBool(EBool e) {
+            this.constant(VBool.of(e.value), VALUE);
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitECtor(ECtor e) {
+            final int arity = e.args.size();
+            if (arity == 0)
+                this.constant(VCtor.of(e.id, e.tag), VALUE);
+            else if (arity <= 3) {
+                // small constructors are allocated directly.
+                final String type = WALKER + "$VCtor" + arity;
+                this.code.type(NEW, type);
+                this.code.op(DUP);
+                this.code.ldc(e.id);
+                this.code.iconst(e.tag);
+                final StringBuilder desc = new StringBuilder("(Ljava/lang/String;I");
+                for (final Expr arg : e.args) {
+                    this.value(arg);
+                    desc.append(V);
+                }
+                this.code.invoke(INVOKESPECIAL, type, "<init>", desc.append(")V").toString());
+            } else {
+                this.code.ldc(e.id);
+                this.code.iconst(e.tag);
+                this.array(e.args);
+                this.code.invoke(INVOKESTATIC, RT, "ctor", "(Ljava/lang/String;I[" + V + ")" + V);
+            }
+
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitEInt(EInt e) {
+            this.constant(e.value == null ? new VWord(e.type, e.word) : new VInt(e.type, e.value), VALUE);
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitEString(EString e) {
+            this.constant(new VString(e.value), VALUE);
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitETup(ETup e) {
+            if (e.elements.isEmpty())
+                this.constant(new VTup(List.of()), VALUE);
+            else {
+                this.array(e.elements);
+                this.code.invoke(INVOKESTATIC, RT, "tup", "([" + V + ")" + V);
+            }
+
+            this.result();
+            return null;
+        }
+
+        private void bind(String name, int local) {
+            if (name != null)
+                this.locals.put(name, local);
+        }
+
+        private void unpackArgs(int scrutinee, String type, String field, List<Match> args) {
+            int i = 0;
+            for (final Match arg : args) {
+                final String capture = ((MatchAll) arg).capture;
+                if (capture != null) {
+                    this.code.aload(scrutinee);
+                    this.code.type(CHECKCAST, type);
+                    this.code.field(GETFIELD, type, field, "Ljava/util/List;");
+                    this.code.iconst(i);
+                    this.code.invoke(INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;");
+                    this.code.type(CHECKCAST, VALUE);
+
+                    final int local = this.code.newLocal();
+                    this.code.astore(local);
+                    this.bind(capture, local);
+                }
+                i++;
+            }
+        }
+
+        private void unpackCtor(int scrutinee, List<Match> args) {
+            // the pattern has the same arity as the constructor, so the
+            // arguments can be read straight off of the fields.
+            final int arity = args.size();
+            final String type = WALKER + (arity <= 3 ? "$VCtor" + arity : "$VCtorN");
+            int i = 0;
+            for (final Match arg : args) {
+                final String capture = ((MatchAll) arg).capture;
+                if (capture != null) {
+                    this.code.aload(scrutinee);
+                    this.code.type(CHECKCAST, type);
+                    if (arity <= 3)
+                        this.code.field(GETFIELD, type, "a" + i, V);
+                    else {
+                        this.code.field(GETFIELD, type, "args", "[" + V);
+                        this.code.iconst(i);
+                        this.code.op(AALOAD);
+                    }
+
+                    final int local = this.code.newLocal();
+                    this.code.astore(local);
+                    this.bind(capture, local);
+                }
+                i++;
+            }
+        }
+
+        private void test(Match m, int scrutinee, ClassBuilder.Label next) {
+            // jumps to next if the pattern does not match, otherwise binds
+            // the captures.
+
+            if (m instanceof MatchAll) {
+                this.bind(((MatchAll) m).capture, scrutinee);
+                return;
+            }
+
+            if (m instanceof MatchBool) {
+                final String type = WALKER + "$VBool";
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "value", "Z");
+                this.code.jump(((MatchBool) m).value ? IFEQ : IFNE, next);
+                return;
+            }
+
+            if (m instanceof MatchInt && ((MatchInt) m).value == null) {
+                final String type = WALKER + "$VWord";
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "value", "J");
+                this.code.lconst(((MatchInt) m).word);
+                this.code.op(LCMP);
+                this.code.jump(IFNE, next);
+                return;
+            }
+
+            if (m instanceof MatchInt) {
+                final String type = WALKER + "$VInt";
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "value", "Ljava/math/BigInteger;");
+                this.constant(((MatchInt) m).value, "java/math/BigInteger");
+                this.code.invoke(INVOKEVIRTUAL, "java/math/BigInteger", "equals", "(Ljava/lang/Object;)Z");
+                this.code.jump(IFEQ, next);
+                return;
+            }
+
+            if (m instanceof MatchString) {
+                final String type = WALKER + "$VString";
+                this.code.ldc(((MatchString) m).value);
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "value", "Ljava/lang/String;");
+                this.code.invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                this.code.jump(IFEQ, next);
+                return;
+            }
+
+            if (m instanceof MatchCtor && isFlat(((MatchCtor) m).args)) {
+                final String type = WALKER + "$VCtor";
+                this.code.ldc(((MatchCtor) m).ctor);
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "id", "Ljava/lang/String;");
+                this.code.invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                this.code.jump(IFEQ, next);
+
+                this.unpackCtor(scrutinee, ((MatchCtor) m).args);
+                return;
+            }
+
+            if (m instanceof MatchTup && isFlat(((MatchTup) m).elements)) {
+                // the type checker already made sure the sizes agree.
+                this.unpackArgs(scrutinee, WALKER + "$VTup", "elements", ((MatchTup) m).elements);
+                return;
+            }
+
+            // anything else (nested patterns, or patterns) is left to unpack
+            final String frame = "lang/qkm/eval/FrameWalker$Frame";
+            final CaptureSlots slots = new CaptureSlots();
+            final Match numbered = m.accept(slots);
+
+            this.code.type(NEW, frame);
+            this.code.op(DUP);
+            this.code.op(ACONST_NULL);
+            this.code.iconst(slots.slots.size());
+            this.code.invoke(INVOKESPECIAL, frame, "<init>", "(L" + frame + ";I)V");
+            final int binder = this.code.newLocal();
+            this.code.astore(binder);
+
+            this.code.aload(scrutinee);
+            this.constant(numbered, "lang/qkm/match/Match");
+            this.code.aload(binder);
+            this.code.invoke(INVOKEVIRTUAL, VALUE, "unpack", "(Llang/qkm/match/Match;L" + WALKER + "$Binder;)Z");
+            this.code.jump(IFEQ, next);
+
+            for (final Map.Entry<String, Integer> capture : slots.slots.entrySet()) {
+                this.code.aload(binder);
+                this.code.field(GETFIELD, frame, "slots", "[" + V);
+                this.code.iconst(capture.getValue());
+                this.code.op(AALOAD);
+
+                final int local = this.code.newLocal();
+                this.code.astore(local);
+                this.bind(capture.getKey(), local);
+            }
+        }
+
+        private boolean switchable(List<Map.Entry<Match, Expr>> cases) {
+            // the output of the match compiler: distinct constructors (or
+            // literals) with at most a default case at the end.
+            final Set<Integer> hashes = new HashSet<>();
+            Class<?> kind = null;
+            for (final Map.Entry<Match, Expr> k : cases) {
+                final Match m = k.getKey();
+                if (m instanceof MatchAll)
+                    return hashes.size() > 1 && k == cases.get(cases.size() - 1);
+
+                final Object key = switchKey(m);
+                if (key == null || kind != null && kind != m.getClass())
+                    return false;
+                if (!hashes.add(switchHash(key)))
+                    return false;
+                kind = m.getClass();
+            }
+            return hashes.size() > 1;
+        }
+
+        private void endCase(ClassBuilder.Label end) {
+            if (!this.tail)
+                this.code.jump(GOTO, end);
+        }
+
+        private void failure() {
+            this.code.invoke(INVOKESTATIC, RT, "matchFailure", "()" + V);
+            this.result();
+        }
+
+        private void switchHead(int scrutinee, List<Map.Entry<Match, Expr>> cases, ClassBuilder.Label end) {
+            // constructors with tags go through a tableswitch on the tag.
+            // anything else is similar to what javac does for strings:
+            // switch on the hash, then make sure it actually is the same
+            // constructor or literal.
+            final Match first = cases.get(0).getKey();
+            final String type;
+            if (first instanceof MatchCtor)
+                type = WALKER + "$VCtor";
+            else if (first instanceof MatchString)
+                type = WALKER + "$VString";
+            else
+                type = WALKER + "$VWord";
+
+            final List<ClassBuilder.Label> checked = new ArrayList<>(cases.size());
+            final List<ClassBuilder.Label> bodies = new ArrayList<>(cases.size());
+            final TreeMap<Integer, ClassBuilder.Label> jumps = new TreeMap<>();
+            final TreeMap<Integer, ClassBuilder.Label> tags = new TreeMap<>();
+            boolean tagged = first instanceof MatchCtor;
+            for (final Map.Entry<Match, Expr> k : cases) {
+                final ClassBuilder.Label check = this.code.label();
+                final ClassBuilder.Label body = this.code.label();
+                checked.add(check);
+                bodies.add(body);
+
+                final Match m = k.getKey();
+                if (m instanceof MatchAll)
+                    continue;
+
+                jumps.put(switchHash(switchKey(m)), check);
+                if (m instanceof MatchCtor && ((MatchCtor) m).tag >= 0)
+                    tags.put(((MatchCtor) m).tag, body);
+                else
+                    tagged = false;
+            }
+
+            final ClassBuilder.Label dflt = this.code.label();
+            if (tagged) {
+                // -1 is a constructor without a tag, which needs the hash.
+                final ClassBuilder.Label byName = this.code.label();
+                final ClassBuilder.Label[] targets = new ClassBuilder.Label[tags.lastKey() + 2];
+                targets[0] = byName;
+                for (int i = 1; i < targets.length; ++i)
+                    targets[i] = tags.getOrDefault(i - 1, dflt);
+
+                this.code.aload(scrutinee);
+                this.code.type(CHECKCAST, type);
+                this.code.field(GETFIELD, type, "tag", "I");
+                this.code.tableswitch(-1, dflt, targets);
+                this.code.mark(byName);
+            }
+
+            int id = -1;
+            this.code.aload(scrutinee);
+            this.code.type(CHECKCAST, type);
+            if (first instanceof MatchInt) {
+                this.code.field(GETFIELD, type, "value", "J");
+                this.code.op(L2I);
+            } else {
+                this.code.field(GETFIELD, type, first instanceof MatchCtor ? "id" : "value", "Ljava/lang/String;");
+                id = this.code.newLocal();
+                this.code.astore(id);
+                this.code.aload(id);
+                this.code.invoke(INVOKEVIRTUAL, "java/lang/String", "hashCode", "()I");
+            }
+
+            final int[] keys = new int[jumps.size()];
+            final ClassBuilder.Label[] targets = new ClassBuilder.Label[jumps.size()];
+            int i = 0;
+            for (final Map.Entry<Integer, ClassBuilder.Label> jump : jumps.entrySet()) {
+                keys[i] = jump.getKey();
+                targets[i++] = jump.getValue();
+            }
+            this.code.lookupswitch(keys, targets, dflt);
+
+            final Map<String, Integer> old = this.locals;
+            for (i = 0; i < cases.size(); ++i) {
+                final Map.Entry<Match, Expr> k = cases.get(i);
+                this.locals = new HashMap<>(old);
+                final Match m = k.getKey();
+                if (m instanceof MatchAll) {
+                    this.code.mark(dflt);
+                    this.bind(((MatchAll) m).capture, scrutinee);
+                } else {
+                    this.code.mark(checked.get(i));
+                    if (m instanceof MatchInt) {
+                        this.code.aload(scrutinee);
+                        this.code.type(CHECKCAST, type);
+                        this.code.field(GETFIELD, type, "value", "J");
+                        this.code.lconst(((MatchInt) m).word);
+                        this.code.op(LCMP);
+                        this.code.jump(IFNE, dflt);
+                    } else {
+                        this.code.ldc((String) switchKey(m));
+                        this.code.aload(id);
+                        this.code.invoke(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                        this.code.jump(IFEQ, dflt);
+                    }
+
+                    this.code.mark(bodies.get(i));
+                    if (m instanceof MatchCtor)
+                        this.unpackCtor(scrutinee, ((MatchCtor) m).args);
+                }
+
+                k.getValue().accept(this);
+                this.endCase(end);
+            }
+
+            this.locals = old;
+            if (!(cases.get(cases.size() - 1).getKey() instanceof MatchAll)) {
+                this.code.mark(dflt);
+                this.failure();
+            }
+        }
+
+        @Override
+        public Void visitEMatch(EMatch e) {
+            this.value(e.scrutinee);
+            this.code.invoke(INVOKEVIRTUAL, VALUE, "unwrap", "()" + V);
+            final int scrutinee = this.code.newLocal();
+            this.code.astore(scrutinee);
+
+            final ClassBuilder.Label end = this.code.label();
+            if (this.switchable(e.cases))
+                this.switchHead(scrutinee, e.cases, end);
+            else {
+                final Map<String, Integer> old = this.locals;
+                boolean exhaustive = false;
+                for (final Map.Entry<Match, Expr> k : e.cases) {
+                    this.locals = new HashMap<>(old);
+                    final ClassBuilder.Label next = this.code.label();
+                    this.test(k.getKey(), scrutinee, next);
+                    k.getValue().accept(this);
+                    this.endCase(end);
+                    this.code.mark(next);
+
+                    if (k.getKey() instanceof MatchAll) {
+                        exhaustive = true;
+                        break;
+                    }
+                }
+
+                this.locals = old;
+                if (!exhaustive)
+                    this.failure();
+            }
+
+            if (!this.tail)
+                this.code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitEVar(EVar e) {
+            this.load(e.name);
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitELam(ELam e) {
+            // globals don't need to be captured since they never move.
+            final Stream<EVar> fv = e.captures != null ? e.captures.stream() : e.fv();
+            final List<String> captures = fv
+                    .map(v -> v.name)
+                    .distinct()
+                    .filter(this::isLocal)
+                    .collect(Collectors.toList());
+
+            final int id = this.unit.lambdas++;
+            this.unit.pending.add(new Lambda(id, e, captures));
+
+            this.code.type(NEW, this.unit.name);
+            this.code.op(DUP);
+            this.code.iconst(id);
+            this.code.iconst(e.arity());
+            if (captures.isEmpty())
+                this.code.op(ACONST_NULL);
+            else {
+                this.code.iconst(captures.size());
+                this.code.type(ANEWARRAY, VALUE);
+
+                int i = 0;
+                for (final String capture : captures) {
+                    this.code.op(DUP);
+                    this.code.iconst(i++);
+                    this.load(capture);
+                    this.code.op(AASTORE);
+                }
+            }
+            this.code.invoke(INVOKESPECIAL, this.unit.name, "<init>", "(II[" + V + ")V");
+
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitEApp(EApp e) {
+            final boolean unary = e.args.size() == 1;
+            if (!this.tail) {
+                this.value(e.f);
+                this.arguments(e.args);
+                this.code.invoke(INVOKESTATIC, RT, "call",
+                        "(" + V + (unary ? V : "[" + V) + ")" + V);
+                return null;
+            }
+
+            if (this.self < 0 || e.args.size() != this.arity) {
+                this.value(e.f);
+                this.arguments(e.args);
+                this.code.invoke(INVOKESTATIC, RT, "tailCall",
+                        "(" + V + (unary ? V : "[" + V) + ")" + C);
+                this.code.op(ARETURN);
+                return null;
+            }
+
+            this.value(e.f);
+            this.code.invoke(INVOKEVIRTUAL, VALUE, "unwrap", "()" + V);
+            final int f = this.code.newLocal();
+            this.code.astore(f);
+
+            final int[] args = new int[e.args.size()];
+            for (int i = 0; i < args.length; ++i) {
+                this.value(e.args.get(i));
+                args[i] = this.code.newLocal();
+                this.code.astore(args[i]);
+            }
+
+            // saturated self tail calls become a jump back to the start.
+            final ClassBuilder.Label slow = this.code.label();
+            this.code.aload(f);
+            this.code.type(INSTANCEOF, this.unit.name);
+            this.code.jump(IFEQ, slow);
+            this.code.aload(f);
+            this.code.type(CHECKCAST, CLOSURE);
+            this.code.field(GETFIELD, CLOSURE, "id", "I");
+            this.code.iconst(this.self);
+            this.code.jump(IF_ICMPNE, slow);
+
+            this.code.aload(f);
+            this.code.type(CHECKCAST, CLOSURE);
+            this.code.field(GETFIELD, CLOSURE, "env", "[" + V);
+            this.code.astore(0);
+            for (int i = 0; i < args.length; ++i) {
+                this.code.aload(args[i]);
+                this.code.astore(i + 1);
+            }
+            this.code.jump(GOTO, this.top);
+
+            this.code.mark(slow);
+            this.code.aload(f);
+            if (unary)
+                this.code.aload(args[0]);
+            else {
+                this.code.iconst(args.length);
+                this.code.type(ANEWARRAY, VALUE);
+                for (int i = 0; i < args.length; ++i) {
+                    this.code.op(DUP);
+                    this.code.iconst(i);
+                    this.code.aload(args[i]);
+                    this.code.op(AASTORE);
+                }
+            }
+            this.code.invoke(INVOKESTATIC, RT, "tailCall",
+                    "(" + V + (unary ? V : "[" + V) + ")" + C);
+            this.code.op(ARETURN);
+            return null;
+        }
+
+        @Override
+        public Void visitELet(ELet e) {
+            this.value(e.value);
+            final int local = this.code.newLocal();
+            this.code.astore(local);
+
+            final Integer old = this.locals.put(e.bind.name, local);
+            e.body.accept(this);
+            if (old == null)
+                this.locals.remove(e.bind.name);
+            else
+                this.locals.put(e.bind.name, old);
+            return null;
+        }
+
+        @Override
+        public Void visitELetrec(ELetrec e) {
+            final String box = WALKER + "$VBox";
+            final Map<String, Integer> old = this.locals;
+            this.locals = new HashMap<>(old);
+
+            final List<Integer> boxes = new ArrayList<>(e.binds.size());
+            for (final EVar b : e.binds.keySet()) {
+                this.code.type(NEW, box);
+                this.code.op(DUP);
+                this.code.invoke(INVOKESPECIAL, box, "<init>", "()V");
+
+                final int local = this.code.newLocal();
+                this.code.astore(local);
+                this.locals.put(b.name, local);
+                boxes.add(local);
+            }
+
+            final Iterator<Integer> it = boxes.iterator();
+            for (final Expr init : e.binds.values()) {
+                this.code.aload(it.next());
+                this.code.type(CHECKCAST, box);
+                this.value(init);
+                this.code.field(PUTFIELD, box, "boxed", V);
+            }
+
+            e.body.accept(this);
+            this.locals = old;
+            return null;
+        }
+
+        @Override
+        public Void visitEErr(EErr e) {
+            this.value(e.value);
+            this.code.invoke(INVOKESTATIC, RT, "error", "(" + V + ")" + V);
+            this.result();
+            return null;
+        }
+
+        @Override
+        public Void visitEJoin(EJoin e) {
+            // the rest comes first and falls through to the end, the body
+            // is placed after it and only reached through the jumps:
+            //   rest; goto end; label: body; end:
+            final Map<String, Integer> scope = new HashMap<>(this.locals);
+            final int[] params = new int[e.params.size()];
+            int i = 0;
+            for (final EVar param : e.params) {
+                params[i] = this.code.newLocal();
+                scope.put(param.name, params[i++]);
+            }
+
+            final Join join = new Join(this.code.label(), params);
+            final Join old = this.joins.put(e.name.name, join);
+            e.rest.accept(this);
+            if (old == null)
+                this.joins.remove(e.name.name);
+            else
+                this.joins.put(e.name.name, old);
+
+            if (!join.used)
+                return null;
+
+            final ClassBuilder.Label end = this.code.label();
+            this.endCase(end);
+            this.code.mark(join.label);
+
+            final Map<String, Integer> outer = this.locals;
+            this.locals = scope;
+            e.body.accept(this);
+            this.locals = outer;
+
+            if (!this.tail)
+                this.code.mark(end);
+            return null;
+        }
+
+        @Override
+        public Void visitEJump(EJump e) {
+            final Join join = this.joins.get(e.target.name);
+            if (join == null)
+                throw new RuntimeException("Undeclared join point " + e.target);
+
+            // all the arguments are evaluated before any of them is stored.
+            for (final Expr arg : e.args)
+                this.value(arg);
+            for (int i = join.params.length; i-- > 0; )
+                this.code.astore(join.params[i]);
+
+            join.used = true;
+            this.code.jump(GOTO, join.label);
+            return null;
+        }
+
+        private void word(Expr e) {
+            this.value(e);
+            this.code.invoke(INVOKEVIRTUAL, VALUE, "unwrap", "()" + V);
+            this.code.type(CHECKCAST, WORD);
+            this.code.field(GETFIELD, WORD, "value", "J");
+        }
+
+        @Override
+        public Void visitEPrim(EPrim e) {
+            if (!e.type.isWord()) {
+                this.constant(e, "lang/qkm/expr/EPrim");
+                this.value(e.args.get(0));
+                this.value(e.args.get(1));
+                this.code.invoke(INVOKESTATIC, RT, "prim", "(Llang/qkm/expr/EPrim;" + V + V + ")" + V);
+                this.result();
+                return null;
+            }
+
+            if (e.op.isComparison()) {
+                // the booleans are shared, so this never allocates.
+                final ClassBuilder.Label yes = this.code.label();
+                final ClassBuilder.Label end = this.code.label();
+                this.word(e.args.get(0));
+                this.word(e.args.get(1));
+                this.code.op(LCMP);
+                this.code.jump(branch(e.op), yes);
+                this.code.field(GETSTATIC, BOOL, "FALSE", "L" + BOOL + ";");
+                this.code.jump(GOTO, end);
+                this.code.mark(yes);
+                this.code.field(GETSTATIC, BOOL, "TRUE", "L" + BOOL + ";");
+                this.code.mark(end);
+                this.result();
+                return null;
+            }
+
+            this.constant(e.type, TYINT);
+            final int opcode = arith(e.op);
+            if (opcode == 0) {
+                this.constant(e.op, OP);
+                this.constant(e.type, TYINT);
+                this.word(e.args.get(0));
+                this.word(e.args.get(1));
+                this.code.invoke(INVOKEVIRTUAL, OP, "apply", "(L" + TYINT + ";JJ)J");
+            } else {
+                this.word(e.args.get(0));
+                this.word(e.args.get(1));
+                this.code.op(opcode);
+
+                // bitwise results stay sign extended, the others wrap.
+                final int shift = 64 - e.type.bits;
+                if (shift > 0 && opcode != LAND && opcode != LOR && opcode != LXOR) {
+                    this.code.iconst(shift);
+                    this.code.op(LSHL);
+                    this.code.iconst(shift);
+                    this.code.op(LSHR);
+                }
+            }
+            this.code.invoke(INVOKESTATIC, WORD, "of", "(L" + TYINT + ";J)L" + WORD + ";");
+            this.result();
+            return null;
+        }
+    }
+
+    private final Map<EVar, VBox> globals = new HashMap<>();
+
+    // only names the classes, each of them has its own loader anyway.
+    private int counter;
+
+    /* package */ Value run(Expr e) {
+        final Class<?> cls = new Unit().compile(e);
+        try {
+            return ((Computation) cls.getMethod("run").invoke(null)).force();
+        } catch (InvocationTargetException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void define(Map<EVar, Expr> defs) {
+        // defines are always recursive, so allocate the boxes before
+        // compiling any of the initializers.
+        final List<VBox> boxes = new ArrayList<>(defs.size());
+        for (final EVar b : defs.keySet()) {
+            final VBox box = new VBox();
+            boxes.add(box);
+            this.globals.put(b, box);
+        }
+
+        final Iterator<VBox> it = boxes.iterator();
+        for (final Expr init : defs.values()) {
+            final VBox box = it.next();
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.run(init);
+        }
+    }
+
+    @Override
+    public void eval(Expr e) {
+        System.out.println(this.run(e));
+    }
+}
@@ -0,0 +1,545 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.eval.ASTWalker.*;
+import lang.qkm.eval.FrameWalker.Frame;
+import lang.qkm.eval.FrameWalker.VClosure;
+
+public final class CEKMachine implements Evaluator, Expr.Visitor<Value> {
+
+    // an abstract machine whose state is the expression being evaluated
+    // (control), the frame it is evaluated in (environment) and what to do
+    // with the result (continuation). the continuation lives on the heap, so
+    // non-tail recursion is only bounded by the size of the heap instead of
+    // the size of the thread stack.
+    //
+    // visiting an expression either yields its value right away or it
+    // pushes whatever needs to happen afterwards, moves the control to some
+    // subexpression and yields null.
+
+    private static abstract class Kont {
+
+        public final Kont next;
+
+        public Kont(Kont next) {
+            this.next = next;
+        }
+
+        // same protocol as the visitor: either produces the value that the
+        // next continuation receives or sets up the machine and yields null.
+        public abstract Value resume(CEKMachine m, Value v);
+    }
+
+    private static final class KLet extends Kont {
+
+        public final ELet e;
+        public final Frame frame;
+
+        public KLet(Kont next, ELet e, Frame frame) {
+            super(next);
+            this.e = e;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            this.frame.slots[this.e.bind.slot] = v;
+            m.control = this.e.body;
+            m.frame = this.frame;
+            return null;
+        }
+    }
+
+    private static final class KLetrec extends Kont {
+
+        public final Iterator<Map.Entry<EVar, Expr>> pending;
+        public final VBox box;
+        public final Expr body;
+        public final Frame frame;
+
+        public KLetrec(Kont next, Iterator<Map.Entry<EVar, Expr>> pending, VBox box, Expr body, Frame frame) {
+            super(next);
+            this.pending = pending;
+            this.box = box;
+            this.body = body;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            this.box.boxed = v;
+            m.frame = this.frame;
+            m.initLetrec(this.pending, this.body);
+            return null;
+        }
+    }
+
+    private static final class KArgs extends Kont {
+
+        // collects the values of the arguments of a constructor, a
+        // primitive or a jump (owner is not null) or the elements of a tuple
+        // (owner is null).
+
+        public final Expr owner;
+        public final List<? extends Expr> args;
+        public final Value[] values;
+        public final int index;
+        public final Frame frame;
+
+        public KArgs(Kont next, Expr owner, List<? extends Expr> args, Value[] values, int index, Frame frame) {
+            super(next);
+            this.owner = owner;
+            this.args = args;
+            this.values = values;
+            this.index = index;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            this.values[this.index] = v;
+            m.frame = this.frame;
+            return m.collect(this.owner, this.args, this.values, this.index + 1);
+        }
+    }
+
+    private static final class KFun extends Kont {
+
+        public final EApp e;
+        public final Frame frame;
+
+        public KFun(Kont next, EApp e, Frame frame) {
+            super(next);
+            this.e = e;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            m.frame = this.frame;
+            return m.applyTo(v, this.e);
+        }
+    }
+
+    private static final class KArg extends Kont {
+
+        // collects the arguments of a call once the function is known.
+
+        public final Value f;
+        public final EApp e;
+        public final Value[] values;
+        public final int index;
+        public final Frame frame;
+
+        public KArg(Kont next, Value f, EApp e, Value[] values, int index, Frame frame) {
+            super(next);
+            this.f = f;
+            this.e = e;
+            this.values = values;
+            this.index = index;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            this.values[this.index] = v;
+            m.frame = this.frame;
+            return m.collectArgs(this.f, this.e, this.values, this.index + 1);
+        }
+    }
+
+    private static final class KApply extends Kont {
+
+        // the arguments left over after a call, which the result takes.
+
+        public final Value[] args;
+
+        public KApply(Kont next, Value[] args) {
+            super(next);
+            this.args = args;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            return m.apply(v, this.args);
+        }
+    }
+
+    private static final class KMatch extends Kont {
+
+        public final EMatch e;
+        public final Frame frame;
+
+        public KMatch(Kont next, EMatch e, Frame frame) {
+            super(next);
+            this.e = e;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            m.frame = this.frame;
+            m.select(this.e, v);
+            return null;
+        }
+    }
+
+    private static final class KErr extends Kont {
+
+        public KErr(Kont next) {
+            super(next);
+        }
+
+        @Override
+        public Value resume(CEKMachine m, Value v) {
+            throw new RuntimeException(v + "");
+        }
+    }
+
+    private final Map<EVar, Integer> globalSlots = new HashMap<>();
+    private Value[] globals = new Value[16];
+    private int globalCount;
+
+    private Expr control;
+    private Frame frame;
+    private Kont kont;
+
+    private Value run(ELam code) {
+        final Expr oldControl = this.control;
+        final Frame oldFrame = this.frame;
+        final Kont oldKont = this.kont;
+
+        this.control = code.body;
+        this.frame = new Frame(null, code.frameSize);
+        this.kont = null;
+        try {
+            for (;;) {
+                Value v = this.control.accept(this);
+                while (v != null) {
+                    final Kont k = this.kont;
+                    if (k == null)
+                        return v;
+
+                    this.kont = k.next;
+                    v = k.resume(this, v);
+                }
+            }
+        } finally {
+            this.control = oldControl;
+            this.frame = oldFrame;
+            this.kont = oldKont;
+        }
+    }
+
+    @Override
+    public void define(Map<EVar, Expr> defs) {
+        // defines are always recursive, so allocate the slots before
+        // resolving any of the initializers.
+        final List<VBox> boxes = new ArrayList<>(defs.size());
+        for (final EVar b : defs.keySet()) {
+            if (this.globalCount == this.globals.length)
+                this.globals = Arrays.copyOf(this.globals, this.globalCount * 2);
+
+            final VBox box = new VBox();
+            boxes.add(box);
+            this.globals[this.globalCount] = box;
+            this.globalSlots.put(b, this.globalCount++);
+        }
+
+        final Iterator<VBox> it = boxes.iterator();
+        for (final Expr init : defs.values()) {
+            final VBox box = it.next();
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.run(new Resolver(this.globalSlots).close(init));
+        }
+    }
+
+    @Override
+    public void eval(Expr e) {
+        System.out.println(this.run(new Resolver(this.globalSlots).close(e)));
+    }
+
+    private void push(Kont k) {
+        this.kont = k;
+    }
+
+    private Value collect(Expr owner, List<? extends Expr> args, Value[] values, int index) {
+        // atoms are evaluated in place, anything else suspends the
+        // collection until its value comes back.
+        for (; index < values.length; ++index) {
+            final Expr arg = args.get(index);
+            if (!arg.isAtom()) {
+                this.push(new KArgs(this.kont, owner, args, values, index, this.frame));
+                this.control = arg;
+                return null;
+            }
+
+            values[index] = arg.accept(this);
+        }
+
+        if (owner instanceof EPrim)
+            return ASTWalker.prim((EPrim) owner, values[0], values[1]);
+        if (owner instanceof EJump) {
+            this.jump((EJump) owner, values);
+            return null;
+        }
+        if (owner == null)
+            return new VTup(Arrays.asList(values));
+
+        final ECtor ctor = (ECtor) owner;
+        return VCtor.of(ctor.id, ctor.tag, values);
+    }
+
+    private Value applyTo(Value f, EApp e) {
+        final Value g = f.unwrap();
+        final int arity = e.args.size();
+        if (!(g instanceof VClosure) || ((VClosure) g).f.arity() != arity)
+            return this.collectArgs(g, e, new Value[arity], 0);
+
+        // saturated, so in ANF (where the arguments are atoms) they go
+        // straight into the new frame.
+        for (final Expr arg : e.args)
+            if (!arg.isAtom())
+                return this.collectArgs(g, e, new Value[arity], 0);
+
+        final VClosure k = (VClosure) g;
+        final Frame next = new Frame(k.env, k.f.frameSize);
+        int i = 0;
+        for (final Expr arg : e.args)
+            next.slots[k.f.params.get(i++).slot] = arg.accept(this);
+
+        this.frame = next;
+        this.control = k.f.body;
+        return null;
+    }
+
+    private Value collectArgs(Value f, EApp e, Value[] values, int index) {
+        for (; index < values.length; ++index) {
+            final Expr arg = e.args.get(index);
+            if (!arg.isAtom()) {
+                this.push(new KArg(this.kont, f, e, values, index, this.frame));
+                this.control = arg;
+                return null;
+            }
+
+            values[index] = arg.accept(this);
+        }
+
+        return this.apply(f, values);
+    }
+
+    private Value apply(Value f, Value[] args) {
+        f = f.unwrap();
+        if (f instanceof VPartial) {
+            final VPartial p = (VPartial) f;
+            args = p.extend(args);
+            f = p.f;
+        }
+
+        final VClosure k = (VClosure) f;
+        final int arity = k.f.arity();
+        if (args.length < arity)
+            return new VPartial(k, args);
+
+        // nothing is pushed for a saturated call, so calls in tail position
+        // run in constant space.
+        if (args.length > arity)
+            this.push(new KApply(this.kont, Arrays.copyOfRange(args, arity, args.length)));
+
+        this.frame = new Frame(k.env, k.f.frameSize);
+        for (int i = 0; i < arity; ++i)
+            this.frame.slots[k.f.params.get(i).slot] = args[i];
+        this.control = k.f.body;
+        return null;
+    }
+
+    private void jump(EJump e, Value[] args) {
+        // nothing is pushed and no frame is allocated, the parameters have
+        // slots of their own in the current one (see Resolver).
+        final EJoin join = ((VJoin) this.visitEVar(e.target)).join;
+        for (int i = 0; i < args.length; ++i)
+            this.frame.slots[join.params.get(i).slot] = args[i];
+        this.control = join.body;
+    }
+
+    private void select(EMatch e, Value v) {
+        for (final int i : ASTWalker.select(e, v)) {
+            final Map.Entry<Match, Expr> pair = e.cases.get(i);
+            if (v.unpack(pair.getKey(), this.frame)) {
+                this.control = pair.getValue();
+                return;
+            }
+        }
+
+        throw new RuntimeException("Match failure!");
+    }
+
+    private void initLetrec(Iterator<Map.Entry<EVar, Expr>> pending, Expr body) {
+        if (!pending.hasNext()) {
+            this.control = body;
+            return;
+        }
+
+        final Map.Entry<EVar, Expr> pair = pending.next();
+        final VBox box = (VBox) this.frame.slots[pair.getKey().slot];
+        if (box.boxed != null)
+            throw new IllegalStateException("Invalid binding initialization");
+
+        this.push(new KLetrec(this.kont, pending, box, body, this.frame));
+        this.control = pair.getValue();
+    }
+
+    @Override
+    public Value visitEBool(EBool e) {
+        return VBool.of(e.value);
+    }
+
+    @Override
+    public Value visitECtor(ECtor e) {
+        if (e.args.isEmpty())
+            return VCtor.of(e.id, e.tag);
+        return this.collect(e, e.args, new Value[e.args.size()], 0);
+    }
+
+    @Override
+    public Value visitEInt(EInt e) {
+        if (e.value == null)
+            return VWord.of(e.type, e.word);
+        return new VInt(e.type, e.value);
+    }
+
+    @Override
+    public Value visitEString(EString e) {
+        return new VString(e.value);
+    }
+
+    @Override
+    public Value visitETup(ETup e) {
+        if (e.elements.isEmpty())
+            return new VTup(List.of());
+        return this.collect(null, e.elements, new Value[e.elements.size()], 0);
+    }
+
+    @Override
+    public Value visitEMatch(EMatch e) {
+        if (!e.scrutinee.isAtom()) {
+            this.push(new KMatch(this.kont, e, this.frame));
+            this.control = e.scrutinee;
+            return null;
+        }
+
+        this.select(e, e.scrutinee.accept(this));
+        return null;
+    }
+
+    @Override
+    public Value visitEVar(EVar e) {
+        if (!e.isResolved())
+            throw new RuntimeException("Unresolved variable " + e);
+
+        final Value v;
+        if (e.depth < 0)
+            v = this.globals[e.slot];
+        else {
+            Frame f = this.frame;
+            for (int i = e.depth; i-- > 0; )
+                f = f.up;
+            v = f.slots[e.slot];
+        }
+
+        if (v == null)
+            throw new RuntimeException("Undeclared variable " + e);
+        return v;
+    }
+
+    @Override
+    public Value visitELam(ELam e) {
+        if (e.captures == null)
+            return new VClosure(this.frame, e);
+
+        // flat closure, only copy the captured values.
+        final Frame env = new Frame(null, e.captures.size());
+        int i = 0;
+        for (final EVar v : e.captures)
+            env.slots[i++] = this.visitEVar(v);
+        return new VClosure(env, e);
+    }
+
+    @Override
+    public Value visitEApp(EApp e) {
+        if (!e.f.isAtom()) {
+            this.push(new KFun(this.kont, e, this.frame));
+            this.control = e.f;
+            return null;
+        }
+
+        return this.applyTo(e.f.accept(this), e);
+    }
+
+    @Override
+    public Value visitELet(ELet e) {
+        if (e.value.isAtom()) {
+            this.frame.slots[e.bind.slot] = e.value.accept(this);
+            this.control = e.body;
+            return null;
+        }
+
+        this.push(new KLet(this.kont, e, this.frame));
+        this.control = e.value;
+        return null;
+    }
+
+    @Override
+    public Value visitELetrec(ELetrec e) {
+        for (final EVar b : e.binds.keySet())
+            this.frame.slots[b.slot] = new VBox();
+
+        this.initLetrec(e.binds.entrySet().iterator(), e.body);
+        return null;
+    }
+
+    @Override
+    public Value visitEErr(EErr e) {
+        this.push(new KErr(this.kont));
+        this.control = e.value;
+        return null;
+    }
+
+    @Override
+    public Value visitEPrim(EPrim e) {
+        // in ANF both are atoms, which needs no array to collect them.
+        final Expr a = e.args.get(0);
+        final Expr b = e.args.get(1);
+        if (a.isAtom() && b.isAtom())
+            return ASTWalker.prim(e, a.accept(this), b.accept(this));
+        return this.collect(e, e.args, new Value[2], 0);
+    }
+
+    @Override
+    public Value visitEJoin(EJoin e) {
+        this.frame.slots[e.name.slot] = new VJoin(e);
+        this.control = e.rest;
+        return null;
+    }
+
+    @Override
+    public Value visitEJump(EJump e) {
+        // in ANF the arguments are atoms, which needs no array to collect
+        // them. the parameter slots are not visible to the arguments, so
+        // they can be written one by one.
+        for (final Expr arg : e.args)
+            if (!arg.isAtom())
+                return this.collect(e, e.args, new Value[e.args.size()], 0);
+
+        final EJoin join = ((VJoin) this.visitEVar(e.target)).join;
+        int i = 0;
+        for (final Expr arg : e.args)
+            this.frame.slots[join.params.get(i++).slot] = arg.accept(this);
+        this.control = join.body;
+        return null;
+    }
+}
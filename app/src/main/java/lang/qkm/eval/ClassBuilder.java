@@ -0,0 +1,536 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.util.*;
+
+/* package */ final class ClassBuilder {
+
+    // just enough of the class file format to emit what BytecodeEvaluator
+    // generates. the version is kept at 49 so that the verifier infers the
+    // types by itself, meaning there is no need to emit stack map frames.
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    public static final int ACONST_NULL = 0x01;
+    public static final int AALOAD = 0x32;
+    public static final int AASTORE = 0x53;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int LADD = 0x61;
+    public static final int LSUB = 0x65;
+    public static final int LMUL = 0x69;
+    public static final int LSHL = 0x79;
+    public static final int LSHR = 0x7b;
+    public static final int LAND = 0x7f;
+    public static final int LOR = 0x81;
+    public static final int LXOR = 0x83;
+    public static final int L2I = 0x88;
+    public static final int LCMP = 0x94;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9a;
+    public static final int IFLT = 0x9b;
+    public static final int IFGE = 0x9c;
+    public static final int IFGT = 0x9d;
+    public static final int IFLE = 0x9e;
+    public static final int IF_ICMPNE = 0xa0;
+    public static final int GOTO = 0xa7;
+    public static final int ARETURN = 0xb0;
+    public static final int RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2;
+    public static final int PUTSTATIC = 0xb3;
+    public static final int GETFIELD = 0xb4;
+    public static final int PUTFIELD = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6;
+    public static final int INVOKESPECIAL = 0xb7;
+    public static final int INVOKESTATIC = 0xb8;
+    public static final int INVOKEINTERFACE = 0xb9;
+    public static final int NEW = 0xbb;
+    public static final int ANEWARRAY = 0xbd;
+    public static final int ATHROW = 0xbf;
+    public static final int CHECKCAST = 0xc0;
+    public static final int INSTANCEOF = 0xc1;
+
+    private static final int ILOAD = 0x15;
+    private static final int ILOAD_0 = 0x1a;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ASTORE = 0x3a;
+    private static final int ASTORE_0 = 0x4b;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int TABLESWITCH = 0xaa;
+    private static final int LOOKUPSWITCH = 0xab;
+    private static final int WIDE = 0xc4;
+
+    public static final class Label {
+
+        private int pos = -1;
+        private int depth = -1;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    public final class Code {
+
+        private final int access;
+        private final int name;
+        private final int desc;
+
+        private byte[] buf = new byte[64];
+        private int length;
+
+        private int depth;
+        private boolean reachable = true;
+        private int maxStack;
+        private int maxLocals;
+
+        private final List<Label> labels = new ArrayList<>();
+
+        private Code(int access, String name, String desc) {
+            this.access = access;
+            this.name = ClassBuilder.this.utf8(name);
+            this.desc = ClassBuilder.this.utf8(desc);
+
+            this.maxLocals = argSlots(desc) + ((access & ACC_STATIC) == 0 ? 1 : 0);
+        }
+
+        public int newLocal() {
+            return this.maxLocals++;
+        }
+
+        private void put1(int v) {
+            if (this.length == this.buf.length)
+                this.buf = Arrays.copyOf(this.buf, this.length * 2);
+            this.buf[this.length++] = (byte) v;
+        }
+
+        private void put2(int v) {
+            this.put1(v >> 8);
+            this.put1(v);
+        }
+
+        private void put4(int v) {
+            this.put2(v >> 16);
+            this.put2(v);
+        }
+
+        private void adjust(int delta) {
+            // the code after a return or a throw is never reachable, so
+            // overestimating the depth there is harmless.
+            this.depth += delta;
+            this.maxStack = Math.max(this.maxStack, this.depth);
+        }
+
+        public void op(int opcode) {
+            this.put1(opcode);
+            switch (opcode) {
+            case ACONST_NULL:
+            case DUP:
+                this.adjust(1);
+                break;
+            case AALOAD:
+            case POP:
+            case L2I:
+            case LSHL:
+            case LSHR:
+                this.adjust(-1);
+                break;
+            case LADD:
+            case LSUB:
+            case LMUL:
+            case LAND:
+            case LOR:
+            case LXOR:
+                this.adjust(-2);
+                break;
+            case ARETURN:
+            case ATHROW:
+                this.adjust(-1);
+                this.reachable = false;
+                break;
+            case AASTORE:
+                this.adjust(-3);
+                break;
+            case LCMP:
+                this.adjust(-3);
+                break;
+            case RETURN:
+                this.reachable = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unhandled opcode " + opcode);
+            }
+        }
+
+        private void local(int op0, int op, int index) {
+            if (index < 4)
+                this.put1(op0 + index);
+            else if (index < 256) {
+                this.put1(op);
+                this.put1(index);
+            } else {
+                this.put1(WIDE);
+                this.put1(op);
+                this.put2(index);
+            }
+        }
+
+        public void iload(int index) {
+            this.local(ILOAD_0, ILOAD, index);
+            this.adjust(1);
+        }
+
+        public void aload(int index) {
+            this.local(ALOAD_0, ALOAD, index);
+            this.adjust(1);
+        }
+
+        public void astore(int index) {
+            this.local(ASTORE_0, ASTORE, index);
+            this.adjust(-1);
+        }
+
+        public void iconst(int v) {
+            if (v >= -1 && v <= 5)
+                this.put1(ICONST_0 + v);
+            else if (v == (byte) v) {
+                this.put1(BIPUSH);
+                this.put1(v);
+            } else if (v == (short) v) {
+                this.put1(SIPUSH);
+                this.put2(v);
+            } else {
+                this.put1(LDC_W);
+                this.put2(ClassBuilder.this.integer(v));
+            }
+            this.adjust(1);
+        }
+
+        public void lconst(long v) {
+            this.put1(LDC2_W);
+            this.put2(ClassBuilder.this.longConst(v));
+            this.adjust(2);
+        }
+
+        public void ldc(String s) {
+            this.put1(LDC_W);
+            this.put2(ClassBuilder.this.string(s));
+            this.adjust(1);
+        }
+
+        public void type(int opcode, String name) {
+            this.put1(opcode);
+            this.put2(ClassBuilder.this.cls(name));
+            if (opcode == NEW)
+                this.adjust(1);
+        }
+
+        public void field(int opcode, String owner, String name, String desc) {
+            this.put1(opcode);
+            this.put2(ClassBuilder.this.member(9, owner, name, desc));
+
+            final int size = retSlots(desc);
+            switch (opcode) {
+            case GETSTATIC:
+                this.adjust(size);
+                break;
+            case PUTSTATIC:
+                this.adjust(-size);
+                break;
+            case GETFIELD:
+                this.adjust(size - 1);
+                break;
+            case PUTFIELD:
+                this.adjust(-size - 1);
+                break;
+            }
+        }
+
+        public void invoke(int opcode, String owner, String name, String desc) {
+            final boolean itf = opcode == INVOKEINTERFACE;
+            this.put1(opcode);
+            this.put2(ClassBuilder.this.member(itf ? 11 : 10, owner, name, desc));
+
+            final int args = argSlots(desc) + (opcode == INVOKESTATIC ? 0 : 1);
+            if (itf) {
+                this.put1(args);
+                this.put1(0);
+            }
+
+            this.adjust(retSlots(desc.substring(desc.indexOf(')') + 1)) - args);
+        }
+
+        public Label label() {
+            final Label l = new Label();
+            this.labels.add(l);
+            return l;
+        }
+
+        public void mark(Label l) {
+            l.pos = this.length;
+            if (l.depth >= 0)
+                this.depth = l.depth;
+            else
+                l.depth = this.depth;
+            this.reachable = true;
+        }
+
+        private void target(Label l) {
+            // jumps from dead code (like the code after a return) do not
+            // know the real depth of the stack.
+            if (l.depth < 0 && this.reachable)
+                l.depth = this.depth;
+        }
+
+        public void jump(int opcode, Label l) {
+            switch (opcode) {
+            case IFEQ:
+            case IFNE:
+            case IFLT:
+            case IFGE:
+            case IFGT:
+            case IFLE:
+                this.adjust(-1);
+                break;
+            case IF_ICMPNE:
+                this.adjust(-2);
+                break;
+            }
+
+            final int at = this.length;
+            this.put1(opcode);
+            l.fixups.add(new int[] { at, this.length, 2 });
+            this.put2(0);
+            this.target(l);
+
+            if (opcode == GOTO)
+                this.reachable = false;
+        }
+
+        private void switchHeader(int opcode, Label dflt) {
+            this.adjust(-1);
+
+            final int at = this.length;
+            this.put1(opcode);
+            while (this.length % 4 != 0)
+                this.put1(0);
+
+            this.switchTarget(at, dflt);
+        }
+
+        private void switchTarget(int at, Label l) {
+            l.fixups.add(new int[] { at, this.length, 4 });
+            this.put4(0);
+            this.target(l);
+        }
+
+        public void tableswitch(int low, Label dflt, Label[] targets) {
+            final int at = this.length;
+            this.switchHeader(TABLESWITCH, dflt);
+            this.put4(low);
+            this.put4(low + targets.length - 1);
+            for (final Label l : targets)
+                this.switchTarget(at, l);
+            this.reachable = false;
+        }
+
+        public void lookupswitch(int[] keys, Label[] targets, Label dflt) {
+            // keys must be sorted
+            final int at = this.length;
+            this.switchHeader(LOOKUPSWITCH, dflt);
+            this.put4(keys.length);
+            for (int i = 0; i < keys.length; ++i) {
+                this.put4(keys[i]);
+                this.switchTarget(at, targets[i]);
+            }
+            this.reachable = false;
+        }
+
+        private void patch() {
+            for (final Label l : this.labels) {
+                if (l.pos < 0 && !l.fixups.isEmpty())
+                    throw new IllegalStateException("Unbound label");
+
+                for (final int[] fixup : l.fixups) {
+                    final int offset = l.pos - fixup[0];
+                    int at = fixup[1];
+                    if (fixup[2] == 2) {
+                        if (offset != (short) offset)
+                            throw new RuntimeException("Method too large");
+                    } else {
+                        this.buf[at++] = (byte) (offset >> 24);
+                        this.buf[at++] = (byte) (offset >> 16);
+                    }
+                    this.buf[at++] = (byte) (offset >> 8);
+                    this.buf[at++] = (byte) offset;
+                }
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            this.patch();
+            if (this.length > 65535)
+                throw new RuntimeException("Method too large");
+
+            out.writeShort(this.access);
+            out.writeShort(this.name);
+            out.writeShort(this.desc);
+            out.writeShort(1);
+
+            out.writeShort(ClassBuilder.this.utf8("Code"));
+            out.writeInt(12 + this.length);
+            out.writeShort(this.maxStack);
+            out.writeShort(this.maxLocals);
+            out.writeInt(this.length);
+            out.write(this.buf, 0, this.length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(this.pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolSize = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<int[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    public ClassBuilder(String name, String superName) {
+        this.thisClass = this.cls(name);
+        this.superClass = this.cls(superName);
+    }
+
+    private static int argSlots(String desc) {
+        int slots = 0;
+        for (int i = desc.indexOf('(') + 1; desc.charAt(i) != ')'; ++i) {
+            final char ch = desc.charAt(i);
+            if (ch == 'J' || ch == 'D')
+                slots += 2;
+            else {
+                slots++;
+                while (desc.charAt(i) == '[')
+                    i++;
+                if (desc.charAt(i) == 'L')
+                    i = desc.indexOf(';', i);
+            }
+        }
+        return slots;
+    }
+
+    private static int retSlots(String desc) {
+        switch (desc.charAt(0)) {
+        case 'V':
+            return 0;
+        case 'J':
+        case 'D':
+            return 2;
+        default:
+            return 1;
+        }
+    }
+
+    private int entry(String key, int slots, int tag, Object... data) {
+        final Integer old = this.entries.get(key);
+        if (old != null)
+            return old;
+
+        try {
+            this.poolOut.writeByte(tag);
+            for (final Object d : data) {
+                if (d instanceof String)
+                    this.poolOut.writeUTF((String) d);
+                else if (d instanceof Long)
+                    this.poolOut.writeLong((Long) d);
+                else if (tag == 3)
+                    this.poolOut.writeInt((Integer) d);
+                else
+                    this.poolOut.writeShort((Integer) d);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        final int index = this.poolSize;
+        this.poolSize += slots;
+        this.entries.put(key, index);
+        return index;
+    }
+
+    private int utf8(String s) {
+        return this.entry("U" + s, 1, 1, s);
+    }
+
+    private int integer(int v) {
+        return this.entry("I" + v, 1, 3, v);
+    }
+
+    private int longConst(long v) {
+        return this.entry("J" + v, 2, 5, v);
+    }
+
+    private int cls(String name) {
+        return this.entry("C" + name, 1, 7, this.utf8(name));
+    }
+
+    private int string(String s) {
+        return this.entry("S" + s, 1, 8, this.utf8(s));
+    }
+
+    private int member(int tag, String owner, String name, String desc) {
+        final int nat = this.entry("N" + name + ' ' + desc, 1, 12, this.utf8(name), this.utf8(desc));
+        return this.entry(tag + owner + '.' + name + ' ' + desc, 1, tag, this.cls(owner), nat);
+    }
+
+    public void field(int access, String name, String desc) {
+        this.fields.add(new int[] { access, this.utf8(name), this.utf8(desc) });
+    }
+
+    public Code method(int access, String name, String desc) {
+        final Code code = new Code(access, name, desc);
+        this.methods.add(code);
+        return code;
+    }
+
+    public byte[] toByteArray() {
+        try {
+            // methods may still add constants, so they are written first.
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            out.writeShort(this.methods.size());
+            for (final Code m : this.methods)
+                m.write(out);
+            out.writeShort(0);
+
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final DataOutputStream header = new DataOutputStream(result);
+            header.writeInt(0xCAFEBABE);
+            header.writeShort(0);
+            header.writeShort(49);
+            header.writeShort(this.poolSize);
+            this.pool.writeTo(header);
+            header.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            header.writeShort(this.thisClass);
+            header.writeShort(this.superClass);
+            header.writeShort(0);
+            header.writeShort(this.fields.size());
+            for (final int[] f : this.fields) {
+                header.writeShort(f[0]);
+                header.writeShort(f[1]);
+                header.writeShort(f[2]);
+                header.writeShort(0);
+            }
+            body.writeTo(header);
+            return result.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
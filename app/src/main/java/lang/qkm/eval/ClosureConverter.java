@@ -0,0 +1,36 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import java.util.stream.*;
+import lang.qkm.expr.*;
+
+public final class ClosureConverter implements ExprRewriter {
+
+    // makes the captured variables of each lambda explicit so that closures
+    // only keep the values they actually need alive instead of the entire
+    // environment of the place they were created in.
+    //
+    // this should run last: other rewrites don't bother keeping the captured
+    // variables up to date and will drop them if the lambda gets rebuilt.
+
+    @Override
+    public Set<Invariant> preserves() {
+        return EnumSet.of(Invariant.ANF, Invariant.FLAT_MATCHES);
+    }
+
+    @Override
+    public Set<Invariant> establishes() {
+        return EnumSet.of(Invariant.EXPLICIT_CAPTURES);
+    }
+
+    @Override
+    public Expr visitELam(ELam e) {
+        final Expr body = e.body.accept(this);
+        final List<EVar> captures = body.fv()
+                .filter(v -> !e.params.contains(v))
+                .distinct()
+                .collect(Collectors.toList());
+
+        return new ELam(e.params, body, captures, -1);
+    }
+}
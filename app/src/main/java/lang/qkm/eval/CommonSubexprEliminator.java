@@ -0,0 +1,85 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+
+public final class CommonSubexprEliminator implements ExprRewriter {
+
+    // let x = v in ... let y = v in e => let x = v in ... e[y := x]
+    //
+    // the tree is interned first (see HashCons), so finding an enclosing
+    // binding of the same value is a single identity lookup. this relies on
+    // ANF giving every binder a unique name: equal names then refer to the
+    // same variable anywhere the earlier binding is in scope. the language
+    // is pure, so evaluating the value once instead of twice is fine.
+
+    private HashCons shared;
+    private boolean modified;
+
+    private final Map<Expr, EVar> available = new IdentityHashMap<>();
+    private final Map<EVar, EVar> renames = new HashMap<>();
+
+    @Override
+    public Expr rewrite(Expr e) {
+        this.shared = new HashCons();
+        this.modified = false;
+        try {
+            final Expr result = this.shared.intern(e).accept(this);
+
+            // interning alone only shares nodes, which is not worth a change.
+            return this.modified ? result : e;
+        } finally {
+            this.shared = null;
+            this.available.clear();
+            this.renames.clear();
+        }
+    }
+
+    @Override
+    public Set<Invariant> requires() {
+        return EnumSet.of(Invariant.ANF);
+    }
+
+    @Override
+    public Set<Invariant> preserves() {
+        return EnumSet.of(Invariant.ANF, Invariant.FLAT_MATCHES);
+    }
+
+    @Override
+    public Expr visitEVar(EVar e) {
+        final EVar v = this.renames.get(e);
+        return v == null ? e : v;
+    }
+
+    @Override
+    public Expr visitELet(ELet e) {
+        Expr value = e.value.accept(this);
+        if (value != e.value)
+            value = this.shared.intern(value);
+
+        if (value.isAtom()) {
+            // nothing is gained by sharing those.
+            final Expr body = e.body.accept(this);
+            return value == e.value && body == e.body ? e : new ELet(e.bind, value, body);
+        }
+
+        final EVar prev = this.available.get(value);
+        if (prev != null) {
+            this.modified = true;
+            this.renames.put(e.bind, prev);
+            try {
+                return e.body.accept(this);
+            } finally {
+                this.renames.remove(e.bind);
+            }
+        }
+
+        this.available.put(value, e.bind);
+        try {
+            final Expr body = e.body.accept(this);
+            return value == e.value && body == e.body ? e : new ELet(e.bind, value, body);
+        } finally {
+            this.available.remove(value);
+        }
+    }
+}
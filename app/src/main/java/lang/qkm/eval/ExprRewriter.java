@@ -6,10 +6,32 @@ import lang.qkm.match.*;
 
 public interface ExprRewriter extends Expr.Visitor<Expr> {
 
+    public enum Invariant {
+        ANF,                    // monadic intermediate form, see ANFConverter
+        FLAT_MATCHES,           // every match is a single test, see MatchRewriter
+        EXPLICIT_CAPTURES       // lambdas list their captures, see ClosureConverter
+    }
+
     public default Expr rewrite(Expr e) {
         return e.accept(this);
     }
 
+    // the invariants are used by RewriteGroup to check the ordering and to
+    // skip rewrites that would not do anything. a rewrite that leaves the
+    // tree untouched (returns the same node) trivially preserves everything.
+
+    public default Set<Invariant> requires() {
+        return EnumSet.noneOf(Invariant.class);
+    }
+
+    public default Set<Invariant> preserves() {
+        return EnumSet.noneOf(Invariant.class);
+    }
+
+    public default Set<Invariant> establishes() {
+        return EnumSet.noneOf(Invariant.class);
+    }
+
     @Override
     public default Expr visitEBool(EBool e) {
         return e;
@@ -28,7 +50,7 @@ public interface ExprRewriter extends Expr.Visitor<Expr> {
             args.add(rarg);
         }
 
-        return !modified ? e : new ECtor(e.id, args);
+        return !modified ? e : new ECtor(e.id, args, e.tag);
     }
 
     @Override
@@ -83,17 +105,22 @@ public interface ExprRewriter extends Expr.Visitor<Expr> {
         final Expr body = e.body.accept(this);
         return e.body == body
                 ? e
-                : new ELam(e.arg, body);
+                : new ELam(e.params, body);
     }
 
     @Override
     public default Expr visitEApp(EApp e) {
         final Expr f = e.f.accept(this);
-        final Expr arg = e.arg.accept(this);
 
-        return e.f == f && e.arg == arg
-                ? e
-                : new EApp(f, arg);
+        boolean modified = e.f != f;
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args) {
+            final Expr rarg = arg.accept(this);
+            modified |= arg != rarg;
+            args.add(rarg);
+        }
+
+        return !modified ? e : new EApp(f, args);
     }
 
     @Override
@@ -129,4 +156,41 @@ public interface ExprRewriter extends Expr.Visitor<Expr> {
                 ? e
                 : new EErr(value);
     }
+
+    @Override
+    public default Expr visitEPrim(EPrim e) {
+        boolean modified = false;
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args) {
+            final Expr rarg = arg.accept(this);
+            modified |= arg != rarg;
+            args.add(rarg);
+        }
+
+        return !modified ? e : new EPrim(e.op, e.type, args);
+    }
+
+    @Override
+    public default Expr visitEJoin(EJoin e) {
+        final Expr body = e.body.accept(this);
+        final Expr rest = e.rest.accept(this);
+
+        return e.body == body && e.rest == rest
+                ? e
+                : new EJoin(e.name, e.params, body, rest);
+    }
+
+    @Override
+    public default Expr visitEJump(EJump e) {
+        // the target is a label, not a value, so it is left alone.
+        boolean modified = false;
+        final ArrayList<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args) {
+            final Expr rarg = arg.accept(this);
+            modified |= arg != rarg;
+            args.add(rarg);
+        }
+
+        return !modified ? e : new EJump(e.target, args);
+    }
 }
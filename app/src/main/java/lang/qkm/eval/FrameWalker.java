@@ -0,0 +1,335 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.eval.ASTWalker.*;
+
+public final class FrameWalker implements Evaluator, Expr.Visitor<Computation> {
+
+    // same as ASTWalker, except variables are resolved ahead of time so they
+    // can be read off of fixed-size frames instead of being hashed. only
+    // calls in tail position bounce through the trampoline here too.
+
+    public static final class Frame implements Binder {
+
+        public final Frame up;
+        public final Value[] slots;
+
+        public Frame(Frame up, int size) {
+            this.up = up;
+            this.slots = new Value[size];
+        }
+
+        @Override
+        public void bind(MatchAll m, Value v) {
+            this.slots[m.slot] = v;
+        }
+    }
+
+    public static final class VClosure extends Value {
+
+        public final Frame env;
+        public final ELam f;
+
+        public VClosure(Frame env, ELam f) {
+            this.env = env;
+            this.f = f;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            // only complete matches can match against lambdas
+            if (!(m instanceof MatchAll))
+                return false;
+
+            final MatchAll k = (MatchAll) m;
+            if (k.capture != null)
+                env.bind(k, this);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "<fun>";
+        }
+    }
+
+    private static final class Jump extends Computation {
+
+        public final FrameWalker exec;
+        public final Frame frame;
+        public final Expr expr;
+
+        public Jump(FrameWalker exec, Frame frame, Expr expr) {
+            this.exec = exec;
+            this.frame = frame;
+            this.expr = expr;
+        }
+
+        @Override
+        public Value force() {
+            return this.exec.run(this.frame, this.expr);
+        }
+    }
+
+    private final Map<EVar, Integer> globalSlots = new HashMap<>();
+    private Value[] globals = new Value[16];
+    private int globalCount;
+
+    private Frame frame;
+
+    // whether the expression being visited is in tail position.
+    private boolean tail;
+
+    private Value run(ELam code) {
+        return this.run(new Frame(null, code.frameSize), code.body);
+    }
+
+    private Value run(Frame frame, Expr e) {
+        // the walker only keeps track of the current frame, so there is no
+        // need to allocate a new one per bounce.
+        final Frame oldFrame = this.frame;
+        final boolean oldTail = this.tail;
+        try {
+            for (;;) {
+                this.frame = frame;
+                this.tail = true;
+                final Computation k = e.accept(this);
+                if (k instanceof Value)
+                    return (Value) k;
+
+                final Jump thunk = (Jump) k;
+                frame = thunk.frame;
+                e = thunk.expr;
+            }
+        } finally {
+            this.frame = oldFrame;
+            this.tail = oldTail;
+        }
+    }
+
+    private Value value(Expr e) {
+        final boolean old = this.tail;
+        this.tail = false;
+        try {
+            return e.accept(this).force();
+        } finally {
+            this.tail = old;
+        }
+    }
+
+    @Override
+    public void define(Map<EVar, Expr> defs) {
+        // defines are always recursive, so allocate the slots before
+        // resolving any of the initializers.
+        final List<VBox> boxes = new ArrayList<>(defs.size());
+        for (final EVar b : defs.keySet()) {
+            if (this.globalCount == this.globals.length)
+                this.globals = Arrays.copyOf(this.globals, this.globalCount * 2);
+
+            final VBox box = new VBox();
+            boxes.add(box);
+            this.globals[this.globalCount] = box;
+            this.globalSlots.put(b, this.globalCount++);
+        }
+
+        final Iterator<VBox> it = boxes.iterator();
+        for (final Expr init : defs.values()) {
+            final VBox box = it.next();
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.run(new Resolver(this.globalSlots).close(init));
+        }
+    }
+
+    @Override
+    public void eval(Expr e) {
+        System.out.println(this.run(new Resolver(this.globalSlots).close(e)));
+    }
+
+    @Override
+    public Value visitEBool(EBool e) {
+        return VBool.of(e.value);
+    }
+
+    @Override
+    public Value visitECtor(ECtor e) {
+        if (e.args.isEmpty())
+            return VCtor.of(e.id, e.tag);
+
+        final Value[] args = new Value[e.args.size()];
+        int i = 0;
+        for (final Expr arg : e.args)
+            args[i++] = this.value(arg);
+        return VCtor.of(e.id, e.tag, args);
+    }
+
+    @Override
+    public Value visitEInt(EInt e) {
+        if (e.value == null)
+            return VWord.of(e.type, e.word);
+        return new VInt(e.type, e.value);
+    }
+
+    @Override
+    public Value visitEString(EString e) {
+        return new VString(e.value);
+    }
+
+    @Override
+    public Value visitETup(ETup e) {
+        if (e.elements.isEmpty())
+            return new VTup(List.of());
+
+        final Value[] elements = new Value[e.elements.size()];
+        int i = 0;
+        for (final Expr element : e.elements)
+            elements[i++] = this.value(element);
+        return new VTup(Arrays.asList(elements));
+    }
+
+    @Override
+    public Computation visitEMatch(EMatch e) {
+        final Value value = this.value(e.scrutinee);
+
+        // a failed attempt might have written to some of the slots, but
+        // those are only visible to the case that owns them anyway.
+        for (final int i : ASTWalker.select(e, value)) {
+            final Map.Entry<Match, Expr> pair = e.cases.get(i);
+            if (value.unpack(pair.getKey(), this.frame))
+                return pair.getValue().accept(this);
+        }
+
+        throw new RuntimeException("Match failure!");
+    }
+
+    @Override
+    public Value visitEVar(EVar e) {
+        if (!e.isResolved())
+            throw new RuntimeException("Unresolved variable " + e);
+
+        final Value v;
+        if (e.depth < 0)
+            v = this.globals[e.slot];
+        else {
+            Frame f = this.frame;
+            for (int i = e.depth; i-- > 0; )
+                f = f.up;
+            v = f.slots[e.slot];
+        }
+
+        if (v == null)
+            throw new RuntimeException("Undeclared variable " + e);
+        return v;
+    }
+
+    @Override
+    public Value visitELam(ELam e) {
+        if (e.captures == null)
+            return new VClosure(this.frame, e);
+
+        // flat closure, only copy the captured values.
+        final Frame env = new Frame(null, e.captures.size());
+        int i = 0;
+        for (final EVar v : e.captures)
+            env.slots[i++] = this.visitEVar(v);
+        return new VClosure(env, e);
+    }
+
+    @Override
+    public Computation visitEApp(EApp e) {
+        final Value f = this.value(e.f).unwrap();
+        if (f instanceof VClosure && ((VClosure) f).f.arity() == e.args.size()) {
+            // saturated, so the arguments go straight into the new frame.
+            final VClosure k = (VClosure) f;
+            final Frame next = new Frame(k.env, k.f.frameSize);
+            int i = 0;
+            for (final Expr arg : e.args)
+                next.slots[k.f.params.get(i++).slot] = this.value(arg);
+            return this.tail ? new Jump(this, next, k.f.body) : this.run(next, k.f.body);
+        }
+
+        final Value[] args = new Value[e.args.size()];
+        int i = 0;
+        for (final Expr arg : e.args)
+            args[i++] = this.value(arg);
+        return this.apply(f, args);
+    }
+
+    private Computation apply(Value f, Value[] args) {
+        if (f instanceof VPartial) {
+            final VPartial p = (VPartial) f;
+            args = p.extend(args);
+            f = p.f;
+        }
+
+        final VClosure k = (VClosure) f;
+        final int arity = k.f.arity();
+        if (args.length < arity)
+            return new VPartial(k, args);
+
+        final Frame next = new Frame(k.env, k.f.frameSize);
+        for (int i = 0; i < arity; ++i)
+            next.slots[k.f.params.get(i).slot] = args[i];
+
+        if (args.length == arity)
+            return this.tail ? new Jump(this, next, k.f.body) : this.run(next, k.f.body);
+
+        // the result takes the remaining arguments.
+        final Value r = this.run(next, k.f.body);
+        return this.apply(r.unwrap(), Arrays.copyOfRange(args, arity, args.length));
+    }
+
+    @Override
+    public Computation visitELet(ELet e) {
+        this.frame.slots[e.bind.slot] = this.value(e.value);
+        return e.body.accept(this);
+    }
+
+    @Override
+    public Computation visitELetrec(ELetrec e) {
+        final Value[] slots = this.frame.slots;
+        for (final EVar b : e.binds.keySet())
+            slots[b.slot] = new VBox();
+
+        for (final Map.Entry<EVar, Expr> pair : e.binds.entrySet()) {
+            final VBox box = (VBox) slots[pair.getKey().slot];
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.value(pair.getValue());
+        }
+
+        return e.body.accept(this);
+    }
+
+    @Override
+    public Value visitEErr(EErr e) {
+        throw new RuntimeException(this.value(e.value) + "");
+    }
+
+    @Override
+    public Value visitEPrim(EPrim e) {
+        return ASTWalker.prim(e, this.value(e.args.get(0)), this.value(e.args.get(1)));
+    }
+
+    @Override
+    public Computation visitEJoin(EJoin e) {
+        this.frame.slots[e.name.slot] = new VJoin(e);
+        return e.rest.accept(this);
+    }
+
+    @Override
+    public Computation visitEJump(EJump e) {
+        // the parameters have slots of their own that nothing in the rest
+        // uses (see Resolver), so the arguments go straight into them.
+        final EJoin join = ((VJoin) this.visitEVar(e.target)).join;
+        final Value[] slots = this.frame.slots;
+        int i = 0;
+        for (final Expr arg : e.args)
+            slots[join.params.get(i++).slot] = this.value(arg);
+        return join.body.accept(this);
+    }
+}
@@ -6,49 +6,157 @@ import lang.qkm.expr.*;
 
 public final class LetrecFixer implements ExprRewriter {
 
+    // splits every letrec into its strongly connected components, which are
+    // then nested in dependency order. only the components that are really
+    // recursive stay a letrec, the others become plain lets so that the
+    // evaluators do not need to box them.
+
     @Override
-    public Expr visitELetrec(ELetrec e) {
-        if (e.binds.isEmpty())
-            return e.body.accept(this);
+    public Set<Invariant> preserves() {
+        return EnumSet.of(Invariant.FLAT_MATCHES);
+    }
 
-        final Deque<Map.Entry<EVar, Expr>> simple = new ArrayDeque<>();
-        final Map<EVar, Expr> binds = new HashMap<>(e.binds);
+    public static List<List<EVar>> components(Map<EVar, ? extends Expr> binds) {
+        // tarjan's algorithm, but with an explicit stack since the groups
+        // can be large. a component is only completed after everything it
+        // depends on, so they come out in the order they need to be bound.
+        final List<EVar> names = new ArrayList<>(binds.keySet());
+        final Map<EVar, Integer> ids = new HashMap<>();
+        for (final EVar name : names)
+            ids.put(name, ids.size());
 
-        final Iterator<Map.Entry<EVar, Expr>> it = binds.entrySet().iterator();
-        while (it.hasNext()) {
-            final Map.Entry<EVar, Expr> pair = it.next();
-            final Expr init = pair.getValue().accept(this);
-            pair.setValue(init);
+        final int n = names.size();
+        final int[][] edges = new int[n][];
+        for (int i = 0; i < n; ++i)
+            edges[i] = binds.get(names.get(i)).fv()
+                    .map(ids::get)
+                    .filter(Objects::nonNull)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
 
-            if (init.fv().noneMatch(binds::containsKey)) {
-                // definition is simple, hoist it out
-                it.remove();
-                simple.push(pair);
+        final int[] index = new int[n];
+        final int[] low = new int[n];
+        final int[] next = new int[n];
+        final boolean[] onStack = new boolean[n];
+        final int[] stack = new int[n];
+        final int[] calls = new int[n];
+        Arrays.fill(index, -1);
+
+        final List<List<EVar>> result = new ArrayList<>();
+        int counter = 0;
+        int sp = 0;
+        for (int root = 0; root < n; ++root) {
+            if (index[root] >= 0)
                 continue;
-            }
 
-            if (init instanceof ELet) {
-                // we have (letrec (... [k (let ((s t)) v)]) ...) and try to
-                // flatten it to (letrec (... [s t] [k v]) ...)
-                final ELet elet = (ELet) init;
-                if (elet.value.fv().noneMatch(binds::containsKey)) {
-                    simple.push(Map.entry(elet.bind, elet.value));
-                    pair.setValue(elet.body);
+            int csp = 0;
+            calls[csp++] = root;
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+
+            while (csp > 0) {
+                final int v = calls[csp - 1];
+                if (next[v] < edges[v].length) {
+                    final int w = edges[v][next[v]++];
+                    if (index[w] < 0) {
+                        calls[csp++] = w;
+                        index[w] = low[w] = counter++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
                     continue;
                 }
+
+                if (--csp > 0) {
+                    final int u = calls[csp - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+
+                if (low[v] == index[v]) {
+                    // keep the original order within the component, the
+                    // evaluators initialize the bindings in that order.
+                    final List<Integer> members = new ArrayList<>();
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        members.add(w);
+                    } while (w != v);
+
+                    Collections.sort(members);
+                    result.add(members.stream()
+                            .map(names::get)
+                            .collect(Collectors.toList()));
+                }
             }
         }
 
-        if (simple.isEmpty())
-            return new ELetrec(binds, e.body.accept(this));
+        return result;
+    }
 
-        Expr acc = binds.isEmpty() ? e.body : new ELetrec(binds, e.body);
-        while (!simple.isEmpty()) {
-            final Map.Entry<EVar, Expr> pair = simple.pop();
-            acc = new ELet(pair.getKey(), pair.getValue(), acc);
+    @Override
+    public Expr visitELetrec(ELetrec e) {
+        if (e.binds.isEmpty())
+            return e.body.accept(this);
+
+        boolean modified = false;
+        final Map<EVar, Expr> binds = new LinkedHashMap<>();
+        for (final Map.Entry<EVar, Expr> pair : e.binds.entrySet()) {
+            Expr init = pair.getValue().accept(this);
+            modified |= pair.getValue() != init;
+
+            // we have (letrec (... [k (let ((s t)) v)]) ...) and try to
+            // flatten it to (letrec (... [s t] [k v]) ...), which lets the
+            // split move s out of the group. s must not capture anything.
+            while (init instanceof ELet) {
+                final ELet elet = (ELet) init;
+                if (!Collections.disjoint(elet.value.getFreeVars(), e.binds.keySet())
+                        || e.binds.containsKey(elet.bind)
+                        || binds.containsKey(elet.bind)
+                        || e.getFreeVars().contains(elet.bind))
+                    break;
+
+                binds.put(elet.bind, elet.value);
+                init = elet.body;
+                modified = true;
+            }
+
+            binds.put(pair.getKey(), init);
+        }
+
+        final List<List<EVar>> groups = components(binds);
+        final Expr body = e.body.accept(this);
+        if (!modified && e.body == body && groups.size() == 1 && isRecursive(groups.get(0), binds)) {
+            // keep the node if nothing changed, RewriteGroup relies on that.
+            return e;
         }
 
-        // try again in case we missed something, which is possible.
-        return acc.accept(this);
+        Expr acc = body;
+        for (int i = groups.size(); i-- > 0; ) {
+            final List<EVar> group = groups.get(i);
+            if (!isRecursive(group, binds)) {
+                final EVar name = group.get(0);
+                acc = new ELet(name, binds.get(name), acc);
+                continue;
+            }
+
+            final Map<EVar, Expr> m = new LinkedHashMap<>();
+            for (final EVar name : group)
+                m.put(name, binds.get(name));
+            acc = new ELetrec(m, acc);
+        }
+
+        return acc;
+    }
+
+    private static boolean isRecursive(List<EVar> group, Map<EVar, Expr> binds) {
+        if (group.size() != 1)
+            return true;
+
+        final EVar name = group.get(0);
+        return binds.get(name).getFreeVars().contains(name);
     }
 }
@@ -2,20 +2,64 @@ package lang.qkm.eval;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.*;
 import lang.qkm.expr.*;
 import lang.qkm.match.*;
 
 public final class MatchRewriter implements ExprRewriter {
 
+    public enum Scheme {
+
+        // a decision tree, unless it would be too large compared to the
+        // backtracking automaton.
+        AUTO,
+
+        // tests every value at most once, but the size can blow up.
+        DECISION_TREE,
+
+        // linear in the size of the patterns, but may test a value again.
+        BACKTRACKING
+    }
+
+    // under AUTO, a decision tree can have this many times as many tests as
+    // the backtracking automaton has tests. small matches always get one.
+    private static final int TREE_FACTOR = 4;
+    private static final int TREE_MINIMUM = 64;
+
+    private final List<MatchCompiler.Heuristic> heuristics;
+
+    // picks the scheme of each match, it sees them before they are compiled.
+    private final Function<? super EMatch, Scheme> schemes;
+
     private BigInteger id = BigInteger.ZERO;
     private boolean compiling;
 
+    // the decision trees repeat the same leaves (jumps to the same join point
+    // and the match failure) along many paths, share them.
+    private HashCons shared;
+
+    public MatchRewriter() {
+        this(MatchCompiler.PBA);
+    }
+
+    public MatchRewriter(List<MatchCompiler.Heuristic> heuristics) {
+        this(heuristics, e -> Scheme.AUTO);
+    }
+
+    public MatchRewriter(List<MatchCompiler.Heuristic> heuristics, Function<? super EMatch, Scheme> schemes) {
+        this.heuristics = heuristics;
+        this.schemes = schemes;
+    }
+
     @Override
     public Expr rewrite(Expr e) {
+        this.shared = new HashCons();
         this.compiling = true;
         e = e.accept(this);
         this.compiling = false;
+        this.shared = null;
         e = e.accept(this);
 
         return e;
@@ -25,6 +69,17 @@ public final class MatchRewriter implements ExprRewriter {
         return "`j" + (this.id = this.id.add(BigInteger.ONE));
     }
 
+    @Override
+    public Set<Invariant> requires() {
+        // the compiled tree refers to the scrutinee more than once.
+        return EnumSet.of(Invariant.ANF);
+    }
+
+    @Override
+    public Set<Invariant> establishes() {
+        return EnumSet.of(Invariant.FLAT_MATCHES);
+    }
+
     @Override
     public Expr visitEMatch(EMatch e) {
         if (!this.compiling) {
@@ -55,47 +110,42 @@ public final class MatchRewriter implements ExprRewriter {
         // we explicitly introduce join points. consider the following:
         //   match scrutinee with p1 -> e1 | p2 -> e2 | ...
         // it then becomes
-        //   let j1 = \capture1. e1 in
-        //   let j2 = \capture2. e2 in ...
-        //   match scrutinee with p1 -> j1 capture1 | p2 -> j2 capture2
+        //   join j1 capture1 = e1 in
+        //   join j2 capture2 = e2 in ...
+        //   match scrutinee with p1 -> jump j1 capture1 | p2 -> jump j2 capture2
         //
         // (and let the later pass re-inline them or whatever)
 
+        final Scheme scheme = this.schemes.apply(e);
         final Expr scrutinee = e.scrutinee.accept(this);
-        final ArrayDeque<Map.Entry<EVar, Expr>> joinPoints = new ArrayDeque<>();
+        final ArrayDeque<UnaryOperator<Expr>> joinPoints = new ArrayDeque<>();
 
         final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(e.cases.size());
         for (final Map.Entry<Match, Expr> k : e.cases) {
             final Match m = k.getKey();
-            Expr action = k.getValue().accept(this);
+            final Expr action = k.getValue().accept(this);
 
             final EVar node = new EVar(this.newName());
-            final ArrayDeque<String> args = m.getCaptures()
+            final List<EVar> args = m.getCaptures()
                     .distinct()
-                    .collect(Collectors.toCollection(ArrayDeque::new));
-            if (args.isEmpty())
-                action = new ELam(node, action);
-            else {
-                final Iterator<String> it = args.descendingIterator();
-                while (it.hasNext())
-                    action = new ELam(new EVar(it.next()), action);
-            }
-            joinPoints.push(Map.entry(node, action));
-
-            Expr jump = node;
-            if (args.isEmpty())
-                jump = new EApp(jump, new ETup(List.of()));
-            else
-                for (final String arg : args)
-                    jump = new EApp(jump, new EVar(arg));
-            cases.add(Map.entry(m, jump));
+                    .map(EVar::new)
+                    .collect(Collectors.toList());
+            joinPoints.push(rest -> new EJoin(node, args, action, rest));
+            cases.add(Map.entry(m, new EJump(node, args)));
         }
 
-        Expr result = new MatchCompiler().compile(scrutinee, cases);
-        while (!joinPoints.isEmpty()) {
-            final Map.Entry<EVar, Expr> info = joinPoints.pop();
-            result = new ELet(info.getKey(), info.getValue(), result);
+        Expr result = null;
+        if (scheme != Scheme.BACKTRACKING) {
+            final int limit = scheme == Scheme.DECISION_TREE
+                    ? Integer.MAX_VALUE
+                    : Math.max(TREE_MINIMUM, TREE_FACTOR * BacktrackCompiler.size(cases));
+            result = new MatchCompiler(this.shared, this.heuristics).compile(scrutinee, cases, limit);
         }
+        if (result == null)
+            result = new BacktrackCompiler().compile(scrutinee, cases);
+
+        while (!joinPoints.isEmpty())
+            result = joinPoints.pop().apply(result);
         return result;
     }
 }
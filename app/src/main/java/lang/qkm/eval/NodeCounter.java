@@ -0,0 +1,102 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+
+/* package */ final class NodeCounter implements Expr.Visitor<Long> {
+
+    // the size of an expression in nodes, used for statistics and as the
+    // cost of inlining.
+
+    private static final NodeCounter INSTANCE = new NodeCounter();
+
+    public static long count(Expr e) {
+        return e.accept(INSTANCE);
+    }
+
+    private long sum(Collection<? extends Expr> es) {
+        long acc = 0;
+        for (final Expr e : es)
+            acc += e.accept(this);
+        return acc;
+    }
+
+    @Override
+    public Long visitEBool(EBool e) {
+        return 1L;
+    }
+
+    @Override
+    public Long visitECtor(ECtor e) {
+        return 1 + this.sum(e.args);
+    }
+
+    @Override
+    public Long visitEInt(EInt e) {
+        return 1L;
+    }
+
+    @Override
+    public Long visitEString(EString e) {
+        return 1L;
+    }
+
+    @Override
+    public Long visitETup(ETup e) {
+        return 1 + this.sum(e.elements);
+    }
+
+    @Override
+    public Long visitEMatch(EMatch e) {
+        long acc = 1 + e.scrutinee.accept(this);
+        for (final Map.Entry<Match, Expr> pair : e.cases)
+            acc += pair.getValue().accept(this);
+        return acc;
+    }
+
+    @Override
+    public Long visitEVar(EVar e) {
+        return 1L;
+    }
+
+    @Override
+    public Long visitELam(ELam e) {
+        return 1 + e.body.accept(this);
+    }
+
+    @Override
+    public Long visitEApp(EApp e) {
+        return 1 + e.f.accept(this) + this.sum(e.args);
+    }
+
+    @Override
+    public Long visitELet(ELet e) {
+        return 1 + e.value.accept(this) + e.body.accept(this);
+    }
+
+    @Override
+    public Long visitELetrec(ELetrec e) {
+        return 1 + this.sum(e.binds.values()) + e.body.accept(this);
+    }
+
+    @Override
+    public Long visitEErr(EErr e) {
+        return 1 + e.value.accept(this);
+    }
+
+    @Override
+    public Long visitEPrim(EPrim e) {
+        return 1 + this.sum(e.args);
+    }
+
+    @Override
+    public Long visitEJoin(EJoin e) {
+        return 1 + e.body.accept(this) + e.rest.accept(this);
+    }
+
+    @Override
+    public Long visitEJump(EJump e) {
+        return 1 + this.sum(e.args);
+    }
+}
@@ -0,0 +1,753 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
+import lang.qkm.eval.ASTWalker.*;
+import lang.qkm.eval.FrameWalker.Frame;
+
+public final class NodeEvaluator implements Evaluator, Expr.Visitor<NodeEvaluator.Node> {
+
+    // sits between FrameWalker and BytecodeEvaluator: the resolved
+    // expression is turned into a tree of executable nodes once, so running
+    // it only costs a virtual call per node. literals are built, globals are
+    // looked up and constructor cases are hashed ahead of time.
+    //
+    // only calls in tail position bounce through the trampoline, everything
+    // else (let, match, letrec) runs the body directly since their nesting
+    // is bounded by the size of the code.
+
+    public static abstract class Node {
+
+        // evaluates the node to a value.
+        public abstract Value eval(Frame frame);
+
+        // evaluates the node in tail position, which may defer the work.
+        public Computation exec(Frame frame) {
+            return this.eval(frame);
+        }
+    }
+
+    private static abstract class Control extends Node {
+
+        @Override
+        public final Value eval(Frame frame) {
+            return this.exec(frame).force();
+        }
+
+        @Override
+        public abstract Computation exec(Frame frame);
+    }
+
+    private static final class Lambda {
+
+        public final int[] params;
+        public final int frameSize;
+        public Node body;
+
+        public Lambda(int[] params, int frameSize) {
+            this.params = params;
+            this.frameSize = frameSize;
+        }
+    }
+
+    public static final class VNode extends Value {
+
+        public final Frame env;
+        private final Lambda code;
+
+        private VNode(Frame env, Lambda code) {
+            this.env = env;
+            this.code = code;
+        }
+
+        @Override
+        public boolean unpack(Match m, Binder env) {
+            // only complete matches can match against lambdas
+            if (!(m instanceof MatchAll))
+                return false;
+
+            final MatchAll k = (MatchAll) m;
+            if (k.capture != null)
+                env.bind(k, this);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "<fun>";
+        }
+    }
+
+    private static final class Jump extends Computation {
+
+        public final Node node;
+        public final Frame frame;
+
+        public Jump(Node node, Frame frame) {
+            this.node = node;
+            this.frame = frame;
+        }
+
+        @Override
+        public Value force() {
+            Jump thunk = this;
+            for (;;) {
+                final Computation k = thunk.node.exec(thunk.frame);
+                if (k instanceof Value)
+                    return (Value) k;
+
+                thunk = (Jump) k;
+            }
+        }
+    }
+
+    private static final class Const extends Node {
+
+        public final Value value;
+
+        public Const(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            return this.value;
+        }
+    }
+
+    private static final class Local extends Node {
+
+        public final int slot;
+
+        public Local(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            return frame.slots[this.slot];
+        }
+    }
+
+    private static final class Outer extends Node {
+
+        public final int depth;
+        public final int slot;
+
+        public Outer(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            for (int i = this.depth; i-- > 0; )
+                frame = frame.up;
+            return frame.slots[this.slot];
+        }
+    }
+
+    private static final class MakeCtor extends Node {
+
+        public final String id;
+        public final int tag;
+        public final Node[] args;
+
+        public MakeCtor(String id, int tag, Node[] args) {
+            this.id = id;
+            this.tag = tag;
+            this.args = args;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            final Value[] args = new Value[this.args.length];
+            for (int i = 0; i < args.length; ++i)
+                args[i] = this.args[i].eval(frame);
+            return VCtor.of(this.id, this.tag, args);
+        }
+    }
+
+    private static final class MakeTup extends Node {
+
+        public final Node[] elements;
+
+        public MakeTup(Node[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            final Value[] elements = new Value[this.elements.length];
+            for (int i = 0; i < elements.length; ++i)
+                elements[i] = this.elements[i].eval(frame);
+            return new VTup(Arrays.asList(elements));
+        }
+    }
+
+    private static final class MakeClosure extends Node {
+
+        public final Lambda code;
+        public final Node[] captures;
+
+        public MakeClosure(Lambda code, Node[] captures) {
+            this.code = code;
+            this.captures = captures;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            if (this.captures == null)
+                return new VNode(frame, this.code);
+
+            // flat closure, only copy the captured values.
+            final Frame env = new Frame(null, this.captures.length);
+            for (int i = 0; i < this.captures.length; ++i)
+                env.slots[i] = this.captures[i].eval(frame);
+            return new VNode(env, this.code);
+        }
+    }
+
+    private static final class WordOp extends Node {
+
+        // arithmetic on iN with N <= 64 without going through BigInteger.
+
+        public final EPrim.Op op;
+        public final TyInt type;
+        public final Node a;
+        public final Node b;
+
+        public WordOp(EPrim.Op op, TyInt type, Node a, Node b) {
+            this.op = op;
+            this.type = type;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            final long x = ((VWord) this.a.eval(frame).unwrap()).value;
+            final long y = ((VWord) this.b.eval(frame).unwrap()).value;
+            return VWord.of(this.type, this.op.apply(this.type, x, y));
+        }
+    }
+
+    private static final class WordTest extends Node {
+
+        public final EPrim.Op op;
+        public final Node a;
+        public final Node b;
+
+        public WordTest(EPrim.Op op, Node a, Node b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            final long x = ((VWord) this.a.eval(frame).unwrap()).value;
+            final long y = ((VWord) this.b.eval(frame).unwrap()).value;
+            return VBool.of(this.op.test(x, y));
+        }
+    }
+
+    private static final class Prim extends Node {
+
+        public final EPrim prim;
+        public final Node a;
+        public final Node b;
+
+        public Prim(EPrim prim, Node a, Node b) {
+            this.prim = prim;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            return ASTWalker.prim(this.prim, this.a.eval(frame), this.b.eval(frame));
+        }
+    }
+
+    private static final class Apply extends Node {
+
+        public final Node f;
+        public final Node[] args;
+
+        public Apply(Node f, Node[] args) {
+            this.f = f;
+            this.args = args;
+        }
+
+        @Override
+        public Value eval(Frame frame) {
+            return this.exec(frame).force();
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            final Value f = this.f.eval(frame).unwrap();
+            if (f instanceof VNode && ((VNode) f).code.params.length == this.args.length) {
+                // saturated, so the arguments go straight into the new frame.
+                final VNode k = (VNode) f;
+                final Frame next = new Frame(k.env, k.code.frameSize);
+                for (int i = 0; i < this.args.length; ++i)
+                    next.slots[k.code.params[i]] = this.args[i].eval(frame);
+                return new Jump(k.code.body, next);
+            }
+
+            final Value[] args = new Value[this.args.length];
+            for (int i = 0; i < args.length; ++i)
+                args[i] = this.args[i].eval(frame);
+            return apply(f, args);
+        }
+
+        private static Computation apply(Value f, Value[] args) {
+            if (f instanceof VPartial) {
+                final VPartial p = (VPartial) f;
+                args = p.extend(args);
+                f = p.f;
+            }
+
+            final VNode k = (VNode) f;
+            final int arity = k.code.params.length;
+            if (args.length < arity)
+                return new VPartial(k, args);
+
+            final Frame next = new Frame(k.env, k.code.frameSize);
+            for (int i = 0; i < arity; ++i)
+                next.slots[k.code.params[i]] = args[i];
+
+            final Jump body = new Jump(k.code.body, next);
+            if (args.length == arity)
+                return body;
+
+            // the result takes the remaining arguments.
+            return apply(body.force().unwrap(), Arrays.copyOfRange(args, arity, args.length));
+        }
+    }
+
+    private static final class Label {
+
+        // a join point, which needs no value at runtime: the jumps refer to
+        // the code of the body directly.
+        public final int[] params;
+        public final Node body;
+
+        public Label(int[] params, Node body) {
+            this.params = params;
+            this.body = body;
+        }
+    }
+
+    private static final class Goto extends Control {
+
+        // the parameters have slots of their own that the arguments cannot
+        // see (see Resolver), so they are written one by one. like a let,
+        // the body runs directly since jumps cannot form a cycle.
+
+        public final Label target;
+        public final Node[] args;
+
+        public Goto(Label target, Node[] args) {
+            this.target = target;
+            this.args = args;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            final int[] params = this.target.params;
+            for (int i = 0; i < params.length; ++i)
+                frame.slots[params[i]] = this.args[i].eval(frame);
+            return this.target.body.exec(frame);
+        }
+    }
+
+    private static final class Let extends Control {
+
+        public final int slot;
+        public final Node value;
+        public final Node body;
+
+        public Let(int slot, Node value, Node body) {
+            this.slot = slot;
+            this.value = value;
+            this.body = body;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            frame.slots[this.slot] = this.value.eval(frame);
+            return this.body.exec(frame);
+        }
+    }
+
+    private static final class Letrec extends Control {
+
+        public final int[] slots;
+        public final Node[] inits;
+        public final Node body;
+
+        public Letrec(int[] slots, Node[] inits, Node body) {
+            this.slots = slots;
+            this.inits = inits;
+            this.body = body;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            for (final int slot : this.slots)
+                frame.slots[slot] = new VBox();
+
+            for (int i = 0; i < this.slots.length; ++i) {
+                final VBox box = (VBox) frame.slots[this.slots[i]];
+                if (box.boxed != null)
+                    throw new IllegalStateException("Invalid binding initialization");
+
+                box.boxed = this.inits[i].eval(frame);
+            }
+
+            return this.body.exec(frame);
+        }
+    }
+
+    private static final class Fail extends Control {
+
+        public final Node value;
+
+        public Fail(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            throw new RuntimeException(this.value.eval(frame) + "");
+        }
+    }
+
+    private static final class MatchGeneric extends Control {
+
+        // the patterns that could match the head of the scrutinee are tried
+        // in order with unpack writing the captures straight into the frame.
+
+        public final Node scrutinee;
+        public final EMatch match;
+        public final Match[] patterns;
+        public final Node[] actions;
+
+        public MatchGeneric(Node scrutinee, EMatch match, Match[] patterns, Node[] actions) {
+            this.scrutinee = scrutinee;
+            this.match = match;
+            this.patterns = patterns;
+            this.actions = actions;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            final Value value = this.scrutinee.eval(frame);
+            for (final int i : ASTWalker.select(this.match, value))
+                if (value.unpack(this.patterns[i], frame))
+                    return this.actions[i].exec(frame);
+
+            throw new RuntimeException("Match failure!");
+        }
+    }
+
+    private static final class Arm {
+
+        // slots of the constructor arguments, -1 if the argument is dropped.
+        public final int[] slots;
+        public final Node action;
+
+        public Arm(int[] slots, Node action) {
+            this.slots = slots;
+            this.action = action;
+        }
+    }
+
+    private static final class MatchCtors extends Control {
+
+        // output of the match compiler: distinct constructors whose
+        // arguments are all captures, and possibly a default case. the arms
+        // are indexed by tag unless some constructor does not have one.
+
+        public final Node scrutinee;
+        public final Map<String, Arm> arms;
+        public final Arm[] byTag;
+        public final int defaultSlot;
+        public final Node defaultAction;
+
+        public MatchCtors(Node scrutinee, Map<String, Arm> arms, Arm[] byTag, int defaultSlot, Node defaultAction) {
+            this.scrutinee = scrutinee;
+            this.arms = arms;
+            this.byTag = byTag;
+            this.defaultSlot = defaultSlot;
+            this.defaultAction = defaultAction;
+        }
+
+        @Override
+        public Computation exec(Frame frame) {
+            final Value value = this.scrutinee.eval(frame).unwrap();
+            final VCtor ctor = (VCtor) value;
+            final Arm arm;
+            if (ctor.tag < 0 || this.byTag == null)
+                arm = this.arms.get(ctor.id);
+            else
+                arm = ctor.tag < this.byTag.length ? this.byTag[ctor.tag] : null;
+            if (arm == null) {
+                if (this.defaultAction == null)
+                    throw new RuntimeException("Match failure!");
+
+                if (this.defaultSlot >= 0)
+                    frame.slots[this.defaultSlot] = value;
+                return this.defaultAction.exec(frame);
+            }
+
+            final int[] slots = arm.slots;
+            for (int i = 0; i < slots.length; ++i)
+                if (slots[i] >= 0)
+                    frame.slots[slots[i]] = ctor.get(i);
+            return arm.action.exec(frame);
+        }
+    }
+
+    private final Map<EVar, Integer> globalSlots = new HashMap<>();
+    private final List<VBox> globals = new ArrayList<>();
+    private final Map<String, Label> joins = new HashMap<>();
+
+    private Value run(Expr e) {
+        final ELam code = new Resolver(this.globalSlots).close(e);
+        final Node body = code.body.accept(this);
+        return body.exec(new Frame(null, code.frameSize)).force();
+    }
+
+    @Override
+    public void define(Map<EVar, Expr> defs) {
+        // defines are always recursive, so allocate the boxes before
+        // building any of the initializers.
+        final List<VBox> boxes = new ArrayList<>(defs.size());
+        for (final EVar b : defs.keySet()) {
+            final VBox box = new VBox();
+            boxes.add(box);
+            this.globalSlots.put(b, this.globals.size());
+            this.globals.add(box);
+        }
+
+        final Iterator<VBox> it = boxes.iterator();
+        for (final Expr init : defs.values()) {
+            final VBox box = it.next();
+            if (box.boxed != null)
+                throw new IllegalStateException("Invalid binding initialization");
+
+            box.boxed = this.run(init);
+        }
+    }
+
+    @Override
+    public void eval(Expr e) {
+        System.out.println(this.run(e));
+    }
+
+    private Node[] build(List<? extends Expr> exprs) {
+        final Node[] nodes = new Node[exprs.size()];
+        int i = 0;
+        for (final Expr e : exprs)
+            nodes[i++] = e.accept(this);
+        return nodes;
+    }
+
+    @Override
+    public Node visitEBool(EBool e) {
+        return new Const(VBool.of(e.value));
+    }
+
+    @Override
+    public Node visitECtor(ECtor e) {
+        if (e.args.isEmpty())
+            return new Const(VCtor.of(e.id, e.tag));
+        return new MakeCtor(e.id, e.tag, this.build(e.args));
+    }
+
+    @Override
+    public Node visitEInt(EInt e) {
+        if (e.value == null)
+            return new Const(new VWord(e.type, e.word));
+        return new Const(new VInt(e.type, e.value));
+    }
+
+    @Override
+    public Node visitEString(EString e) {
+        return new Const(new VString(e.value));
+    }
+
+    @Override
+    public Node visitETup(ETup e) {
+        if (e.elements.isEmpty())
+            return new Const(new VTup(List.of()));
+        return new MakeTup(this.build(e.elements));
+    }
+
+    private static int[] flatSlots(List<Match> args) {
+        final int[] slots = new int[args.size()];
+        int i = 0;
+        for (final Match arg : args) {
+            if (!(arg instanceof MatchAll))
+                return null;
+
+            final MatchAll m = (MatchAll) arg;
+            slots[i++] = m.capture == null ? -1 : m.slot;
+        }
+        return slots;
+    }
+
+    @Override
+    public Node visitEMatch(EMatch e) {
+        final Node scrutinee = e.scrutinee.accept(this);
+
+        // try the constructor table first, give up if it doesn't fit.
+        final Map<String, Arm> arms = new HashMap<>();
+        final Map<Integer, Arm> tags = new HashMap<>();
+        boolean table = true;
+        boolean tagged = true;
+        int defaultSlot = -1;
+        Node defaultAction = null;
+        for (final Map.Entry<Match, Expr> k : e.cases) {
+            final Match m = k.getKey();
+            if (m instanceof MatchAll) {
+                final MatchAll all = (MatchAll) m;
+                defaultSlot = all.capture == null ? -1 : all.slot;
+                defaultAction = k.getValue().accept(this);
+                break;
+            }
+
+            final int[] slots;
+            if (!(m instanceof MatchCtor)
+                    || (slots = flatSlots(((MatchCtor) m).args)) == null
+                    || arms.containsKey(((MatchCtor) m).ctor)) {
+                table = false;
+                break;
+            }
+
+            final Arm arm = new Arm(slots, k.getValue().accept(this));
+            arms.put(((MatchCtor) m).ctor, arm);
+            if (((MatchCtor) m).tag < 0)
+                tagged = false;
+            else
+                tags.put(((MatchCtor) m).tag, arm);
+        }
+
+        if (table && !arms.isEmpty()) {
+            Arm[] byTag = null;
+            if (tagged) {
+                byTag = new Arm[Collections.max(tags.keySet()) + 1];
+                for (final Map.Entry<Integer, Arm> pair : tags.entrySet())
+                    byTag[pair.getKey()] = pair.getValue();
+            }
+            return new MatchCtors(scrutinee, arms, byTag, defaultSlot, defaultAction);
+        }
+
+        final Match[] patterns = new Match[e.cases.size()];
+        final Node[] actions = new Node[e.cases.size()];
+        int i = 0;
+        for (final Map.Entry<Match, Expr> k : e.cases) {
+            patterns[i] = k.getKey();
+            actions[i++] = k.getValue().accept(this);
+        }
+        return new MatchGeneric(scrutinee, e, patterns, actions);
+    }
+
+    @Override
+    public Node visitEVar(EVar e) {
+        if (!e.isResolved())
+            throw new RuntimeException("Unresolved variable " + e);
+
+        if (e.depth < 0)
+            return new Const(this.globals.get(e.slot));
+        if (e.depth == 0)
+            return new Local(e.slot);
+        return new Outer(e.depth, e.slot);
+    }
+
+    @Override
+    public Node visitELam(ELam e) {
+        final int[] params = new int[e.arity()];
+        for (int i = 0; i < params.length; ++i)
+            params[i] = e.params.get(i).slot;
+
+        final Lambda code = new Lambda(params, e.frameSize);
+        code.body = e.body.accept(this);
+
+        if (e.captures == null)
+            return new MakeClosure(code, null);
+        return new MakeClosure(code, this.build(e.captures));
+    }
+
+    @Override
+    public Node visitEApp(EApp e) {
+        return new Apply(e.f.accept(this), this.build(e.args));
+    }
+
+    @Override
+    public Node visitELet(ELet e) {
+        return new Let(e.bind.slot, e.value.accept(this), e.body.accept(this));
+    }
+
+    @Override
+    public Node visitELetrec(ELetrec e) {
+        final int[] slots = new int[e.binds.size()];
+        final Node[] inits = new Node[e.binds.size()];
+        int i = 0;
+        for (final Map.Entry<EVar, Expr> pair : e.binds.entrySet()) {
+            slots[i] = pair.getKey().slot;
+            inits[i++] = pair.getValue().accept(this);
+        }
+
+        return new Letrec(slots, inits, e.body.accept(this));
+    }
+
+    @Override
+    public Node visitEErr(EErr e) {
+        return new Fail(e.value.accept(this));
+    }
+
+    @Override
+    public Node visitEPrim(EPrim e) {
+        final Node a = e.args.get(0).accept(this);
+        final Node b = e.args.get(1).accept(this);
+        if (!e.type.isWord())
+            return new Prim(e, a, b);
+        if (e.op.isComparison())
+            return new WordTest(e.op, a, b);
+        return new WordOp(e.op, e.type, a, b);
+    }
+
+    @Override
+    public Node visitEJoin(EJoin e) {
+        final int[] params = new int[e.params.size()];
+        int i = 0;
+        for (final EVar param : e.params)
+            params[i++] = param.slot;
+
+        final Label label = new Label(params, e.body.accept(this));
+        final Label old = this.joins.put(e.name.name, label);
+        try {
+            return e.rest.accept(this);
+        } finally {
+            if (old == null)
+                this.joins.remove(e.name.name);
+            else
+                this.joins.put(e.name.name, old);
+        }
+    }
+
+    @Override
+    public Node visitEJump(EJump e) {
+        final Label target = this.joins.get(e.target.name);
+        if (target == null)
+            throw new RuntimeException("Undeclared join point " + e.target);
+        return new Goto(target, this.build(e.args));
+    }
+}
@@ -1,12 +1,395 @@
 package lang.qkm.eval;
 
+import java.math.BigInteger;
 import java.util.*;
+import java.util.function.UnaryOperator;
 import lang.qkm.expr.*;
 import lang.qkm.match.*;
+import lang.qkm.util.SList;
 
 public final class PartialEvaluator implements ExprRewriter {
 
-    private Map<EVar, Map.Entry<Expr, Boolean>> valueTable = new HashMap<>();
+    // lambdas up to this size are inlined at every call site. larger ones
+    // are inlined as long as the extra copies (the size times the number of
+    // call sites beyond the first) stay within the growth budget.
+    private static final long SMALL_SIZE = 12;
+    private static final long GROWTH_BUDGET = 64;
+
+    private enum Mode {
+        NEVER,                  // keep the variable
+        CALLS,                  // inline a copy of the lambda when applied
+        ONCE,                   // replace the only occurrence
+        ALWAYS                  // replace every occurrence with a copy
+    }
+
+    private static final class Known {
+
+        // what is known about the value of a variable: either its
+        // constructor and fields (null for the ones without a name), or the
+        // constructors it cannot be.
+
+        public final Object ctor;
+        public final List<? extends Expr> fields;
+        public final Set<Object> excluded;
+
+        public Known(Object ctor, List<? extends Expr> fields) {
+            this.ctor = ctor;
+            this.fields = fields;
+            this.excluded = Set.of();
+        }
+
+        public Known(Set<Object> excluded) {
+            this.ctor = null;
+            this.fields = null;
+            this.excluded = excluded;
+        }
+
+        public static Known of(Expr e) {
+            if (e instanceof EBool)
+                return new Known(((EBool) e).value, List.of());
+            if (e instanceof EString)
+                return new Known(((EString) e).value, List.of());
+            if (e instanceof EInt)
+                return new Known(((EInt) e).getCtor(), List.of());
+            if (e instanceof ETup)
+                return new Known(lang.qkm.type.TyTup.class, ((ETup) e).elements);
+            if (e instanceof ECtor)
+                return new Known(((ECtor) e).id, ((ECtor) e).args);
+            return null;
+        }
+
+        public static Known of(Match m) {
+            final List<EVar> fields = new ArrayList<>(m.getArgs().size());
+            for (final Match arg : m.getArgs()) {
+                final String capture = arg instanceof MatchAll ? ((MatchAll) arg).capture : null;
+                fields.add(capture == null ? null : new EVar(capture));
+            }
+            return new Known(m.getCtor(), fields);
+        }
+
+        public boolean excludes(Object ctor) {
+            return this.ctor != null
+                    ? !this.ctor.equals(ctor)
+                    : this.excluded.contains(ctor);
+        }
+    }
+
+    private static final class Occurrences extends ExprBaseVisitor<Void> {
+
+        // counts the free occurrences of a variable up to some limit, and
+        // how many of those are applied. the subexpressions where it is not
+        // free are skipped entirely, so this only walks the paths leading to
+        // the occurrences.
+
+        public final EVar name;
+        public final int limit;
+        public int count;
+        public int calls;
+
+        public Occurrences(EVar name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        public int count(Expr e) {
+            if (this.count < this.limit && e.getFreeVars().contains(this.name))
+                e.accept(this);
+            return this.count;
+        }
+
+        @Override
+        public Void visitECtor(ECtor e) {
+            for (final Expr arg : e.args)
+                this.count(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitETup(ETup e) {
+            for (final Expr element : e.elements)
+                this.count(element);
+            return null;
+        }
+
+        @Override
+        public Void visitEMatch(EMatch e) {
+            this.count(e.scrutinee);
+            for (final Map.Entry<Match, Expr> pair : e.cases)
+                if (pair.getKey().getCaptures().noneMatch(this.name.name::equals))
+                    this.count(pair.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visitEVar(EVar e) {
+            this.count++;
+            return null;
+        }
+
+        @Override
+        public Void visitELam(ELam e) {
+            if (!e.params.contains(this.name))
+                this.count(e.body);
+            return null;
+        }
+
+        @Override
+        public Void visitEApp(EApp e) {
+            if (this.count < this.limit && this.name.equals(e.f))
+                this.calls++;
+
+            this.count(e.f);
+            for (final Expr arg : e.args)
+                this.count(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitELet(ELet e) {
+            this.count(e.value);
+            if (!e.bind.equals(this.name))
+                this.count(e.body);
+            return null;
+        }
+
+        @Override
+        public Void visitELetrec(ELetrec e) {
+            // only reached if the name is not one of the bindings.
+            for (final Expr init : e.binds.values())
+                this.count(init);
+            this.count(e.body);
+            return null;
+        }
+
+        @Override
+        public Void visitEErr(EErr e) {
+            this.count(e.value);
+            return null;
+        }
+
+        @Override
+        public Void visitEPrim(EPrim e) {
+            for (final Expr arg : e.args)
+                this.count(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitEJoin(EJoin e) {
+            if (!e.params.contains(this.name))
+                this.count(e.body);
+            if (!e.name.equals(this.name))
+                this.count(e.rest);
+            return null;
+        }
+
+        @Override
+        public Void visitEJump(EJump e) {
+            if (this.count < this.limit && this.name.equals(e.target))
+                this.calls++;
+
+            this.count(e.target);
+            for (final Expr arg : e.args)
+                this.count(arg);
+            return null;
+        }
+    }
+
+    private final class Copier implements ExprRewriter, Match.Visitor<Match> {
+
+        // copies an expression with fresh names for every binder. inlining
+        // relies on binders being unique (which ANF gives us), so this is
+        // needed whenever a lambda is duplicated.
+
+        private final Map<String, String> mapping = new HashMap<>();
+
+        private String enter(String name) {
+            return this.mapping.put(name, PartialEvaluator.this.newName());
+        }
+
+        private void leave(String name, String old) {
+            if (old == null)
+                this.mapping.remove(name);
+            else
+                this.mapping.put(name, old);
+        }
+
+        @Override
+        public Expr visitEVar(EVar e) {
+            final String remapped = this.mapping.get(e.name);
+            return remapped == null ? e : new EVar(remapped);
+        }
+
+        @Override
+        public Expr visitELam(ELam e) {
+            final Map<String, String> old = new HashMap<>();
+            for (final EVar param : e.params)
+                old.put(param.name, this.enter(param.name));
+
+            final List<EVar> params = new ArrayList<>(e.params.size());
+            for (final EVar param : e.params)
+                params.add(new EVar(this.mapping.get(param.name)));
+            final Expr body = e.body.accept(this);
+
+            for (final Map.Entry<String, String> pair : old.entrySet())
+                this.leave(pair.getKey(), pair.getValue());
+            return new ELam(params, body);
+        }
+
+        @Override
+        public Expr visitELet(ELet e) {
+            final Expr value = e.value.accept(this);
+
+            final String old = this.enter(e.bind.name);
+            final EVar bind = new EVar(this.mapping.get(e.bind.name));
+            final Expr body = e.body.accept(this);
+            this.leave(e.bind.name, old);
+
+            return new ELet(bind, value, body);
+        }
+
+        @Override
+        public Expr visitELetrec(ELetrec e) {
+            final Map<String, String> old = new HashMap<>();
+            for (final EVar name : e.binds.keySet())
+                old.put(name.name, this.enter(name.name));
+
+            final Map<EVar, Expr> binds = new HashMap<>();
+            for (final Map.Entry<EVar, Expr> bind : e.binds.entrySet())
+                binds.put(new EVar(this.mapping.get(bind.getKey().name)),
+                          bind.getValue().accept(this));
+            final Expr body = e.body.accept(this);
+
+            for (final Map.Entry<String, String> pair : old.entrySet())
+                this.leave(pair.getKey(), pair.getValue());
+            return new ELetrec(binds, body);
+        }
+
+        public EJoin join(EVar name, List<EVar> params, Expr body, Expr rest) {
+            // only the parameters and the body are copied, the rest is
+            // outside of their scope.
+            final Map<String, String> old = new HashMap<>();
+            for (final EVar param : params)
+                old.put(param.name, this.enter(param.name));
+
+            final List<EVar> rparams = new ArrayList<>(params.size());
+            for (final EVar param : params)
+                rparams.add(new EVar(this.mapping.get(param.name)));
+            final Expr rbody = body.accept(this);
+
+            for (final Map.Entry<String, String> pair : old.entrySet())
+                this.leave(pair.getKey(), pair.getValue());
+            return new EJoin(name, rparams, rbody, rest);
+        }
+
+        @Override
+        public Expr visitEJoin(EJoin e) {
+            final String old = this.enter(e.name.name);
+            final EVar name = new EVar(this.mapping.get(e.name.name));
+            final Expr rest = e.rest.accept(this);
+            this.leave(e.name.name, old);
+
+            return this.join(name, e.params, e.body, rest);
+        }
+
+        @Override
+        public Expr visitEJump(EJump e) {
+            final List<Expr> args = new ArrayList<>(e.args.size());
+            for (final Expr arg : e.args)
+                args.add(arg.accept(this));
+            return new EJump((EVar) this.visitEVar(e.target), args);
+        }
+
+        @Override
+        public Expr visitEMatch(EMatch e) {
+            final Expr scrutinee = e.scrutinee.accept(this);
+
+            final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(e.cases.size());
+            for (final Map.Entry<Match, Expr> k : e.cases) {
+                final Map<String, String> old = new HashMap<>();
+                k.getKey().getCaptures().forEach(name -> old.put(name, this.enter(name)));
+
+                cases.add(Map.entry(k.getKey().accept(this), k.getValue().accept(this)));
+
+                for (final Map.Entry<String, String> pair : old.entrySet())
+                    this.leave(pair.getKey(), pair.getValue());
+            }
+
+            return new EMatch(scrutinee, cases);
+        }
+
+        @Override
+        public Match visitMatchAll(MatchAll m) {
+            return m.capture == null ? m : new MatchAll(this.mapping.get(m.capture));
+        }
+
+        @Override
+        public Match visitMatchBool(MatchBool m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchCtor(MatchCtor m) {
+            if (m.args.isEmpty())
+                return m;
+
+            final List<Match> args = new ArrayList<>(m.args.size());
+            for (final Match arg : m.args)
+                args.add(arg.accept(this));
+            return new MatchCtor(m.ctor, args, m.tag);
+        }
+
+        @Override
+        public Match visitMatchInt(MatchInt m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchString(MatchString m) {
+            return m;
+        }
+
+        @Override
+        public Match visitMatchTup(MatchTup m) {
+            if (m.elements.isEmpty())
+                return m;
+
+            final List<Match> elements = new ArrayList<>(m.elements.size());
+            for (final Match element : m.elements)
+                elements.add(element.accept(this));
+            return new MatchTup(elements);
+        }
+
+        @Override
+        public Match visitMatchOr(MatchOr m) {
+            final SList.Builder<Match> result = new SList.Builder<>();
+            for (SList<Match> k = m.submatches; k.nonEmpty(); k = k.tail())
+                result.addLast(k.head().accept(this));
+            return new MatchOr(result.build());
+        }
+    }
+
+    private BigInteger id = BigInteger.ZERO;
+    private Map<EVar, Map.Entry<Expr, Mode>> valueTable = new HashMap<>();
+    private Map<EVar, Known> knowledge = new HashMap<>();
+    private Map<EVar, Map.Entry<EJoin, Mode>> joinTable = new HashMap<>();
+    private Map<EVar, Map<Integer, EVar>> joinPoints = new HashMap<>();
+
+    public String newName() {
+        return "`i" + (this.id = this.id.add(BigInteger.ONE));
+    }
+
+    @Override
+    public Set<Invariant> requires() {
+        // known constructors are only unpacked one level deep, and inlining
+        // assumes unique binders.
+        return EnumSet.of(Invariant.ANF, Invariant.FLAT_MATCHES);
+    }
+
+    @Override
+    public Set<Invariant> preserves() {
+        return EnumSet.of(Invariant.FLAT_MATCHES);
+    }
 
     public boolean shouldPropagate(Expr e) {
         while (e instanceof ELam)
@@ -20,120 +403,548 @@ public final class PartialEvaluator implements ExprRewriter {
             || e instanceof ECtor;
     }
 
+    private static Mode callMode(EVar name, ELam value, Collection<? extends Expr> scope) {
+        final long size = NodeCounter.count(value);
+        if (size <= SMALL_SIZE)
+            return Mode.CALLS;
+
+        final int copies = (int) (GROWTH_BUDGET / size);
+        if (copies < 1)
+            return Mode.NEVER;
+
+        // if every occurrence is a call, the original goes away, so that
+        // one is free. otherwise give up once it is used too often.
+        final Occurrences uses = new Occurrences(name, copies + 2);
+        for (final Expr e : scope)
+            uses.count(e);
+
+        return uses.count < uses.limit && uses.calls <= copies + (uses.calls == uses.count ? 1 : 0)
+                ? Mode.CALLS
+                : Mode.NEVER;
+    }
+
+    private static Set<EVar> loopBreakers(Map<EVar, Expr> binds) {
+        // greedily picks the bindings that may be inlined, small lambdas
+        // first, such that none of them can reach itself through the others.
+        // what remains breaks every cycle, so inlining always terminates.
+        final Map<EVar, Long> cost = new HashMap<>();
+        for (final Map.Entry<EVar, Expr> bind : binds.entrySet())
+            cost.put(bind.getKey(), bind.getValue() instanceof ELam
+                    ? NodeCounter.count(bind.getValue())
+                    : Long.MAX_VALUE);
+
+        final List<EVar> order = new ArrayList<>(binds.keySet());
+        order.sort(Comparator.<EVar, Long>comparing(cost::get).thenComparing(v -> v.name));
+
+        final Set<EVar> inlinable = new HashSet<>();
+        final Set<EVar> breakers = new HashSet<>();
+        for (final EVar name : order) {
+            if (reaches(binds, inlinable, name, name, new HashSet<>()))
+                breakers.add(name);
+            else
+                inlinable.add(name);
+        }
+
+        return breakers;
+    }
+
+    private static boolean reaches(Map<EVar, Expr> binds, Set<EVar> through,
+                                   EVar from, EVar to, Set<EVar> seen) {
+        for (final EVar v : binds.get(from).getFreeVars()) {
+            if (v.equals(to))
+                return true;
+            if (through.contains(v) && seen.add(v) && reaches(binds, through, v, to, seen))
+                return true;
+        }
+
+        return false;
+    }
+
+    private Known knownValue(Expr e) {
+        if (!(e instanceof EVar))
+            return Known.of(e);
+
+        final Known info = this.knowledge.get(e);
+        if (info != null)
+            return info;
+
+        final Map.Entry<Expr, Mode> pair = this.valueTable.get(e);
+        return pair == null ? null : Known.of(pair.getKey());
+    }
+
+    private void learn(EVar name, Known info) {
+        if (info == null)
+            this.knowledge.remove(name);
+        else
+            this.knowledge.put(name, info);
+    }
+
+    private static int choose(Known info, List<Map.Entry<Match, Expr>> cases) {
+        // the case that is taken for sure, -1 if that is not known.
+        for (int i = 0; i < cases.size(); ++i) {
+            final Match m = cases.get(i).getKey();
+            if (m instanceof MatchAll)
+                return i;
+
+            final Object ctor = m.getCtor();
+            if (ctor == null || info.ctor == null && !info.excluded.contains(ctor))
+                return -1;
+            if (info.excludes(ctor))
+                continue;
+
+            for (final Match arg : m.getArgs())
+                if (!(arg instanceof MatchAll))
+                    return -1;
+            return i;
+        }
+
+        return -1;
+    }
+
+    private static List<EVar> captures(Match m) {
+        // the captures of a flat pattern in the order of the fields.
+        if (m instanceof MatchAll) {
+            final String capture = ((MatchAll) m).capture;
+            return capture == null ? List.of() : List.of(new EVar(capture));
+        }
+
+        final List<EVar> captures = new ArrayList<>();
+        for (final Match arg : m.getArgs()) {
+            final String capture = ((MatchAll) arg).capture;
+            if (capture != null)
+                captures.add(new EVar(capture));
+        }
+        return captures;
+    }
+
+    private static List<Expr> fields(Expr scrutinee, Known info, Match m) {
+        // what the captures are bound to, null if a field has no name.
+        if (m instanceof MatchAll)
+            return ((MatchAll) m).capture == null ? List.of() : List.of(scrutinee);
+
+        final List<Match> args = m.getArgs();
+        if (args.size() != info.fields.size())
+            throw new IllegalStateException("MALFORMED REWRITE");
+
+        final List<Expr> fields = new ArrayList<>();
+        for (int i = 0; i < args.size(); ++i) {
+            if (((MatchAll) args.get(i)).capture == null)
+                continue;
+
+            final Expr field = info.fields.get(i);
+            if (field == null)
+                return null;
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private static boolean isCaseContinuation(EJoin e) {
+        // join k t = match t with ..., which ANFConverter creates for a
+        // match in the middle of an expression.
+        return e.params.size() == 1
+                && e.body instanceof EMatch
+                && e.params.get(0).equals(((EMatch) e.body).scrutinee);
+    }
+
+    private Expr caseOfCase(EVar k, EJoin cont, Expr arg) {
+        // jump k (#c x) where join k t = match t with ... | #c y -> e | ...
+        //
+        // the case taken is known, so jump straight to it. small cases are
+        // copied, larger ones become join points of their own (see
+        // visitEJoin) so that every jump shares them:
+        //   join j t y = e in join k t = match t with ... | #c y -> jump j t y
+        final Known info = this.knownValue(arg);
+        if (info == null)
+            return null;
+
+        final List<Map.Entry<Match, Expr>> cases = ((EMatch) cont.body).cases;
+        final int index = choose(info, cases);
+        if (index < 0)
+            return null;
+
+        final Map.Entry<Match, Expr> taken = cases.get(index);
+        final List<EVar> params = captures(taken.getKey());
+        final List<Expr> fields = fields(arg, info, taken.getKey());
+        if (fields == null)
+            return null;
+
+        if (NodeCounter.count(taken.getValue()) <= SMALL_SIZE) {
+            Expr action = taken.getValue();
+            for (int i = params.size() - 1; i >= 0; --i)
+                action = new ELet(params.get(i), fields.get(i), action);
+
+            final Expr copy = new Copier().rewrite(new ELet(cont.params.get(0), arg, action));
+            return copy.accept(this);
+        }
+
+        final Map<Integer, EVar> joins = this.joinPoints.get(k);
+        if (joins == null)
+            return null;
+
+        final List<Expr> args = new ArrayList<>(fields.size() + 1);
+        args.add(arg);
+        args.addAll(fields);
+        return new EJump(joins.computeIfAbsent(index, i -> new EVar(this.newName())), args);
+    }
+
+    private Expr addJoinPoints(EJoin cont, Map<Integer, EVar> joins, Expr rest) {
+        // moves the cases that were jumped to out of the continuation.
+        final EMatch match = (EMatch) cont.body;
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(match.cases);
+        final Deque<UnaryOperator<Expr>> defs = new ArrayDeque<>();
+        for (final Map.Entry<Integer, EVar> pair : joins.entrySet()) {
+            final Map.Entry<Match, Expr> k = cases.get(pair.getKey());
+            final List<EVar> params = new ArrayList<>(cont.params);
+            params.addAll(captures(k.getKey()));
+
+            defs.push(body -> new Copier().join(pair.getValue(), params, k.getValue(), body));
+            cases.set(pair.getKey(), Map.entry(k.getKey(), new EJump(pair.getValue(), params)));
+        }
+
+        Expr result = rest;
+        if (rest.getFreeVars().contains(cont.name))
+            result = new EJoin(cont.name, cont.params, new EMatch(match.scrutinee, cases), rest);
+        while (!defs.isEmpty())
+            result = defs.pop().apply(result);
+        return result;
+    }
+
     @Override
     public Expr visitELet(ELet e) {
-        for (;;) {
-            final Expr value = e.value.accept(this);
-            final Map.Entry<Expr, Boolean> oldValue = this.valueTable.get(e.bind);
-            try {
-                boolean shouldInline = shouldPropagate(value);
-                if (!shouldInline && value.isAtom())
-                    // for certain larger values, inline them anyway
-                    shouldInline = !e.body.fv()
-                            .filter(e.bind::equals)
-                            .skip(1).findAny().isPresent();
-
-                this.valueTable.put(e.bind, Map.entry(value, shouldInline));
-                final Expr body = e.body.accept(this);
-
-                if (body.fv().noneMatch(e.bind::equals))
-                    // binding is unused, drop it
-                    return body;
-
-                if (value == e.value && body == e.body)
-                    return e;
-
-                e = new ELet(e.bind, value, body);
-            } finally {
-                this.valueTable.put(e.bind, oldValue);
+        // opportunities exposed by this rewrite are picked up by running the
+        // pass again (see RewriteGroup.Repeat), revisiting the let here would
+        // be quadratic on long chains.
+        final Expr value = e.value.accept(this);
+        final Map.Entry<Expr, Mode> oldValue = this.valueTable.get(e.bind);
+        try {
+            Mode mode = shouldPropagate(value) ? Mode.ALWAYS : Mode.NEVER;
+            if (mode == Mode.NEVER && value.isAtom()) {
+                // for certain larger values, inline them anyway
+                if (new Occurrences(e.bind, 2).count(e.body) < 2)
+                    mode = Mode.ONCE;
+                else if (value instanceof ELam)
+                    mode = callMode(e.bind, (ELam) value, List.of(e.body));
+            }
+
+            this.valueTable.put(e.bind, Map.entry(value, mode));
+            final Expr body = e.body.accept(this);
+
+            if (!body.getFreeVars().contains(e.bind))
+                // binding is unused, drop it
+                return body;
+
+            return value == e.value && body == e.body
+                    ? e
+                    : new ELet(e.bind, value, body);
+        } finally {
+            this.valueTable.put(e.bind, oldValue);
+        }
+    }
+
+    @Override
+    public Expr visitELetrec(ELetrec e) {
+        // only lambdas that are not loop breakers are inlined, and only at
+        // call sites: the copy is rewritten again after beta reduction.
+        final Set<EVar> breakers = loopBreakers(e.binds);
+        final List<Expr> scope = new ArrayList<>(e.binds.values());
+        scope.add(e.body);
+
+        final Map<EVar, Map.Entry<Expr, Mode>> oldValues = new HashMap<>();
+        for (final Map.Entry<EVar, Expr> bind : e.binds.entrySet()) {
+            final EVar name = bind.getKey();
+            final Expr init = bind.getValue();
+            oldValues.put(name, this.valueTable.get(name));
+
+            Mode mode = Mode.NEVER;
+            if (!breakers.contains(name) && init instanceof ELam)
+                mode = callMode(name, (ELam) init, scope);
+            this.valueTable.put(name, Map.entry(init, mode));
+        }
+
+        try {
+            boolean modified = false;
+            final Map<EVar, Expr> binds = new HashMap<>();
+            for (final Map.Entry<EVar, Expr> bind : e.binds.entrySet()) {
+                final Expr init = bind.getValue();
+                final Expr rinit = init.accept(this);
+                modified |= init != rinit;
+                binds.put(bind.getKey(), rinit);
+            }
+
+            final Expr body = e.body.accept(this);
+            modified |= e.body != body;
+
+            // drop the bindings that are no longer reachable from the body.
+            final Set<EVar> live = new HashSet<>();
+            final Deque<Expr> pending = new ArrayDeque<>();
+            pending.push(body);
+            while (!pending.isEmpty())
+                for (final EVar v : pending.pop().getFreeVars())
+                    if (binds.containsKey(v) && live.add(v))
+                        pending.push(binds.get(v));
+
+            if (live.isEmpty())
+                return body;
+            if (live.size() < binds.size()) {
+                binds.keySet().retainAll(live);
+                modified = true;
             }
+
+            return !modified ? e : new ELetrec(binds, body);
+        } finally {
+            for (final Map.Entry<EVar, Map.Entry<Expr, Mode>> pair : oldValues.entrySet())
+                this.valueTable.put(pair.getKey(), pair.getValue());
         }
     }
 
     @Override
     public Expr visitEVar(EVar e) {
-        final Map.Entry<Expr, Boolean> pair = this.valueTable.get(e);
-        return pair != null && pair.getValue() ? pair.getKey() : e;
+        final Map.Entry<Expr, Mode> pair = this.valueTable.get(e);
+        if (pair == null)
+            return e;
+
+        switch (pair.getValue()) {
+        case ONCE:
+            return pair.getKey();
+        case ALWAYS:
+            return pair.getKey() instanceof ELam
+                    ? new Copier().rewrite(pair.getKey())
+                    : pair.getKey();
+        default:
+            return e;
+        }
     }
 
     @Override
     public Expr visitEApp(EApp e) {
-        final Expr f = e.f.accept(this);
-        final Expr arg = e.arg.accept(this);
+        final Map.Entry<Expr, Mode> known = e.f instanceof EVar ? this.valueTable.get(e.f) : null;
+
+        boolean modified = false;
+        final List<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args) {
+            final Expr rarg = arg.accept(this);
+            modified |= arg != rarg;
+            args.add(rarg);
+        }
+
+        final Expr f = known != null && known.getValue() == Mode.CALLS
+                ? new Copier().rewrite(known.getKey())
+                : e.f.accept(this);
 
         if (f instanceof ELam) {
-            // (\x. e) v => let x = v in e
+            // (\x y. e) a b => let x = a in let y = b in e
+            //
+            // missing arguments leave a lambda taking the remaining ones,
+            // extra arguments are applied to whatever the body returns.
             final ELam lam = (ELam) f;
-            return new ELet(lam.arg, arg, lam.body).accept(this);
+            final int n = Math.min(lam.arity(), args.size());
+            Expr body = lam.body;
+            if (n < lam.arity())
+                body = new ELam(lam.params.subList(n, lam.arity()), body);
+            for (int i = n; i-- > 0; )
+                body = new ELet(lam.params.get(i), args.get(i), body);
+            if (n < args.size())
+                body = new EApp(body, args.subList(n, args.size()));
+            return body.accept(this);
+        }
+
+        if (f instanceof ELet && !FreeVars.union(args).contains(((ELet) f).bind)) {
+            // (let x = v in \y. e) a => let x = v in (\y. e) a
+            // which is what is left after applying one argument of a curried
+            // function.
+            Expr k = f;
+            while (k instanceof ELet)
+                k = ((ELet) k).body;
+
+            if (k instanceof ELam) {
+                final ELet let = (ELet) f;
+                return new ELet(let.bind, let.value, new EApp(let.body, args)).accept(this);
+            }
         }
 
-        return f == e.f && arg == e.arg
+        return f == e.f && !modified
                 ? e
-                : new EApp(f, arg);
+                : new EApp(f, args);
+    }
+
+    @Override
+    public Expr visitEJoin(EJoin e) {
+        // like a let bound lambda, except the only uses are jumps: join
+        // points jumped to once are inlined there, small ones are copied to
+        // every jump. the others stay, unless all their jumps went away.
+        final Occurrences uses = new Occurrences(e.name, 2);
+        if (uses.count(e.rest) == 0)
+            return e.rest.accept(this);
+
+        final Mode mode = uses.count < 2 ? Mode.ONCE
+                : NodeCounter.count(e.body) <= SMALL_SIZE ? Mode.CALLS
+                : Mode.NEVER;
+        final Expr body = mode == Mode.ONCE ? e.body : e.body.accept(this);
+        final EJoin join = body == e.body ? e : new EJoin(e.name, e.params, body, e.rest);
+
+        final Map.Entry<EJoin, Mode> oldJoin = this.joinTable.put(e.name, Map.entry(join, mode));
+        if (isCaseContinuation(join))
+            this.joinPoints.put(e.name, new HashMap<>());
+        try {
+            final Expr rest = e.rest.accept(this);
+
+            final Map<Integer, EVar> joins = this.joinPoints.get(e.name);
+            if (joins != null && !joins.isEmpty())
+                return this.addJoinPoints(join, joins, rest);
+
+            if (!rest.getFreeVars().contains(e.name))
+                // every jump was inlined or dropped
+                return rest;
+
+            final Expr rbody = mode == Mode.ONCE ? e.body.accept(this) : body;
+            return rbody == e.body && rest == e.rest
+                    ? e
+                    : new EJoin(e.name, e.params, rbody, rest);
+        } finally {
+            if (oldJoin == null)
+                this.joinTable.remove(e.name);
+            else
+                this.joinTable.put(e.name, oldJoin);
+            this.joinPoints.remove(e.name);
+        }
+    }
+
+    @Override
+    public Expr visitEJump(EJump e) {
+        final Expr k = ExprRewriter.super.visitEJump(e);
+        final Map.Entry<EJoin, Mode> known = this.joinTable.get(e.target);
+        if (known == null)
+            return k;
+
+        final EJoin join = known.getKey();
+        final EJump jump = (EJump) k;
+        if (known.getValue() == Mode.NEVER || known.getValue() == Mode.CALLS) {
+            if (isCaseContinuation(join)) {
+                final Expr result = this.caseOfCase(e.target, join, jump.args.get(0));
+                if (result != null)
+                    return result;
+            }
+
+            if (known.getValue() == Mode.NEVER)
+                return jump;
+        }
+
+        // jump j a => let x = a in b
+        Expr action = join.body;
+        for (int i = join.params.size() - 1; i >= 0; --i)
+            action = new ELet(join.params.get(i), jump.args.get(i), action);
+
+        if (known.getValue() == Mode.ONCE) {
+            // should the jump be duplicated (see caseOfCase), the body must
+            // not be, so any other jump gets a copy.
+            this.joinTable.put(e.target, Map.entry(join, Mode.CALLS));
+            return action.accept(this);
+        }
+        return new Copier().rewrite(action).accept(this);
+    }
+
+    @Override
+    public Expr visitEPrim(EPrim e) {
+        // the constants were propagated into the arguments already.
+        final Expr k = ExprRewriter.super.visitEPrim(e);
+        if (!(k instanceof EPrim))
+            return k;
+
+        final EPrim p = (EPrim) k;
+        final Expr a = p.args.get(0);
+        final Expr b = p.args.get(1);
+        if (!(a instanceof EInt) || !(b instanceof EInt))
+            return p;
+
+        final EInt x = (EInt) a;
+        final EInt y = (EInt) b;
+        try {
+            if (p.type.isWord())
+                return p.op.isComparison()
+                        ? new EBool(p.op.test(x.word, y.word))
+                        : new EInt(p.op.apply(p.type, x.word, y.word), p.type);
+
+            return p.op.isComparison()
+                    ? new EBool(p.op.test(x.value, y.value))
+                    : new EInt(p.op.apply(p.type, x.value, y.value), p.type);
+        } catch (ArithmeticException ex) {
+            // division by zero, leave it to fail when it is evaluated.
+            return p;
+        }
     }
 
     @Override
     public Expr visitEMatch(EMatch e) {
-        final Expr expr = ExprRewriter.super.visitEMatch(e);
-        if (expr instanceof EMatch) {
+        final Expr scrutinee = e.scrutinee.accept(this);
+        final Known info = this.knownValue(scrutinee);
+        if (info != null) {
             // try to avoid the match completely
-            final EMatch match = (EMatch) expr;
-            final Expr scrutinee = match.scrutinee;
-
-            List<? extends Expr> inputs = List.of();
-            List<Match> matches = null;
-            Expr action = null;
-
-            Object id = null;
-            if (scrutinee instanceof EBool)
-                id = ((EBool) scrutinee).value;
-            else if (scrutinee instanceof EString)
-                id = ((EString) scrutinee).value;
-            else if (scrutinee instanceof EInt)
-                id = ((EInt) scrutinee).value;
-            else if (scrutinee instanceof ETup) {
-                id = lang.qkm.type.TyTup.class;
-                inputs = ((ETup) scrutinee).elements;
-            } else if (scrutinee instanceof ECtor) {
-                final ECtor data = (ECtor) scrutinee;
-                id = data.id;
-                inputs = data.args;
+            final int index = choose(info, e.cases);
+            if (index >= 0) {
+                final Map.Entry<Match, Expr> taken = e.cases.get(index);
+                final List<EVar> captures = captures(taken.getKey());
+                final List<Expr> fields = fields(scrutinee, info, taken.getKey());
+                if (fields != null) {
+                    Expr action = taken.getValue();
+                    for (int i = captures.size() - 1; i >= 0; --i)
+                        action = new ELet(captures.get(i), fields.get(i), action);
+                    return action.accept(this);
+                }
             }
+        }
+
+        // otherwise rewrite the cases knowing which one was taken. cases that
+        // cannot be taken are dropped. a case is only reached if none of the
+        // constructors matched before, which helps the default case.
+        final EVar name = scrutinee instanceof EVar ? (EVar) scrutinee : null;
+        final Known oldInfo = name == null ? null : this.knowledge.get(name);
+        final Set<Object> excluded = new HashSet<>(info != null ? info.excluded : Set.of());
 
-            if (id != null) {
-                for (final Map.Entry<Match, Expr> pattern : match.cases) {
-                    final Match m = pattern.getKey();
-                    if (m instanceof MatchAll) {
-                        inputs = List.of(scrutinee);
-                        matches = List.of(m);
-                        action = pattern.getValue();
-                        break;
-                    }
-
-                    if (id.equals(m.getCtor())) {
-                        matches = m.getArgs();
-                        action = pattern.getValue();
-                        break;
-                    }
+        boolean modified = scrutinee != e.scrutinee;
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(e.cases.size());
+        try {
+            for (final Map.Entry<Match, Expr> k : e.cases) {
+                final Match m = k.getKey();
+                final Object ctor = m.getCtor();
+                if (ctor != null && info != null && info.excludes(ctor)) {
+                    modified = true;
+                    continue;
                 }
-            }
 
-            if (action != null) {
-                final Iterator<? extends Expr> itInput = inputs.iterator();
-                final Iterator<Match> itMatch = matches.iterator();
-                while (itInput.hasNext() && itMatch.hasNext()) {
-                    final Expr sub = itInput.next();
-                    final String bind = ((MatchAll) itMatch.next()).capture;
-                    action = new ELet(new EVar(bind), sub, action);
+                Known learnt = null;
+                EVar alias = null;
+                if (m instanceof MatchAll) {
+                    learnt = new Known(new HashSet<>(excluded));
+                    if (((MatchAll) m).capture != null)
+                        alias = new EVar(((MatchAll) m).capture);
+                } else if (ctor != null) {
+                    learnt = Known.of(m);
                 }
 
-                if (itInput.hasNext() != itMatch.hasNext())
-                    throw new IllegalStateException("MALFORMED REWRITE");
+                if (name != null)
+                    this.learn(name, learnt != null ? learnt : oldInfo);
+                if (alias != null)
+                    this.learn(alias, learnt);
+
+                final Expr action = k.getValue().accept(this);
+                modified |= action != k.getValue();
+                cases.add(Map.entry(m, action));
 
-                return action.accept(this);
+                if (alias != null)
+                    this.learn(alias, null);
+                if (ctor != null && m.getArgs().stream().allMatch(MatchAll.class::isInstance))
+                    excluded.add(ctor);
             }
+        } finally {
+            if (name != null)
+                this.learn(name, oldInfo);
         }
 
-        return expr;
+        if (cases.isEmpty())
+            // none of the cases can be taken, so this is dead code anyway.
+            return e;
+
+        return !modified ? e : new EMatch(scrutinee, cases);
     }
 }
@@ -0,0 +1,185 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import jdk.jfr.*;
+import lang.qkm.expr.*;
+
+public final class Profile {
+
+    // counters filled in by an instrumented evaluator (see ASTWalker). none
+    // of this is thread safe, but neither are the evaluators.
+
+    public enum Alloc {
+        CTOR, TUP, LAM, PAP, BOX
+    }
+
+    @Name("lang.qkm.Calls")
+    @Label("Function Calls")
+    @Category("QKM")
+    static final class CallsEvent extends Event {
+
+        @Label("Function")
+        String function;
+
+        @Label("Calls")
+        long calls;
+    }
+
+    @Name("lang.qkm.Allocations")
+    @Label("Allocations")
+    @Category("QKM")
+    static final class AllocEvent extends Event {
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Count")
+        long count;
+    }
+
+    @Name("lang.qkm.Matches")
+    @Label("Match Statistics")
+    @Category("QKM")
+    static final class MatchEvent extends Event {
+
+        @Label("Arms Tried")
+        long tried;
+
+        @Label("Arms Taken")
+        long taken;
+
+        @Label("Trampoline Bounces")
+        long bounces;
+    }
+
+    private static final class Counter {
+
+        public final String name;
+        public long count;
+
+        public Counter(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<ELam, String> labels = new IdentityHashMap<>();
+    private final Map<ELam, Counter> calls = new IdentityHashMap<>();
+    private final long[] allocs = new long[Alloc.values().length];
+    private long tried;
+    private long taken;
+    private long bounces;
+    private int anonymous;
+
+    public void label(EVar name, Expr init) {
+        // curried functions are nested lambdas, each one gets a suffix.
+        int depth = 0;
+        while (init instanceof ELam) {
+            final ELam f = (ELam) init;
+            this.labels.putIfAbsent(f, depth == 0 ? name.name : name.name + "/" + depth);
+            init = f.body;
+            depth++;
+        }
+    }
+
+    public void call(ELam f) {
+        Counter c = this.calls.get(f);
+        if (c == null) {
+            String name = this.labels.get(f);
+            if (name == null)
+                name = "<fun#" + ++this.anonymous + ">";
+            c = new Counter(name);
+            this.calls.put(f, c);
+        }
+        c.count++;
+    }
+
+    public void alloc(Alloc kind) {
+        this.allocs[kind.ordinal()]++;
+    }
+
+    public void tried() {
+        this.tried++;
+    }
+
+    public void taken() {
+        this.taken++;
+    }
+
+    public void bounce() {
+        this.bounces++;
+    }
+
+    public Map<String, Long> getCalls() {
+        // lambdas sharing a name (shadowed definitions for example) are
+        // reported together.
+        final Map<String, Long> m = new TreeMap<>();
+        for (final Counter c : this.calls.values())
+            m.merge(c.name, c.count, Long::sum);
+        return m;
+    }
+
+    public long getAllocs(Alloc kind) {
+        return this.allocs[kind.ordinal()];
+    }
+
+    public long getArmsTried() {
+        return this.tried;
+    }
+
+    public long getArmsTaken() {
+        return this.taken;
+    }
+
+    public long getBounces() {
+        return this.bounces;
+    }
+
+    public void reset() {
+        // labels stay since the definitions are still around.
+        this.calls.clear();
+        Arrays.fill(this.allocs, 0);
+        this.tried = 0;
+        this.taken = 0;
+        this.bounces = 0;
+    }
+
+    public void commit() {
+        // only does anything if a flight recording is running.
+        for (final Map.Entry<String, Long> pair : this.getCalls().entrySet()) {
+            final CallsEvent e = new CallsEvent();
+            e.function = pair.getKey();
+            e.calls = pair.getValue();
+            e.commit();
+        }
+
+        for (final Alloc kind : Alloc.values()) {
+            final AllocEvent e = new AllocEvent();
+            e.kind = kind.name();
+            e.count = this.getAllocs(kind);
+            e.commit();
+        }
+
+        final MatchEvent e = new MatchEvent();
+        e.tried = this.tried;
+        e.taken = this.taken;
+        e.bounces = this.bounces;
+        e.commit();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("calls:\n");
+        for (final Map.Entry<String, Long> pair : this.getCalls().entrySet())
+            sb.append("  ").append(pair.getKey()).append(' ').append(pair.getValue()).append('\n');
+
+        sb.append("allocations:\n");
+        for (final Alloc kind : Alloc.values())
+            sb.append("  ").append(kind.name().toLowerCase()).append(' ').append(this.getAllocs(kind)).append('\n');
+
+        return sb.append("arms tried ").append(this.tried)
+                .append(", taken ").append(this.taken)
+                .append("\ntrampoline bounces ").append(this.bounces)
+                .toString();
+    }
+}
@@ -0,0 +1,52 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import jdk.jfr.*;
+import lang.qkm.expr.*;
+
+public final class Profiler implements Evaluator {
+
+    // times every toplevel form as a flight recorder event. the counters
+    // live in the profile, which the instrumented core fills in.
+
+    @Name("lang.qkm.Eval")
+    @Label("Toplevel Evaluation")
+    @Category("QKM")
+    static final class EvalEvent extends Event {
+
+        @Label("Form")
+        String form;
+    }
+
+    public final Evaluator core;
+    public final Profile profile;
+
+    public Profiler(Evaluator core, Profile profile) {
+        this.core = core;
+        this.profile = profile;
+    }
+
+    @Override
+    public void define(Map<EVar, Expr> defs) {
+        final EvalEvent e = new EvalEvent();
+        e.form = "define " + defs.keySet();
+        e.begin();
+        try {
+            this.core.define(defs);
+        } finally {
+            e.commit();
+        }
+    }
+
+    @Override
+    public void eval(Expr expr) {
+        final EvalEvent e = new EvalEvent();
+        e.form = "eval";
+        e.begin();
+        try {
+            this.core.eval(expr);
+        } finally {
+            e.commit();
+        }
+    }
+}
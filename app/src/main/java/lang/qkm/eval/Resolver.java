@@ -0,0 +1,274 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.util.SList;
+
+public final class Resolver implements ExprRewriter, Match.Visitor<Match> {
+
+    // assigns lexical addresses to every variable so that the evaluator can
+    // use array-backed frames instead of looking things up by name:
+    //
+    // *  each lambda body (and each toplevel expression) gets its own frame,
+    //    the parameters always live in the first slots, in order.
+    // *  let, letrec and match captures take the next free slot of the
+    //    frame they are in. slots are only reused across the cases of a
+    //    match since exactly one of them will run per activation. nothing
+    //    after the match may reuse them because closures keep the frame.
+    // *  join points are run in the frame of the enclosing lambda, their
+    //    parameters and their name take the next free slots. the slots of
+    //    the body are never reused by the rest, otherwise a jump would
+    //    overwrite values that closures created in the rest might see.
+    // *  free variables are looked up in the global table.
+    // *  closure converted lambdas only keep the captured values, which are
+    //    addressed as if they were the frame one level up. other lambdas
+    //    keep the entire frame of the enclosing scope alive.
+
+    private static final class Binding {
+
+        public final int level;
+        public final int slot;
+
+        public Binding(int level, int slot) {
+            this.level = level;
+            this.slot = slot;
+        }
+    }
+
+    private final Map<EVar, Integer> globals;
+
+    private Map<String, Binding> scope = new HashMap<>();
+    private Map<String, Integer> captures;
+    private int level;
+    private int next;
+    private int size;
+
+    public Resolver(Map<EVar, Integer> globals) {
+        this.globals = globals;
+    }
+
+    public ELam close(Expr e) {
+        // resolve e as if it was the body of a lambda whose argument is
+        // never used. this way the toplevel also gets a properly sized frame.
+        return (ELam) new ELam(new EVar("`0"), e).accept(this);
+    }
+
+    private int bind(String name) {
+        final int slot = this.next++;
+        this.size = Math.max(this.size, this.next);
+        this.scope.put(name, new Binding(this.level, slot));
+        return slot;
+    }
+
+    private void restore(String name, Binding old) {
+        if (old == null)
+            this.scope.remove(name);
+        else
+            this.scope.put(name, old);
+    }
+
+    @Override
+    public Expr visitEMatch(EMatch e) {
+        final Expr scrutinee = e.scrutinee.accept(this);
+
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(e.cases.size());
+        final Map<String, Binding> old = this.scope;
+        final int base = this.next;
+        int high = base;
+        for (final Map.Entry<Match, Expr> k : e.cases) {
+            this.scope = new HashMap<>(old);
+            this.captures = new HashMap<>();
+            this.next = base;
+
+            final Match m = k.getKey().accept(this);
+            this.captures = null;
+            cases.add(Map.entry(m, k.getValue().accept(this)));
+            high = Math.max(high, this.next);
+        }
+
+        this.scope = old;
+        this.next = high;
+        return new EMatch(scrutinee, cases);
+    }
+
+    @Override
+    public Expr visitEVar(EVar e) {
+        final Binding local = this.scope.get(e.name);
+        if (local != null)
+            return new EVar(e.name, this.level - local.level, local.slot);
+
+        final Integer global = this.globals.get(e);
+        if (global == null)
+            throw new RuntimeException("Undeclared variable " + e);
+
+        return new EVar(e.name, -1, global);
+    }
+
+    @Override
+    public Expr visitELam(ELam e) {
+        final Map<String, Binding> oldScope = this.scope;
+        final int oldNext = this.next;
+        final int oldSize = this.size;
+        final Binding[] old = new Binding[e.params.size()];
+        for (int i = 0; i < old.length; ++i)
+            old[i] = this.scope.get(e.params.get(i).name);
+
+        List<EVar> env = null;
+        if (e.captures != null) {
+            // globals don't need to be captured since they never move.
+            env = new ArrayList<>(e.captures.size());
+            this.scope = new HashMap<>();
+            for (final EVar v : e.captures) {
+                final Binding local = oldScope.get(v.name);
+                if (local == null)
+                    continue;
+
+                this.scope.put(v.name, new Binding(this.level, env.size()));
+                env.add(new EVar(v.name, this.level - local.level, local.slot));
+            }
+        }
+
+        this.level++;
+        this.next = 0;
+        this.size = 0;
+        try {
+            final List<EVar> params = new ArrayList<>(e.params.size());
+            for (final EVar param : e.params)
+                params.add(new EVar(param.name, 0, this.bind(param.name)));
+            final Expr body = e.body.accept(this);
+            return new ELam(params, body, env, this.size);
+        } finally {
+            this.level--;
+            this.next = oldNext;
+            this.size = oldSize;
+            this.scope = oldScope;
+            for (int i = old.length; i-- > 0; )
+                this.restore(e.params.get(i).name, old[i]);
+        }
+    }
+
+    @Override
+    public Expr visitELet(ELet e) {
+        final Expr value = e.value.accept(this);
+
+        final Binding old = this.scope.get(e.bind.name);
+        final int slot = this.bind(e.bind.name);
+        final Expr body = e.body.accept(this);
+        this.restore(e.bind.name, old);
+
+        return new ELet(new EVar(e.bind.name, 0, slot), value, body);
+    }
+
+    @Override
+    public Expr visitELetrec(ELetrec e) {
+        final Map<String, Binding> old = this.scope;
+        this.scope = new HashMap<>(old);
+
+        final List<EVar> names = new ArrayList<>(e.binds.size());
+        for (final EVar name : e.binds.keySet())
+            names.add(new EVar(name.name, 0, this.bind(name.name)));
+
+        // keep the iteration order stable, the evaluator initializes the
+        // bindings in the order of the map.
+        final Map<EVar, Expr> binds = new LinkedHashMap<>();
+        for (final EVar name : names)
+            binds.put(name, e.binds.get(name).accept(this));
+
+        final Expr body = e.body.accept(this);
+        this.scope = old;
+        return new ELetrec(binds, body);
+    }
+
+    @Override
+    public Expr visitEJoin(EJoin e) {
+        final Map<String, Binding> old = this.scope;
+        this.scope = new HashMap<>(old);
+
+        final List<EVar> params = new ArrayList<>(e.params.size());
+        for (final EVar param : e.params)
+            params.add(new EVar(param.name, 0, this.bind(param.name)));
+        final Expr body = e.body.accept(this);
+
+        this.scope = new HashMap<>(old);
+        final EVar name = new EVar(e.name.name, 0, this.bind(e.name.name));
+        final Expr rest = e.rest.accept(this);
+
+        this.scope = old;
+        return new EJoin(name, params, body, rest);
+    }
+
+    @Override
+    public Expr visitEJump(EJump e) {
+        final EVar target = (EVar) this.visitEVar(e.target);
+        if (target.depth != 0)
+            throw new IllegalStateException("Jump to " + e.target + " escapes its frame");
+
+        final List<Expr> args = new ArrayList<>(e.args.size());
+        for (final Expr arg : e.args)
+            args.add(arg.accept(this));
+        return new EJump(target, args);
+    }
+
+    @Override
+    public Match visitMatchAll(MatchAll m) {
+        if (m.capture == null)
+            return m;
+
+        // or patterns need captures on both sides to share the same slot...
+        Integer slot = this.captures.get(m.capture);
+        if (slot == null) {
+            slot = this.bind(m.capture);
+            this.captures.put(m.capture, slot);
+        }
+        return new MatchAll(m.capture, slot);
+    }
+
+    @Override
+    public Match visitMatchBool(MatchBool m) {
+        return m;
+    }
+
+    @Override
+    public Match visitMatchCtor(MatchCtor m) {
+        if (m.args.isEmpty())
+            return m;
+
+        final List<Match> args = new ArrayList<>(m.args.size());
+        for (final Match arg : m.args)
+            args.add(arg.accept(this));
+
+        return new MatchCtor(m.ctor, args, m.tag);
+    }
+
+    @Override
+    public Match visitMatchInt(MatchInt m) {
+        return m;
+    }
+
+    @Override
+    public Match visitMatchString(MatchString m) {
+        return m;
+    }
+
+    @Override
+    public Match visitMatchTup(MatchTup m) {
+        if (m.elements.isEmpty())
+            return m;
+
+        final List<Match> elements = new ArrayList<>(m.elements.size());
+        for (final Match element : m.elements)
+            elements.add(element.accept(this));
+
+        return new MatchTup(elements);
+    }
+
+    @Override
+    public Match visitMatchOr(MatchOr m) {
+        final SList.Builder<Match> result = new SList.Builder<>();
+        for (final Match submatch : m.submatches)
+            result.addLast(submatch.accept(this));
+
+        return new MatchOr(result.build());
+    }
+}
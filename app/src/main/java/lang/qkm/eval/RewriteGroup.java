@@ -5,33 +5,205 @@ import lang.qkm.expr.*;
 
 public final class RewriteGroup implements Evaluator {
 
+    // runs the rewrites in order over every toplevel form. a rewrite has
+    // changed the tree if it returns a different node (the default visitors
+    // keep the node when nothing happened), which is used to skip work:
+    //
+    // * a rewrite is skipped if it only establishes invariants that already
+    //   hold, such as converting to ANF twice in a row.
+    // * a rewrite is skipped if the tree is the one it returned last time.
+    //
+    // a Repeat runs its rewrites until none of them change the tree or the
+    // budget runs out.
+
+    public static final class Repeat implements ExprRewriter {
+
+        public final int budget;
+        public final List<ExprRewriter> rewrites;
+
+        public Repeat(int budget, List<ExprRewriter> rewrites) {
+            if (budget < 1)
+                throw new IllegalArgumentException("Illegal budget " + budget);
+
+            this.budget = budget;
+            this.rewrites = rewrites;
+        }
+
+        @Override
+        public Expr rewrite(Expr e) {
+            // only used when not part of a group, so nothing can be skipped.
+            for (int i = 0; i < this.budget; ++i) {
+                final Expr old = e;
+                for (final ExprRewriter rewrite : this.rewrites)
+                    e = rewrite.rewrite(e);
+                if (old == e)
+                    break;
+            }
+
+            return e;
+        }
+    }
+
+    public static final class Stats {
+
+        public final String name;
+        public long runs;
+        public long skips;
+        public long changes;
+        public long nanos;
+        public long nodesIn;
+        public long nodesOut;
+
+        public Stats(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s %6d runs %6d skips %6d changes %10.3f ms %10d -> %d nodes",
+                                 this.name, this.runs, this.skips, this.changes,
+                                 this.nanos / 1e6, this.nodesIn, this.nodesOut);
+        }
+    }
+
+    private final class Run {
+
+        // the state of rewriting a single toplevel form.
+
+        private final Set<ExprRewriter.Invariant> holds = EnumSet.noneOf(ExprRewriter.Invariant.class);
+        private final Map<ExprRewriter, Expr> last = new IdentityHashMap<>();
+        private long nodes = -1;
+
+        public Expr apply(List<ExprRewriter> rewrites, Expr e) {
+            for (final ExprRewriter rewrite : rewrites)
+                e = this.apply(rewrite, e);
+            return e;
+        }
+
+        public Expr apply(ExprRewriter rewrite, Expr e) {
+            if (rewrite instanceof Repeat) {
+                final Repeat r = (Repeat) rewrite;
+                for (int i = 0; i < r.budget; ++i) {
+                    final Expr old = e;
+                    e = this.apply(r.rewrites, e);
+                    if (old == e)
+                        break;
+                }
+                return e;
+            }
+
+            final Stats stats = RewriteGroup.this.stats.get(rewrite);
+            final Set<ExprRewriter.Invariant> establishes = rewrite.establishes();
+            if (this.last.get(rewrite) == e
+                    || !establishes.isEmpty() && this.holds.containsAll(establishes)) {
+                stats.skips++;
+                return e;
+            }
+
+            final Set<ExprRewriter.Invariant> missing = EnumSet.noneOf(ExprRewriter.Invariant.class);
+            missing.addAll(rewrite.requires());
+            missing.removeAll(this.holds);
+            if (!missing.isEmpty())
+                throw new IllegalStateException(stats.name + " requires " + missing);
+
+            if (this.nodes < 0)
+                this.nodes = NodeCounter.count(e);
+
+            final long start = System.nanoTime();
+            final Expr result = rewrite.rewrite(e);
+            stats.nanos += System.nanoTime() - start;
+            stats.runs++;
+            stats.nodesIn += this.nodes;
+
+            if (result != e) {
+                stats.changes++;
+                this.holds.retainAll(rewrite.preserves());
+                this.nodes = NodeCounter.count(result);
+            }
+            this.holds.addAll(establishes);
+            stats.nodesOut += this.nodes;
+
+            this.last.put(rewrite, result);
+            return result;
+        }
+    }
+
     public final Evaluator core;
     public final List<ExprRewriter> rewrites;
 
+    private final Map<ExprRewriter, Stats> stats = new IdentityHashMap<>();
+    private final List<Stats> order = new ArrayList<>();
+
     public RewriteGroup(Evaluator core, List<ExprRewriter> rewrites) {
         this.core = core;
         this.rewrites = rewrites;
+
+        this.register(rewrites);
+    }
+
+    private void register(List<ExprRewriter> rewrites) {
+        for (final ExprRewriter rewrite : rewrites) {
+            if (rewrite instanceof Repeat) {
+                this.register(((Repeat) rewrite).rewrites);
+                continue;
+            }
+
+            if (this.stats.containsKey(rewrite))
+                throw new IllegalArgumentException("Rewrite " + rewrite + " appears more than once");
+
+            final Stats s = new Stats((this.order.size() + 1) + ". " + rewrite.getClass().getSimpleName());
+            this.stats.put(rewrite, s);
+            this.order.add(s);
+        }
+    }
+
+    public List<Stats> getStats() {
+        return Collections.unmodifiableList(this.order);
+    }
+
+    public void reset() {
+        for (final Stats s : this.order) {
+            s.runs = 0;
+            s.skips = 0;
+            s.changes = 0;
+            s.nanos = 0;
+            s.nodesIn = 0;
+            s.nodesOut = 0;
+        }
     }
 
     @Override
     public void define(Map<EVar, Expr> defs) {
+        // the free variables of the definitions are only ever compared with
+        // each other, so they get a symbol table of their own.
         final Map<EVar, Expr> m = new HashMap<>();
-        for (final Map.Entry<EVar, Expr> pair : defs.entrySet()) {
-            Expr e = pair.getValue();
-            for (final ExprRewriter rewrite : this.rewrites)
-                e = rewrite.rewrite(e);
+        final List<List<EVar>> groups = FreeVars.scoped(() -> {
+            for (final Map.Entry<EVar, Expr> pair : defs.entrySet())
+                m.put(pair.getKey(), new Run().apply(this.rewrites, pair.getValue()));
+            return LetrecFixer.components(m);
+        });
 
-            m.put(pair.getKey(), e);
+        // defines are always recursive, but most of them do not need to be.
+        // defining the parts separately and in dependency order spares the
+        // core from initializing them in whatever order the map has.
+        for (final List<EVar> group : groups) {
+            final Map<EVar, Expr> part = new HashMap<>();
+            for (final EVar name : group)
+                part.put(name, m.get(name));
+            this.core.define(part);
         }
-
-        this.core.define(m);
     }
 
     @Override
     public void eval(Expr e) {
-        for (final ExprRewriter rewrite : this.rewrites)
-            e = rewrite.rewrite(e);
+        this.core.eval(FreeVars.scoped(() -> new Run().apply(this.rewrites, e)));
+    }
 
-        this.core.eval(e);
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Stats s : this.order)
+            sb.append(s).append('\n');
+        return sb.toString();
     }
 }
@@ -5,12 +5,25 @@ import java.util.stream.*;
 
 public final class EApp implements Expr {
 
+    // f a b passes both arguments at once, which is the same as (f a) b but
+    // does not need to build the intermediate closure when f happens to
+    // take (at least) two parameters (see ELam).
+
     public final Expr f;
-    public final Expr arg;
+    public final List<? extends Expr> args;
+
+    private FreeVars freeVars;
 
     public EApp(Expr f, Expr arg) {
+        this(f, List.of(arg));
+    }
+
+    public EApp(Expr f, List<? extends Expr> args) {
+        if (args.isEmpty())
+            throw new IllegalArgumentException("Illegal application arity 0");
+
         this.f = f;
-        this.arg = arg;
+        this.args = args;
     }
 
     @Override
@@ -19,19 +32,21 @@ public final class EApp implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.concat(this.f.fv(), this.arg.fv());
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = this.f.getFreeVars().union(FreeVars.union(this.args));
+        return this.freeVars;
     }
 
     @Override
     public String toString() {
-        final ArrayDeque<Expr> stack = new ArrayDeque<>();
-        stack.push(this.arg);
+        final ArrayDeque<List<? extends Expr>> stack = new ArrayDeque<>();
+        stack.push(this.args);
 
         Expr f = this.f;
         while (f instanceof EApp) {
             final EApp a = (EApp) f;
-            stack.push(a.arg);
+            stack.push(a.args);
             f = a.f;
         }
 
@@ -39,7 +54,8 @@ public final class EApp implements Expr {
         sb.append('(').append(f);
 
         while (!stack.isEmpty())
-            sb.append(' ').append(stack.pop());
+            for (final Expr arg : stack.pop())
+                sb.append(' ').append(arg);
 
         return sb.append(')').toString();
     }
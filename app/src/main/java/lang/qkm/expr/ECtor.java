@@ -8,9 +8,19 @@ public final class ECtor implements Expr {
     public final String id;
     public final List<? extends Expr> args;
 
+    // the position of the constructor within its enum or -1 if unknown.
+    public final int tag;
+
+    private FreeVars freeVars;
+
     public ECtor(String id, List<? extends Expr> args) {
+        this(id, args, -1);
+    }
+
+    public ECtor(String id, List<? extends Expr> args, int tag) {
         this.id = id;
         this.args = args;
+        this.tag = tag;
     }
 
     @Override
@@ -19,8 +29,10 @@ public final class ECtor implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return this.args.stream().flatMap(Expr::fv);
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = FreeVars.union(this.args);
+        return this.freeVars;
     }
 
     @Override
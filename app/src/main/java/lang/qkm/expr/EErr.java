@@ -18,8 +18,8 @@ public final class EErr implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return this.value.fv();
+    public FreeVars getFreeVars() {
+        return this.value.getFreeVars();
     }
 
     @Override
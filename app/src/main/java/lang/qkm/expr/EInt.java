@@ -7,22 +7,45 @@ import lang.qkm.type.TyInt;
 
 public final class EInt implements Expr {
 
+    // iN with N <= 64 only use word, value is null. wider types only use
+    // value, word is 0.
+    public final long word;
     public final BigInteger value;
     public final TyInt type;
 
+    public EInt(long value, TyInt type) {
+        if (!type.isWord())
+            throw new IllegalArgumentException("Type " + type + " does not fit in a word");
+
+        this.word = type.signed(value);
+        this.value = null;
+        this.type = type;
+    }
+
     public EInt(BigInteger value, TyInt type) {
-        this.value = type.signed(value);
+        if (type.isWord()) {
+            this.word = type.signed(value.longValue());
+            this.value = null;
+        } else {
+            this.word = 0;
+            this.value = type.signed(value);
+        }
         this.type = type;
     }
 
+    public Object getCtor() {
+        // must agree with MatchInt
+        return this.value == null ? (Object) this.word : this.value;
+    }
+
     @Override
     public <R> R accept(Visitor<R> v) {
         return v.visitEInt(this);
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.empty();
+    public FreeVars getFreeVars() {
+        return FreeVars.EMPTY;
     }
 
     @Override
@@ -32,6 +55,6 @@ public final class EInt implements Expr {
 
     @Override
     public String toString() {
-        return this.value.toString() + this.type;
+        return this.getCtor().toString() + this.type;
     }
 }
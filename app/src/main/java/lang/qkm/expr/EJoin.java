@@ -0,0 +1,54 @@
+package lang.qkm.expr;
+
+import java.util.*;
+import java.util.stream.*;
+
+public final class EJoin implements Expr {
+
+    // join name (params...) = body in rest
+    //
+    // a local continuation: unlike a lambda bound by a let, it is only ever
+    // jumped to (see EJump) from the tail positions of rest, so it never
+    // escapes and the result of the body is the result of the whole
+    // expression. evaluators can therefore run a jump as a goto within the
+    // current frame instead of allocating a closure and calling it. join
+    // points are not recursive, the name is only in scope in rest.
+
+    public final EVar name;
+    public final List<EVar> params;
+    public final Expr body;
+    public final Expr rest;
+
+    private FreeVars freeVars;
+
+    public EJoin(EVar name, List<EVar> params, Expr body, Expr rest) {
+        this.name = name;
+        this.params = params;
+        this.body = body;
+        this.rest = rest;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> v) {
+        return v.visitEJoin(this);
+    }
+
+    @Override
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = this.body.getFreeVars().minus(FreeVars.of(this.params))
+                    .union(this.rest.getFreeVars().minus(this.name));
+        return this.freeVars;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("(join ((").append(this.name);
+
+        for (final EVar param : this.params)
+            sb.append(' ').append(param);
+        return sb.append(") ").append(this.body)
+                .append(") ").append(this.rest).append(')').toString();
+    }
+}
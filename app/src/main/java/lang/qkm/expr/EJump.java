@@ -0,0 +1,43 @@
+package lang.qkm.expr;
+
+import java.util.*;
+import java.util.stream.*;
+
+public final class EJump implements Expr {
+
+    // transfers control to the join point target (see EJoin), binding its
+    // parameters to the arguments. only valid in a tail position of the
+    // rest of the join point.
+
+    public final EVar target;
+    public final List<? extends Expr> args;
+
+    private FreeVars freeVars;
+
+    public EJump(EVar target, List<? extends Expr> args) {
+        this.target = target;
+        this.args = args;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> v) {
+        return v.visitEJump(this);
+    }
+
+    @Override
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = this.target.getFreeVars().union(FreeVars.union(this.args));
+        return this.freeVars;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("(jump ").append(this.target);
+
+        for (final Expr arg : this.args)
+            sb.append(' ').append(arg);
+        return sb.append(')').toString();
+    }
+}
@@ -5,12 +5,42 @@ import java.util.stream.*;
 
 public final class ELam implements Expr {
 
-    public final EVar arg;
+    // \x y. e takes both of its parameters at once. it still behaves like
+    // the curried \x. \y. e: applying it to fewer arguments than it has
+    // parameters makes a partial application, and applying it to more
+    // applies whatever it returns to the rest (see ArityRaiser).
+
+    public final List<EVar> params;
     public final Expr body;
 
+    // variables captured by the closure, null if not closure converted.
+    public final List<EVar> captures;
+
+    // number of slots needed by the frame of the body, -1 if unresolved.
+    public final int frameSize;
+
+    private FreeVars freeVars;
+
     public ELam(EVar arg, Expr body) {
-        this.arg = arg;
+        this(List.of(arg), body, null, -1);
+    }
+
+    public ELam(List<EVar> params, Expr body) {
+        this(params, body, null, -1);
+    }
+
+    public ELam(List<EVar> params, Expr body, List<EVar> captures, int frameSize) {
+        if (params.isEmpty())
+            throw new IllegalArgumentException("Illegal lambda arity 0");
+
+        this.params = params;
         this.body = body;
+        this.captures = captures;
+        this.frameSize = frameSize;
+    }
+
+    public int arity() {
+        return this.params.size();
     }
 
     @Override
@@ -19,8 +49,14 @@ public final class ELam implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return this.body.fv().filter(v -> !v.equals(this.arg));
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null) {
+            if (this.captures != null)
+                this.freeVars = FreeVars.of(this.captures);
+            else
+                this.freeVars = this.body.getFreeVars().minus(FreeVars.of(this.params));
+        }
+        return this.freeVars;
     }
 
     @Override
@@ -31,12 +67,17 @@ public final class ELam implements Expr {
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
-        sb.append("(\\").append(this.arg);
+        sb.append("(\\");
 
-        Expr f = this.body;
+        // nested lambdas are printed as one, they behave the same anyway.
+        Expr f = this;
+        String sep = "";
         while (f instanceof ELam) {
             final ELam next = (ELam) f;
-            sb.append(' ').append(next.arg);
+            for (final EVar param : next.params) {
+                sb.append(sep).append(param);
+                sep = " ";
+            }
             f = next.body;
         }
         return sb.append(". ").append(f).append(')').toString();
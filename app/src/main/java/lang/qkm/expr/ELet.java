@@ -9,6 +9,8 @@ public final class ELet implements Expr {
     public final Expr value;
     public final Expr body;
 
+    private FreeVars freeVars;
+
     public ELet(EVar bind, Expr value, Expr body) {
         this.bind = bind;
         this.value = value;
@@ -21,9 +23,11 @@ public final class ELet implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.concat(this.value.fv(), this.body.fv()
-                .filter(v -> !this.bind.equals(v)));
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = this.value.getFreeVars()
+                    .union(this.body.getFreeVars().minus(this.bind));
+        return this.freeVars;
     }
 
     @Override
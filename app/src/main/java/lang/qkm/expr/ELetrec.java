@@ -8,6 +8,8 @@ public final class ELetrec implements Expr {
     public final Map<EVar, Expr> binds;
     public final Expr body;
 
+    private FreeVars freeVars;
+
     public ELetrec(Map<EVar, Expr> binds, Expr body) {
         this.binds = binds;
         this.body = body;
@@ -19,14 +21,16 @@ public final class ELetrec implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        if (this.binds.isEmpty())
-            return this.body.fv();
-
-        return Stream.of(this.binds.values(), List.of(this.body))
-                .flatMap(Collection::stream)
-                .flatMap(Expr::fv)
-                .filter(v -> !binds.containsKey(v));
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null) {
+            if (this.binds.isEmpty())
+                this.freeVars = this.body.getFreeVars();
+            else
+                this.freeVars = FreeVars.union(this.binds.values())
+                        .union(this.body.getFreeVars())
+                        .minus(FreeVars.of(this.binds.keySet()));
+        }
+        return this.freeVars;
     }
 
     @Override
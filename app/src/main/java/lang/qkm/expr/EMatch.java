@@ -2,6 +2,7 @@ package lang.qkm.expr;
 
 import java.util.*;
 import java.util.stream.*;
+import lang.qkm.match.CaseTable;
 import lang.qkm.match.Match;
 
 public final class EMatch implements Expr {
@@ -9,29 +10,42 @@ public final class EMatch implements Expr {
     public final Expr scrutinee;
     public final List<Map.Entry<Match, Expr>> cases;
 
+    private CaseTable table;
+    private FreeVars freeVars;
+
     public EMatch(Expr scrutinee, List<Map.Entry<Match, Expr>> cases) {
         this.scrutinee = scrutinee;
         this.cases = cases;
     }
 
+    public CaseTable getTable() {
+        // the cases never change, so build the dispatch table once.
+        if (this.table == null)
+            this.table = new CaseTable(this.cases.stream()
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList()));
+        return this.table;
+    }
+
     @Override
     public <R> R accept(Visitor<R> v) {
         return v.visitEMatch(this);
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.concat(
-                this.scrutinee.fv(),
-                this.cases.stream().flatMap(EMatch::fv));
-    }
-
-    private static Stream<EVar> fv(Map.Entry<Match, Expr> p) {
-        final Set<String> defs = p.getKey()
-                .getCaptures()
-                .collect(Collectors.toSet());
-
-        return p.getValue().fv().filter(n -> !defs.contains(n.name));
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null) {
+            FreeVars acc = this.scrutinee.getFreeVars();
+            for (final Map.Entry<Match, Expr> p : this.cases) {
+                final List<EVar> defs = p.getKey()
+                        .getCaptures()
+                        .map(EVar::new)
+                        .collect(Collectors.toList());
+                acc = acc.union(p.getValue().getFreeVars().minus(FreeVars.of(defs)));
+            }
+            this.freeVars = acc;
+        }
+        return this.freeVars;
     }
 
     @Override
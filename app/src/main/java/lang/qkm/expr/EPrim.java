@@ -0,0 +1,200 @@
+package lang.qkm.expr;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.stream.*;
+import lang.qkm.type.TyInt;
+
+public final class EPrim implements Expr {
+
+    // a saturated primitive operation on two integers of the same type. the
+    // operands and the result use the same representation as EInt: iN with
+    // N <= 64 are sign extended longs, anything wider is a BigInteger. like
+    // TyInt.signed, the arithmetic wraps around.
+
+    public enum Op {
+
+        ADD("add"), SUB("sub"), MUL("mul"), DIV("div"), REM("rem"),
+        SHL("shl"), SHR("shr"), USHR("ushr"),
+        AND("and"), OR("or"), XOR("xor"),
+        EQ("eq"), NE("ne"), LT("lt"), LE("le"), GT("gt"), GE("ge");
+
+        private static final Map<String, Op> NAMES = Stream.of(Op.values())
+                .collect(Collectors.toMap(op -> op.name, op -> op));
+
+        public final String name;
+
+        private Op(String name) {
+            this.name = name;
+        }
+
+        public static Op of(String name) {
+            return NAMES.get(name);
+        }
+
+        public boolean isComparison() {
+            return this.compareTo(EQ) >= 0;
+        }
+
+        public long apply(TyInt t, long a, long b) {
+            switch (this) {
+            case ADD:
+                return t.signed(a + b);
+            case SUB:
+                return t.signed(a - b);
+            case MUL:
+                return t.signed(a * b);
+            case DIV:
+                if (b == 0)
+                    throw new ArithmeticException("Division by zero");
+                return t.signed(a / b);
+            case REM:
+                if (b == 0)
+                    throw new ArithmeticException("Division by zero");
+                return a % b;
+            case SHL:
+                return outOfRange(t, b) ? 0 : t.signed(a << b);
+            case SHR:
+                return outOfRange(t, b) ? a >> 63 : a >> b;
+            case USHR:
+                return outOfRange(t, b) ? 0 : t.signed(t.unsigned(a) >>> b);
+            case AND:
+                return a & b;
+            case OR:
+                return a | b;
+            case XOR:
+                return a ^ b;
+            default:
+                throw new IllegalStateException("Illegal arithmetic on " + this.name);
+            }
+        }
+
+        public BigInteger apply(TyInt t, BigInteger a, BigInteger b) {
+            switch (this) {
+            case ADD:
+                return t.signed(a.add(b));
+            case SUB:
+                return t.signed(a.subtract(b));
+            case MUL:
+                return t.signed(a.multiply(b));
+            case DIV:
+                if (b.signum() == 0)
+                    throw new ArithmeticException("Division by zero");
+                return t.signed(a.divide(b));
+            case REM:
+                if (b.signum() == 0)
+                    throw new ArithmeticException("Division by zero");
+                return a.remainder(b);
+            case SHL:
+                return outOfRange(t, b) ? BigInteger.ZERO : t.signed(a.shiftLeft(b.intValue()));
+            case SHR:
+                return outOfRange(t, b) ? BigInteger.valueOf(a.signum() >> 1) : a.shiftRight(b.intValue());
+            case USHR:
+                return outOfRange(t, b) ? BigInteger.ZERO : t.signed(t.unsigned(a).shiftRight(b.intValue()));
+            case AND:
+                return a.and(b);
+            case OR:
+                return a.or(b);
+            case XOR:
+                return a.xor(b);
+            default:
+                throw new IllegalStateException("Illegal arithmetic on " + this.name);
+            }
+        }
+
+        public boolean test(long a, long b) {
+            return this.test(Long.compare(a, b));
+        }
+
+        public boolean test(BigInteger a, BigInteger b) {
+            return this.test(a.compareTo(b));
+        }
+
+        private boolean test(int cmp) {
+            switch (this) {
+            case EQ:
+                return cmp == 0;
+            case NE:
+                return cmp != 0;
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            default:
+                throw new IllegalStateException("Illegal comparison on " + this.name);
+            }
+        }
+
+        private static boolean outOfRange(TyInt t, long shift) {
+            // the shift amount is taken as unsigned.
+            return Long.compareUnsigned(t.unsigned(shift), t.bits) >= 0;
+        }
+
+        private static boolean outOfRange(TyInt t, BigInteger shift) {
+            return t.unsigned(shift).compareTo(BigInteger.valueOf(t.bits)) >= 0;
+        }
+    }
+
+    public final Op op;
+    public final TyInt type;
+    public final List<? extends Expr> args;
+
+    private FreeVars freeVars;
+
+    public EPrim(Op op, TyInt type, List<? extends Expr> args) {
+        if (args.size() != 2)
+            throw new IllegalArgumentException("Illegal primitive arity " + args.size());
+
+        this.op = op;
+        this.type = type;
+        this.args = args;
+    }
+
+    public static EPrim of(String name) {
+        // the primitives are named op_iN, such as add_i32 or lt_i8.
+        final int offs = name.lastIndexOf("_i");
+        if (offs < 0)
+            return null;
+
+        final Op op = Op.of(name.substring(0, offs));
+        final String bits = name.substring(offs + 2);
+        if (op == null || bits.isEmpty() || bits.charAt(0) == '0' || bits.length() > 9)
+            return null;
+        for (int i = 0; i < bits.length(); ++i)
+            if (bits.charAt(i) < '0' || bits.charAt(i) > '9')
+                return null;
+
+        return new EPrim(op, new TyInt(Integer.parseInt(bits)),
+                         List.of(new EVar("`1"), new EVar("`2")));
+    }
+
+    public String name() {
+        return this.op.name + "_" + this.type;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> v) {
+        return v.visitEPrim(this);
+    }
+
+    @Override
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = FreeVars.union(this.args);
+        return this.freeVars;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append('(').append(this.name());
+
+        for (final Expr arg : this.args)
+            sb.append(' ').append(arg);
+        return sb.append(')').toString();
+    }
+}
@@ -17,8 +17,8 @@ public final class EString implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.empty();
+    public FreeVars getFreeVars() {
+        return FreeVars.EMPTY;
     }
 
     @Override
@@ -7,6 +7,8 @@ public final class ETup implements Expr {
 
     public final List<? extends Expr> elements;
 
+    private FreeVars freeVars;
+
     public ETup(List<? extends Expr> elements) {
         this.elements = elements;
     }
@@ -17,8 +19,10 @@ public final class ETup implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return this.elements.stream().flatMap(Expr::fv);
+    public FreeVars getFreeVars() {
+        if (this.freeVars == null)
+            this.freeVars = FreeVars.union(this.elements);
+        return this.freeVars;
     }
 
     @Override
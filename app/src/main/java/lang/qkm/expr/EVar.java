@@ -7,8 +7,30 @@ public final class EVar implements Expr {
 
     public final String name;
 
+    // lexical address assigned by the resolver: a non-negative depth refers
+    // to the slot-th entry of the frame that many levels up, whereas a
+    // negative depth means the slot indexes into the global table. both are
+    // -1 if the variable is not resolved (the name is all that matters).
+    public final int depth;
+    public final int slot;
+
+    // index into the symbol table of FreeVars it was last needed in, which
+    // is only remembered by its serial so the table can still go away.
+    /* package */ long table;
+    /* package */ int symbol;
+
     public EVar(String name) {
+        this(name, -1, -1);
+    }
+
+    public EVar(String name, int depth, int slot) {
         this.name = name;
+        this.depth = depth;
+        this.slot = slot;
+    }
+
+    public boolean isResolved() {
+        return this.slot >= 0;
     }
 
     @Override
@@ -17,8 +39,8 @@ public final class EVar implements Expr {
     }
 
     @Override
-    public Stream<EVar> fv() {
-        return Stream.of(this);
+    public FreeVars getFreeVars() {
+        return FreeVars.of(this);
     }
 
     @Override
@@ -19,11 +19,19 @@ public interface Expr {
         public R visitELet(ELet e);
         public R visitELetrec(ELetrec e);
         public R visitEErr(EErr e);
+        public R visitEPrim(EPrim e);
+        public R visitEJoin(EJoin e);
+        public R visitEJump(EJump e);
     }
 
     public <R> R accept(Visitor<R> v);
 
-    public Stream<EVar> fv();
+    // the free variables are computed once per node, see FreeVars.
+    public FreeVars getFreeVars();
+
+    public default Stream<EVar> fv() {
+        return this.getFreeVars().stream();
+    }
 
     public default boolean isAtom() {
         return false;
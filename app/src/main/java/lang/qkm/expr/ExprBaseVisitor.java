@@ -57,7 +57,8 @@ public abstract class ExprBaseVisitor<R> implements Expr.Visitor<R> {
     @Override
     public R visitEApp(EApp e) {
         e.f.accept(this);
-        e.arg.accept(this);
+        for (final Expr arg : e.args)
+            arg.accept(this);
         return null;
     }
 
@@ -81,4 +82,27 @@ public abstract class ExprBaseVisitor<R> implements Expr.Visitor<R> {
         e.value.accept(this);
         return null;
     }
+
+    @Override
+    public R visitEPrim(EPrim e) {
+        for (final Expr arg : e.args)
+            arg.accept(this);
+
+        return null;
+    }
+
+    @Override
+    public R visitEJoin(EJoin e) {
+        e.body.accept(this);
+        e.rest.accept(this);
+        return null;
+    }
+
+    @Override
+    public R visitEJump(EJump e) {
+        for (final Expr arg : e.args)
+            arg.accept(this);
+
+        return null;
+    }
 }
@@ -0,0 +1,306 @@
+package lang.qkm.expr;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+public final class FreeVars extends AbstractSet<EVar> {
+
+    // an immutable set of variables stored as a bitset. the bits index into
+    // a symbol table of the variable names seen so far, which makes union
+    // and removal a handful of word operations instead of a hash per
+    // element. whenever the result would be the same as one of the inputs,
+    // that input is returned instead of a copy.
+    //
+    // the symbol table is scoped: a rewrite run (or whatever else wants one)
+    // runs in a scope and every name interned inside goes into a table of
+    // its own, which is dropped once the scope is left and the sets built
+    // in it are gone. this keeps the sets as narrow as the names one toplevel
+    // form uses instead of every name (fresh ones included) seen during the
+    // session. sets from different tables can still be mixed, the foreign
+    // one is translated into the current table first.
+    //
+    // only the words between the lowest and the highest set bit are stored,
+    // so a singleton is a word and its index no matter how far into the
+    // table its name is.
+    //
+    // the elements are canonical (unresolved) variables, so only the names
+    // are meaningful. iteration is in the order the names were interned.
+
+    private static final class Symbols {
+
+        // tells the tables apart without holding on to them, see EVar.
+        private static final AtomicLong SERIAL = new AtomicLong();
+
+        public final long serial = SERIAL.incrementAndGet();
+
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile FreeVars[] singletons = new FreeVars[64];
+        private volatile EVar[] names = new EVar[64];
+
+        public Integer lookup(String name) {
+            return this.ids.get(name);
+        }
+
+        public FreeVars singleton(String name) {
+            return this.singletons[this.symbol(name)];
+        }
+
+        public int symbol(String name) {
+            final Integer id = this.ids.get(name);
+            return id != null ? id : this.intern(name);
+        }
+
+        private synchronized int intern(String name) {
+            final Integer id = this.ids.get(name);
+            if (id != null)
+                return id;
+
+            final int next = this.ids.size();
+            EVar[] names = this.names;
+            FreeVars[] singletons = this.singletons;
+            if (next == names.length) {
+                names = Arrays.copyOf(names, next * 2);
+                singletons = Arrays.copyOf(singletons, next * 2);
+            }
+
+            names[next] = new EVar(name);
+            singletons[next] = new FreeVars(this, next >>> 6, new long[] { 1L << next });
+
+            // publish the tables before the id becomes visible.
+            this.names = names;
+            this.singletons = singletons;
+            this.ids.put(name, next);
+            return next;
+        }
+    }
+
+    private static final ThreadLocal<Symbols> SCOPE = new ThreadLocal<>();
+
+    // the table used outside of any scope. it only lives as long as the
+    // sets that were built with it.
+    private static final ThreadLocal<WeakReference<Symbols>> AMBIENT = new ThreadLocal<>();
+
+    public static final FreeVars EMPTY = new FreeVars(null, 0, new long[0]);
+
+    private final Symbols symbols;
+
+    // bits[i] is the word at index base + i. neither the first nor the last
+    // word is zero.
+    private final int base;
+    private final long[] bits;
+
+    private FreeVars(Symbols symbols, int base, long[] bits) {
+        this.symbols = symbols;
+        this.base = base;
+        this.bits = bits;
+    }
+
+    public static <R> R scoped(Supplier<R> body) {
+        // scopes nest by sharing the outermost table.
+        if (SCOPE.get() != null)
+            return body.get();
+
+        SCOPE.set(new Symbols());
+        try {
+            return body.get();
+        } finally {
+            SCOPE.remove();
+        }
+    }
+
+    private static Symbols current() {
+        final Symbols scoped = SCOPE.get();
+        if (scoped != null)
+            return scoped;
+
+        final WeakReference<Symbols> ref = AMBIENT.get();
+        Symbols ambient = ref == null ? null : ref.get();
+        if (ambient == null) {
+            ambient = new Symbols();
+            AMBIENT.set(new WeakReference<>(ambient));
+        }
+        return ambient;
+    }
+
+    public static FreeVars of(EVar v) {
+        // interning might grow the tables, so only read them afterwards.
+        final Symbols symbols = current();
+        if (v.table != symbols.serial) {
+            v.symbol = symbols.symbol(v.name);
+            v.table = symbols.serial;
+        }
+        return symbols.singletons[v.symbol];
+    }
+
+    public static FreeVars of(Collection<? extends EVar> vs) {
+        FreeVars acc = EMPTY;
+        for (final EVar v : vs)
+            acc = acc.union(of(v));
+        return acc;
+    }
+
+    public static FreeVars union(Collection<? extends Expr> es) {
+        FreeVars acc = EMPTY;
+        for (final Expr e : es)
+            acc = acc.union(e.getFreeVars());
+        return acc;
+    }
+
+    private FreeVars in(Symbols symbols) {
+        // the same set over another table.
+        if (this.symbols == symbols || this.bits.length == 0)
+            return this;
+
+        FreeVars acc = EMPTY;
+        for (final EVar v : this)
+            acc = acc.union(symbols.singleton(v.name));
+        return acc;
+    }
+
+    private static FreeVars trim(Symbols symbols, int base, long[] bits) {
+        int lo = 0;
+        int hi = bits.length;
+        while (lo < hi && bits[lo] == 0)
+            lo++;
+        while (hi > lo && bits[hi - 1] == 0)
+            hi--;
+
+        if (lo == hi)
+            return EMPTY;
+        return new FreeVars(symbols, base + lo,
+                            lo == 0 && hi == bits.length ? bits : Arrays.copyOfRange(bits, lo, hi));
+    }
+
+    private boolean covers(FreeVars o) {
+        // if every word of o is within this one's and has no other bits.
+        final int offset = o.base - this.base;
+        if (offset < 0 || offset + o.bits.length > this.bits.length)
+            return false;
+
+        for (int i = 0; i < o.bits.length; ++i)
+            if ((o.bits[i] & ~this.bits[offset + i]) != 0)
+                return false;
+        return true;
+    }
+
+    public FreeVars union(FreeVars o) {
+        if (o.bits.length == 0)
+            return this;
+        if (this.bits.length == 0)
+            return o;
+        if (this.symbols != o.symbols) {
+            final Symbols symbols = current();
+            return this.in(symbols).union(o.in(symbols));
+        }
+
+        if (this.covers(o))
+            return this;
+        if (o.covers(this))
+            return o;
+
+        final int lo = Math.min(this.base, o.base);
+        final int hi = Math.max(this.base + this.bits.length, o.base + o.bits.length);
+        final long[] acc = new long[hi - lo];
+        System.arraycopy(this.bits, 0, acc, this.base - lo, this.bits.length);
+        for (int i = 0; i < o.bits.length; ++i)
+            acc[o.base - lo + i] |= o.bits[i];
+        return new FreeVars(this.symbols, lo, acc);
+    }
+
+    public FreeVars minus(FreeVars o) {
+        if (this.bits.length == 0 || o.bits.length == 0)
+            return this;
+        if (this.symbols != o.symbols) {
+            // names that are not in this table cannot be in here.
+            FreeVars acc = this;
+            for (final EVar v : o)
+                acc = acc.minus(v);
+            return acc;
+        }
+
+        final int lo = Math.max(this.base, o.base);
+        final int hi = Math.min(this.base + this.bits.length, o.base + o.bits.length);
+
+        boolean disjoint = true;
+        for (int i = lo; i < hi && disjoint; ++i)
+            disjoint = (this.bits[i - this.base] & o.bits[i - o.base]) == 0;
+        if (disjoint)
+            return this;
+
+        final long[] acc = this.bits.clone();
+        for (int i = lo; i < hi; ++i)
+            acc[i - this.base] &= ~o.bits[i - o.base];
+        return trim(this.symbols, this.base, acc);
+    }
+
+    public FreeVars minus(EVar v) {
+        if (this.bits.length == 0)
+            return this;
+
+        final Integer id = this.symbols.lookup(v.name);
+        if (id == null || !this.has(id))
+            return this;
+
+        final long[] acc = this.bits.clone();
+        acc[(id >>> 6) - this.base] &= ~(1L << id);
+        return trim(this.symbols, this.base, acc);
+    }
+
+    private boolean has(int id) {
+        final int word = (id >>> 6) - this.base;
+        return word >= 0 && word < this.bits.length && (this.bits[word] & (1L << id)) != 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof EVar) || this.bits.length == 0)
+            return false;
+
+        // avoid interning names that cannot possibly be in here.
+        final Integer id = this.symbols.lookup(((EVar) o).name);
+        return id != null && this.has(id);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.bits.length == 0;
+    }
+
+    @Override
+    public int size() {
+        int acc = 0;
+        for (final long w : this.bits)
+            acc += Long.bitCount(w);
+        return acc;
+    }
+
+    @Override
+    public Iterator<EVar> iterator() {
+        final EVar[] names = this.bits.length == 0 ? null : this.symbols.names;
+        return new Iterator<EVar>() {
+
+            private int word = 0;
+            private long rest = bits.length == 0 ? 0 : bits[0];
+
+            @Override
+            public boolean hasNext() {
+                while (this.rest == 0 && this.word + 1 < bits.length)
+                    this.rest = bits[++this.word];
+                return this.rest != 0;
+            }
+
+            @Override
+            public EVar next() {
+                if (!this.hasNext())
+                    throw new NoSuchElementException();
+
+                final int bit = Long.numberOfTrailingZeros(this.rest);
+                this.rest &= this.rest - 1;
+                return names[(base + this.word) * 64 + bit];
+            }
+        };
+    }
+}
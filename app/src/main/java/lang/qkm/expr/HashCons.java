@@ -0,0 +1,339 @@
+package lang.qkm.expr;
+
+import java.util.*;
+import lang.qkm.match.*;
+
+public final class HashCons implements Expr.Visitor<Expr> {
+
+    // hands out a single node for every structurally equal expression, so
+    // equality of interned trees is just identity. the result is a dag where
+    // repeated subtrees are shared, which is fine since nodes are immutable.
+    //
+    // interning is bottom up: a node is keyed on its own fields and the
+    // identities of its (already interned) children, so the structural hash
+    // is computed once per node instead of once per comparison. binders are
+    // compared by name, not up to renaming.
+    //
+    // nodes keep their identity semantics (apart from EVar), so an interner
+    // is opt-in: code that keys on nodes and relies on distinct occurrences
+    // being different must not see interned trees.
+
+    private static final class Key {
+
+        // the parts are either nodes, compared by identity, or plain values.
+        private final Object[] parts;
+        private final int hash;
+
+        public Key(Object... parts) {
+            int hash = 1;
+            for (final Object p : parts)
+                hash = 31 * hash + (p instanceof Expr
+                        ? System.identityHashCode(p)
+                        : Objects.hashCode(p));
+
+            this.parts = parts;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            final Key k = (Key) o;
+            if (this.hash != k.hash || this.parts.length != k.parts.length)
+                return false;
+
+            for (int i = 0; i < this.parts.length; ++i) {
+                final Object a = this.parts[i];
+                final Object b = k.parts[i];
+                if (a instanceof Expr ? a != b : !Objects.equals(a, b))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static final Match.Visitor<Object> PATTERN = new Match.Visitor<Object>() {
+
+        // patterns do not contain expressions, so plain lists will do.
+
+        @Override
+        public Object visitMatchAll(MatchAll m) {
+            return Arrays.asList(MatchAll.class, m.capture, m.slot);
+        }
+
+        @Override
+        public Object visitMatchBool(MatchBool m) {
+            return Arrays.asList(MatchBool.class, m.value);
+        }
+
+        @Override
+        public Object visitMatchCtor(MatchCtor m) {
+            return Arrays.asList(MatchCtor.class, m.ctor, m.tag, this.visit(m.args));
+        }
+
+        @Override
+        public Object visitMatchInt(MatchInt m) {
+            return Arrays.asList(MatchInt.class, m.getCtor());
+        }
+
+        @Override
+        public Object visitMatchString(MatchString m) {
+            return Arrays.asList(MatchString.class, m.value);
+        }
+
+        @Override
+        public Object visitMatchTup(MatchTup m) {
+            return Arrays.asList(MatchTup.class, this.visit(m.elements));
+        }
+
+        @Override
+        public Object visitMatchOr(MatchOr m) {
+            final List<Match> submatches = new ArrayList<>();
+            for (final Match s : m.submatches)
+                submatches.add(s);
+            return Arrays.asList(MatchOr.class, this.visit(submatches));
+        }
+
+        private List<Object> visit(List<Match> ms) {
+            final List<Object> keys = new ArrayList<>(ms.size());
+            for (final Match s : ms)
+                keys.add(s.accept(this));
+            return keys;
+        }
+    };
+
+    private final Map<Key, Expr> table = new HashMap<>();
+    private final Set<Expr> canonical = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public Expr intern(Expr e) {
+        // already interned nodes have interned children, so stop right away.
+        return this.canonical.contains(e) ? e : e.accept(this);
+    }
+
+    public int size() {
+        return this.table.size();
+    }
+
+    private <E extends Expr> E lookup(E e, Object... parts) {
+        @SuppressWarnings("unchecked")
+        final E prev = (E) this.table.putIfAbsent(new Key(parts), e);
+        if (prev != null)
+            return prev;
+
+        this.canonical.add(e);
+        return e;
+    }
+
+    private List<Expr> intern(List<? extends Expr> es, List<Object> parts) {
+        final List<Expr> result = new ArrayList<>(es.size());
+        for (final Expr e : es) {
+            final Expr r = this.intern(e);
+            result.add(r);
+            parts.add(r);
+        }
+        return result;
+    }
+
+    private static boolean same(List<? extends Expr> a, List<? extends Expr> b) {
+        for (int i = 0; i < a.size(); ++i)
+            if (a.get(i) != b.get(i))
+                return false;
+        return true;
+    }
+
+    private static List<EVar> castVars(List<Expr> vs) {
+        final List<EVar> result = new ArrayList<>(vs.size());
+        for (final Expr v : vs)
+            result.add((EVar) v);
+        return result;
+    }
+
+    @Override
+    public Expr visitEBool(EBool e) {
+        return this.lookup(e, EBool.class, e.value);
+    }
+
+    @Override
+    public Expr visitECtor(ECtor e) {
+        final List<Object> parts = new ArrayList<>(e.args.size() + 3);
+        parts.add(ECtor.class);
+        parts.add(e.id);
+        parts.add(e.tag);
+        final List<Expr> args = this.intern(e.args, parts);
+
+        final ECtor node = same(e.args, args) ? e : new ECtor(e.id, args, e.tag);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEInt(EInt e) {
+        return this.lookup(e, EInt.class, e.word, e.value, e.type);
+    }
+
+    @Override
+    public Expr visitEString(EString e) {
+        return this.lookup(e, EString.class, e.value);
+    }
+
+    @Override
+    public Expr visitETup(ETup e) {
+        final List<Object> parts = new ArrayList<>(e.elements.size() + 1);
+        parts.add(ETup.class);
+        final List<Expr> elements = this.intern(e.elements, parts);
+
+        final ETup node = same(e.elements, elements) ? e : new ETup(elements);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEMatch(EMatch e) {
+        final List<Object> parts = new ArrayList<>(e.cases.size() * 2 + 2);
+        parts.add(EMatch.class);
+
+        final Expr scrutinee = this.intern(e.scrutinee);
+        parts.add(scrutinee);
+        boolean modified = scrutinee != e.scrutinee;
+
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(e.cases.size());
+        for (final Map.Entry<Match, Expr> k : e.cases) {
+            final Expr action = this.intern(k.getValue());
+            modified |= action != k.getValue();
+            cases.add(Map.entry(k.getKey(), action));
+            parts.add(k.getKey().accept(PATTERN));
+            parts.add(action);
+        }
+
+        final EMatch node = !modified ? e : new EMatch(scrutinee, cases);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEVar(EVar e) {
+        return this.lookup(e, EVar.class, e.name, e.depth, e.slot);
+    }
+
+    @Override
+    public Expr visitELam(ELam e) {
+        final List<Object> parts = new ArrayList<>(e.params.size() + 4);
+        parts.add(ELam.class);
+        final List<Expr> params = this.intern(e.params, parts);
+        final Expr body = this.intern(e.body);
+        parts.add(body);
+        parts.add(e.captures);
+        parts.add(e.frameSize);
+
+        final ELam node = same(e.params, params) && body == e.body
+                ? e : new ELam(castVars(params), body, e.captures, e.frameSize);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEApp(EApp e) {
+        final List<Object> parts = new ArrayList<>(e.args.size() + 2);
+        parts.add(EApp.class);
+        final Expr f = this.intern(e.f);
+        parts.add(f);
+        final List<Expr> args = this.intern(e.args, parts);
+
+        final EApp node = f == e.f && same(e.args, args) ? e : new EApp(f, args);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitELet(ELet e) {
+        final EVar bind = (EVar) this.intern(e.bind);
+        final Expr value = this.intern(e.value);
+        final Expr body = this.intern(e.body);
+
+        final ELet node = bind == e.bind && value == e.value && body == e.body
+                ? e : new ELet(bind, value, body);
+        return this.lookup(node, ELet.class, bind, value, body);
+    }
+
+    @Override
+    public Expr visitELetrec(ELetrec e) {
+        // the bindings are unordered, so sort them to get a stable key.
+        final List<EVar> names = new ArrayList<>(e.binds.keySet());
+        names.sort(Comparator.comparing(v -> v.name));
+
+        final List<Object> parts = new ArrayList<>(names.size() * 2 + 2);
+        parts.add(ELetrec.class);
+
+        boolean modified = false;
+        final Map<EVar, Expr> binds = new HashMap<>();
+        for (final EVar name : names) {
+            final Expr value = e.binds.get(name);
+            final EVar rname = (EVar) this.intern(name);
+            final Expr rvalue = this.intern(value);
+            modified |= rname != name || rvalue != value;
+            binds.put(rname, rvalue);
+            parts.add(rname);
+            parts.add(rvalue);
+        }
+
+        final Expr body = this.intern(e.body);
+        modified |= body != e.body;
+        parts.add(body);
+
+        final ELetrec node = !modified ? e : new ELetrec(binds, body);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEErr(EErr e) {
+        final Expr value = this.intern(e.value);
+
+        final EErr node = value == e.value ? e : new EErr(value);
+        return this.lookup(node, EErr.class, value);
+    }
+
+    @Override
+    public Expr visitEPrim(EPrim e) {
+        final List<Object> parts = new ArrayList<>(e.args.size() + 3);
+        parts.add(EPrim.class);
+        parts.add(e.op);
+        parts.add(e.type);
+        final List<Expr> args = this.intern(e.args, parts);
+
+        final EPrim node = same(e.args, args) ? e : new EPrim(e.op, e.type, args);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEJoin(EJoin e) {
+        final List<Object> parts = new ArrayList<>(e.params.size() + 4);
+        parts.add(EJoin.class);
+        final EVar name = (EVar) this.intern(e.name);
+        parts.add(name);
+        final List<Expr> params = this.intern(e.params, parts);
+        final Expr body = this.intern(e.body);
+        final Expr rest = this.intern(e.rest);
+        parts.add(body);
+        parts.add(rest);
+
+        final EJoin node = name == e.name && same(e.params, params) && body == e.body && rest == e.rest
+                ? e : new EJoin(name, castVars(params), body, rest);
+        return this.lookup(node, parts.toArray());
+    }
+
+    @Override
+    public Expr visitEJump(EJump e) {
+        final List<Object> parts = new ArrayList<>(e.args.size() + 2);
+        parts.add(EJump.class);
+        final EVar target = (EVar) this.intern(e.target);
+        parts.add(target);
+        final List<Expr> args = this.intern(e.args, parts);
+
+        final EJump node = target == e.target && same(e.args, args) ? e : new EJump(target, args);
+        return this.lookup(node, parts.toArray());
+    }
+}
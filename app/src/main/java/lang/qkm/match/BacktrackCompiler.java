@@ -0,0 +1,138 @@
+package lang.qkm.match;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.*;
+import lang.qkm.expr.*;
+import lang.qkm.util.SList;
+
+public final class BacktrackCompiler {
+
+    // compiles a match into a backtracking automaton instead of a decision
+    // tree: the rows are tried one after the other and each one tests its
+    // patterns from left to right. a failed test jumps to the next row,
+    // which may then test the same value again. the result is slower than
+    // a tree but its size is linear in the size of the patterns, which is
+    // not the case for trees.
+    //
+    // the alternatives of an or pattern are tried the same way, and the
+    // rest of the row becomes a join point all of them jump to.
+
+    private BigInteger id = BigInteger.ZERO;
+
+    public static int size(List<Map.Entry<Match, Expr>> cases) {
+        // the number of tests in the automaton.
+        int size = 0;
+        for (final Map.Entry<Match, Expr> k : cases)
+            size += size(k.getKey());
+        return size;
+    }
+
+    private static int size(Match m) {
+        if (m instanceof MatchAll)
+            return 0;
+
+        int size = 0;
+        if (m instanceof MatchOr) {
+            for (final Match submatch : ((MatchOr) m).submatches)
+                size += size(submatch);
+            return size;
+        }
+
+        for (final Match arg : m.getArgs())
+            size += size(arg);
+        return size + 1;
+    }
+
+    private EVar newName(String prefix) {
+        return new EVar(prefix + (this.id = this.id.add(BigInteger.ONE)));
+    }
+
+    public MatchAll wildcard() {
+        return new MatchAll(this.newName("`p").name);
+    }
+
+    public Expr compile(Expr scrutinee, List<Map.Entry<Match, Expr>> cases) {
+        // the rows after one that always matches are never tried.
+        final List<Function<Expr, Expr>> rows = new ArrayList<>(cases.size());
+        for (final Map.Entry<Match, Expr> k : cases) {
+            final Match m = k.getKey().simplify();
+            final SList<Map.Entry<Expr, Match>> work = SList.of(Map.entry(scrutinee, m));
+            rows.add(fail -> this.test(work, k.getValue(), fail));
+            if (m instanceof MatchAll)
+                break;
+        }
+
+        final Expr failure = new EErr(new EString("Match failure!"));
+        return rows.isEmpty() ? failure : this.attempt(rows, failure);
+    }
+
+    private Expr attempt(List<Function<Expr, Expr>> attempts, Expr fail) {
+        // join a_n () = (attempt n, on failure fail) in ...
+        // join a_2 () = (attempt 2, on failure jump a_3) in
+        // (attempt 1, on failure jump a_2)
+        final int n = attempts.size();
+        final EVar[] names = new EVar[n];
+        final Expr[] bodies = new Expr[n];
+        for (int i = n; i-- > 1; ) {
+            names[i] = this.newName("`f");
+            bodies[i] = attempts.get(i).apply(fail);
+            fail = new EJump(names[i], List.of());
+        }
+
+        Expr acc = attempts.get(0).apply(fail);
+        for (int i = 1; i < n; ++i)
+            acc = new EJoin(names[i], List.of(), bodies[i], acc);
+        return acc;
+    }
+
+    private Expr test(SList<Map.Entry<Expr, Match>> work, Expr success, Expr fail) {
+        if (work.isEmpty())
+            return success;
+
+        final Expr scrutinee = work.head().getKey();
+        final Match m = work.head().getValue();
+        final SList<Map.Entry<Expr, Match>> rest = work.tail();
+
+        if (m instanceof MatchAll) {
+            final String capture = ((MatchAll) m).capture;
+            final Expr body = this.test(rest, success, fail);
+            return capture == null ? body : new ELet(new EVar(capture), scrutinee, body);
+        }
+
+        if (m instanceof MatchOr) {
+            // join k captures = (the rest of the row) in
+            // (try the alternatives, each jumps to k when it matches)
+            final EVar k = this.newName("`k");
+            final List<EVar> captures = m.getCaptures()
+                    .distinct()
+                    .map(EVar::new)
+                    .collect(Collectors.toList());
+            final Expr matched = new EJump(k, captures);
+
+            final List<Function<Expr, Expr>> alternatives = new ArrayList<>();
+            for (final Match submatch : ((MatchOr) m).submatches) {
+                final SList<Map.Entry<Expr, Match>> alternative = SList.of(Map.entry(scrutinee, submatch));
+                alternatives.add(otherwise -> this.test(alternative, matched, otherwise));
+            }
+
+            return new EJoin(k, captures,
+                    this.test(rest, success, fail),
+                    this.attempt(alternatives, fail));
+        }
+
+        // match s with C p1 ... pn -> (test the arguments) | _ -> fail
+        final Match ctor = m.toWildcard(this::wildcard);
+        final List<Map.Entry<Expr, Match>> args = new ArrayList<>();
+        for (int i = 0; i < m.getArgs().size(); ++i) {
+            final Match arg = m.getArgs().get(i);
+            if (!(arg instanceof MatchAll) || ((MatchAll) arg).capture != null)
+                args.add(Map.entry(new EVar(((MatchAll) ctor.getArgs().get(i)).capture), arg));
+        }
+
+        return new EMatch(scrutinee, List.of(
+                Map.entry(ctor, this.test(rest.prependAll(args), success, fail)),
+                Map.entry(new MatchAll(), fail)));
+    }
+}
@@ -0,0 +1,116 @@
+package lang.qkm.match;
+
+import java.util.*;
+
+public final class CaseTable {
+
+    // for each possible head of the scrutinee, the indices of the cases that
+    // could match it in the order they appear in the match. cases with a
+    // different constructor or literal at the top are never attempted, so
+    // they never get to bind anything either.
+    //
+    // constructors are looked up by tag when every constructor pattern has
+    // one, anything else (literals, untagged constructors) is hashed on
+    // Match.getCtor. scrutinees without a head (tuples, closures) or with a
+    // head that is not mentioned at all fall back to the remaining cases.
+
+    private static final int[][] NO_TAGS = new int[0][];
+
+    private final int[][] byTag;
+    private final Map<Object, int[]> byCtor;
+    private final int[] fallback;
+    private final int[] all;
+
+    public CaseTable(List<? extends Match> patterns) {
+        final int sz = patterns.size();
+        final List<Set<Object>> heads = new ArrayList<>(sz);
+        final Set<Object> keys = new HashSet<>();
+        final Map<Integer, String> tags = new HashMap<>();
+
+        int maxTag = -1;
+        boolean tagged = true;
+        for (final Match p : patterns) {
+            final Set<Object> h = heads(p, tags);
+            heads.add(h);
+            if (h == null)
+                continue;
+
+            keys.addAll(h);
+            for (final Object k : h) {
+                if (!(k instanceof String) || !tags.containsValue(k))
+                    tagged = false;
+            }
+        }
+
+        for (final int t : tags.keySet())
+            maxTag = Math.max(maxTag, t);
+
+        this.all = new int[sz];
+        for (int i = 0; i < sz; ++i)
+            this.all[i] = i;
+
+        this.fallback = select(heads, null);
+        this.byCtor = new HashMap<>();
+        for (final Object k : keys)
+            this.byCtor.put(k, select(heads, k));
+
+        if (!tagged || maxTag < 0)
+            this.byTag = NO_TAGS;
+        else {
+            this.byTag = new int[maxTag + 1][];
+            for (int i = 0; i <= maxTag; ++i)
+                this.byTag[i] = tags.containsKey(i)
+                        ? this.byCtor.get(tags.get(i))
+                        : this.fallback;
+        }
+    }
+
+    private static Set<Object> heads(Match m, Map<Integer, String> tags) {
+        // null means the pattern does not look at the head at all.
+        if (m instanceof MatchCtor) {
+            final MatchCtor c = (MatchCtor) m;
+            if (c.tag >= 0)
+                tags.put(c.tag, c.ctor);
+            return Set.of(c.ctor);
+        }
+
+        if (m instanceof MatchBool || m instanceof MatchInt || m instanceof MatchString)
+            return Set.of(m.getCtor());
+
+        if (m instanceof MatchOr) {
+            final Set<Object> acc = new HashSet<>();
+            for (final Match k : ((MatchOr) m).submatches) {
+                final Set<Object> h = heads(k, tags);
+                if (h == null)
+                    return null;
+                acc.addAll(h);
+            }
+            return acc;
+        }
+
+        return null;
+    }
+
+    private static int[] select(List<Set<Object>> heads, Object key) {
+        final int[] acc = new int[heads.size()];
+        int len = 0;
+        for (int i = 0; i < acc.length; ++i) {
+            final Set<Object> h = heads.get(i);
+            if (h == null || key != null && h.contains(key))
+                acc[len++] = i;
+        }
+        return Arrays.copyOf(acc, len);
+    }
+
+    public int[] select(int tag, Object ctor) {
+        // tag is the tag of the constructor being matched (or -1) and ctor
+        // is the same key that Match.getCtor would have produced.
+        if (tag >= 0 && this.byTag != NO_TAGS)
+            return tag < this.byTag.length ? this.byTag[tag] : this.fallback;
+        if (ctor == null)
+            return this.all;
+
+        final int[] cases = this.byCtor.get(ctor);
+        return cases != null ? cases : this.fallback;
+    }
+}
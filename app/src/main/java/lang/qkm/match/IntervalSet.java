@@ -0,0 +1,95 @@
+package lang.qkm.match;
+
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.type.Type;
+
+public final class IntervalSet implements CtorSet {
+
+    // the integers from min to max (inclusive), which is what iN looks like
+    // to the match checker. the literals span it if, once sorted, they leave
+    // no gap between the bounds. that takes O(k log k) for k literals no
+    // matter how many values there are.
+    //
+    // the constructors are longs if the bounds fit in one (see MatchInt) and
+    // BigIntegers otherwise.
+
+    public final BigInteger min;
+    public final BigInteger max;
+
+    private final boolean word;
+    private final long wordMin;
+    private final long wordMax;
+
+    private final BigInteger size;
+
+    public IntervalSet(BigInteger min, BigInteger max) {
+        if (min.compareTo(max) > 0)
+            throw new IllegalArgumentException("Empty interval " + min + " to " + max);
+
+        this.min = min;
+        this.max = max;
+        this.word = min.bitLength() < 64 && max.bitLength() < 64;
+        this.wordMin = min.longValue();
+        this.wordMax = max.longValue();
+        this.size = max.subtract(min).add(BigInteger.ONE);
+    }
+
+    @Override
+    public Optional<Boolean> sameSize(int sz) {
+        return Optional.of(this.size.bitLength() < 32 && this.size.intValue() == sz);
+    }
+
+    @Override
+    public Object missingCase(Collection<?> c) {
+        // the smallest value that is not in c.
+        if (this.word) {
+            final long[] values = new long[c.size()];
+            int n = 0;
+            for (final Object v : c)
+                values[n++] = (Long) v;
+            Arrays.sort(values);
+
+            long next = this.wordMin;
+            for (final long v : values) {
+                if (v > next)
+                    break;
+                if (v == next) {
+                    if (v == this.wordMax)
+                        return null;
+                    next++;
+                }
+            }
+            return next;
+        }
+
+        final BigInteger[] values = new BigInteger[c.size()];
+        int n = 0;
+        for (final Object v : c)
+            values[n++] = (BigInteger) v;
+        Arrays.sort(values);
+
+        BigInteger next = this.min;
+        for (final BigInteger v : values) {
+            final int cmp = v.compareTo(next);
+            if (cmp > 0)
+                break;
+            if (cmp == 0) {
+                if (v.equals(this.max))
+                    return null;
+                next = next.add(BigInteger.ONE);
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public List<? extends Type> getArgs(Object id) {
+        return List.of();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + this.min + ", " + this.max + "]";
+    }
+}
@@ -7,15 +7,24 @@ public final class MatchAll implements Match {
 
     public final String capture;
 
+    // frame slot of the capture assigned by the resolver, -1 if unresolved.
+    public final int slot;
+
     public MatchAll() {
         this.capture = null;
+        this.slot = -1;
     }
 
     public MatchAll(String capture) {
+        this(capture, -1);
+    }
+
+    public MatchAll(String capture, int slot) {
         if (capture == null)
             throw new IllegalArgumentException("Illegal null capture variable");
 
         this.capture = capture;
+        this.slot = slot;
     }
 
     @Override
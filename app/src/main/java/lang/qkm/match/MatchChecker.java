@@ -26,13 +26,7 @@ public final class MatchChecker {
 
                 if (range != null && range.isComplete()) {
                     ctors = firstCtors(ps);
-
-                    final Optional<Boolean> fastPath;
-                    if (ctors.size() < Integer.MAX_VALUE
-                            && (fastPath = range.sameSize(ctors.size())).isPresent())
-                        spans = fastPath.get();
-                    else
-                        spans = range.missingCase(ctors) == null;
+                    spans = spans(range, ctors);
                 }
 
                 if (!spans) {
@@ -121,13 +115,7 @@ public final class MatchChecker {
 
         if (range.isComplete()) {
             ctors = firstCtors(ps);
-
-            final Optional<Boolean> fastPath;
-            if (ctors.size() < Integer.MAX_VALUE
-                    && (fastPath = range.sameSize(ctors.size())).isPresent())
-                spans = fastPath.get();
-            else
-                spans = range.missingCase(ctors) == null;
+            spans = spans(range, ctors);
         }
 
         if (!spans) {
@@ -136,15 +124,7 @@ public final class MatchChecker {
                 return null;
 
             final Object missing = range.missingCase(firstCtors(ps));
-            final List<?> args = range.getArgs(missing);
-            if (args.isEmpty())
-                return result.prepend(missing.toString());
-
-            final StringBuilder sb = new StringBuilder();
-            sb.append(missing);
-            for (final Object arg : args)
-                sb.append(" _");
-            return result.prepend(sb.toString());
+            return prependMissing(missing, range.getArgs(missing), result);
         }
 
         // regardless of if all possible constructors appear at least
@@ -157,33 +137,61 @@ public final class MatchChecker {
 
             final List<SList<Match>> subPs = specialized(ps, ctor, argMs);
             final SList<Type> subQs = qs.tail().prependAll(argTys);
-            SList<String> result = missingMatch(subPs, subQs);
+            final SList<String> result = missingMatch(subPs, subQs);
             if (result == null)
                 // this one is exhaustive, try another one
                 continue;
 
-            final StringBuilder sb = new StringBuilder();
-            if (ctor == TyTup.class) {
-                for (final Type arg : argTys) {
-                    sb.append(", ").append(result.head());
-                    result = result.tail();
-                }
-                sb.replace(0, 2, "(").append(')');
-            } else {
-                sb.append(ctor);
-                for (final Type arg : argTys) {
-                    sb.append(" (").append(result.head()).append(')');
-                    result = result.tail();
-                }
-            }
-
-            return result.prepend(sb.toString());
+            return prependCtor(ctor, argTys.size(), result);
         }
 
         // reaching here means it was exhaustive
         return null;
     }
 
+    /* package */ static boolean spans(CtorSet range, Set<? extends Object> ctors) {
+        // range must be complete.
+        final Optional<Boolean> fastPath;
+        if (ctors.size() < Integer.MAX_VALUE
+                && (fastPath = range.sameSize(ctors.size())).isPresent())
+            return fastPath.get();
+        return range.missingCase(ctors) == null;
+    }
+
+    /* package */ static SList<String> prependMissing(Object missing, List<?> args, SList<String> result) {
+        // a constructor that none of the rows test, its arguments can be
+        // anything.
+        if (args.isEmpty())
+            return result.prepend(missing.toString());
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(missing);
+        for (final Object arg : args)
+            sb.append(" _");
+        return result.prepend(sb.toString());
+    }
+
+    /* package */ static SList<String> prependCtor(Object ctor, int arity, SList<String> result) {
+        // the first arity entries of result are what is missing from the
+        // arguments of ctor.
+        final StringBuilder sb = new StringBuilder();
+        if (ctor == TyTup.class) {
+            for (int i = 0; i < arity; ++i) {
+                sb.append(", ").append(result.head());
+                result = result.tail();
+            }
+            sb.replace(0, 2, "(").append(')');
+        } else {
+            sb.append(ctor);
+            for (int i = 0; i < arity; ++i) {
+                sb.append(" (").append(result.head()).append(')');
+                result = result.tail();
+            }
+        }
+
+        return result.prepend(sb.toString());
+    }
+
     public static Set<? extends Object> firstCtors(List<SList<Match>> cases) {
         final Set<Object> ctors = new HashSet<>();
         for (final SList<Match> k : cases)
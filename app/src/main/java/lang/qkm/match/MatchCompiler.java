@@ -5,65 +5,322 @@ import java.util.*;
 import java.util.stream.*;
 import lang.qkm.expr.*;
 import lang.qkm.type.*;
+import lang.qkm.util.SList;
 
 public final class MatchCompiler {
 
-    private final Map<Expr, Map<String, Expr>> bindings = new HashMap<>();
+    // the column to split on is picked by the heuristics of Maranget's
+    // "Compiling Pattern Matching to Good Decision Trees". each one scores
+    // the columns, and only the best ones are passed on to the next. the
+    // leftmost of whatever remains is used, which is all there is to the
+    // FIRST_ROW strategy. columns of only wildcards are never picked.
+
+    public enum Heuristic {
+
+        // prefer the columns the first row tests.
+        FIRST_ROW {
+            @Override
+            public int score(List<List<Match>> rows, int column) {
+                return isWildcard(rows.get(0).get(column)) ? 0 : 1;
+            }
+        },
+
+        // prefer the columns tested by the longest run of rows from the top.
+        NEEDED_PREFIX {
+            @Override
+            public int score(List<List<Match>> rows, int column) {
+                int n = 0;
+                for (final List<Match> row : rows) {
+                    if (isWildcard(row.get(column)))
+                        break;
+                    n++;
+                }
+                return n;
+            }
+        },
+
+        // prefer the columns with the fewest distinct constructors. the
+        // signatures are not known here, so the default case is not counted.
+        SMALL_BRANCHING {
+            @Override
+            public int score(List<List<Match>> rows, int column) {
+                return -ctors(rows, column).size();
+            }
+        },
+
+        // prefer the columns whose constructors have the fewest arguments.
+        ARITY {
+            @Override
+            public int score(List<List<Match>> rows, int column) {
+                int n = 0;
+                for (final int arity : ctors(rows, column).values())
+                    n += arity;
+                return -n;
+            }
+        };
+
+        public abstract int score(List<List<Match>> rows, int column);
+    }
+
+    // the old behavior, splits on the first column the first row tests.
+    public static final List<Heuristic> LEFTMOST = List.of(Heuristic.FIRST_ROW);
+
+    // what Maranget recommends, and what is used by default.
+    public static final List<Heuristic> PBA = List.of(
+            Heuristic.NEEDED_PREFIX, Heuristic.SMALL_BRANCHING, Heuristic.ARITY);
+
+    // a row of the matrix. the wildcards consumed on the way to it are kept
+    // with the row itself, so equal rows mean the same thing wherever they
+    // show up and the leaves do not depend on the path that reached them.
+    private static final class Row {
+
+        public final List<Match> patterns;
+        public final Expr action;
+
+        // the latest capture comes first.
+        public final SList<Map.Entry<String, Expr>> captures;
+
+        public Row(List<Match> patterns, Expr action, SList<Map.Entry<String, Expr>> captures) {
+            this.patterns = patterns;
+            this.action = action;
+            this.captures = captures;
+        }
+
+        public Row consume(List<Match> patterns, Match m, Expr scrutinee) {
+            final String capture = ((MatchAll) m).capture;
+            return new Row(patterns, this.action, capture == null
+                    ? this.captures
+                    : this.captures.prepend(Map.entry(capture, scrutinee)));
+        }
+    }
+
+    // identical sub-problems show up along many paths, most of all after or
+    // patterns are expanded, and are only compiled once. they are keyed on
+    // the input and the rows, where the actions are numbered by identity
+    // since expressions are not compared structurally.
+    private final Map<List<Object>, Expr> memo = new HashMap<>();
+    private final Map<Expr, Integer> actions = new IdentityHashMap<>();
+
+    // the tests that were built and the names they bind.
+    private final Set<Expr> tests = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<EVar> generated = new HashSet<>();
+
+    // thrown once the tree has more tests than the limit.
+    private static final class TooLarge extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TooLarge() {
+            super(null, null, false, false);
+        }
+    }
+
+    private int limit = Integer.MAX_VALUE;
+
+    // shares identical leaves of the decision tree if not null.
+    private final HashCons shared;
+
+    private final List<Heuristic> heuristics;
 
     private BigInteger id = BigInteger.ZERO;
 
+    public MatchCompiler() {
+        this(null);
+    }
+
+    public MatchCompiler(HashCons shared) {
+        this(shared, PBA);
+    }
+
+    public MatchCompiler(HashCons shared, List<Heuristic> heuristics) {
+        this.shared = shared;
+        this.heuristics = heuristics;
+    }
+
+    private static boolean isWildcard(Match m) {
+        return m instanceof MatchAll;
+    }
+
+    private static Map<Object, Integer> ctors(List<List<Match>> rows, int column) {
+        // the constructors tested by a column and their arities, or patterns
+        // have not been expanded yet.
+        final Map<Object, Integer> ctors = new HashMap<>();
+        final ArrayDeque<Match> pending = new ArrayDeque<>();
+        for (final List<Match> row : rows) {
+            pending.push(row.get(column));
+            while (!pending.isEmpty()) {
+                final Match m = pending.pop();
+                if (m instanceof MatchOr) {
+                    for (final Match submatch : ((MatchOr) m).submatches)
+                        pending.push(submatch);
+                } else if (!isWildcard(m)) {
+                    ctors.putIfAbsent(m.getCtor(), m.getArgs().size());
+                }
+            }
+        }
+        return ctors;
+    }
+
+    private int select(List<Row> cases) {
+        final List<List<Match>> rows = cases.stream()
+                .map(row -> row.patterns)
+                .collect(Collectors.toList());
+
+        final int width = rows.get(0).size();
+        List<Integer> candidates = new ArrayList<>(width);
+        for (int column = 0; column < width; ++column) {
+            for (final List<Match> row : rows) {
+                if (!isWildcard(row.get(column))) {
+                    candidates.add(column);
+                    break;
+                }
+            }
+        }
+
+        for (final Heuristic h : this.heuristics) {
+            if (candidates.size() < 2)
+                break;
+
+            int best = Integer.MIN_VALUE;
+            final List<Integer> next = new ArrayList<>(candidates.size());
+            for (final int column : candidates) {
+                final int score = h.score(rows, column);
+                if (score > best) {
+                    best = score;
+                    next.clear();
+                }
+                if (score == best)
+                    next.add(column);
+            }
+            candidates = next;
+        }
+
+        return candidates.get(0);
+    }
+
+    private Expr share(Expr e) {
+        return this.shared == null ? e : this.shared.intern(e);
+    }
+
+    private BigInteger nextId() {
+        return this.id = this.id.add(BigInteger.ONE);
+    }
+
     public MatchAll wildcard() {
-        return new MatchAll("`p" + (this.id = this.id.add(BigInteger.ONE)));
+        final MatchAll m = new MatchAll("`p" + this.nextId());
+        this.generated.add(new EVar(m.capture));
+        return m;
+    }
+
+    private Match toWildcard(Match m, List<MatchAll> fields) {
+        // the arms of a test are different paths, so they can all bind the
+        // same names for the fields. the rows below them then look alike
+        // more often.
+        final int[] next = { 0 };
+        return m.toWildcard(() -> {
+            if (next[0] == fields.size())
+                fields.add(this.wildcard());
+            return fields.get(next[0]++);
+        });
     }
 
     public Expr compile(Expr scrutinee, List<Map.Entry<Match, Expr>> cases) {
-        return this.compile(List.of(scrutinee), cases.stream()
-                .map(p -> Map.entry(List.of(p.getKey().simplify()), p.getValue()))
-                .collect(Collectors.toList()));
+        return this.compile(scrutinee, cases, Integer.MAX_VALUE);
+    }
+
+    public Expr compile(Expr scrutinee, List<Map.Entry<Match, Expr>> cases, int limit) {
+        // returns null if the tree would need more than limit tests, the
+        // work done is bounded by the limit too.
+        this.limit = limit;
+        try {
+            return this.join(this.compile(List.of(scrutinee), cases.stream()
+                    .map(p -> new Row(List.of(p.getKey().simplify()), p.getValue(), SList.empty()))
+                    .collect(Collectors.toList())));
+        } catch (TooLarge ex) {
+            return null;
+        } finally {
+            this.memo.clear();
+            this.actions.clear();
+            this.tests.clear();
+            this.generated.clear();
+        }
+    }
+
+    private List<Object> key(List<Expr> input, List<Row> cases) {
+        final List<Object> key = new ArrayList<>(input.size() + cases.size());
+        for (final Expr e : input)
+            key.add(e.toString());
+
+        for (final Row row : cases) {
+            final List<Object> part = new ArrayList<>(row.patterns.size() + 2);
+            for (final Match m : row.patterns)
+                part.add(m.toString());
+            part.add(this.actions.computeIfAbsent(row.action, k -> this.actions.size()));
+
+            final List<String> captures = new ArrayList<>();
+            for (final Map.Entry<String, Expr> pair : row.captures) {
+                captures.add(pair.getKey());
+                captures.add(pair.getValue().toString());
+            }
+            part.add(captures);
+            key.add(part);
+        }
+        return key;
     }
 
-    private Expr compile(List<Expr> input, List<Map.Entry<List<Match>, Expr>> cases) {
+    private Expr compile(List<Expr> input, List<Row> cases) {
+        final List<Object> key = this.key(input, cases);
+        Expr result = this.memo.get(key);
+        if (result == null) {
+            result = this.split(input, cases);
+            this.memo.put(key, result);
+        }
+        return result;
+    }
+
+    private Expr split(List<Expr> input, List<Row> cases) {
         if (cases.isEmpty())
-            return new EErr(new EString("Match failure!"));
+            return this.share(new EErr(new EString("Match failure!")));
 
-        int column = -1;
         boolean allWildcard = true;
-        for (final Match m : cases.get(0).getKey()) {
-            column++;
-            if (!(allWildcard &= m instanceof MatchAll))
-                break;
-        }
+        for (final Match m : cases.get(0).patterns)
+            allWildcard &= isWildcard(m);
 
         if (allWildcard) {
-            final Map.Entry<List<Match>, Expr> row = cases.get(0);
-            Expr action = row.getValue();
-            final Map<String, Expr> captures = this.bindings.computeIfAbsent(action, k -> new HashMap<>());
+            final Row row = cases.get(0);
+            SList<Map.Entry<String, Expr>> captures = row.captures;
 
             // iterate the columns to make sure we are capturing if necessary
             final Iterator<Expr> itInput = input.iterator();
-            final Iterator<Match> itMatch = row.getKey().iterator();
+            final Iterator<Match> itMatch = row.patterns.iterator();
             while (itInput.hasNext() && itMatch.hasNext()) {
                 final Expr scrutinee = itInput.next();
                 final MatchAll match = (MatchAll) itMatch.next();
                 if (match.capture != null)
-                    captures.put(match.capture, scrutinee);
+                    captures = captures.prepend(Map.entry(match.capture, scrutinee));
             }
 
-            for (final Map.Entry<String, Expr> pair : captures.entrySet())
-                action = new ELet(new EVar(pair.getKey()), pair.getValue(), action);
+            // only the latest capture of a name counts.
+            Expr action = row.action;
+            final Set<String> bound = new HashSet<>();
+            for (final Map.Entry<String, Expr> pair : captures)
+                if (bound.add(pair.getKey()))
+                    action = new ELet(new EVar(pair.getKey()), pair.getValue(), action);
 
-            return action;
+            return this.share(action);
         }
 
         // deal with or patterns by expanding them.
+        final int column = this.select(cases);
         cases = flatten(cases, column);
         final Expr scrutinee = input.get(column);
 
+        final List<MatchAll> fields = new ArrayList<>();
         final Map<Object, Match> ctors = new HashMap<>();
-        for (final Map.Entry<List<Match>, Expr> k : cases) {
-            final Match m = k.getKey().get(column);
+        for (final Row k : cases) {
+            final Match m = k.patterns.get(column);
             if (!(m instanceof MatchAll))
-                ctors.computeIfAbsent(m.getCtor(), _ign -> m.toWildcard(this::wildcard));
+                ctors.computeIfAbsent(m.getCtor(), _ign -> this.toWildcard(m, fields));
         }
 
         final List<Map.Entry<Match, Expr>> newCases = new ArrayList<>(ctors.size() + 1);
@@ -86,24 +343,88 @@ public final class MatchCompiler {
 
         newCases.add(Map.entry(guard, this.compile(newInput, this.defaulted(cases, column, scrutinee))));
 
-        return new EMatch(scrutinee, newCases);
+        final Expr result = this.share(new EMatch(scrutinee, newCases));
+        if (this.tests.add(result) && this.tests.size() > this.limit)
+            throw new TooLarge();
+        return result;
+    }
+
+    private Expr join(Expr root) {
+        // the memo turns the tree into a dag. every test that is reached
+        // along more than one path becomes a join point which takes the
+        // names bound above it, and the paths jump to it instead. a join
+        // point is only jumped to from below the ones it jumps to, so they
+        // are bound in the order they are finished.
+        final Map<Expr, Integer> refs = new IdentityHashMap<>();
+        this.count(root, refs);
+
+        final Map<Expr, Expr> done = new IdentityHashMap<>();
+        final List<EJump> jumps = new ArrayList<>();
+        final List<Expr> bodies = new ArrayList<>();
+        Expr result = this.unshare(root, refs, done, jumps, bodies);
+
+        for (int i = jumps.size(); i-- > 0; ) {
+            final EJump jump = jumps.get(i);
+            final List<EVar> params = jump.args.stream()
+                    .map(EVar.class::cast)
+                    .collect(Collectors.toList());
+            result = new EJoin(jump.target, params, bodies.get(i), result);
+        }
+        return result;
+    }
+
+    private void count(Expr e, Map<Expr, Integer> refs) {
+        if (this.tests.contains(e) && refs.merge(e, 1, Integer::sum) == 1)
+            for (final Map.Entry<Match, Expr> k : ((EMatch) e).cases)
+                this.count(k.getValue(), refs);
+    }
+
+    private Expr unshare(Expr e, Map<Expr, Integer> refs, Map<Expr, Expr> done,
+                         List<EJump> jumps, List<Expr> bodies) {
+        if (!this.tests.contains(e))
+            return e;
+
+        final Expr prev = done.get(e);
+        if (prev != null)
+            return prev;
+
+        final EMatch test = (EMatch) e;
+        boolean modified = false;
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(test.cases.size());
+        for (final Map.Entry<Match, Expr> k : test.cases) {
+            final Expr action = this.unshare(k.getValue(), refs, done, jumps, bodies);
+            modified |= action != k.getValue();
+            cases.add(Map.entry(k.getKey(), action));
+        }
+
+        Expr result = modified ? new EMatch(test.scrutinee, cases) : test;
+        if (refs.get(e) > 1) {
+            final List<EVar> params = result.fv()
+                    .filter(this.generated::contains)
+                    .collect(Collectors.toList());
+            jumps.add(new EJump(new EVar("`k" + this.nextId()), params));
+            bodies.add(result);
+            result = jumps.get(jumps.size() - 1);
+        }
+
+        done.put(e, result);
+        return result;
     }
 
-    private List<Map.Entry<List<Match>, Expr>> flatten(List<Map.Entry<List<Match>, Expr>> cases, int column) {
+    private static List<Row> flatten(List<Row> cases, int column) {
         for (;;) {
             boolean retry = false;
-            final List<Map.Entry<List<Match>, Expr>> result = new ArrayList<>(cases.size());
-            for (final Map.Entry<List<Match>, Expr> k : cases) {
-                final List<Match> row = k.getKey();
-                final Match m = row.get(column);
+            final List<Row> result = new ArrayList<>(cases.size());
+            for (final Row k : cases) {
+                final Match m = k.patterns.get(column);
                 if (!(m instanceof MatchOr))
                     result.add(k);
                 else {
                     retry = true;
                     for (final Match expansion : ((MatchOr) m).submatches) {
-                        final List<Match> copy = new ArrayList<>(row);
+                        final List<Match> copy = new ArrayList<>(k.patterns);
                         copy.set(column, expansion);
-                        result.add(Map.entry(copy, k.getValue()));
+                        result.add(new Row(copy, k.action, k.captures));
                     }
                 }
             }
@@ -115,59 +436,49 @@ public final class MatchCompiler {
         }
     }
 
-    private List<Map.Entry<List<Match>, Expr>> specialize(List<Map.Entry<List<Match>, Expr>> cases, int column, Match node, Expr scrutinee) {
-        final List<Map.Entry<List<Match>, Expr>> result = new ArrayList<>(cases.size());
+    private List<Row> specialize(List<Row> cases, int column, Match node, Expr scrutinee) {
+        final List<Row> result = new ArrayList<>(cases.size());
         final List<Match> args = node.getArgs();
 
-        for (final Map.Entry<List<Match>, Expr> pair : cases) {
-            final List<Match> oldRow = pair.getKey();
+        for (final Row row : cases) {
+            final List<Match> oldRow = row.patterns;
             final Match m = oldRow.get(column);
             if (m instanceof MatchAll) {
-                final MatchAll wildcard = (MatchAll) m;
-                if (wildcard.capture != null)
-                    this.bindings.computeIfAbsent(pair.getValue(), k -> new HashMap<>())
-                            .put(wildcard.capture, scrutinee);
-
                 final List<Match> newRow = new ArrayList<>(oldRow.size() - 1 + args.size());
                 newRow.addAll(oldRow.subList(0, column));
                 for (final Match exp : args)
                     newRow.add(new MatchAll());
                 newRow.addAll(oldRow.subList(column + 1, oldRow.size()));
-                result.add(Map.entry(newRow, pair.getValue()));
+                result.add(row.consume(newRow, m, scrutinee));
             } else if (m.getCtor().equals(node.getCtor())) {
                 final List<Match> newRow = new ArrayList<>(oldRow.size() - 1 + args.size());
                 newRow.addAll(oldRow.subList(0, column));
                 newRow.addAll(m.getArgs());
                 newRow.addAll(oldRow.subList(column + 1, oldRow.size()));
-                result.add(Map.entry(newRow, pair.getValue()));
+                result.add(new Row(newRow, row.action, row.captures));
             }
         }
         return result;
     }
 
-    private List<Map.Entry<List<Match>, Expr>> defaulted(List<Map.Entry<List<Match>, Expr>> cases, int column, Expr scrutinee) {
-        final List<Map.Entry<List<Match>, Expr>> result = new ArrayList<>(cases.size());
+    private List<Row> defaulted(List<Row> cases, int column, Expr scrutinee) {
+        final List<Row> result = new ArrayList<>(cases.size());
 
-        for (final Map.Entry<List<Match>, Expr> pair : cases) {
-            final List<Match> oldRow = pair.getKey();
+        for (final Row row : cases) {
+            final List<Match> oldRow = row.patterns;
             final Match m = oldRow.get(column);
             if (!(m instanceof MatchAll))
                 continue;
 
-            final MatchAll wildcard = (MatchAll) m;
-            if (wildcard.capture != null)
-                this.bindings.computeIfAbsent(pair.getValue(), k -> new HashMap<>())
-                        .put(wildcard.capture, scrutinee);
-
             if (column == 0)
-                result.add(Map.entry(oldRow.subList(1, oldRow.size()), pair.getValue()));
+                result.add(row.consume(oldRow.subList(1, oldRow.size()), m, scrutinee));
             else if (column == oldRow.size() - 1)
-                result.add(Map.entry(oldRow.subList(0, column), pair.getValue()));
+                result.add(row.consume(oldRow.subList(0, column), m, scrutinee));
             else {
                 final List<Match> newRow = new ArrayList<>(oldRow.size() - 1);
                 newRow.addAll(oldRow.subList(0, column));
                 newRow.addAll(oldRow.subList(column + 1, oldRow.size()));
-                result.add(Map.entry(newRow, pair.getValue()));
+                result.add(row.consume(newRow, m, scrutinee));
             }
         }
         return result;
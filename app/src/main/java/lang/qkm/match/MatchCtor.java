@@ -9,9 +9,17 @@ public final class MatchCtor implements Match {
     public final String ctor;
     public final List<Match> args;
 
+    // the position of the constructor within its enum or -1 if unknown.
+    public final int tag;
+
     public MatchCtor(String ctor, List<Match> args) {
+        this(ctor, args, -1);
+    }
+
+    public MatchCtor(String ctor, List<Match> args, int tag) {
         this.ctor = ctor;
         this.args = args;
+        this.tag = tag;
     }
 
     @Override
@@ -38,7 +46,7 @@ public final class MatchCtor implements Match {
     public Match toWildcard(Supplier<? extends Match> gen) {
         return new MatchCtor(this.ctor, this.args.stream()
                 .map(k -> gen.get())
-                .collect(Collectors.toList()));
+                .collect(Collectors.toList()), this.tag);
     }
 
     @Override
@@ -48,7 +56,7 @@ public final class MatchCtor implements Match {
 
         return new MatchCtor(this.ctor, this.args.stream()
                 .map(Match::simplify)
-                .collect(Collectors.toList()));
+                .collect(Collectors.toList()), this.tag);
     }
 
     @Override
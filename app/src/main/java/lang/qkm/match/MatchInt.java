@@ -3,13 +3,22 @@ package lang.qkm.match;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.stream.*;
+import lang.qkm.type.TyInt;
 
 public final class MatchInt implements Match {
 
+    // same representation as EInt: iN with N <= 64 only use word.
+    public final long word;
     public final BigInteger value;
 
-    public MatchInt(BigInteger value) {
-        this.value = value;
+    public MatchInt(BigInteger value, TyInt type) {
+        if (type.isWord()) {
+            this.word = type.signed(value.longValue());
+            this.value = null;
+        } else {
+            this.word = 0;
+            this.value = type.signed(value);
+        }
     }
 
     @Override
@@ -24,7 +33,8 @@ public final class MatchInt implements Match {
 
     @Override
     public Object getCtor() {
-        return this.value;
+        // IntervalSet relies on word sized ctors being longs
+        return this.value == null ? (Object) this.word : this.value;
     }
 
     @Override
@@ -34,6 +44,6 @@ public final class MatchInt implements Match {
 
     @Override
     public String toString() {
-        return this.value.toString();
+        return this.getCtor().toString();
     }
 }
@@ -0,0 +1,180 @@
+package lang.qkm.match;
+
+import java.util.*;
+import lang.qkm.type.*;
+import lang.qkm.util.SList;
+
+public final class MatchMatrix {
+
+    // the same checks as MatchChecker, but for the arms of a match that are
+    // added one at a time. the rows are kept decomposed the way the checker
+    // would decompose them: every node has the rows specialized to each
+    // constructor of its first column and the default rows. a new row is
+    // pushed down into the nodes it belongs to, so checking the next arm
+    // only follows that arm down instead of specializing every previous
+    // row again.
+
+    private static final class Node {
+
+        public final SList<Type> types;
+        public final int width;
+
+        public boolean hasRows;
+
+        // the constructors the rows test in the first column. there can be
+        // specializations for others too (when an arm is checked).
+        public final Set<Object> ctors = new HashSet<>();
+        public final Map<Object, Node> specialized = new HashMap<>();
+
+        // the rows with a wildcard in the first column, without it.
+        public final List<SList<Match>> wildcards = new ArrayList<>();
+        private Node defaulted;
+
+        public Node(SList<Type> types) {
+            int width = 0;
+            for (final Type t : types)
+                width++;
+
+            this.types = types;
+            this.width = width;
+        }
+
+        private static List<Match> wildcards(int n) {
+            final List<Match> result = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i)
+                result.add(new MatchAll());
+            return result;
+        }
+
+        public Node specialize(Object ctor) {
+            Node node = this.specialized.get(ctor);
+            if (node == null) {
+                final List<? extends Type> args = this.types.head().getCtorSet().getArgs(ctor);
+                node = new Node(this.types.tail().prependAll(args));
+                for (final SList<Match> row : this.wildcards)
+                    node.add(row.prependAll(wildcards(args.size())));
+                this.specialized.put(ctor, node);
+            }
+            return node;
+        }
+
+        public Node defaulted() {
+            if (this.defaulted == null) {
+                this.defaulted = new Node(this.types.tail());
+                for (final SList<Match> row : this.wildcards)
+                    this.defaulted.add(row);
+            }
+            return this.defaulted;
+        }
+
+        public void add(SList<Match> row) {
+            this.hasRows = true;
+            if (row.isEmpty())
+                return;
+
+            final Match head = row.head();
+            if (head instanceof MatchOr) {
+                for (final Match submatch : ((MatchOr) head).submatches)
+                    this.add(row.tail().prepend(submatch));
+                return;
+            }
+
+            if (!(head instanceof MatchAll)) {
+                this.ctors.add(head.getCtor());
+                this.specialize(head.getCtor()).add(row.tail().prependAll(head.getArgs()));
+                return;
+            }
+
+            final SList<Match> tail = row.tail();
+            this.wildcards.add(tail);
+            if (this.defaulted != null)
+                this.defaulted.add(tail);
+            for (final Node node : this.specialized.values())
+                node.add(tail.prependAll(wildcards(node.width - this.width + 1)));
+        }
+
+        public boolean isUseful(SList<Match> q) {
+            if (!this.hasRows)
+                return true;
+            if (q.isEmpty())
+                return false;
+
+            final Match head = q.head();
+            if (head instanceof MatchOr) {
+                for (final Match submatch : ((MatchOr) head).submatches)
+                    if (this.isUseful(q.tail().prepend(submatch)))
+                        return true;
+                return false;
+            }
+
+            if (!(head instanceof MatchAll))
+                return this.specialize(head.getCtor()).isUseful(q.tail().prependAll(head.getArgs()));
+
+            final CtorSet range = this.types.head().getCtorSet();
+            if (range == null || !range.isComplete() || !MatchChecker.spans(range, this.ctors))
+                return this.defaulted().isUseful(q.tail());
+
+            for (final Object ctor : this.ctors) {
+                final Node node = this.specialize(ctor);
+                if (node.isUseful(q.tail().prependAll(wildcards(node.width - this.width + 1))))
+                    return true;
+            }
+            return false;
+        }
+
+        public SList<String> missing() {
+            if (!this.hasRows) {
+                SList<String> list = SList.empty();
+                for (int i = 0; i < this.width; ++i)
+                    list = list.prepend("_");
+                return list;
+            }
+            if (this.width == 0)
+                return null;
+
+            final CtorSet range = this.types.head().getCtorSet();
+            if (range == null) {
+                final SList<String> result = this.defaulted().missing();
+                return result == null ? null : result.prepend("_");
+            }
+
+            if (!range.isComplete() || !MatchChecker.spans(range, this.ctors)) {
+                final SList<String> result = this.defaulted().missing();
+                if (result == null)
+                    return null;
+
+                final Object missing = range.missingCase(this.ctors);
+                return MatchChecker.prependMissing(missing, range.getArgs(missing), result);
+            }
+
+            for (final Object ctor : this.ctors) {
+                final Node node = this.specialize(ctor);
+                final SList<String> result = node.missing();
+                if (result != null)
+                    return MatchChecker.prependCtor(ctor, node.width - this.width + 1, result);
+            }
+            return null;
+        }
+    }
+
+    private final Node root;
+
+    public MatchMatrix(Type type) {
+        this.root = new Node(SList.of(type));
+    }
+
+    public boolean isUseful(Match m) {
+        // if some value matches m but none of the rows added so far.
+        return this.root.isUseful(SList.of(m));
+    }
+
+    public void add(Match m) {
+        this.root.add(SList.of(m));
+    }
+
+    public SList<String> missing() {
+        // an example of what none of the rows match, or null if they are
+        // exhaustive. see MatchChecker.missingMatch.
+        return this.root.missing();
+    }
+}
@@ -177,8 +177,23 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
             while (k instanceof ELam)
                 k = ((ELam) k).body;
 
-            if (k instanceof ECtor)
-                return new Result(new ECtor(((ECtor) k).id, args), type);
+            if (k instanceof ECtor) {
+                final ECtor c = (ECtor) k;
+                return new Result(new ECtor(c.id, args, c.tag), type);
+            }
+        }
+
+        // same for primitives, which are only promoted when partially
+        // applied.
+        if (ctx.f instanceof ExprIdentContext && args.size() == 2) {
+            Expr k = res.expr;
+            while (k instanceof ELam)
+                k = ((ELam) k).body;
+
+            if (k instanceof EPrim) {
+                final EPrim p = (EPrim) k;
+                return new Result(new EPrim(p.op, p.type, args), type);
+            }
         }
 
         Expr acc = res.expr;
@@ -288,16 +303,16 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
         // name that cannot exist in the source language will work
         final EVar desugared = new EVar("`1");
         final Map<String, Type> old = this.env;
-        final List<SList<Match>> patterns = new LinkedList<>();
+        final MatchMatrix patterns = new MatchMatrix(arg);
         final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(ctx.k.size());
         for (final MatchCaseContext k : ctx.k) {
             final PatternChecker p = new PatternChecker(this.state, this.kindChecker);
             final Typed<Match> m = p.visit(k.p);
             arg.unify(m.type);
 
-            if (MatchChecker.covers(patterns, SList.of(m)))
+            if (!patterns.isUseful(m.value))
                 System.out.println("Useless match pattern");
-            patterns.add(SList.of(m.value));
+            patterns.add(m.value);
 
             try {
                 this.env = new HashMap<>(old);
@@ -311,7 +326,7 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
             }
         }
 
-        final SList<String> missing = MatchChecker.missingMatch(patterns, SList.of(arg));
+        final SList<String> missing = patterns.missing();
         if (missing != null)
             System.out.println("Missing pattern for: " + missing.head());
 
@@ -372,16 +387,16 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
         final TyVar res = this.state.freshType();
 
         final Map<String, Type> old = this.env;
-        final List<SList<Match>> patterns = new LinkedList<>();
+        final MatchMatrix patterns = new MatchMatrix(v.type);
         final List<Map.Entry<Match, Expr>> cases = new ArrayList<>(ctx.k.size());
         for (final MatchCaseContext k : ctx.k) {
             final PatternChecker p = new PatternChecker(this.state, this.kindChecker);
             final Typed<Match> m = p.visit(k.p);
             v.type.unify(m.type);
 
-            if (MatchChecker.covers(patterns, SList.of(m)))
+            if (!patterns.isUseful(m.value))
                 System.out.println("Useless match pattern");
-            patterns.add(SList.of(m.value));
+            patterns.add(m.value);
 
             // rebuild the set of monomorphic type variables because the
             // pattern might have introduced new ones.
@@ -409,7 +424,7 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
             }
         }
 
-        final SList<String> missing = MatchChecker.missingMatch(patterns, SList.of(v.type));
+        final SList<String> missing = patterns.missing();
         if (missing != null)
             System.out.println("Missing pattern for: " + missing.head());
 
@@ -420,10 +435,19 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
     public Result visitExprIdent(ExprIdentContext ctx) {
         final String name = ctx.n.getText();
         final Type scheme = this.env.get(name);
-        if (scheme == null)
+        if (scheme != null)
+            return new Result(new EVar(name), this.state.inst(scheme));
+
+        // primitives like add_i32 can be shadowed by ordinary bindings.
+        final EPrim prim = EPrim.of(name);
+        if (prim == null)
             throw new RuntimeException("Illegal use of undeclared binding " + name);
 
-        return new Result(new EVar(name), this.state.inst(scheme));
+        final Type ret = prim.op.isComparison() ? TyBool.INSTANCE : prim.type;
+        Expr f = prim;
+        for (int i = prim.args.size(); i-- > 0; )
+            f = new ELam((EVar) prim.args.get(i), f);
+        return new Result(f, new TyArr(prim.type, new TyArr(prim.type, ret)));
     }
 
     @Override
@@ -435,7 +459,7 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
 
         final Type t = this.state.inst(scheme);
         if (t instanceof TyCtor)
-            return new Result(new ECtor(ctor, List.of()), t);
+            return new Result(new ECtor(ctor, List.of(), ((TyCtor) t).template.tagOf(ctor)), t);
 
         final List<EVar> args = new ArrayList<>();
         Type v = t;
@@ -446,7 +470,7 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
             v = f.ret;
         }
 
-        Expr f = new ECtor(ctor, args);
+        Expr f = new ECtor(ctor, args, ((TyCtor) v).template.tagOf(ctor));
         for (int i = args.size(); i-- > 0; )
             f = new ELam(args.get(i), f);
         return new Result(f, t);
@@ -506,7 +530,6 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
         BigInteger v = new BigInteger(lit.replace("_", ""));
         if (negative)
             v = v.negate();
-        v = ty.signed(v);
 
         return new Result(new EInt(v, ty), ty);
     }
@@ -521,7 +544,7 @@ public final class ExprChecker extends QKMBaseVisitor<ExprChecker.Result> {
         final int cp = encoder.next();
 
         final TyInt ty = new TyInt(32);
-        return new Result(new EInt(BigInteger.valueOf(cp), ty), ty);
+        return new Result(new EInt(cp, ty), ty);
     }
 
     @Override
@@ -45,7 +45,7 @@ public final class PatternChecker extends QKMBaseVisitor<Typed<Match>> {
         }
 
         if (acc instanceof TyCtor)
-            return new Typed<>(new MatchCtor(ctor, args), acc);
+            return new Typed<>(new MatchCtor(ctor, args, ((TyCtor) acc).template.tagOf(ctor)), acc);
 
         throw new RuntimeException("Illegal incomplete constructor application");
     }
@@ -107,7 +107,7 @@ public final class PatternChecker extends QKMBaseVisitor<Typed<Match>> {
 
         Type acc = this.state.inst(scheme);
         if (acc instanceof TyCtor)
-            return new Typed<>(new MatchCtor(ctor, List.of()), acc);
+            return new Typed<>(new MatchCtor(ctor, List.of(), ((TyCtor) acc).template.tagOf(ctor)), acc);
 
         throw new RuntimeException("Illegal incomplete constructor application");
     }
@@ -166,9 +166,8 @@ public final class PatternChecker extends QKMBaseVisitor<Typed<Match>> {
         BigInteger v = new BigInteger(lit.replace("_", ""));
         if (negative)
             v = v.negate();
-        v = ty.signed(v);
 
-        return new Typed<>(new MatchInt(v), ty);
+        return new Typed<>(new MatchInt(v, ty), ty);
     }
 
     @Override
@@ -177,7 +176,8 @@ public final class PatternChecker extends QKMBaseVisitor<Typed<Match>> {
         final StrEscape encoder = new StrEscape(t, 1, t.length() - 1);
         final int cp = encoder.next();
 
-        return new Typed<>(new MatchInt(BigInteger.valueOf(cp)), new TyInt(32));
+        final TyInt ty = new TyInt(32);
+        return new Typed<>(new MatchInt(BigInteger.valueOf(cp), ty), ty);
     }
 
     @Override
@@ -10,11 +10,11 @@ public final class RecBindChecker {
 
     public void check(Map<EVar, Expr> defs) {
         final Set<EVar> k = new HashSet<>(defs.keySet());
-        for (final Expr init : defs.values()) {
-            if (!new StaticallyConstructive(k).check(init)
-                    || new ImmediatelyLinked(k).check(init))
-                throw new RuntimeException("Illegal recursive binding initializer");
-        }
+        final boolean legal = FreeVars.scoped(() -> defs.values().stream()
+                .allMatch(init -> new StaticallyConstructive(k).check(init)
+                        && !new ImmediatelyLinked(k).check(init)));
+        if (!legal)
+            throw new RuntimeException("Illegal recursive binding initializer");
     }
 
     private static final class StaticallyConstructive extends ExprBaseVisitor<Object> {
@@ -26,7 +26,7 @@ public final class RecBindChecker {
         }
 
         public boolean check(Expr e) {
-            if (e.fv().noneMatch(this.recBinds::contains))
+            if (Collections.disjoint(e.getFreeVars(), this.recBinds))
                 return true;
             return e.accept(this) != null;
         }
@@ -17,6 +17,19 @@ public final class TyCtor implements Type, CtorSet {
             this.quants = quants;
             this.cases = cases;
         }
+
+        public int tagOf(String ctor) {
+            // tags follow the declaration order of the cases, which are only
+            // populated while the enum is being checked, so look it up each
+            // time instead of caching a (possibly stale) index.
+            int tag = 0;
+            for (final String k : this.cases.keySet()) {
+                if (k.equals(ctor))
+                    return tag;
+                tag++;
+            }
+            return -1;
+        }
     }
 
     public final Template template;
@@ -2,20 +2,69 @@ package lang.qkm.type;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.*;
 import lang.qkm.match.CtorSet;
+import lang.qkm.match.IntervalSet;
 
-public final class TyInt implements Type, CtorSet {
+public final class TyInt implements Type {
+
+    private static final BigInteger UINT64_MAX = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
 
     public final int bits;
 
+    // masks are computed once per type instead of once per literal. the
+    // BigInteger one is only needed when the value does not fit in a long.
+    private final long wordMask;
+    private final BigInteger mask;
+
+    // the signed values, which are the constructors of the type. the sets
+    // are immutable, so every type of the same width shares one and it is
+    // only made once a match needs it.
+    private static final Map<Integer, IntervalSet> CTORS = new ConcurrentHashMap<>();
+
     public TyInt(int bits) {
         if (bits < 1)
             throw new RuntimeException("iN type needs at least one bit");
         this.bits = bits;
+
+        if (bits < 64) {
+            this.wordMask = (1L << bits) - 1;
+            this.mask = null;
+        } else if (bits == 64) {
+            this.wordMask = -1L;
+            this.mask = null;
+        } else {
+            this.wordMask = -1L;
+            this.mask = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+        }
+    }
+
+    private static IntervalSet range(int bits) {
+        final BigInteger half = BigInteger.ONE.shiftLeft(bits - 1);
+        return new IntervalSet(half.negate(), half.subtract(BigInteger.ONE));
+    }
+
+    public boolean isWord() {
+        // iN with N <= 64 can be represented as a long
+        return this.bits <= 64;
+    }
+
+    public long signed(long value) {
+        // shift the sign bit into the msb then shift it back (with sign
+        // extension of course).
+        final int shift = 64 - this.bits;
+        return (value << shift) >> shift;
+    }
+
+    public long unsigned(long value) {
+        return this.wordMask & value;
     }
 
     public BigInteger signed(BigInteger value) {
+        if (this.isWord())
+            return BigInteger.valueOf(this.signed(value.longValue()));
+
         value = this.unsigned(value);
         if (value.bitLength() < this.bits)
             return value;
@@ -25,10 +74,14 @@ public final class TyInt implements Type, CtorSet {
     }
 
     public BigInteger unsigned(BigInteger value) {
-        return BigInteger.ONE
-                .shiftLeft(this.bits)
-                .subtract(BigInteger.ONE)
-                .and(value);
+        if (this.isWord()) {
+            // longValue already truncates to the lower 64 bits, just need to
+            // make sure the result is not sign extended.
+            final long v = this.unsigned(value.longValue());
+            return v >= 0 ? BigInteger.valueOf(v) : BigInteger.valueOf(v).and(UINT64_MAX);
+        }
+
+        return this.mask.and(value);
     }
 
     @Override
@@ -83,39 +136,11 @@ public final class TyInt implements Type, CtorSet {
 
     @Override
     public CtorSet getCtorSet() {
-        return this;
+        return CTORS.computeIfAbsent(this.bits, TyInt::range);
     }
 
     @Override
     public String toString() {
         return "i" + this.bits;
     }
-
-    @Override
-    public Optional<Boolean> sameSize(int sz) {
-        // bits need to be capped at around 32 to 63 to make sure the shift
-        // doesn't overflow.
-        return Optional.of(this.bits < 60 && sz == (1L << this.bits));
-    }
-
-    @Override
-    public Object missingCase(Collection<?> c) {
-        // literally iterate through all possible *signed* integer values and
-        // see if the supplied collection contains all of them.
-        final BigInteger max = BigInteger.ONE.shiftLeft(this.bits - 1);
-
-        BigInteger i = max.negate();
-        for (;;) {
-            if (!c.contains(i))
-                return i;
-            i = i.add(BigInteger.ONE);
-            if (max.equals(i))
-                return null;
-        }
-    }
-
-    @Override
-    public List<? extends Type> getArgs(Object id) {
-        return List.of();
-    }
 }
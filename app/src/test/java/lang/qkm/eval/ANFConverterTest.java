@@ -59,12 +59,12 @@ public class ANFConverterTest {
         final ETup pack = new ETup(List.of(matchDiscard, new EString("9")));
 
         final String expected =
-                "(let ((`v6 (\\`v3. " +
-                "(let ((`v5 (\\`v4. (`v4, 9)))) " +
-                "(match `v3 (_ (`v5 1))))))) " +
+                "(join ((`v6 `v3) " +
+                "(join ((`v5 `v4) (`v4, 9)) " +
+                "(match `v3 (_ (jump `v5 1))))) " +
                 "(match true " +
-                "(true (let ((`v1 (true, false))) (match `v1 ((_, `v2) (`v6 `v2))))) " +
-                "(false (`v6 true))))";
+                "(true (let ((`v1 (true, false))) (match `v1 ((_, `v2) (jump `v6 `v2))))) " +
+                "(false (jump `v6 true))))";
         assertEquals(expected, new ANFConverter().rewrite(pack).toString());
     }
 }
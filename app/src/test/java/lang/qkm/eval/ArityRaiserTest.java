@@ -0,0 +1,32 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArityRaiserTest {
+
+    @Test
+    public void testSaturatedCall() {
+        // let f = \x. \y. (x, y) in let t = f a in t b
+        final Expr f = new ELam(new EVar("x"), new ELam(new EVar("y"),
+                new ETup(List.of(new EVar("x"), new EVar("y")))));
+        final Expr e = new ELet(new EVar("f"), f,
+                new ELet(new EVar("t"), new EApp(new EVar("f"), new EVar("a")),
+                         new EApp(new EVar("t"), new EVar("b"))));
+
+        final ELet r = (ELet) new ArityRaiser().rewrite(e);
+        assertEquals(2, ((ELam) r.value).arity());
+        assertEquals(2, ((EApp) r.body).args.size());
+    }
+
+    @Test
+    public void testKeepsSaturatedCall() {
+        // let f = \x. #S x in let t = f a in t b, f returns something else.
+        final Expr e = new ELet(new EVar("f"), new ELam(new EVar("x"), new ECtor("#S", List.of(new EVar("x")))),
+                new ELet(new EVar("t"), new EApp(new EVar("f"), new EVar("a")),
+                         new EApp(new EVar("t"), new EVar("b"))));
+        assertSame(e, new ArityRaiser().rewrite(e));
+    }
+}
@@ -0,0 +1,95 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytecodeEvaluatorTest {
+
+    private static String capture(Runnable action) {
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(old);
+        }
+        return buffer.toString().trim();
+    }
+
+    @Test
+    public void testApplyLambda() {
+        /* // test the following
+        def down = \n. match n with
+          | #Z -> ()
+          | #S k -> down k
+        def n = #S (#S #Z)
+        down n
+        (\x. (x, x)) #Z
+        */
+
+        final Evaluator eval = new BytecodeEvaluator();
+        eval.define(Map.of(new EVar("down"), new ELam(new EVar("n"), new EMatch(new EVar("n"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new ETup(List.of())),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))),
+                          new EApp(new EVar("down"), new EVar("k"))))))));
+
+        final Expr zero = new ECtor("#Z", List.of());
+        eval.define(Map.of(new EVar("n"), new ECtor("#S", List.of(new ECtor("#S", List.of(zero))))));
+
+        final Expr pair = new EApp(
+                new ELam(new EVar("x"), new ETup(List.of(new EVar("x"), new EVar("x")))),
+                zero);
+        assertEquals("()", capture(() -> eval.eval(new EApp(new EVar("down"), new EVar("n")))));
+        assertEquals("(#Z, #Z)", capture(() -> eval.eval(pair)));
+    }
+
+    @Test
+    public void testPartialApplication() {
+        /* // test the following
+        def pair = \x y. (x, y)
+        def k = \x. \y. x
+        let p = pair #Z in p #A
+        k #A #B
+        */
+
+        final Evaluator eval = new BytecodeEvaluator();
+        eval.define(Map.of(new EVar("pair"), new ELam(List.of(new EVar("x"), new EVar("y")),
+                new ETup(List.of(new EVar("x"), new EVar("y"))))));
+        eval.define(Map.of(new EVar("k"), new ELam(new EVar("x"), new ELam(new EVar("y"), new EVar("x")))));
+
+        final Expr partial = new ELet(new EVar("p"), new EApp(new EVar("pair"), new ECtor("#Z", List.of())),
+                new EApp(new EVar("p"), new ECtor("#A", List.of())));
+        final Expr over = new EApp(new EVar("k"), List.of(new ECtor("#A", List.of()), new ECtor("#B", List.of())));
+        assertEquals("(#Z, #A)", capture(() -> eval.eval(partial)));
+        assertEquals("#A", capture(() -> eval.eval(over)));
+    }
+
+    private static WeakReference<Class<?>> unit(BytecodeEvaluator eval) {
+        // \x. x is an instance of the class of the form that made it.
+        final Class<?> cls = eval.run(new ELam(new EVar("x"), new EVar("x"))).getClass();
+        final ClassLoader loader = cls.getClassLoader();
+        assertNotSame(BytecodeEvaluator.class.getClassLoader(), loader);
+        assertSame(BytecodeEvaluator.class.getClassLoader(), loader.getParent());
+        return new WeakReference<>(cls);
+    }
+
+    @Test
+    public void testUnitsUnload() {
+        // every form has a loader of its own, so it can be unloaded once
+        // nothing refers to it anymore.
+        final BytecodeEvaluator eval = new BytecodeEvaluator();
+        final WeakReference<Class<?>> a = unit(eval);
+        final WeakReference<Class<?>> b = unit(eval);
+        assertNotSame(a.get().getClassLoader(), b.get().getClassLoader());
+
+        for (int i = 0; i < 20 && a.get() != null; ++i)
+            System.gc();
+        assertNull(a.get());
+    }
+}
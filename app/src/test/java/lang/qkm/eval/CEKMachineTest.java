@@ -0,0 +1,68 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CEKMachineTest {
+
+    private static Expr app(Expr f, Expr arg) {
+        return new EApp(f, arg);
+    }
+
+    private static Expr nat(Expr n, Expr zero, String k, Expr succ) {
+        return new EMatch(n, List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), zero),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll(k))), succ)));
+    }
+
+    @Test
+    public void testDeepNonTailRecursion() {
+        /* // test the following
+        def twice = \acc. \n. match n with
+          | #Z -> acc
+          | #S k -> twice (#S (#S acc)) k
+        def build = \n. match n with
+          | #Z -> #Nil
+          | #S k -> #Cons () (build k)
+        def drain = \xs. match xs with
+          | #Nil -> ()
+          | #Cons _ t -> drain t
+        drain (build (twice #Z (twice #Z ... (#S #Z))))
+        */
+
+        final Expr zero = new ECtor("#Z", List.of());
+        final Evaluator eval = new CEKMachine();
+        eval.define(Map.of(
+                new EVar("twice"), new ELam(new EVar("acc"), new ELam(new EVar("n"), nat(new EVar("n"),
+                        new EVar("acc"),
+                        "k", app(app(new EVar("twice"), new ECtor("#S", List.of(new ECtor("#S", List.of(new EVar("acc")))))), new EVar("k"))))),
+                new EVar("build"), new ELam(new EVar("n"), nat(new EVar("n"),
+                        new ECtor("#Nil", List.of()),
+                        "k", new ECtor("#Cons", List.of(new ETup(List.of()), app(new EVar("build"), new EVar("k")))))),
+                new EVar("drain"), new ELam(new EVar("xs"), new EMatch(new EVar("xs"), List.of(
+                        Map.entry(new MatchCtor("#Nil", List.of()), new ETup(List.of())),
+                        Map.entry(new MatchCtor("#Cons", List.of(new MatchAll(), new MatchAll("t"))),
+                                  app(new EVar("drain"), new EVar("t"))))))));
+
+        // 2^18 is well past what the thread stack can take when every
+        // level of build needs a few java frames.
+        Expr n = new ECtor("#S", List.of(zero));
+        for (int i = 0; i < 18; ++i)
+            n = app(app(new EVar("twice"), zero), n);
+        final Expr program = app(new EVar("drain"), app(new EVar("build"), n));
+
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            eval.eval(program);
+        } finally {
+            System.setOut(old);
+        }
+        assertEquals("()", buffer.toString().trim());
+    }
+}
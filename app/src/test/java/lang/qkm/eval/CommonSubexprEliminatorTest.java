@@ -0,0 +1,28 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommonSubexprEliminatorTest {
+
+    @Test
+    public void testReusesBinding() {
+        // let a = f x in let b = f x in (a, b)
+        final Expr e = new ELet(new EVar("a"), new EApp(new EVar("f"), new EVar("x")),
+                                new ELet(new EVar("b"), new EApp(new EVar("f"), new EVar("x")),
+                                         new ETup(List.of(new EVar("a"), new EVar("b")))));
+        assertEquals("(let ((a (f x))) (a, a))",
+                     new CommonSubexprEliminator().rewrite(e).toString());
+    }
+
+    @Test
+    public void testScopedToBody() {
+        // (let a = f x in a, let b = f x in b), the bindings are siblings.
+        final Expr e = new ETup(List.of(
+                new ELet(new EVar("a"), new EApp(new EVar("f"), new EVar("x")), new EVar("a")),
+                new ELet(new EVar("b"), new EApp(new EVar("f"), new EVar("x")), new EVar("b"))));
+        assertSame(e, new CommonSubexprEliminator().rewrite(e));
+    }
+}
@@ -0,0 +1,246 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
+
+public final class EvalBench {
+
+    // not a unit test: run it with gradle bench.
+    //
+    // measures the cost of a deeply recursive call chain while the number of
+    // globals in scope varies. the per-call cost should stay flat, even if
+    // the closures are not converted and capture the entire environment.
+    //
+    // then measures non-tail recursion that is deep enough to overflow the
+    // thread stack unless the evaluator keeps its continuation on the heap.
+    //
+    // finally measures the same number of iterations as the call chain, but
+    // counting with the integer primitives instead of peano numbers.
+
+    private static final int DEPTH = 1 << 16;
+    private static final int DEEP = 1 << 20;
+    private static final int ROUNDS = 10;
+
+    private static final Map<String, Supplier<Evaluator>> BACKENDS = new LinkedHashMap<>();
+
+    static {
+        BACKENDS.put("ast", ASTWalker::new);
+        BACKENDS.put("frames", FrameWalker::new);
+        BACKENDS.put("nodes", NodeEvaluator::new);
+        BACKENDS.put("cek", CEKMachine::new);
+        BACKENDS.put("jvm", BytecodeEvaluator::new);
+    }
+
+    private static Evaluator pipeline(Evaluator core, boolean convert) {
+        final List<ExprRewriter> rewrites = new ArrayList<>(List.of(
+                new ANFConverter(),
+                new MatchRewriter(),
+                new ANFConverter(),
+                new RewriteGroup.Repeat(4, List.of(
+                        new LetrecFixer(),
+                        new ANFConverter(),
+                        new PartialEvaluator(),
+                        new ANFConverter(),
+                        new CommonSubexprEliminator())),
+                new ArityRaiser()));
+        if (convert)
+            rewrites.add(new ClosureConverter());
+
+        return new RewriteGroup(core, rewrites);
+    }
+
+    private static Expr app(Expr f, Expr... args) {
+        for (final Expr arg : args)
+            f = new EApp(f, arg);
+        return f;
+    }
+
+    private static Expr fun(String arg, Expr body) {
+        // same shape as what the type checker generates for fun x -> e
+        final EVar k = new EVar("`1");
+        return new ELam(k, new EMatch(k, List.of(Map.entry(new MatchAll(arg), body))));
+    }
+
+    private static Expr match(Expr scrutinee, Match p1, Expr e1, Match p2, Expr e2) {
+        return new EMatch(scrutinee, List.of(Map.entry(p1, e1), Map.entry(p2, e2)));
+    }
+
+    private static void define(Evaluator eval, String name, Expr init) {
+        eval.define(Map.of(new EVar(name), init));
+    }
+
+    private static void setup(Evaluator eval, int globals) {
+        final Map<EVar, Expr> padding = new HashMap<>();
+        for (int i = 0; i < globals; ++i)
+            padding.put(new EVar("g" + i), new ETup(List.of()));
+        eval.define(padding);
+
+        final MatchCtor zero = new MatchCtor("#Z", List.of());
+        final MatchCtor succ = new MatchCtor("#S", List.of(new MatchAll("k")));
+
+        // twice acc n = acc + 2n, which is used to build a large enough n
+        // without overflowing the stack of the rewrite passes.
+        define(eval, "twice", fun("acc", fun("n", match(new EVar("n"),
+                zero, new EVar("acc"),
+                succ, app(new EVar("twice"),
+                        new ECtor("#S", List.of(new ECtor("#S", List.of(new EVar("acc"))))),
+                        new EVar("k"))))));
+
+        Expr n = new ECtor("#S", List.of(new ECtor("#Z", List.of())));
+        for (int i = 1; i < DEPTH; i <<= 1)
+            n = app(new EVar("twice"), new ECtor("#Z", List.of()), n);
+        define(eval, "n", n);
+
+        // down n = let m = n in match m with #Z -> () | #S k -> down k
+        define(eval, "down", fun("n", new ELet(new EVar("m"), new EVar("n"), match(new EVar("m"),
+                zero, new ETup(List.of()),
+                succ, app(new EVar("down"), new EVar("k"))))));
+    }
+
+    private static void setupDeep(Evaluator eval) {
+        final MatchCtor zero = new MatchCtor("#Z", List.of());
+        final MatchCtor succ = new MatchCtor("#S", List.of(new MatchAll("k")));
+
+        Expr n = new ECtor("#S", List.of(new ECtor("#Z", List.of())));
+        for (int i = 1; i < DEEP; i <<= 1)
+            n = app(new EVar("twice"), new ECtor("#Z", List.of()), n);
+        define(eval, "deep", n);
+
+        // build n = match n with #Z -> #Nil | #S k -> #Cons () (build k)
+        define(eval, "build", fun("n", match(new EVar("n"),
+                zero, new ECtor("#Nil", List.of()),
+                succ, new ECtor("#Cons", List.of(new ETup(List.of()), app(new EVar("build"), new EVar("k")))))));
+
+        // drain xs = match xs with #Nil -> () | #Cons _ t -> drain t
+        define(eval, "drain", fun("xs", match(new EVar("xs"),
+                new MatchCtor("#Nil", List.of()), new ETup(List.of()),
+                new MatchCtor("#Cons", List.of(new MatchAll(), new MatchAll("t"))),
+                app(new EVar("drain"), new EVar("t")))));
+    }
+
+    private static String measureDeep(Supplier<Evaluator> backend) {
+        final Evaluator eval = pipeline(backend.get(), true);
+        setup(eval, 0);
+        setupDeep(eval);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; ++i) {
+            final long start = System.nanoTime();
+            try {
+                eval.eval(app(new EVar("drain"), app(new EVar("build"), new EVar("deep"))));
+            } catch (StackOverflowError ex) {
+                return "stack overflow";
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return String.format("%8.1f ns/call", (double) best / DEEP);
+    }
+
+    private static String measureHeap(Supplier<Evaluator> backend) {
+        final Evaluator eval = pipeline(backend.get(), true);
+        setup(eval, 0);
+        setupDeep(eval);
+
+        // fill n acc = match n with #Z -> acc | #S k -> fill k (#Cons () acc)
+        define(eval, "fill", fun("n", fun("acc", match(new EVar("n"),
+                new MatchCtor("#Z", List.of()), new EVar("acc"),
+                new MatchCtor("#S", List.of(new MatchAll("k"))),
+                app(new EVar("fill"), new EVar("k"), new ECtor("#Cons", List.of(
+                        new ECtor("#Z", List.of()), new EVar("acc"))))))));
+
+        final Runtime rt = Runtime.getRuntime();
+        System.gc();
+        final long before = rt.totalMemory() - rt.freeMemory();
+        try {
+            define(eval, "list", app(new EVar("fill"), new EVar("deep"), new ECtor("#Nil", List.of())));
+        } catch (StackOverflowError ex) {
+            return "stack overflow";
+        }
+        System.gc();
+        final long after = rt.totalMemory() - rt.freeMemory();
+
+        return String.format("%8.1f bytes/node", (double) (after - before) / DEEP);
+    }
+
+    private static String measureArith(Supplier<Evaluator> backend) {
+        final Evaluator eval = pipeline(backend.get(), true);
+        final TyInt i64 = new TyInt(64);
+
+        // sum i acc = match lt_i64 i DEPTH with
+        //             | true -> sum (add_i64 i 1) (add_i64 acc i)
+        //             | false -> acc
+        final EVar i = new EVar("i");
+        final EVar acc = new EVar("acc");
+        define(eval, "sum", fun("i", fun("acc", match(
+                new EPrim(EPrim.Op.LT, i64, List.of(i, new EInt(DEPTH, i64))),
+                new MatchBool(true), app(new EVar("sum"),
+                        new EPrim(EPrim.Op.ADD, i64, List.of(i, new EInt(1, i64))),
+                        new EPrim(EPrim.Op.ADD, i64, List.of(acc, i))),
+                new MatchBool(false), acc))));
+
+        long best = Long.MAX_VALUE;
+        for (int k = 0; k < ROUNDS; ++k) {
+            final long start = System.nanoTime();
+            eval.eval(app(new EVar("sum"), new EInt(0, i64), new EInt(0, i64)));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return String.format("%8.1f ns/iteration", (double) best / DEPTH);
+    }
+
+    private static double measure(Supplier<Evaluator> backend, boolean convert, int globals) {
+        final Evaluator eval = pipeline(backend.get(), convert);
+        setup(eval, globals);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            final long start = System.nanoTime();
+            eval.eval(app(new EVar("down"), new EVar("n")));
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return (double) best / DEPTH;
+    }
+
+    public static void main(String[] args) {
+        // evaluators print the result, which is not what we are measuring.
+        final PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        // warm up the JIT so that the first configuration isn't penalized.
+        for (final Supplier<Evaluator> backend : BACKENDS.values())
+            measure(backend, false, 0);
+
+        for (final Map.Entry<String, Supplier<Evaluator>> backend : BACKENDS.entrySet()) {
+            for (final boolean convert : new boolean[] { false, true }) {
+                for (final int globals : new int[] { 0, 1_000, 10_000 }) {
+                    out.printf("%-10s globals=%-6d %8.1f ns/call%n",
+                            backend.getKey() + (convert ? "+cc" : ""),
+                            globals, measure(backend.getValue(), convert, globals));
+                }
+            }
+        }
+
+        for (final Map.Entry<String, Supplier<Evaluator>> backend : BACKENDS.entrySet())
+            out.printf("%-10s non-tail depth=%d %s%n",
+                    backend.getKey(), DEEP, measureDeep(backend.getValue()));
+
+        for (final Map.Entry<String, Supplier<Evaluator>> backend : BACKENDS.entrySet())
+            out.printf("%-10s heap depth=%d %s%n",
+                    backend.getKey(), DEEP, measureHeap(backend.getValue()));
+
+        for (final Map.Entry<String, Supplier<Evaluator>> backend : BACKENDS.entrySet())
+            out.printf("%-10s arith depth=%d %s%n",
+                    backend.getKey(), DEPTH, measureArith(backend.getValue()));
+    }
+}
@@ -0,0 +1,206 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameWalkerTest {
+
+    private static final TyInt I32 = new TyInt(32);
+
+    private static String capture(Runnable action) {
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(old);
+        }
+        return buffer.toString().trim();
+    }
+
+    private static void check(String expected, List<Map<EVar, Expr>> defs, Expr... programs) {
+        // the tree walker is the reference.
+        for (final Evaluator eval : List.of(new ASTWalker(), new FrameWalker())) {
+            assertEquals(expected, capture(() -> {
+                for (final Map<EVar, Expr> group : defs)
+                    eval.define(group);
+                for (final Expr e : programs)
+                    eval.eval(e);
+            }), eval.getClass().getSimpleName());
+        }
+    }
+
+    private static Expr app(Expr f, Expr... args) {
+        for (final Expr arg : args)
+            f = new EApp(f, arg);
+        return f;
+    }
+
+    private static Expr let(String name, Expr value, Expr body) {
+        return new ELet(new EVar(name), value, body);
+    }
+
+    private static Expr lam(String param, Expr body) {
+        return new ELam(new EVar(param), body);
+    }
+
+    private static Expr ctor(String id, Expr... args) {
+        return new ECtor(id, List.of(args));
+    }
+
+    private static Expr num(long value) {
+        return new EInt(BigInteger.valueOf(value), I32);
+    }
+
+    private static Match lit(long value) {
+        return new MatchInt(BigInteger.valueOf(value), I32);
+    }
+
+    private static Expr nat(Expr n, Expr zero, String k, Expr succ) {
+        return new EMatch(n, List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), zero),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll(k))), succ)));
+    }
+
+    @Test
+    public void testShadowing() {
+        /* // test the following
+        let x = 1 in let f = \y. (x, y) in let x = 2 in (f x, x)
+        match (1, 2) with (x, y) -> let g = \x. (x, y) in match 3 with x -> (g 4, x)
+        */
+
+        final Expr let = let("x", num(1),
+                let("f", lam("y", new ETup(List.of(new EVar("x"), new EVar("y")))),
+                        let("x", num(2), new ETup(List.of(app(new EVar("f"), new EVar("x")), new EVar("x"))))));
+
+        final Expr match = new EMatch(new ETup(List.of(num(1), num(2))), List.of(Map.entry(
+                new MatchTup(List.of(new MatchAll("x"), new MatchAll("y"))),
+                let("g", lam("x", new ETup(List.of(new EVar("x"), new EVar("y")))),
+                        new EMatch(num(3), List.of(Map.entry(new MatchAll("x"),
+                                new ETup(List.of(app(new EVar("g"), num(4)), new EVar("x"))))))))));
+
+        check("((1, 2), 2)\n((4, 2), 3)", List.of(), let, match);
+    }
+
+    @Test
+    public void testClosures() {
+        /* // test the following
+        def k = \x. \y. x
+        def twice = \f. \x. f (f x)
+        def pick = \a. \b. \c. (a, b, c)
+        let first = k 1 in (first 2, twice (pick 3 4) 5)
+        pick 1 2 3
+        def pick = \a. \b. \c. (c, b, a)
+        pick 1 2 3
+        */
+
+        final Map<EVar, Expr> defs = new HashMap<>();
+        defs.put(new EVar("k"), lam("x", lam("y", new EVar("x"))));
+        defs.put(new EVar("twice"), lam("f", lam("x", app(new EVar("f"), app(new EVar("f"), new EVar("x"))))));
+        defs.put(new EVar("pick"), lam("a", lam("b", lam("c",
+                new ETup(List.of(new EVar("a"), new EVar("b"), new EVar("c")))))));
+
+        final Expr before = let("first", app(new EVar("k"), num(1)), new ETup(List.of(
+                app(new EVar("first"), num(2)),
+                app(new EVar("twice"), app(new EVar("pick"), num(3), num(4)), num(5)))));
+
+        check("(1, (3, 4, (3, 4, 5)))", List.of(defs), before);
+
+        // a redefined global is picked up by the code that comes after it.
+        final Map<EVar, Expr> redefined = Map.of(new EVar("pick"), lam("a", lam("b", lam("c",
+                new ETup(List.of(new EVar("c"), new EVar("b"), new EVar("a")))))));
+        for (final Evaluator eval : List.of(new ASTWalker(), new FrameWalker())) {
+            eval.define(defs);
+            assertEquals("(1, 2, 3)", capture(() -> eval.eval(app(new EVar("pick"), num(1), num(2), num(3)))));
+            eval.define(redefined);
+            assertEquals("(3, 2, 1)", capture(() -> eval.eval(app(new EVar("pick"), num(1), num(2), num(3)))));
+        }
+    }
+
+    @Test
+    public void testLetrec() {
+        /* // test the following
+        def len = \xs. match xs with
+          | #Nil -> #Z
+          | #Cons _ t -> #S (len t)
+        letrec ones = #Cons 1 twos
+               twos = #Cons 2 ones
+        in match ones with #Cons a (#Cons b (#Cons c _)) -> (a, b, c)
+        letrec go = \n. \acc. match n with #Z -> acc | #S k -> go k (#Cons k acc)
+        in len (go (#S (#S #Z)) #Nil)
+        */
+
+        final Map<EVar, Expr> len = Map.of(new EVar("len"), lam("xs", new EMatch(new EVar("xs"), List.of(
+                Map.entry(new MatchCtor("#Nil", List.of()), ctor("#Z")),
+                Map.entry(new MatchCtor("#Cons", List.of(new MatchAll(), new MatchAll("t"))),
+                          ctor("#S", app(new EVar("len"), new EVar("t"))))))));
+
+        final Map<EVar, Expr> cycle = new HashMap<>();
+        cycle.put(new EVar("ones"), ctor("#Cons", num(1), new EVar("twos")));
+        cycle.put(new EVar("twos"), ctor("#Cons", num(2), new EVar("ones")));
+        final Expr take = new ELetrec(cycle, new EMatch(new EVar("ones"), List.of(Map.entry(
+                new MatchCtor("#Cons", List.of(new MatchAll("a"),
+                        new MatchCtor("#Cons", List.of(new MatchAll("b"),
+                                new MatchCtor("#Cons", List.of(new MatchAll("c"), new MatchAll())))))),
+                new ETup(List.of(new EVar("a"), new EVar("b"), new EVar("c")))))));
+
+        final Expr go = new ELetrec(Map.of(new EVar("go"), lam("n", lam("acc",
+                nat(new EVar("n"), new EVar("acc"), "k", app(new EVar("go"),
+                        new EVar("k"), ctor("#Cons", new EVar("k"), new EVar("acc"))))))),
+                app(new EVar("len"), app(new EVar("go"), ctor("#S", ctor("#S", ctor("#Z"))), ctor("#Nil"))));
+
+        check("(1, 2, 1)\n#S (#S (#Z))", List.of(len), take, go);
+    }
+
+    @Test
+    public void testLiterals() {
+        /* // test the following
+        match (3, "b") with (1, _) -> #A | (3, "a") -> #B | (3, s) -> (s, true) | _ -> #C
+        error "boom"
+        */
+
+        check("(b, true)", List.of(), new EMatch(new ETup(List.of(num(3), new EString("b"))), List.of(
+                Map.entry(new MatchTup(List.of(lit(1), new MatchAll())), ctor("#A")),
+                Map.entry(new MatchTup(List.of(lit(3), new MatchString("a"))), ctor("#B")),
+                Map.entry(new MatchTup(List.of(lit(3), new MatchAll("s"))),
+                          new ETup(List.of(new EVar("s"), new EBool(true)))),
+                Map.entry(new MatchAll(), ctor("#C")))));
+
+        final Expr err = new EErr(new EString("boom"));
+        assertThrows(RuntimeException.class, () -> new ASTWalker().eval(err));
+        assertThrows(RuntimeException.class, () -> new FrameWalker().eval(err));
+    }
+
+    @Test
+    public void testTailCalls() {
+        /* // test the following
+        def double = \n. \acc. match n with #Z -> acc | #S k -> double k (#S (#S acc))
+        def grow = \k. \n. match k with #Z -> n | #S j -> grow j (double n #Z)
+        def even = \n. match n with #Z -> #T | #S k -> odd k
+        def odd = \n. match n with #Z -> #F | #S k -> even k
+        even (#S (grow 20 #S #Z))
+        */
+
+        final Map<EVar, Expr> defs = new HashMap<>();
+        defs.put(new EVar("double"), lam("n", lam("acc", nat(new EVar("n"), new EVar("acc"), "k",
+                app(new EVar("double"), new EVar("k"), ctor("#S", ctor("#S", new EVar("acc"))))))));
+        defs.put(new EVar("grow"), lam("k", lam("n", nat(new EVar("k"), new EVar("n"), "j",
+                app(new EVar("grow"), new EVar("j"), app(new EVar("double"), new EVar("n"), ctor("#Z")))))));
+        defs.put(new EVar("even"), lam("n", nat(new EVar("n"), ctor("#T"), "k", app(new EVar("odd"), new EVar("k")))));
+        defs.put(new EVar("odd"), lam("n", nat(new EVar("n"), ctor("#F"), "k", app(new EVar("even"), new EVar("k")))));
+
+        // 2^20 + 1 steps, each of them a tail call.
+        Expr twenty = ctor("#Z");
+        for (int i = 0; i < 20; ++i)
+            twenty = ctor("#S", twenty);
+        check("#F", List.of(defs), app(new EVar("even"),
+                ctor("#S", app(new EVar("grow"), twenty, ctor("#S", ctor("#Z"))))));
+    }
+}
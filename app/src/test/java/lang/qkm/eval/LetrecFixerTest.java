@@ -0,0 +1,39 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LetrecFixerTest {
+
+    @Test
+    public void testSplitsComponents() {
+        /* // test the following
+        letrec c = #S d
+           and a = \x. b x
+           and d = #Z
+           and b = \x. a x
+        in (a, c)
+        */
+
+        final Map<EVar, Expr> binds = new LinkedHashMap<>();
+        binds.put(new EVar("c"), new ECtor("#S", List.of(new EVar("d"))));
+        binds.put(new EVar("a"), new ELam(new EVar("x"), new EApp(new EVar("b"), new EVar("x"))));
+        binds.put(new EVar("d"), new ECtor("#Z", List.of()));
+        binds.put(new EVar("b"), new ELam(new EVar("x"), new EApp(new EVar("a"), new EVar("x"))));
+        final Expr e = new ELetrec(binds, new ETup(List.of(new EVar("a"), new EVar("c"))));
+
+        // only a and b are recursive, c has to wait for d.
+        assertEquals("(let ((d #Z)) (let ((c (#S d))) (letrec ((a (\\x. (b x))) (b (\\x. (a x)))) (a, c))))",
+                     new LetrecFixer().rewrite(e).toString());
+    }
+
+    @Test
+    public void testKeepsRecursiveGroup() {
+        // letrec f = \x. f x in f
+        final Expr e = new ELetrec(Map.of(new EVar("f"), new ELam(new EVar("x"),
+                new EApp(new EVar("f"), new EVar("x")))), new EVar("f"));
+        assertSame(e, new LetrecFixer().rewrite(e));
+    }
+}
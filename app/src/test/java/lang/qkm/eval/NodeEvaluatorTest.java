@@ -0,0 +1,210 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeEvaluatorTest {
+
+    private static String capture(Runnable action) {
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(old);
+        }
+        return buffer.toString().trim();
+    }
+
+    private static String run(Evaluator eval, Map<EVar, Expr> defs, List<Expr> programs) {
+        return capture(() -> {
+            if (!defs.isEmpty())
+                eval.define(defs);
+            for (final Expr e : programs)
+                eval.eval(e);
+        });
+    }
+
+    private static void check(String expected, Map<EVar, Expr> defs, Expr... programs) {
+        // the tree walker is the reference.
+        assertEquals(expected, run(new ASTWalker(), defs, List.of(programs)));
+        assertEquals(expected, run(new NodeEvaluator(), defs, List.of(programs)));
+    }
+
+    private static Expr app(Expr f, Expr... args) {
+        for (final Expr arg : args)
+            f = new EApp(f, arg);
+        return f;
+    }
+
+    private static Expr ctor(String id, Expr... args) {
+        return new ECtor(id, List.of(args));
+    }
+
+    private static Expr nat(Expr n, Expr zero, String k, Expr succ) {
+        return new EMatch(n, List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), zero),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll(k))), succ)));
+    }
+
+    @Test
+    public void testClosures() {
+        /* // test the following
+        def k = \x. \y. x
+        def compose = \f. \g. \x. f (g x)
+        def pair = \x. \y. (x, y)
+        let a = k #A in (a #B, compose (k #C) (\z. z) #D)
+        let p = pair #Z in p #A
+        */
+
+        final Map<EVar, Expr> defs = new HashMap<>();
+        defs.put(new EVar("k"), new ELam(new EVar("x"), new ELam(new EVar("y"), new EVar("x"))));
+        defs.put(new EVar("compose"), new ELam(new EVar("f"), new ELam(new EVar("g"), new ELam(new EVar("x"),
+                app(new EVar("f"), app(new EVar("g"), new EVar("x")))))));
+        defs.put(new EVar("pair"), new ELam(new EVar("x"), new ELam(new EVar("y"),
+                new ETup(List.of(new EVar("x"), new EVar("y"))))));
+
+        check("(#A, #C)\n(#Z, #A)", defs,
+              new ELet(new EVar("a"), app(new EVar("k"), ctor("#A")), new ETup(List.of(
+                      app(new EVar("a"), ctor("#B")),
+                      app(new EVar("compose"), app(new EVar("k"), ctor("#C")),
+                          new ELam(new EVar("z"), new EVar("z")), ctor("#D"))))),
+              new ELet(new EVar("p"), app(new EVar("pair"), ctor("#Z")), app(new EVar("p"), ctor("#A"))));
+    }
+
+    @Test
+    public void testLetrec() {
+        /* // test the following
+        letrec even = \n. match n with #Z -> #T | #S k -> odd k
+               odd = \n. match n with #Z -> #F | #S k -> even k
+        in (even (#S (#S #Z)), odd (#S (#S #Z)))
+        letrec xs = #Cons #A xs in match xs with #Cons _ (#Cons h _) -> h
+        */
+
+        final Expr two = ctor("#S", ctor("#S", ctor("#Z")));
+        final Map<EVar, Expr> parity = new HashMap<>();
+        parity.put(new EVar("even"), new ELam(new EVar("n"),
+                nat(new EVar("n"), ctor("#T"), "k", app(new EVar("odd"), new EVar("k")))));
+        parity.put(new EVar("odd"), new ELam(new EVar("n"),
+                nat(new EVar("n"), ctor("#F"), "k", app(new EVar("even"), new EVar("k")))));
+
+        final Expr cycle = new ELetrec(Map.of(new EVar("xs"), ctor("#Cons", ctor("#A"), new EVar("xs"))),
+                new EMatch(new EVar("xs"), List.of(Map.entry(
+                        new MatchCtor("#Cons", List.of(new MatchAll(),
+                                new MatchCtor("#Cons", List.of(new MatchAll("h"), new MatchAll())))),
+                        new EVar("h")))));
+
+        check("(#T, #F)\n#A", Map.of(),
+              new ELetrec(parity, new ETup(List.of(
+                      app(new EVar("even"), two),
+                      app(new EVar("odd"), two)))),
+              cycle);
+    }
+
+    @Test
+    public void testMatches() {
+        /* // test the following
+        def classify = \v. match v with
+          | (#Nil, _) -> 0
+          | (#Cons _ #Nil, #T) -> 1
+          | (#Cons _ (#Cons _ _), #F) -> 2
+          | (#Cons x _, _) -> x
+        (classify (#Nil, #T), classify (#Cons 5 #Nil, #T),
+         classify (#Cons 5 (#Cons 6 #Nil), #F), classify (#Cons 7 #Nil, #F))
+        match 3 with 1 -> #A | 3 -> #B | _ -> #C
+        */
+
+        final TyInt i32 = new TyInt(32);
+        final Match nil = new MatchCtor("#Nil", List.of());
+        final Match one = new MatchTup(List.of(
+                new MatchCtor("#Cons", List.of(new MatchAll(), nil)),
+                new MatchCtor("#T", List.of())));
+        final Match two = new MatchTup(List.of(
+                new MatchCtor("#Cons", List.of(new MatchAll(),
+                        new MatchCtor("#Cons", List.of(new MatchAll(), new MatchAll())))),
+                new MatchCtor("#F", List.of())));
+        final Map<EVar, Expr> defs = Map.of(new EVar("classify"), new ELam(new EVar("v"), new EMatch(new EVar("v"), List.of(
+                Map.entry(new MatchTup(List.of(nil, new MatchAll())), new EInt(0, i32)),
+                Map.entry(one, new EInt(1, i32)),
+                Map.entry(two, new EInt(2, i32)),
+                Map.entry(new MatchTup(List.of(new MatchCtor("#Cons", List.of(new MatchAll("x"), new MatchAll())), new MatchAll())),
+                          new EVar("x"))))));
+
+        final Expr list5 = ctor("#Cons", new EInt(5, i32), ctor("#Nil"));
+        final Expr list56 = ctor("#Cons", new EInt(5, i32), ctor("#Cons", new EInt(6, i32), ctor("#Nil")));
+        final Expr list7 = ctor("#Cons", new EInt(7, i32), ctor("#Nil"));
+        final Expr classify = new ETup(List.of(
+                app(new EVar("classify"), new ETup(List.of(ctor("#Nil"), ctor("#T")))),
+                app(new EVar("classify"), new ETup(List.of(list5, ctor("#T")))),
+                app(new EVar("classify"), new ETup(List.of(list56, ctor("#F")))),
+                app(new EVar("classify"), new ETup(List.of(list7, ctor("#F"))))));
+
+        final Expr literal = new EMatch(new EInt(3, i32), List.of(
+                Map.entry(new MatchInt(BigInteger.ONE, i32), ctor("#A")),
+                Map.entry(new MatchInt(BigInteger.valueOf(3), i32), ctor("#B")),
+                Map.entry(new MatchAll(), ctor("#C"))));
+
+        check("(0, 1, 2, 7)\n#B", defs, classify, literal);
+    }
+
+    @Test
+    public void testLiterals() {
+        /* // test the following
+        match (3, "b", false) with
+          | (1, _, _) -> #A
+          | (3, "a", _) -> #B
+          | (3, s, b) -> (s, b, 100 : i8)
+          | _ -> #C
+        error "boom"
+        */
+
+        final TyInt i8 = new TyInt(8);
+        final TyInt i32 = new TyInt(32);
+        final Expr literal = new EMatch(new ETup(List.of(new EInt(3, i32), new EString("b"), new EBool(false))), List.of(
+                Map.entry(new MatchTup(List.of(new MatchInt(BigInteger.ONE, i32), new MatchAll(), new MatchAll())), ctor("#A")),
+                Map.entry(new MatchTup(List.of(new MatchInt(BigInteger.valueOf(3), i32), new MatchString("a"), new MatchAll())),
+                          ctor("#B")),
+                Map.entry(new MatchTup(List.of(new MatchInt(BigInteger.valueOf(3), i32), new MatchAll("s"), new MatchAll("b"))),
+                          new ETup(List.of(new EVar("s"), new EVar("b"), new EInt(100, i8)))),
+                Map.entry(new MatchAll(), ctor("#C"))));
+
+        check("(b, false, 100)", Map.of(), literal);
+
+        final Expr err = new EErr(new EString("boom"));
+        assertThrows(RuntimeException.class, () -> new ASTWalker().eval(err));
+        assertThrows(RuntimeException.class, () -> new NodeEvaluator().eval(err));
+    }
+
+    @Test
+    public void testTailCalls() {
+        /* // test the following
+        def double = \n. \acc. match n with #Z -> acc | #S k -> double k (#S (#S acc))
+        def grow = \k. \n. match k with #Z -> n | #S j -> grow j (double n #Z)
+        def count = \n. match n with #Z -> #Done | #S k -> count k
+        count (grow 20 (#S #Z))
+        */
+
+        final Map<EVar, Expr> defs = new HashMap<>();
+        defs.put(new EVar("double"), new ELam(new EVar("n"), new ELam(new EVar("acc"),
+                nat(new EVar("n"), new EVar("acc"), "k",
+                    app(new EVar("double"), new EVar("k"), ctor("#S", ctor("#S", new EVar("acc"))))))));
+        defs.put(new EVar("grow"), new ELam(new EVar("k"), new ELam(new EVar("n"),
+                nat(new EVar("k"), new EVar("n"), "j",
+                    app(new EVar("grow"), new EVar("j"), app(new EVar("double"), new EVar("n"), ctor("#Z")))))));
+        defs.put(new EVar("count"), new ELam(new EVar("n"),
+                nat(new EVar("n"), ctor("#Done"), "k", app(new EVar("count"), new EVar("k")))));
+
+        // 2^20 steps, each of them a tail call.
+        Expr twenty = ctor("#Z");
+        for (int i = 0; i < 20; ++i)
+            twenty = ctor("#S", twenty);
+        check("#Done", defs, app(new EVar("count"), app(new EVar("grow"), twenty, ctor("#S", ctor("#Z")))));
+    }
+}
@@ -0,0 +1,165 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.type.TyInt;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartialEvaluatorTest {
+
+    private static Expr app(Expr f, Expr... args) {
+        for (final Expr arg : args)
+            f = new EApp(f, arg);
+        return f;
+    }
+
+    private static Expr rewrite(Expr e) {
+        return new PartialEvaluator().rewrite(new ANFConverter().rewrite(e));
+    }
+
+    private static int countMatches(Expr e) {
+        final int[] count = new int[1];
+        e.accept(new ExprBaseVisitor<Void>() {
+
+            @Override
+            public Void visitEMatch(EMatch e) {
+                count[0]++;
+                return super.visitEMatch(e);
+            }
+        });
+        return count[0];
+    }
+
+    private static Expr wrap(String ctor, int depth, Expr e) {
+        while (depth-- > 0)
+            e = new ECtor(ctor, List.of(e));
+        return e;
+    }
+
+    @Test
+    public void testInlineCombinators() {
+        /* // test the following
+        let compose = \f g x. f (g x) in
+        let inc = \n. #S n in
+        (compose inc inc #Z, compose inc inc y)
+        */
+
+        final Expr compose = new ELam(new EVar("f"), new ELam(new EVar("g"), new ELam(new EVar("x"),
+                app(new EVar("f"), app(new EVar("g"), new EVar("x"))))));
+        final Expr inc = new ELam(new EVar("n"), new ECtor("#S", List.of(new EVar("n"))));
+        final Expr e = new ELet(new EVar("compose"), compose, new ELet(new EVar("inc"), inc, new ETup(List.of(
+                app(new EVar("compose"), new EVar("inc"), new EVar("inc"), new ECtor("#Z", List.of())),
+                app(new EVar("compose"), new EVar("inc"), new EVar("inc"), new EVar("y"))))));
+
+        // compose is used twice, but is small enough to be inlined at both.
+        assertEquals("((#S (#S #Z)), (#S (#S y)))", rewrite(e).toString());
+    }
+
+    @Test
+    public void testLoopBreaker() {
+        /* // test the following
+        letrec ev = \n. match n with #Z -> true | #S k -> od k
+           and od = \n. match n with #Z -> false | #S k -> ev k
+        in ev y
+        */
+
+        final Map<EVar, Expr> binds = new HashMap<>();
+        binds.put(new EVar("ev"), new ELam(new EVar("n"), new EMatch(new EVar("n"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new EBool(true)),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))),
+                          app(new EVar("od"), new EVar("k")))))));
+        binds.put(new EVar("od"), new ELam(new EVar("n"), new EMatch(new EVar("n"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new EBool(false)),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))),
+                          app(new EVar("ev"), new EVar("k")))))));
+
+        // one of them is inlined into the other, which stays recursive.
+        final Expr r = rewrite(new ELetrec(binds, app(new EVar("ev"), new EVar("y"))));
+        assertTrue(r instanceof ELetrec);
+        assertEquals(1, ((ELetrec) r).binds.size());
+    }
+
+    @Test
+    public void testKnownCtorInCase() {
+        /* // test the following
+        \x. match x with
+          | #S k -> (match x with #Z -> #A | #S j -> j)
+          | _ -> #B
+        */
+
+        final Expr e = new ELam(new EVar("x"), new EMatch(new EVar("x"), List.of(
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))), new EMatch(new EVar("x"), List.of(
+                        Map.entry(new MatchCtor("#Z", List.of()), new ECtor("#A", List.of())),
+                        Map.entry(new MatchCtor("#S", List.of(new MatchAll("j"))), new EVar("j"))))),
+                Map.entry(new MatchAll(), new ECtor("#B", List.of())))));
+
+        assertEquals(1, countMatches(rewrite(e)));
+    }
+
+    @Test
+    public void testCaseOfCase() {
+        /* // test the following
+        \x. match (match x with #Z -> #A | #S _ -> #B) with
+          | #A -> #W (#W ... #Z)
+          | #B -> #V (#V ... #Z)
+        */
+
+        final Expr zero = new ECtor("#Z", List.of());
+        final Expr inner = new EMatch(new EVar("x"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new ECtor("#A", List.of())),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll())), new ECtor("#B", List.of()))));
+        final Expr e = new ELam(new EVar("x"), new EMatch(inner, List.of(
+                Map.entry(new MatchCtor("#A", List.of()), wrap("#W", 20, zero)),
+                Map.entry(new MatchCtor("#B", List.of()), wrap("#V", 20, zero)))));
+
+        // the outer match is gone, its cases are too large to be copied and
+        // become join points instead.
+        final Expr r = rewrite(e);
+        assertEquals(1, countMatches(r));
+        assertEquals(20, r.toString().split("#W", -1).length - 1);
+    }
+
+    @Test
+    public void testInlineJoinPoint() {
+        /* // test the following
+        \x. join j y = #S y in
+             match x with #Z -> jump j #A | _ -> #B
+        */
+
+        final Expr e = new ELam(new EVar("x"), new EJoin(new EVar("j"), List.of(new EVar("y")),
+                new ECtor("#S", List.of(new EVar("y"))),
+                new EMatch(new EVar("x"), List.of(
+                        Map.entry(new MatchCtor("#Z", List.of()),
+                                  new EJump(new EVar("j"), List.of(new ECtor("#A", List.of())))),
+                        Map.entry(new MatchAll(), new ECtor("#B", List.of()))))));
+
+        // the join point is only jumped to once, so it is inlined there.
+        assertEquals("(\\`v1. (match `v1 (#Z (#S #A)) (_ #B)))", rewrite(e).toString());
+    }
+
+    @Test
+    public void testFoldPrims() {
+        /* // test the following
+        let x = 120i8 in
+        let y = add_i8 x 10i8 in
+        match lt_i8 y x with true -> y | false -> div_i8 y 0i8
+        */
+
+        final TyInt i8 = new TyInt(8);
+        final Expr e = new ELet(new EVar("x"), new EInt(120, i8),
+                new ELet(new EVar("y"), new EPrim(EPrim.Op.ADD, i8, List.of(new EVar("x"), new EInt(10, i8))),
+                         new EMatch(new EPrim(EPrim.Op.LT, i8, List.of(new EVar("y"), new EVar("x"))), List.of(
+                                 Map.entry(new MatchBool(true), new EVar("y")),
+                                 Map.entry(new MatchBool(false),
+                                           new EPrim(EPrim.Op.DIV, i8, List.of(new EVar("y"), new EInt(0, i8))))))));
+
+        // wraps around to -126, and the division by zero is never reached.
+        assertEquals("-126i8", rewrite(e).toString());
+
+        // but it is kept if it could be.
+        final Expr div = new EPrim(EPrim.Op.DIV, i8, List.of(new EInt(1, i8), new EInt(0, i8)));
+        assertTrue(rewrite(div) instanceof EPrim);
+    }
+}
@@ -0,0 +1,118 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileTest {
+
+    @Test
+    public void testCounters() {
+        /* // test the following
+        def down = \n. match n with
+          | #Z -> ()
+          | #S k -> down k
+        down (#S (#S #Z))
+        */
+
+        final Profile profile = new Profile();
+        final Evaluator eval = new Profiler(new ASTWalker(profile), profile);
+        eval.define(Map.of(new EVar("down"), new ELam(new EVar("n"), new EMatch(new EVar("n"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new ETup(List.of())),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))),
+                          new EApp(new EVar("down"), new EVar("k"))))))));
+
+        final Expr zero = new ECtor("#Z", List.of());
+        final Expr two = new ECtor("#S", List.of(new ECtor("#S", List.of(zero))));
+
+        final PrintStream old = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            eval.eval(new EApp(new EVar("down"), two));
+        } finally {
+            System.setOut(old);
+        }
+
+        assertEquals(Map.of("down", 3L), profile.getCalls());
+        assertEquals(2, profile.getAllocs(Profile.Alloc.CTOR));
+        assertEquals(1, profile.getAllocs(Profile.Alloc.BOX));
+        assertEquals(3, profile.getArmsTaken());
+
+        // only the two recursive calls are in tail position.
+        assertEquals(2, profile.getBounces());
+
+        profile.reset();
+        assertEquals(Map.of(), profile.getCalls());
+        assertEquals(0, profile.getArmsTried());
+    }
+
+    @Test
+    public void testTailPositions() {
+        /* // test the following
+        def id = \x. x
+        def up = \n. match n with
+          | #Z -> #Z
+          | #S k -> #S (up k)
+        def viaLet = \n. let m = id n in id m
+        def viaMatch = \n. let u = id () in match n with
+          | #Z -> id u
+          | #S k -> match k with
+            | #Z -> id k
+            | _ -> id n
+        */
+
+        final Profile profile = new Profile();
+        final Evaluator eval = new Profiler(new ASTWalker(profile), profile);
+        final Map<EVar, Expr> defs = new HashMap<>();
+        defs.put(new EVar("id"), new ELam(new EVar("x"), new EVar("x")));
+        defs.put(new EVar("up"), new ELam(new EVar("n"), new EMatch(new EVar("n"), List.of(
+                Map.entry(new MatchCtor("#Z", List.of()), new ECtor("#Z", List.of())),
+                Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))),
+                          new ECtor("#S", List.of(new EApp(new EVar("up"), new EVar("k")))))))));
+        defs.put(new EVar("viaLet"), new ELam(new EVar("n"), new ELet(new EVar("m"),
+                new EApp(new EVar("id"), new EVar("n")),
+                new EApp(new EVar("id"), new EVar("m")))));
+        defs.put(new EVar("viaMatch"), new ELam(new EVar("n"), new ELet(new EVar("u"),
+                new EApp(new EVar("id"), new ETup(List.of())),
+                new EMatch(new EVar("n"), List.of(
+                        Map.entry(new MatchCtor("#Z", List.of()), new EApp(new EVar("id"), new EVar("u"))),
+                        Map.entry(new MatchCtor("#S", List.of(new MatchAll("k"))), new EMatch(new EVar("k"), List.of(
+                                Map.entry(new MatchCtor("#Z", List.of()), new EApp(new EVar("id"), new EVar("k"))),
+                                Map.entry(new MatchAll(), new EApp(new EVar("id"), new EVar("n")))))))))));
+
+        final Expr zero = new ECtor("#Z", List.of());
+        final Expr one = new ECtor("#S", List.of(zero));
+        final Expr two = new ECtor("#S", List.of(one));
+
+        final PrintStream old = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            eval.define(defs);
+
+            // the recursive call is an argument, so it is not a tail call.
+            profile.reset();
+            eval.eval(new EApp(new EVar("up"), two));
+            assertEquals(Map.of("up", 3L), profile.getCalls());
+            assertEquals(0, profile.getBounces());
+
+            // the body of a let is in tail position, its value is not.
+            profile.reset();
+            eval.eval(new EApp(new EVar("viaLet"), two));
+            assertEquals(Map.of("viaLet", 1L, "id", 2L), profile.getCalls());
+            assertEquals(1, profile.getBounces());
+
+            // so are the arms of a match, nested or not.
+            for (final Expr n : List.of(zero, one, two)) {
+                profile.reset();
+                eval.eval(new EApp(new EVar("viaMatch"), n));
+                assertEquals(Map.of("viaMatch", 1L, "id", 2L), profile.getCalls());
+                assertEquals(1, profile.getBounces());
+            }
+        } finally {
+            System.setOut(old);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolverTest {
+
+    @Test
+    public void testAddressNestedLambda() {
+        /* // test the following
+        \x. let y = x in \z. (x, y, z, g)
+        */
+
+        final ELam inner = new ELam(new EVar("z"), new ETup(List.of(
+                new EVar("x"), new EVar("y"), new EVar("z"), new EVar("g"))));
+        final ELam outer = new ELam(new EVar("x"),
+                new ELet(new EVar("y"), new EVar("x"), inner));
+
+        final ELam code = (ELam) new Resolver(Map.of(new EVar("g"), 7)).rewrite(outer);
+        assertEquals(2, code.frameSize);
+
+        final ELet let = (ELet) code.body;
+        assertEquals(1, let.bind.slot);
+
+        final ELam lam = (ELam) let.body;
+        assertEquals(1, lam.frameSize);
+
+        final List<? extends Expr> elements = ((ETup) lam.body).elements;
+        final int[][] expected = { { 1, 0 }, { 1, 1 }, { 0, 0 }, { -1, 7 } };
+        for (int i = 0; i < expected.length; ++i) {
+            final EVar v = (EVar) elements.get(i);
+            assertEquals(expected[i][0], v.depth);
+            assertEquals(expected[i][1], v.slot);
+        }
+    }
+
+    @Test
+    public void testShareSlotsAcrossCases() {
+        /* // test the following
+        \x. match x with
+          | #Foo a b -> a
+          | #Bar c -> c
+        */
+
+        final EMatch match = new EMatch(new EVar("x"), List.of(
+                Map.entry(new MatchCtor("#Foo", List.of(new MatchAll("a"), new MatchAll("b"))), new EVar("a")),
+                Map.entry(new MatchCtor("#Bar", List.of(new MatchAll("c"))), new EVar("c"))));
+
+        final ELam code = (ELam) new Resolver(Map.of()).rewrite(new ELam(new EVar("x"), match));
+        assertEquals(3, code.frameSize);
+
+        final List<Map.Entry<Match, Expr>> cases = ((EMatch) code.body).cases;
+        assertEquals(1, ((EVar) cases.get(0).getValue()).slot);
+        assertEquals(1, ((EVar) cases.get(1).getValue()).slot);
+    }
+
+    @Test
+    public void testAddressFlatClosure() {
+        /* // test the following
+        \x. \y. \z. (x, g)
+        */
+
+        final ELam inner = new ELam(new EVar("z"), new ETup(List.of(new EVar("x"), new EVar("g"))));
+        final ELam outer = new ELam(new EVar("x"), new ELam(new EVar("y"), inner));
+
+        final Expr converted = new ClosureConverter().rewrite(outer);
+        final ELam code = (ELam) new Resolver(Map.of(new EVar("g"), 0)).rewrite(converted);
+
+        // globals are never captured, and x is copied from one closure into
+        // the next one.
+        final ELam middle = (ELam) code.body;
+        assertEquals(1, middle.captures.size());
+        assertEquals(0, middle.captures.get(0).depth);
+
+        final ELam lam = (ELam) middle.body;
+        assertEquals(1, lam.captures.size());
+        assertEquals(1, lam.captures.get(0).depth);
+        assertEquals(0, lam.captures.get(0).slot);
+
+        final EVar x = (EVar) ((ETup) lam.body).elements.get(0);
+        assertEquals(1, x.depth);
+        assertEquals(0, x.slot);
+    }
+}
@@ -0,0 +1,49 @@
+package lang.qkm.eval;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RewriteGroupTest {
+
+    private static final Evaluator SINK = new Evaluator() {
+
+        @Override
+        public void define(Map<EVar, Expr> defs) {
+        }
+
+        @Override
+        public void eval(Expr e) {
+        }
+    };
+
+    @Test
+    public void testSkipsRedundantPasses() {
+        // let x = f y in x, nothing for letrec fixer or the repeat to do.
+        final RewriteGroup group = new RewriteGroup(SINK, List.of(
+                new ANFConverter(),
+                new LetrecFixer(),
+                new ANFConverter(),
+                new RewriteGroup.Repeat(4, List.of(new LetrecFixer()))));
+        group.eval(new ELet(new EVar("x"), new EApp(new EVar("f"), new EVar("y")), new EVar("x")));
+
+        final List<RewriteGroup.Stats> stats = group.getStats();
+        assertEquals(4, stats.size());
+        assertEquals(1, stats.get(0).runs);
+        assertEquals(1, stats.get(1).runs);
+        assertEquals(0, stats.get(1).changes);
+
+        // still in ANF since the tree did not change.
+        assertEquals(0, stats.get(2).runs);
+        assertEquals(1, stats.get(2).skips);
+        assertEquals(1, stats.get(3).runs);
+        assertEquals(stats.get(0).nodesOut, stats.get(3).nodesOut);
+    }
+
+    @Test
+    public void testMissingInvariant() {
+        final RewriteGroup group = new RewriteGroup(SINK, List.of(new MatchRewriter()));
+        assertThrows(IllegalStateException.class, () -> group.eval(new EVar("x")));
+    }
+}
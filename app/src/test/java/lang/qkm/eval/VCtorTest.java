@@ -0,0 +1,89 @@
+package lang.qkm.eval;
+
+import java.io.*;
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.match.*;
+import lang.qkm.eval.ASTWalker.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VCtorTest {
+
+    private static Value[] values(int n) {
+        final Value[] args = new Value[n];
+        for (int i = 0; i < n; ++i)
+            args[i] = VCtor.of("#V" + i, -1);
+        return args;
+    }
+
+    private static String capture(Runnable action) {
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            action.run();
+        } finally {
+            System.setOut(old);
+        }
+        return buffer.toString().trim();
+    }
+
+    @Test
+    public void testLayouts() {
+        final List<Class<?>> layouts = List.of(
+                VCtor0.class, VCtor1.class, VCtor2.class, VCtor3.class, VCtorN.class, VCtorN.class);
+        for (int n = 0; n < layouts.size(); ++n) {
+            final Value[] args = values(n);
+            final VCtor k = VCtor.of("#K", 3, args);
+            assertEquals(layouts.get(n), k.getClass());
+            assertEquals("#K", k.id);
+            assertEquals(3, k.tag);
+            assertEquals(n, k.arity());
+            for (int i = 0; i < n; ++i)
+                assertSame(args[i], k.get(i));
+
+            final int arity = n;
+            assertThrows(IndexOutOfBoundsException.class, () -> k.get(arity));
+            assertThrows(IndexOutOfBoundsException.class, () -> k.get(-1));
+        }
+    }
+
+    @Test
+    public void testSharedNullary() {
+        // the same name in two types with different tags.
+        final VCtor a = VCtor.of("#Nil", 0);
+        final VCtor b = VCtor.of("#Nil", 1);
+        assertEquals(0, a.tag);
+        assertEquals(1, b.tag);
+        assertSame(a, VCtor.of("#Nil", 0));
+        assertSame(b, VCtor.of("#Nil", 1));
+        assertSame(a, VCtor.of("#Nil", 0, new Value[0]));
+        assertSame(VCtor.of("#Nil", -1), VCtor.of("#Nil", -1));
+        assertNotSame(a, VCtor.of("#Nil", -1));
+    }
+
+    @Test
+    public void testMatchLayouts() {
+        // match #K e0 ... en with #J _ ... -> #No | #K x0 ... xn -> (xn, ..., x0)
+        for (int n = 0; n < 6; ++n) {
+            final List<Expr> args = new ArrayList<>();
+            final List<Match> other = new ArrayList<>();
+            final List<Match> captures = new ArrayList<>();
+            final List<Expr> reversed = new ArrayList<>();
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < n; ++i) {
+                args.add(new ECtor("#E" + i, List.of(), 0));
+                other.add(new MatchAll());
+                captures.add(new MatchAll("x" + i));
+                reversed.add(0, new EVar("x" + i));
+                expected.insert(0, i == 0 ? "#E0" : "#E" + i + ", ");
+            }
+
+            final Expr e = new EMatch(new ECtor("#K", args, 1), List.of(
+                    Map.entry(new MatchCtor("#J", other, 0), new ECtor("#No", List.of(), 0)),
+                    Map.entry(new MatchCtor("#K", captures, 1), new ETup(reversed))));
+            assertEquals("(" + expected + ")", capture(() -> new ASTWalker().eval(e)));
+        }
+    }
+}
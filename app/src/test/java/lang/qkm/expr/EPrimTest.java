@@ -0,0 +1,73 @@
+package lang.qkm.expr;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import lang.qkm.eval.*;
+import lang.qkm.eval.ASTWalker.VWord;
+import lang.qkm.type.TyInt;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EPrimTest {
+
+    @Test
+    public void testWraparound() {
+        final TyInt i8 = new TyInt(8);
+        assertEquals(-128, EPrim.Op.ADD.apply(i8, 127, 1));
+        assertEquals(-128, EPrim.Op.DIV.apply(i8, -128, -1));
+        assertEquals(0, EPrim.Op.REM.apply(i8, -128, -1));
+        assertEquals(-2, EPrim.Op.SHL.apply(i8, 127, 1));
+        assertEquals(127, EPrim.Op.USHR.apply(i8, -1, 1));
+        assertEquals(-1, EPrim.Op.SHR.apply(i8, -1, 100));
+        assertThrows(ArithmeticException.class, () -> EPrim.Op.DIV.apply(i8, 1, 0));
+
+        final TyInt i128 = new TyInt(128);
+        final BigInteger max = BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE);
+        assertEquals(max.negate().subtract(BigInteger.ONE), EPrim.Op.ADD.apply(i128, max, BigInteger.ONE));
+        assertEquals(max, EPrim.Op.USHR.apply(i128, BigInteger.ONE.negate(), BigInteger.ONE));
+        assertTrue(EPrim.Op.LT.test(max.negate(), max));
+    }
+
+    @Test
+    public void testNames() {
+        final EPrim p = EPrim.of("ushr_i64");
+        assertEquals(EPrim.Op.USHR, p.op);
+        assertEquals(new TyInt(64), p.type);
+        assertEquals("ushr_i64", p.name());
+
+        assertNull(EPrim.of("add_i0"));
+        assertNull(EPrim.of("add_32"));
+        assertNull(EPrim.of("pow_i32"));
+    }
+
+    @Test
+    public void testSharedWords() throws Exception {
+        // literals come out of the cache, in every walker.
+        final EInt small = new EInt(42, new TyInt(32));
+        final EInt large = new EInt(1 << 20, new TyInt(32));
+        final VWord shared = VWord.of(new TyInt(32), 42);
+        assertSame(shared, new ASTWalker().visitEInt(small));
+        assertSame(shared, new FrameWalker().visitEInt(small));
+        assertSame(shared, new CEKMachine().visitEInt(small));
+        assertNotSame(new ASTWalker().visitEInt(large), new ASTWalker().visitEInt(large));
+
+        // the first uses of a width race to fill its row.
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<VWord>> words = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                final TyInt type = new TyInt(13 + i % 4);
+                final long value = i - 32;
+                words.add(pool.submit(() -> VWord.of(type, value)));
+            }
+            for (int i = 0; i < 64; ++i) {
+                final VWord w = words.get(i).get();
+                assertEquals(i - 32, w.value);
+                assertSame(w, VWord.of(new TyInt(13 + i % 4), i - 32));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
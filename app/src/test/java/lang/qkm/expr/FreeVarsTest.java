@@ -0,0 +1,82 @@
+package lang.qkm.expr;
+
+import java.util.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreeVarsTest {
+
+    @Test
+    public void testBinders() {
+        // \x. let y = f x in match y with (a, b) -> g a b z
+        final Expr e = new ELam(new EVar("x"), new ELet(
+                new EVar("y"),
+                new EApp(new EVar("f"), new EVar("x")),
+                new EMatch(new EVar("y"), List.of(Map.entry(
+                        new MatchTup(List.of(new MatchAll("a"), new MatchAll("b"))),
+                        new EApp(new EApp(new EApp(new EVar("g"), new EVar("a")), new EVar("b")),
+                                 new EVar("z")))))));
+
+        final FreeVars fv = e.getFreeVars();
+        assertEquals(Set.of(new EVar("f"), new EVar("g"), new EVar("z")), fv);
+        assertSame(fv, e.getFreeVars());
+        assertFalse(fv.contains(new EVar("x")));
+    }
+
+    @Test
+    public void testWideSets() {
+        // enough distinct names to span several words.
+        final List<Expr> vars = new ArrayList<>();
+        for (int i = 0; i < 200; ++i)
+            vars.add(new EVar("fv" + i));
+
+        final FreeVars all = new ETup(vars).getFreeVars();
+        assertEquals(200, all.size());
+
+        final FreeVars rest = all.minus(new EVar("fv150"));
+        assertEquals(199, rest.size());
+        assertFalse(rest.contains(new EVar("fv150")));
+        assertSame(all, all.union(rest));
+        assertSame(rest, rest.minus(new EVar("not-in-there")));
+    }
+
+    @Test
+    public void testScopes() {
+        // sets from a scope that is gone still mix with the current one.
+        final Expr outer = new ETup(List.of(new EVar("a"), new EVar("b")));
+        final FreeVars ab = FreeVars.scoped(outer::getFreeVars);
+
+        FreeVars.scoped(() -> {
+            final FreeVars bc = new ETup(List.of(new EVar("b"), new EVar("c"))).getFreeVars();
+            assertEquals(Set.of(new EVar("a"), new EVar("b"), new EVar("c")), ab.union(bc));
+            assertEquals(Set.of(new EVar("a")), ab.minus(bc));
+            assertEquals(Set.of(new EVar("c")), bc.minus(ab));
+            assertTrue(bc.contains(new EVar("b")));
+            assertFalse(bc.contains(new EVar("a")));
+            return null;
+        });
+    }
+
+    @Test
+    public void testSparse() {
+        // only the words between the first and the last name are kept.
+        FreeVars.scoped(() -> {
+            for (int i = 0; i < 1000; ++i)
+                FreeVars.of(new EVar("s" + i));
+
+            final FreeVars far = FreeVars.of(new EVar("s999"))
+                    .union(FreeVars.of(new EVar("s900")));
+            assertEquals(2, far.size());
+            assertEquals(List.of(new EVar("s900"), new EVar("s999")), new ArrayList<>(far));
+
+            final FreeVars both = far.union(FreeVars.of(new EVar("s3")));
+            assertEquals(3, both.size());
+            assertEquals(far, both.minus(new EVar("s3")));
+            assertSame(both, both.union(far));
+            assertEquals(Set.of(new EVar("s999")), both.minus(FreeVars.of(new EVar("s3"))).minus(new EVar("s900")));
+            assertTrue(both.minus(both).isEmpty());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package lang.qkm.expr;
+
+import java.util.*;
+import lang.qkm.match.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashConsTest {
+
+    private static Expr sample(String capture) {
+        // match f x with C a -> (a, #t) | _ -> !! "no"
+        return new EMatch(new EApp(new EVar("f"), new EVar("x")), List.of(
+                Map.entry(new MatchCtor("C", List.of(new MatchAll(capture))),
+                          new ETup(List.of(new EVar(capture), new EBool(true)))),
+                Map.entry(new MatchAll(), new EErr(new EString("no")))));
+    }
+
+    @Test
+    public void testSharesEqualTrees() {
+        final HashCons hc = new HashCons();
+        final Expr a = hc.intern(sample("a"));
+        final Expr b = hc.intern(sample("a"));
+        assertSame(a, b);
+        assertSame(a, hc.intern(a));
+
+        // the first tree seen is kept as is.
+        final Expr c = sample("a");
+        assertSame(c, new HashCons().intern(c));
+    }
+
+    @Test
+    public void testKeepsDifferentTrees() {
+        final HashCons hc = new HashCons();
+        final EMatch a = (EMatch) hc.intern(sample("a"));
+        final EMatch b = (EMatch) hc.intern(sample("b"));
+        assertNotSame(a, b);
+
+        // the parts that agree are still shared.
+        assertSame(a.scrutinee, b.scrutinee);
+        assertSame(a.cases.get(1).getValue(), b.cases.get(1).getValue());
+
+        assertNotSame(hc.intern(new EBool(true)), hc.intern(new EBool(false)));
+        assertNotSame(hc.intern(new EVar("x")), hc.intern(new EVar("x", 0, 1)));
+    }
+}
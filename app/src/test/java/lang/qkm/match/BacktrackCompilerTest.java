@@ -0,0 +1,42 @@
+package lang.qkm.match;
+
+import java.util.*;
+import lang.qkm.expr.*;
+import lang.qkm.util.SList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class BacktrackCompilerTest {
+
+    private static int countMatches(Expr e) {
+        final int[] count = new int[1];
+        e.accept(new ExprBaseVisitor<Void>() {
+
+            @Override
+            public Void visitEMatch(EMatch e) {
+                count[0]++;
+                return super.visitEMatch(e);
+            }
+        });
+        return count[0];
+    }
+
+    @Test
+    public void testLinearSize() {
+        // | (#A | #B _, #A | #B _, ... -> 0 | _ -> 1
+        final int n = 16;
+        final List<Match> columns = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i)
+            columns.add(new MatchOr(SList.<Match>of(new MatchCtor("#B", List.of(new MatchAll())))
+                    .prepend(new MatchCtor("#A", List.of()))));
+
+        final List<Map.Entry<Match, Expr>> cases = List.of(
+                Map.entry(new MatchTup(columns), new EVar("e0")),
+                Map.entry(new MatchAll(), new EVar("e1")));
+
+        // one test for the tuple and one per alternative.
+        final Expr e = new BacktrackCompiler().compile(new EVar("x"), cases);
+        assertEquals(2 * n + 1, countMatches(e));
+        assertEquals(2 * n + 1, BacktrackCompiler.size(cases));
+    }
+}
@@ -0,0 +1,43 @@
+package lang.qkm.match;
+
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.type.TyInt;
+import lang.qkm.util.SList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class CaseTableTest {
+
+    @Test
+    public void testSelectByTag() {
+        // | #A | #C -> 0 | #B _ -> 1 | x -> 2 | #A -> 3
+        final CaseTable table = new CaseTable(List.of(
+                new MatchOr(SList.<Match>of(new MatchCtor("#C", List.of(), 2))
+                        .prepend(new MatchCtor("#A", List.of(), 0))),
+                new MatchCtor("#B", List.of(new MatchAll()), 1),
+                new MatchAll("x"),
+                new MatchCtor("#A", List.of(), 0)));
+
+        assertArrayEquals(new int[] { 0, 2, 3 }, table.select(0, "#A"));
+        assertArrayEquals(new int[] { 1, 2 }, table.select(1, "#B"));
+        assertArrayEquals(new int[] { 0, 2 }, table.select(2, "#C"));
+        assertArrayEquals(new int[] { 2 }, table.select(3, "#D"));
+
+        // scrutinee without a tag still finds the same cases by name.
+        assertArrayEquals(new int[] { 1, 2 }, table.select(-1, "#B"));
+    }
+
+    @Test
+    public void testSelectLiteral() {
+        final TyInt i32 = new TyInt(32);
+        final CaseTable table = new CaseTable(List.of(
+                new MatchInt(BigInteger.ONE, i32),
+                new MatchInt(BigInteger.TWO, i32),
+                new MatchAll()));
+
+        assertArrayEquals(new int[] { 1, 2 }, table.select(-1, 2L));
+        assertArrayEquals(new int[] { 2 }, table.select(-1, 5L));
+        assertArrayEquals(new int[] { 0, 1, 2 }, table.select(-1, null));
+    }
+}
@@ -0,0 +1,43 @@
+package lang.qkm.match;
+
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.type.TyInt;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class IntervalSetTest {
+
+    @Test
+    public void testWord() {
+        final CtorSet i32 = new TyInt(32).getCtorSet();
+        final long min = Integer.MIN_VALUE;
+        assertEquals(min, i32.missingCase(List.of()));
+        assertEquals(min + 2, i32.missingCase(List.of(min + 1, 7L, min, min)));
+        assertEquals(Optional.of(false), i32.sameSize(Integer.MAX_VALUE - 1));
+
+        final CtorSet i2 = new TyInt(2).getCtorSet();
+        assertEquals(1L, i2.missingCase(List.of(0L, -2L, -1L)));
+        assertNull(i2.missingCase(List.of(1L, 0L, -2L, -1L)));
+        assertEquals(Optional.of(true), i2.sameSize(4));
+
+        final CtorSet i64 = new TyInt(64).getCtorSet();
+        final List<Long> top = new ArrayList<>();
+        for (long v = Long.MAX_VALUE; v > Long.MAX_VALUE - 4; --v)
+            top.add(v);
+        assertEquals(Long.MIN_VALUE, i64.missingCase(top));
+    }
+
+    @Test
+    public void testWide() {
+        // far too many values to walk through one by one.
+        final CtorSet i128 = new TyInt(128).getCtorSet();
+        final BigInteger min = BigInteger.ONE.shiftLeft(127).negate();
+        assertEquals(min, i128.missingCase(List.of()));
+        assertEquals(min.add(BigInteger.ONE), i128.missingCase(List.of(min, BigInteger.ZERO)));
+
+        final IntervalSet small = new IntervalSet(BigInteger.valueOf(-1), BigInteger.ONE);
+        assertNull(small.missingCase(List.of(0L, 1L, -1L)));
+        assertEquals(0L, small.missingCase(List.of(1L, -1L)));
+    }
+}
@@ -0,0 +1,318 @@
+package lang.qkm.match;
+
+import java.io.*;
+import java.util.*;
+import lang.qkm.eval.*;
+import lang.qkm.expr.*;
+import lang.qkm.util.SList;
+
+public final class MatchBench {
+
+    // not a unit test: run it with gradle matchBench.
+    //
+    // compiles a handful of multi-column matches with each column selection
+    // strategy, then reports the size and depth of the decision tree and
+    // how many tests it runs on random inputs (counted by the profile), as
+    // well as the time per input. the time includes walking the list of
+    // inputs, so the counts are what to compare.
+
+    private static final int INPUTS = 1 << 12;
+    private static final int CHUNK = 1 << 8;
+    private static final int ROUNDS = 20;
+
+    private static final Map<String, List<MatchCompiler.Heuristic>> STRATEGIES = new LinkedHashMap<>();
+
+    static {
+        STRATEGIES.put("f", MatchCompiler.LEFTMOST);
+        STRATEGIES.put("p", List.of(MatchCompiler.Heuristic.NEEDED_PREFIX));
+        STRATEGIES.put("fb", List.of(MatchCompiler.Heuristic.FIRST_ROW, MatchCompiler.Heuristic.SMALL_BRANCHING));
+        STRATEGIES.put("fa", List.of(MatchCompiler.Heuristic.FIRST_ROW, MatchCompiler.Heuristic.ARITY));
+        STRATEGIES.put("pba", MatchCompiler.PBA);
+    }
+
+    private static final class Sig {
+
+        // the constructors of a type and the types of their arguments.
+        public final Map<String, List<Sig>> ctors = new LinkedHashMap<>();
+
+        public Sig ctor(String id, Sig... args) {
+            this.ctors.put(id, Arrays.asList(args));
+            return this;
+        }
+
+        public Expr random(Random rnd, int depth) {
+            final List<String> ids = new ArrayList<>();
+            for (final Map.Entry<String, List<Sig>> ctor : this.ctors.entrySet())
+                if (depth > 0 || ctor.getValue().isEmpty())
+                    ids.add(ctor.getKey());
+
+            final String id = ids.get(rnd.nextInt(ids.size()));
+            final List<Expr> args = new ArrayList<>();
+            for (final Sig arg : this.ctors.get(id))
+                args.add(arg.random(rnd, depth - 1));
+            return new ECtor(id, args);
+        }
+    }
+
+    private static final class Corpus {
+
+        public final String name;
+        public final List<Sig> columns;
+        public final List<List<Match>> rows = new ArrayList<>();
+
+        public Corpus(String name, Sig... columns) {
+            this.name = name;
+            this.columns = Arrays.asList(columns);
+        }
+
+        public Corpus row(Match... row) {
+            this.rows.add(Arrays.asList(row));
+            return this;
+        }
+
+        public Expr function() {
+            // \x. match x with (p11, p12, ...) -> #R1 | ...
+            final List<Map.Entry<Match, Expr>> cases = new ArrayList<>();
+            int i = 0;
+            for (final List<Match> row : this.rows)
+                cases.add(Map.entry(new MatchTup(row), new ECtor("#R" + i++, List.of())));
+
+            return new ELam(new EVar("x"), new EMatch(new EVar("x"), cases));
+        }
+
+        public Expr inputs(Random rnd) {
+            Expr list = new ECtor("#Nil", List.of());
+            for (int i = 0; i < CHUNK; ++i) {
+                final List<Expr> elements = new ArrayList<>();
+                for (final Sig column : this.columns)
+                    elements.add(column.random(rnd, 3));
+                list = new ECtor("#Cons", List.of(new ETup(elements), list));
+            }
+            return list;
+        }
+    }
+
+    private static Match p(String ctor, Match... args) {
+        return new MatchCtor(ctor, Arrays.asList(args));
+    }
+
+    private static Match o(Match... alts) {
+        SList<Match> submatches = SList.empty();
+        for (int i = alts.length; i-- > 0; )
+            submatches = submatches.prepend(alts[i]);
+        return new MatchOr(submatches);
+    }
+
+    private static Match w() {
+        return new MatchAll();
+    }
+
+    private static Match c(String capture) {
+        return new MatchAll(capture);
+    }
+
+    private static List<Corpus> corpus() {
+        final Sig x = new Sig().ctor("#A").ctor("#B");
+        final Sig x5 = new Sig().ctor("#A").ctor("#B").ctor("#C").ctor("#D").ctor("#E");
+        final Sig bool = new Sig().ctor("#F").ctor("#T");
+        final Sig list = new Sig();
+        list.ctor("#Nil").ctor("#Cons", x, list);
+        final Sig color = new Sig().ctor("#R").ctor("#B");
+        final Sig tree = new Sig();
+        tree.ctor("#E").ctor("#T", color, tree, x, tree);
+        final Sig op = new Sig().ctor("#Add").ctor("#Sub").ctor("#And").ctor("#Or").ctor("#Eq");
+        final Sig value = new Sig().ctor("#Int", x5).ctor("#Bool", bool).ctor("#Err");
+
+        final List<Corpus> result = new ArrayList<>();
+
+        // merging two sorted lists.
+        result.add(new Corpus("merge", list, list)
+                .row(p("#Nil"), c("ys"))
+                .row(c("xs"), p("#Nil"))
+                .row(p("#Cons", c("x"), c("xt")), p("#Cons", c("y"), c("yt"))));
+
+        // the example from the paper where the first row is a bad guide.
+        result.add(new Corpus("mix", bool, bool, bool)
+                .row(w(), p("#F"), p("#T"))
+                .row(p("#F"), p("#T"), w())
+                .row(w(), w(), p("#F"))
+                .row(w(), w(), p("#T")));
+
+        // okasaki's red-black tree balancing.
+        final Match red = p("#R");
+        result.add(new Corpus("balance", color, tree, x, tree)
+                .row(p("#B"), p("#T", red, p("#T", red, c("a"), c("x"), c("b")), c("y"), c("c")), c("z"), c("d"))
+                .row(p("#B"), p("#T", red, c("a"), c("x"), p("#T", red, c("b"), c("y"), c("c"))), c("z"), c("d"))
+                .row(p("#B"), c("a"), c("x"), p("#T", red, p("#T", red, c("b"), c("y"), c("c")), c("z"), c("d")))
+                .row(p("#B"), c("a"), c("x"), p("#T", red, c("b"), c("y"), p("#T", red, c("c"), c("z"), c("d"))))
+                .row(c("k"), c("a"), c("x"), c("b")));
+
+        // the binary operators of an interpreter, errors are propagated.
+        result.add(new Corpus("binop", op, value, value)
+                .row(p("#Add"), p("#Int", c("a")), p("#Int", c("b")))
+                .row(p("#Sub"), p("#Int", c("a")), p("#Int", c("b")))
+                .row(p("#And"), p("#Bool", c("a")), p("#Bool", c("b")))
+                .row(p("#Or"), p("#Bool", c("a")), p("#Bool", c("b")))
+                .row(p("#Eq"), p("#Int", c("a")), p("#Int", c("b")))
+                .row(p("#Eq"), p("#Bool", c("a")), p("#Bool", c("b")))
+                .row(w(), p("#Err"), w())
+                .row(w(), w(), p("#Err"))
+                .row(w(), w(), w()));
+
+        // zipping three lists.
+        result.add(new Corpus("zip3", list, list, list)
+                .row(p("#Cons", c("a"), c("at")), p("#Cons", c("b"), c("bt")), p("#Cons", c("c"), c("ct")))
+                .row(w(), w(), w()));
+
+        // a flag in the last column decides how the rest is looked at.
+        result.add(new Corpus("flags", x5, x5, bool)
+                .row(w(), w(), p("#T"))
+                .row(p("#A"), w(), p("#F"))
+                .row(w(), p("#A"), p("#F"))
+                .row(p("#B"), p("#B"), p("#F"))
+                .row(w(), w(), w()));
+
+        // or patterns in every column, which used to grow the tree
+        // exponentially since every expansion was compiled on its own.
+        final Match ab = o(p("#A"), p("#B"));
+        result.add(new Corpus("ors", x5, x5, x5, x5, x5, x5)
+                .row(ab, ab, ab, ab, ab, ab)
+                .row(w(), w(), w(), w(), w(), w()));
+
+        return result;
+    }
+
+    private static MatchRewriter rewriter(List<MatchCompiler.Heuristic> strategy) {
+        // the strategies are compared on decision trees, AUTO might pick the
+        // backtracking automaton instead.
+        return new MatchRewriter(strategy, m -> MatchRewriter.Scheme.DECISION_TREE);
+    }
+
+    private static Expr compile(Expr e, List<MatchCompiler.Heuristic> strategy) {
+        return new ANFConverter().rewrite(rewriter(strategy).rewrite(new ANFConverter().rewrite(e)));
+    }
+
+    private static Evaluator pipeline(Evaluator core, List<MatchCompiler.Heuristic> strategy) {
+        return new RewriteGroup(core, List.of(
+                new ANFConverter(),
+                rewriter(strategy),
+                new ANFConverter()));
+    }
+
+    private static void collect(Expr e, Set<Expr> tests) {
+        // the leaves are shared, so each test is only counted once.
+        e.accept(new ExprBaseVisitor<Void>() {
+
+            @Override
+            public Void visitEMatch(EMatch e) {
+                if (tests.add(e))
+                    super.visitEMatch(e);
+                return null;
+            }
+        });
+    }
+
+    private static int depth(Expr e, Map<EVar, Integer> joins) {
+        // shared tests are join points, a jump is as deep as its body.
+        if (e instanceof EMatch) {
+            int depth = 0;
+            for (final Map.Entry<Match, Expr> pair : ((EMatch) e).cases)
+                depth = Math.max(depth, depth(pair.getValue(), joins));
+            return depth + 1;
+        }
+        if (e instanceof ELam)
+            return depth(((ELam) e).body, joins);
+        if (e instanceof ELet)
+            return Math.max(depth(((ELet) e).value, joins), depth(((ELet) e).body, joins));
+        if (e instanceof EJoin) {
+            final EJoin join = (EJoin) e;
+            joins.put(join.name, depth(join.body, joins));
+            return depth(join.rest, joins);
+        }
+        if (e instanceof EJump)
+            return joins.getOrDefault(((EJump) e).target, 0);
+        return 0;
+    }
+
+    private static void setup(Evaluator eval, Corpus corpus) {
+        eval.define(Map.of(new EVar("f"), corpus.function()));
+
+        // the inputs are split into chunks so that the rewrites do not need
+        // to recurse too deeply.
+        final Random rnd = new Random(corpus.name.hashCode());
+        for (int i = 0; i < INPUTS / CHUNK; ++i)
+            eval.define(Map.of(new EVar("inputs" + i), corpus.inputs(rnd)));
+
+        // run xs = match xs with #Nil -> () | #Cons x t -> let _ = f x in run t
+        eval.define(Map.of(new EVar("run"), new ELam(new EVar("xs"), new EMatch(new EVar("xs"), List.of(
+                Map.entry(new MatchCtor("#Nil", List.of()), new ETup(List.of())),
+                Map.entry(new MatchCtor("#Cons", List.of(new MatchAll("x"), new MatchAll("t"))),
+                          new ELet(new EVar("_"), new EApp(new EVar("f"), new EVar("x")),
+                                   new EApp(new EVar("run"), new EVar("t")))))))));
+    }
+
+    private static Expr runAll() {
+        // let _ = run inputs0 in let _ = run inputs1 in ... ()
+        Expr e = new ETup(List.of());
+        for (int i = INPUTS / CHUNK; i-- > 0; )
+            e = new ELet(new EVar("_"), new EApp(new EVar("run"), new EVar("inputs" + i)), e);
+        return e;
+    }
+
+    private static double countTests(Corpus corpus, List<MatchCompiler.Heuristic> strategy) {
+        final Profile profile = new Profile();
+        final Evaluator eval = pipeline(new ASTWalker(profile), strategy);
+        setup(eval, corpus);
+
+        profile.reset();
+        eval.eval(runAll());
+
+        // every match that runs takes exactly one arm, the loop itself runs
+        // one per input and one at the end of each chunk.
+        return (double) (profile.getArmsTaken() - INPUTS - INPUTS / CHUNK) / INPUTS;
+    }
+
+    private static double measure(Corpus corpus, List<MatchCompiler.Heuristic> strategy) {
+        final Evaluator eval = pipeline(new NodeEvaluator(), strategy);
+        setup(eval, corpus);
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            final long start = System.nanoTime();
+            eval.eval(runAll());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return (double) best / INPUTS;
+    }
+
+    public static void main(String[] args) {
+        // evaluators print the result, which is not what we are measuring.
+        final PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        final List<Corpus> corpus = corpus();
+
+        // warm up the JIT so that the first configuration isn't penalized.
+        for (final Corpus c : corpus)
+            for (final List<MatchCompiler.Heuristic> strategy : STRATEGIES.values())
+                measure(c, strategy);
+
+        for (final Corpus c : corpus) {
+            for (final Map.Entry<String, List<MatchCompiler.Heuristic>> strategy : STRATEGIES.entrySet()) {
+                final Expr tree = compile(c.function(), strategy.getValue());
+                final Set<Expr> tests = Collections.newSetFromMap(new IdentityHashMap<>());
+                collect(tree, tests);
+
+                out.printf("%-8s %-4s %5d tests %3d deep %6.2f tests/input %8.1f ns/input%n",
+                        c.name, strategy.getKey(), tests.size(), depth(tree, new HashMap<>()),
+                        countTests(c, strategy.getValue()), measure(c, strategy.getValue()));
+            }
+        }
+    }
+}
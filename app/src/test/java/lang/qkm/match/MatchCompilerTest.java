@@ -0,0 +1,117 @@
+package lang.qkm.match;
+
+import java.util.*;
+import lang.qkm.eval.MatchRewriter;
+import lang.qkm.expr.*;
+import lang.qkm.util.SList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class MatchCompilerTest {
+
+    private static int countMatches(Expr e) {
+        final int[] count = new int[1];
+        e.accept(new ExprBaseVisitor<Void>() {
+
+            @Override
+            public Void visitEMatch(EMatch e) {
+                count[0]++;
+                return super.visitEMatch(e);
+            }
+        });
+        return count[0];
+    }
+
+    private static Match row(String a, String b) {
+        return new MatchTup(List.of(
+                a == null ? new MatchAll() : new MatchCtor(a, List.of()),
+                b == null ? new MatchAll() : new MatchCtor(b, List.of())));
+    }
+
+    @Test
+    public void testNeededPrefix() {
+        // | (#A, #T) -> 0 | (#B, #T) -> 1 | (#C, #T) -> 2 | (_, #F) -> 3
+        final List<Map.Entry<Match, Expr>> cases = List.of(
+                Map.entry(row("#A", "#T"), new EVar("e0")),
+                Map.entry(row("#B", "#T"), new EVar("e1")),
+                Map.entry(row("#C", "#T"), new EVar("e2")),
+                Map.entry(row(null, "#F"), new EVar("e3")));
+
+        // the first row alone picks the first column, which then needs to
+        // test the second one under every constructor.
+        final Expr leftmost = new MatchCompiler(null, MatchCompiler.LEFTMOST).compile(new EVar("x"), cases);
+        final Expr pba = new MatchCompiler(null, MatchCompiler.PBA).compile(new EVar("x"), cases);
+        assertEquals(6, countMatches(leftmost));
+        assertEquals(3, countMatches(pba));
+    }
+
+    @Test
+    public void testSharedSubproblems() {
+        // | (#A | #B, #A | #B, ...) -> 0 | _ -> 1
+        final int n = 16;
+        final List<Match> columns = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i)
+            columns.add(new MatchOr(SList.<Match>of(new MatchCtor("#B", List.of()))
+                    .prepend(new MatchCtor("#A", List.of()))));
+
+        final List<Map.Entry<Match, Expr>> cases = List.of(
+                Map.entry(new MatchTup(columns), new EVar("e0")),
+                Map.entry(new MatchAll(), new EVar("e1")));
+
+        // both constructors of a column leave the same rows behind, so the
+        // rest is only compiled once instead of once per path.
+        final Expr e = new MatchCompiler(null, MatchCompiler.LEFTMOST).compile(new EVar("x"), cases);
+        assertEquals(n + 1, countMatches(e));
+    }
+
+    @Test
+    public void testLimit() {
+        final List<Map.Entry<Match, Expr>> cases = List.of(
+                Map.entry(row("#A", "#T"), new EVar("e0")),
+                Map.entry(row(null, "#F"), new EVar("e1")));
+
+        assertNull(new MatchCompiler().compile(new EVar("x"), cases, 2));
+        assertNotNull(new MatchCompiler().compile(new EVar("x"), cases, 16));
+    }
+
+    @Test
+    public void testAutoPicksTree() {
+        /* // okasaki's balance, a moderate match that should stay a tree
+        match (c, l, v, r) with
+          | (#B, #T #R (#T #R a x b) y c, z, d) -> 0
+          | (#B, #T #R a x (#T #R b y c), z, d) -> 1
+          | (#B, a, x, #T #R (#T #R b y c) z d) -> 2
+          | (#B, a, x, #T #R b y (#T #R c z d)) -> 3
+          | (k, a, x, b) -> 4
+        */
+
+        final Match red = new MatchCtor("#R", List.of());
+        final Match black = new MatchCtor("#B", List.of());
+        final List<Match> rows = List.of(
+                new MatchTup(List.of(black, node(red, node(red, "a", "x", "b"), "y", "c"), new MatchAll("z"), new MatchAll("d"))),
+                new MatchTup(List.of(black, node(red, "a", "x", node(red, "b", "y", "c")), new MatchAll("z"), new MatchAll("d"))),
+                new MatchTup(List.of(black, new MatchAll("a"), new MatchAll("x"), node(red, node(red, "b", "y", "c"), "z", "d"))),
+                new MatchTup(List.of(black, new MatchAll("a"), new MatchAll("x"), node(red, "b", "y", node(red, "c", "z", "d")))),
+                new MatchTup(List.of(new MatchAll("k"), new MatchAll("a"), new MatchAll("x"), new MatchAll("b"))));
+
+        final List<Map.Entry<Match, Expr>> cases = new ArrayList<>();
+        for (int i = 0; i < rows.size(); ++i)
+            cases.add(Map.entry(rows.get(i), new ECtor("#R" + i, List.of())));
+        final Expr e = new ELam(new EVar("t"), new EMatch(new EVar("t"), cases));
+
+        final String auto = compile(e, MatchRewriter.Scheme.AUTO);
+        assertEquals(compile(e, MatchRewriter.Scheme.DECISION_TREE), auto);
+        assertNotEquals(compile(e, MatchRewriter.Scheme.BACKTRACKING), auto);
+    }
+
+    private static Match node(Match color, Object l, String v, Object r) {
+        return new MatchCtor("#T", List.of(color,
+                l instanceof Match ? (Match) l : new MatchAll((String) l),
+                new MatchAll(v),
+                r instanceof Match ? (Match) r : new MatchAll((String) r)));
+    }
+
+    private static String compile(Expr e, MatchRewriter.Scheme scheme) {
+        return new MatchRewriter(MatchCompiler.PBA, m -> scheme).rewrite(e).toString();
+    }
+}
@@ -0,0 +1,55 @@
+package lang.qkm.match;
+
+import java.math.BigInteger;
+import java.util.*;
+import lang.qkm.type.*;
+import lang.qkm.util.SList;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class MatchMatrixTest {
+
+    private static Match pair(Boolean a, Boolean b) {
+        return new MatchTup(List.of(
+                a == null ? new MatchAll() : new MatchBool(a),
+                b == null ? new MatchAll() : new MatchBool(b)));
+    }
+
+    @Test
+    public void testArms() {
+        final Type type = new TyTup(List.of(TyBool.INSTANCE, TyBool.INSTANCE));
+        final MatchMatrix m = new MatchMatrix(type);
+        final List<SList<Match>> rows = new ArrayList<>();
+
+        // | (true, _) | (_, true) | (true, true) | (false, false)
+        final List<Match> arms = List.of(
+                pair(true, null), pair(null, true), pair(true, true), pair(false, false));
+        final boolean[] useful = { true, true, false, true };
+        for (int i = 0; i < arms.size(); ++i) {
+            assertEquals(useful[i], m.isUseful(arms.get(i)));
+            m.add(arms.get(i));
+            rows.add(SList.of(arms.get(i)));
+
+            // same answer as checking from scratch.
+            final SList<String> missing = MatchChecker.missingMatch(rows, SList.of(type));
+            assertEquals(missing == null ? null : missing.head(),
+                         m.missing() == null ? null : m.missing().head());
+        }
+
+        assertNull(m.missing());
+        assertFalse(m.isUseful(new MatchAll()));
+    }
+
+    @Test
+    public void testOrPatterns() {
+        final TyInt i2 = new TyInt(2);
+        final MatchMatrix m = new MatchMatrix(i2);
+        m.add(new MatchOr(SList.<Match>of(new MatchInt(BigInteger.ONE, i2))
+                .prepend(new MatchInt(BigInteger.ZERO, i2))));
+
+        assertEquals("-2", m.missing().head());
+        assertFalse(m.isUseful(new MatchInt(BigInteger.ONE, i2)));
+        assertTrue(m.isUseful(new MatchOr(SList.<Match>of(new MatchInt(BigInteger.valueOf(-1), i2))
+                .prepend(new MatchInt(BigInteger.ZERO, i2)))));
+    }
+}
@@ -0,0 +1,120 @@
+package lang.qkm.sem;
+
+import java.io.*;
+import java.util.*;
+import lang.qkm.QKMLexer;
+import lang.qkm.QKMParser;
+import lang.qkm.eval.*;
+import lang.qkm.expr.*;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExprCheckerTest {
+
+    private static final class Recorder implements Evaluator {
+
+        public final List<Expr> evaluated = new ArrayList<>();
+        private final Evaluator core = new ASTWalker();
+
+        @Override
+        public void define(Map<EVar, Expr> defs) {
+            this.core.define(defs);
+        }
+
+        @Override
+        public void eval(Expr e) {
+            this.evaluated.add(e);
+            this.core.eval(e);
+        }
+    }
+
+    private static String run(Recorder exec, String... sources) {
+        // every source is parsed on its own, like the chunks of the repl.
+        final ExprChecker checker = new ExprChecker(exec);
+
+        final PrintStream old = System.out;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            for (final String source : sources) {
+                final QKMLexer lexer = new QKMLexer(CharStreams.fromString(source));
+                checker.visit(new QKMParser(new CommonTokenStream(lexer)).lines());
+            }
+        } finally {
+            System.setOut(old);
+        }
+        return buffer.toString().trim();
+    }
+
+    @Test
+    public void testSaturatedPrimitives() {
+        final Recorder exec = new Recorder();
+        assertEquals("3\n-1\ntrue\n44", run(exec,
+                "add_i32 1 2",
+                "sub_i32 1 2",
+                "lt_i8 -3i8 4i8",
+                "mul_i8 100i8 3i8"));
+
+        // two arguments become a single node.
+        for (final Expr e : exec.evaluated)
+            assertTrue(e instanceof EPrim, e.toString());
+    }
+
+    @Test
+    public void testUnsaturatedPrimitives() {
+        // one argument, or none at all, is still a curried function.
+        final Recorder exec = new Recorder();
+        assertEquals("42\n12\n(5, 6)", run(exec,
+                "let inc = add_i32 1 in inc 41",
+                "let apply = fun f -> f 3 4 in apply mul_i32",
+                "let apply = fun f -> f 7 in (apply (sub_i32 12), apply (rem_i32 13))"));
+
+        // one argument applies the primitive as a function, none at all
+        // passes the function itself.
+        final ELetrec partial = (ELetrec) exec.evaluated.get(0);
+        assertTrue(partial.binds.get(new EVar("inc")) instanceof EApp, partial.toString());
+        final ELetrec bare = (ELetrec) exec.evaluated.get(1);
+        assertTrue(((EApp) bare.body).args.get(0) instanceof ELam, bare.toString());
+    }
+
+    @Test
+    public void testSameResults() {
+        // the promoted node computes what the curried function does.
+        final List<String> ops = List.of(
+                "add", "sub", "mul", "div", "rem", "shl", "shr", "ushr",
+                "and", "or", "xor", "eq", "ne", "lt", "le", "gt", "ge");
+        for (final String op : ops) {
+            for (final String args : List.of("-7i8 3i8", "100i8 5i8", "-1i8 7i8", "-2147483648 -1")) {
+                final String prim = args.contains("i8") ? op + "_i8" : op + "_i32";
+                final Recorder promoted = new Recorder();
+                final Recorder curried = new Recorder();
+                final String expected = run(curried, "(" + prim + " " + args.replace(" ", ") "));
+                assertEquals(expected, run(promoted, prim + " " + args), prim + " " + args);
+                assertTrue(promoted.evaluated.get(0) instanceof EPrim);
+                assertFalse(curried.evaluated.get(0) instanceof EPrim);
+            }
+        }
+    }
+
+    @Test
+    public void testShadowedPrimitives() {
+        final Recorder exec = new Recorder();
+        assertEquals("5\n11", run(exec,
+                "let add_i32 = fun a b -> a in add_i32 5 6",
+                "add_i32 5 6"));
+
+        // the binding is an ordinary function, not the primitive.
+        assertFalse(exec.evaluated.get(0) instanceof EPrim);
+        assertTrue(exec.evaluated.get(1) instanceof EPrim);
+    }
+
+    @Test
+    public void testIllegalPrimitives() {
+        final Recorder exec = new Recorder();
+        assertThrows(RuntimeException.class, () -> run(exec, "add_i32 1 2 3"));
+        assertThrows(RuntimeException.class, () -> run(exec, "add_i32 1i8 2"));
+        assertThrows(RuntimeException.class, () -> run(exec, "frob_i32 1 2"));
+    }
+}
@@ -0,0 +1,44 @@
+package lang.qkm.type;
+
+import java.math.BigInteger;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public final class TyIntTest {
+
+    @Test
+    public void testWrapWord() {
+        final TyInt i8 = new TyInt(8);
+        assertEquals(-56, i8.signed(200));
+        assertEquals(200, i8.unsigned(-56));
+        assertEquals(BigInteger.valueOf(-56), i8.signed(BigInteger.valueOf(200)));
+
+        final TyInt i64 = new TyInt(64);
+        assertEquals(Long.MIN_VALUE, i64.signed(Long.MIN_VALUE));
+        assertEquals(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE),
+                     i64.unsigned(BigInteger.valueOf(-1)));
+    }
+
+    @Test
+    public void testWrapWide() {
+        final TyInt i65 = new TyInt(65);
+        final BigInteger top = BigInteger.ONE.shiftLeft(64);
+        assertEquals(top.negate(), i65.signed(top));
+        assertEquals(top, i65.unsigned(top.negate()));
+    }
+
+    @Test
+    public void testMissingCase() {
+        final TyInt i1 = new TyInt(1);
+        assertEquals(0L, i1.getCtorSet().missingCase(List.of(-1L)));
+        assertNull(i1.getCtorSet().missingCase(List.of(-1L, 0L)));
+    }
+
+    @Test
+    public void testSharedCtorSet() {
+        assertSame(new TyInt(8).getCtorSet(), new TyInt(8).getCtorSet());
+        assertNotSame(new TyInt(8).getCtorSet(), new TyInt(16).getCtorSet());
+        assertEquals(Optional.of(true), new TyInt(8).getCtorSet().sameSize(256));
+    }
+}